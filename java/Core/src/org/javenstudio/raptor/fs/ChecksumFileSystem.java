@@ -2,11 +2,11 @@ package org.javenstudio.raptor.fs;
 
 import java.io.*;
 import java.util.Arrays;
-import java.util.zip.CRC32;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.fs.permission.FsPermission;
+import org.javenstudio.raptor.util.DataChecksum;
 import org.javenstudio.raptor.util.Progressable;
 import org.javenstudio.raptor.util.StringUtils;
 
@@ -16,10 +16,17 @@ import org.javenstudio.raptor.util.StringUtils;
  * which creates a checksum file for each raw file.
  * It generates & verifies checksums at the client side.
  *
+ * A checksum file of CRC32 sums starts with "crc\0" and the int
+ * bytesPerChecksum. Other checksum types, chosen by io.checksum.type, 
+ * start with "crc\1" followed by the {@link DataChecksum} header.
+ *
  *****************************************************************/
 public abstract class ChecksumFileSystem extends FilterFileSystem {
   private static final byte[] CHECKSUM_VERSION = new byte[] {'c', 'r', 'c', 0};
+  private static final byte[] CHECKSUM_VERSION_TYPED = new byte[] {'c', 'r', 'c', 1};
+  private static final int CHECKSUM_SIZE = 4;
   private int bytesPerChecksum = 512;
+  private int checksumType = DataChecksum.CHECKSUM_CRC32;
   private boolean verifyChecksum = true;
 
   public static double getApproxChkSumLength(long size) {
@@ -34,6 +41,10 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     super.setConf(conf);
     if (conf != null) {
       bytesPerChecksum = conf.getInt("io.bytes.per.checksum", 512);
+      int type = DataChecksum.getChecksumTypeByName(conf.get(
+          DataChecksum.CHECKSUM_TYPE_KEY, DataChecksum.DEFAULT_CHECKSUM_TYPE));
+      checksumType = (type == DataChecksum.CHECKSUM_CRC32C) ? 
+          DataChecksum.CHECKSUM_CRC32C : DataChecksum.CHECKSUM_CRC32;
     }
   }
   
@@ -64,7 +75,7 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
    * actual file.
    **/
   public long getChecksumFileLength(Path file, long fileSize) {
-    return getChecksumLength(fileSize, getBytesPerSum());
+    return getChecksumLength(fileSize, getBytesPerSum(), checksumType);
   }
 
   /** Return the bytes Per Checksum */
@@ -72,6 +83,11 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     return bytesPerChecksum;
   }
 
+  /** Return the type of checksum written to new checksum files */
+  public int getChecksumType() {
+    return checksumType;
+  }
+
   private int getSumBufferSize(int bytesPerSum, int bufferSize) {
     int defaultBufferSize = getConf().getInt("io.file.buffer.size", 4096);
     int proportionalBufferSize = bufferSize / bytesPerSum;
@@ -91,7 +107,10 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     private FSDataInputStream sums;
     
     private static final int HEADER_LENGTH = 8;
+    private static final int TYPED_HEADER_LENGTH = 
+        CHECKSUM_VERSION_TYPED.length + DataChecksum.HEADER_LEN;
     
+    private int headerLength = HEADER_LENGTH;
     private int bytesPerSum = 1;
     private long fileLen = -1L;
     
@@ -112,10 +131,23 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
 
         byte[] version = new byte[CHECKSUM_VERSION.length];
         sums.readFully(version);
-        if (!Arrays.equals(version, CHECKSUM_VERSION))
+        int type = DataChecksum.CHECKSUM_CRC32;
+        if (Arrays.equals(version, CHECKSUM_VERSION)) {
+          this.bytesPerSum = sums.readInt();
+        } else if (Arrays.equals(version, CHECKSUM_VERSION_TYPED)) {
+          type = sums.readByte();
+          this.bytesPerSum = sums.readInt();
+          this.headerLength = TYPED_HEADER_LENGTH;
+        } else {
           throw new IOException("Not a checksum file: "+sumFile);
-        this.bytesPerSum = sums.readInt();
-        set(fs.verifyChecksum, new CRC32(), bytesPerSum, 4);
+        }
+        DataChecksum sum = DataChecksum.newDataChecksum(type, bytesPerSum);
+        if (sum == null || sum.getChecksumSize() != CHECKSUM_SIZE) {
+          throw new IOException("Unsupported checksum type " + type + 
+                                " in " + sumFile);
+        }
+        set(fs.verifyChecksum, sum, bytesPerSum, CHECKSUM_SIZE, 
+            Math.max(1, bufferSize / bytesPerSum));
       } catch (FileNotFoundException e) {         // quietly ignore
         set(fs.verifyChecksum, null, 1, 0);
       } catch (IOException e) {                   // loudly ignore
@@ -127,7 +159,7 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     }
     
     private long getChecksumFilePos( long dataPos ) {
-      return HEADER_LENGTH + 4*(dataPos/bytesPerSum);
+      return headerLength + CHECKSUM_SIZE*(dataPos/bytesPerSum);
     }
     
     protected long getChunkPosition( long dataPos ) {
@@ -180,16 +212,25 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
         byte[] checksum) throws IOException {
       boolean eof = false;
       if(needChecksum()) {
-        try {
-          long checksumPos = getChecksumFilePos(pos); 
-          if(checksumPos != sums.getPos()) {
-            sums.seek(checksumPos);
-          }
-          sums.readFully(checksum);
-        } catch (EOFException e) {
+        // read the checksums of as many whole chunks as fit in buf
+        int numChunks = Math.max(1, Math.min(len / bytesPerSum, 
+                                             checksum.length / CHECKSUM_SIZE));
+        long checksumPos = getChecksumFilePos(pos); 
+        if(checksumPos != sums.getPos()) {
+          sums.seek(checksumPos);
+        }
+        int sumLen = readFully(sums, checksum, 0, numChunks * CHECKSUM_SIZE);
+        if (sumLen > 0 && sumLen % CHECKSUM_SIZE != 0) {
+          throw new ChecksumException("Checksum file not a length multiple " + 
+                                      "of checksum size in " + file + 
+                                      " at " + pos, pos);
+        }
+        if (sumLen <= 0) {
           eof = true;
+          len = bytesPerSum;
+        } else {
+          len = bytesPerSum * (sumLen / CHECKSUM_SIZE);
         }
-        len = bytesPerSum;
       }
       if(pos != datas.getPos()) {
         datas.seek(pos);
@@ -277,10 +318,23 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
    * @return the number of bytes in the checksum file
    */
   public static long getChecksumLength(long size, int bytesPerSum) {
+    return getChecksumLength(size, bytesPerSum, DataChecksum.CHECKSUM_CRC32);
+  }
+
+  /**
+   * Calculated the length of the checksum file in bytes.
+   * @param size the length of the data file in bytes
+   * @param bytesPerSum the number of bytes in a checksum block
+   * @param checksumType the type of checksum in the file
+   * @return the number of bytes in the checksum file
+   */
+  public static long getChecksumLength(long size, int bytesPerSum, 
+      int checksumType) {
     //the checksum length is equal to size passed divided by bytesPerSum +
     //bytes written in the beginning of the checksum file.  
-    return ((size + bytesPerSum - 1) / bytesPerSum) * 4 +
-             CHECKSUM_VERSION.length + 4;  
+    return ((size + bytesPerSum - 1) / bytesPerSum) * CHECKSUM_SIZE +
+             CHECKSUM_VERSION.length + 
+             (checksumType == DataChecksum.CHECKSUM_CRC32 ? 4 : DataChecksum.HEADER_LEN);  
   }
 
   /** This class provides an output stream for a checksummed file.
@@ -288,6 +342,7 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
   private static class ChecksumFSOutputSummer extends FSOutputSummer {
     private FSDataOutputStream datas;    
     private FSDataOutputStream sums;
+    private int bytesPerSum;
     private static final float CHKSUM_AS_FRACTION = 0.01f;
     
     @SuppressWarnings("unused")
@@ -311,16 +366,24 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
                           long blockSize,
                           Progressable progress)
       throws IOException {
-      super(new CRC32(), fs.getBytesPerSum(), 4);
-      int bytesPerSum = fs.getBytesPerSum();
+      super(DataChecksum.newDataChecksum(fs.getChecksumType(), fs.getBytesPerSum()), 
+            fs.getBytesPerSum(), CHECKSUM_SIZE, 
+            Math.max(1, bufferSize / fs.getBytesPerSum()));
+      this.bytesPerSum = fs.getBytesPerSum();
       this.datas = fs.getRawFileSystem().create(file, overwrite, bufferSize, 
                                          replication, blockSize, progress);
       int sumBufferSize = fs.getSumBufferSize(bytesPerSum, bufferSize);
       this.sums = fs.getRawFileSystem().create(fs.getChecksumFile(file), true, 
                                                sumBufferSize, replication,
                                                blockSize);
-      sums.write(CHECKSUM_VERSION, 0, CHECKSUM_VERSION.length);
-      sums.writeInt(bytesPerSum);
+      if (fs.getChecksumType() == DataChecksum.CHECKSUM_CRC32) {
+        sums.write(CHECKSUM_VERSION, 0, CHECKSUM_VERSION.length);
+        sums.writeInt(bytesPerSum);
+      } else {
+        sums.write(CHECKSUM_VERSION_TYPED, 0, CHECKSUM_VERSION_TYPED.length);
+        sums.writeByte(fs.getChecksumType());
+        sums.writeInt(bytesPerSum);
+      }
     }
     
     public void close() throws IOException {
@@ -335,6 +398,14 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
       datas.write(b, offset, len);
       sums.write(checksum);
     }
+    
+    @Override
+    protected void writeChunks(byte[] b, int offset, int len, 
+        byte[] checksums, int checksumsOffset) throws IOException {
+      int numChunks = (len + bytesPerSum - 1) / bytesPerSum;
+      datas.write(b, offset, len);
+      sums.write(checksums, checksumsOffset, numChunks * CHECKSUM_SIZE);
+    }
   }
 
   /** {@inheritDoc} */
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.util.zip.Checksum;
 
 import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.util.DataChecksum;
 import org.javenstudio.raptor.util.StringUtils;
 
 /**
@@ -20,6 +21,8 @@ public abstract class FSInputChecker extends FSInputStream {
   private boolean verifyChecksum = true;
   private byte[] buf;
   private byte[] checksum;
+  private int chunkSize;
+  private int checksumSize;
   private int pos;
   private int count;
   
@@ -55,7 +58,10 @@ public abstract class FSInputChecker extends FSInputStream {
   /** Reads in next checksum chunk data into <code>buf</code> at <code>offset</code>
    * and checksum into <code>checksum</code>.
    * The method is used for implementing read, therefore, it should be optimized
-   * for sequential reading
+   * for sequential reading.
+   * If the checksum buffer has room for several checksums, the method may
+   * read as many whole chunks as fit in both buffers, storing one checksum 
+   * per chunk; only the last chunk of the file may be partial
    * @param pos chunkPos
    * @param buf desitination buffer
    * @param offset offset in buf at which to store data
@@ -217,8 +223,7 @@ public abstract class FSInputChecker extends FSInputStream {
         read = readChunk(chunkPos, b, off, len, checksum);
         if( read > 0 ) {
           if( needChecksum() ) {
-            sum.update(b, off, read);
-            verifySum(chunkPos);
+            verifySums(b, off, read);
           }
           chunkPos += read;
         } 
@@ -247,29 +252,45 @@ public abstract class FSInputChecker extends FSInputStream {
     return read;
   }
   
-  /* verify checksum for the chunk.
+  /* verify checksums for the chunks read at chunkPos.
    * @throws ChecksumException if there is a mismatch
    */
-  private void verifySum(long errPos) throws ChecksumException {
-    long crc = getChecksum();
-    long sumValue = sum.getValue();
-    sum.reset();
-    if (crc != sumValue) {
-      throw new ChecksumException(
-          "Checksum error: "+file+" at "+errPos, errPos);
+  private void verifySums(byte[] b, int off, int len) throws ChecksumException {
+    if (sum instanceof DataChecksum) {
+      // verify all the chunks in one call
+      ((DataChecksum)sum).verifyChunkedSums(b, off, len, checksum, 0, 
+          String.valueOf(file), chunkPos);
+      return;
+    }
+    
+    long errPos = chunkPos;
+    int sumOff = 0;
+    while (len > 0) {
+      int n = Math.min(len, chunkSize);
+      sum.update(b, off, n);
+      long crc = checksum2long(checksum, sumOff, checksumSize);
+      long sumValue = sum.getValue();
+      sum.reset();
+      if (crc != sumValue) {
+        throw new ChecksumException(
+            "Checksum error: "+file+" at "+errPos, errPos);
+      }
+      off += n;
+      len -= n;
+      errPos += n;
+      sumOff += checksumSize;
     }
-  }
-  
-  /* calculate checksum value */
-  private long getChecksum() {
-    return checksum2long(checksum);
   }
 
   /** Convert a checksum byte array to a long */
   static public long checksum2long(byte[] checksum) {
+    return checksum2long(checksum, 0, checksum.length);
+  }
+
+  private static long checksum2long(byte[] checksum, int offset, int length) {
     long crc = 0L;
-    for(int i=0; i<checksum.length; i++) {
-      crc |= (0xffL&(long)checksum[i])<<((checksum.length-i-1)*8);
+    for(int i=0; i<length; i++) {
+      crc |= (0xffL&(long)checksum[offset+i])<<((length-i-1)*8);
     }
     return crc;
   }
@@ -379,10 +400,28 @@ public abstract class FSInputChecker extends FSInputStream {
    */
   final protected synchronized void set(boolean verifyChecksum,
       Checksum sum, int maxChunkSize, int checksumSize ) {
+    set(verifyChecksum, sum, maxChunkSize, checksumSize, 1);
+  }
+  
+  /**
+   * Set the checksum related parameters, reading up to 
+   * <code>chunksPerRead</code> chunks per call to readChunk
+   * @param verifyChecksum whether to verify checksum
+   * @param sum which type of checksum to use
+   * @param maxChunkSize maximun chunk size
+   * @param checksumSize checksum size
+   * @param chunksPerRead number of chunks read and verified at once
+   */
+  final protected synchronized void set(boolean verifyChecksum,
+      Checksum sum, int maxChunkSize, int checksumSize, int chunksPerRead ) {
+    if (chunksPerRead < 1) 
+      chunksPerRead = 1;
     this.verifyChecksum = verifyChecksum;
     this.sum = sum;
-    this.buf = new byte[maxChunkSize];
-    this.checksum = new byte[checksumSize];
+    this.chunkSize = maxChunkSize;
+    this.checksumSize = checksumSize;
+    this.buf = new byte[maxChunkSize * chunksPerRead];
+    this.checksum = new byte[checksumSize * chunksPerRead];
     this.count = 0;
     this.pos = 0;
   }
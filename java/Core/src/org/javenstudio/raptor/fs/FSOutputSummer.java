@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.Checksum;
 
+import org.javenstudio.raptor.util.DataChecksum;
+
 /**
  * This is a generic output stream for generating checksums for
  * data before it is written to the underlying stream
@@ -16,14 +18,28 @@ abstract public class FSOutputSummer extends OutputStream {
   private byte buf[];
   // internal buffer for storing checksum
   private byte checksum[];
+  // internal buffer for storing the checksums of several chunks
+  private byte checksums[];
   // The number of valid bytes in the buffer.
   private int count;
   
   protected FSOutputSummer(Checksum sum, int maxChunkSize, int checksumSize) {
+    this(sum, maxChunkSize, checksumSize, 1);
+  }
+  
+  /**
+   * @param chunksPerWrite when <code>sum</code> is a {@link DataChecksum}, 
+   * the number of whole chunks checksumed in one call and handed to 
+   * {@link #writeChunks} when the user writes large arrays
+   */
+  protected FSOutputSummer(Checksum sum, int maxChunkSize, int checksumSize, 
+      int chunksPerWrite) {
     this.sum = sum;
     this.buf = new byte[maxChunkSize];
     this.checksum = new byte[checksumSize];
     this.count = 0;
+    if (chunksPerWrite > 1 && sum instanceof DataChecksum) 
+      this.checksums = new byte[checksumSize * chunksPerWrite];
   }
   
   /* write the data chunk in <code>b</code> staring at <code>offset</code> with
@@ -32,6 +48,24 @@ abstract public class FSOutputSummer extends OutputStream {
   protected abstract void writeChunk(byte[] b, int offset, int len, byte[] checksum)
   throws IOException;
 
+  /* write the whole data chunks in <code>b</code> staring at <code>offset</code> 
+   * with a length of <code>len</code>, and their checksums stored one after 
+   * another in <code>checksums</code>. The default writes them one by one 
+   * with {@link #writeChunk}.
+   */
+  protected void writeChunks(byte[] b, int offset, int len, 
+      byte[] checksums, int checksumsOffset) throws IOException {
+    int chunkSize = buf.length;
+    while (len > 0) {
+      int n = Math.min(len, chunkSize);
+      System.arraycopy(checksums, checksumsOffset, checksum, 0, checksum.length);
+      writeChunk(b, offset, n, checksum);
+      offset += n;
+      len -= n;
+      checksumsOffset += checksum.length;
+    }
+  }
+
   /** Write one byte */
   public synchronized void write(int b) throws IOException {
     sum.update(b);
@@ -74,6 +108,17 @@ abstract public class FSOutputSummer extends OutputStream {
    * stream at most once if necessary.
    */
   private int write1(byte b[], int off, int len) throws IOException {
+    if(count==0 && len>=buf.length && checksums != null) {
+      // local buffer is empty and user data has several chunks
+      // checksum them in one call and output data
+      final int numChunks = Math.min(len/buf.length, 
+          checksums.length/checksum.length);
+      final int length = numChunks*buf.length;
+      ((DataChecksum)sum).calculateChunkedSums(b, off, length, checksums, 0);
+      writeChunks(b, off, length, checksums, 0);
+      return length;
+    }
+    
     if(count==0 && len>=buf.length) {
       // local buffer is empty and user data has one chunk
       // checksum and output data
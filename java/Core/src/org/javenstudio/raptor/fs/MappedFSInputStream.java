@@ -0,0 +1,128 @@
+package org.javenstudio.raptor.fs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link FSInputStream} over a memory-mapped local file. The file is
+ * mapped read-only in regions of at most 1GB when the stream is opened,
+ * so later growth of the file is not seen.
+ * <p>
+ * The mapping is not verified against checksum files and stays in memory
+ * until the buffers are garbage collected, closing the stream only drops
+ * the references.
+ */
+public class MappedFSInputStream extends FSInputStream {
+
+  private static final int REGION_SHIFT = 30;
+  private static final long REGION_SIZE = 1L << REGION_SHIFT;
+  private static final long REGION_MASK = REGION_SIZE - 1;
+
+  private MappedByteBuffer[] regions;
+  private final long length;
+  private long position = 0;
+
+  public MappedFSInputStream(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      this.length = channel.size();
+      this.regions = new MappedByteBuffer[(int)((length + REGION_MASK) >>> REGION_SHIFT)];
+      for (int i = 0; i < regions.length; i++) {
+        long start = (long)i << REGION_SHIFT;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(REGION_SIZE, length - start));
+      }
+    } finally {
+      raf.close();                      // the mapping outlives the channel
+    }
+  }
+
+  private MappedByteBuffer[] checkOpen() throws IOException {
+    MappedByteBuffer[] r = regions;
+    if (r == null)
+      throw new IOException("Stream closed");
+    return r;
+  }
+
+  public synchronized void seek(long pos) throws IOException {
+    if (pos < 0 || pos > length)
+      throw new EOFException("Cannot seek to " + pos + ", length is " + length);
+    this.position = pos;
+  }
+
+  public synchronized long getPos() throws IOException {
+    return position;
+  }
+
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  /** Returns the length of the mapped file. */
+  public long getLength() {
+    return length;
+  }
+
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return (int)Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  public synchronized int read() throws IOException {
+    MappedByteBuffer[] r = checkOpen();
+    if (position >= length)
+      return -1;
+    int value = r[(int)(position >>> REGION_SHIFT)].get(
+        (int)(position & REGION_MASK)) & 0xff;
+    position++;
+    return value;
+  }
+
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    int n = read(position, b, off, len);
+    if (n > 0)
+      position += n;
+    return n;
+  }
+
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    MappedByteBuffer[] r = checkOpen();
+    if (off < 0 || len < 0 || off > b.length - len)
+      throw new IndexOutOfBoundsException();
+    if (pos >= length)
+      return len == 0 ? 0 : -1;
+
+    int total = (int)Math.min(len, length - pos);
+    int done = 0;
+    while (done < total) {
+      MappedByteBuffer region = r[(int)(pos >>> REGION_SHIFT)];
+      int regionOff = (int)(pos & REGION_MASK);
+      int n = Math.min(total - done, region.capacity() - regionOff);
+      // a duplicate keeps positional reads independent of each other
+      ByteBuffer dup = region.duplicate();
+      dup.position(regionOff);
+      dup.get(b, off + done, n);
+      done += n;
+      pos += n;
+    }
+    return done;
+  }
+
+  public synchronized long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+    long skipped = Math.min(n, length - position);
+    position += skipped;
+    return skipped;
+  }
+
+  public synchronized void close() throws IOException {
+    regions = null;
+  }
+}
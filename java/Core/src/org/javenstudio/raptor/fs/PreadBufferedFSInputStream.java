@@ -0,0 +1,105 @@
+package org.javenstudio.raptor.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * An {@link FSInputStream} which reads a file in large chunks with
+ * positional reads, keeping the last chunk in a buffer. On DFS a
+ * positional read fetches a whole range of a block at once instead of
+ * streaming it through the small buffer of the regular input stream.
+ * <p>
+ * The length of the file is fixed when the stream is opened.
+ */
+public class PreadBufferedFSInputStream extends FSInputStream {
+
+  private final FSDataInputStream in;
+  private final long length;
+  private final byte[] buffer;
+  private long bufferStart = 0;
+  private int bufferLength = 0;
+  private long position = 0;
+
+  /**
+   * @param in the stream to read from with positional reads
+   * @param length the length of the file
+   * @param readSize the size of each positional read
+   */
+  public PreadBufferedFSInputStream(FSDataInputStream in, long length,
+      int readSize) {
+    this.in = in;
+    this.length = length;
+    this.buffer = new byte[(int)Math.max(1, Math.min(readSize, length))];
+  }
+
+  /** Fill the buffer at the current position, false at end of file. */
+  private boolean fill() throws IOException {
+    if (position >= bufferStart && position < bufferStart + bufferLength)
+      return true;
+    if (position >= length)
+      return false;
+
+    int len = (int)Math.min(buffer.length, length - position);
+    in.readFully(position, buffer, 0, len);
+    bufferStart = position;
+    bufferLength = len;
+    return true;
+  }
+
+  public synchronized void seek(long pos) throws IOException {
+    if (pos < 0 || pos > length)
+      throw new EOFException("Cannot seek to " + pos + ", length is " + length);
+    this.position = pos;
+  }
+
+  public synchronized long getPos() throws IOException {
+    return position;
+  }
+
+  public synchronized boolean seekToNewSource(long targetPos) throws IOException {
+    bufferLength = 0;
+    return in.seekToNewSource(targetPos);
+  }
+
+  public synchronized int available() throws IOException {
+    return (int)Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  public synchronized int read() throws IOException {
+    if (!fill())
+      return -1;
+    int value = buffer[(int)(position - bufferStart)] & 0xff;
+    position++;
+    return value;
+  }
+
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len)
+      throw new IndexOutOfBoundsException();
+    if (len == 0)
+      return 0;
+    if (!fill())
+      return -1;
+
+    int n = Math.min(len, bufferLength - (int)(position - bufferStart));
+    System.arraycopy(buffer, (int)(position - bufferStart), b, off, n);
+    position += n;
+    return n;
+  }
+
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return in.read(pos, b, off, len);
+  }
+
+  public synchronized long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+    long skipped = Math.min(n, length - position);
+    position += skipped;
+    return skipped;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,95 @@
+package org.javenstudio.raptor.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size buffers, the slabs of {@link SlabDataOutputBuffer}.
+ * Direct buffers live off the java heap and are written to channels
+ * without the JDK copying them into a temporary direct buffer first.
+ * At most <code>maxPooled</code> idle buffers are kept, others are left
+ * to the garbage collector.
+ */
+public class ByteBufferPool {
+
+  /** The size of the slabs of the default pool. */
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+
+  private static ByteBufferPool defaultPool = null;
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final boolean direct;
+
+  private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers =
+    new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger numFree = new AtomicInteger(0);
+
+  // allocation counters, since the pool was created
+  private final AtomicLong numAllocated = new AtomicLong(0);
+  private final AtomicLong numReused = new AtomicLong(0);
+  private final AtomicLong numDiscarded = new AtomicLong(0);
+
+  /** Returns the shared pool of 64KB heap slabs, keeping at most 16MB idle. */
+  public static synchronized ByteBufferPool getDefault() {
+    if (defaultPool == null)
+      defaultPool = new ByteBufferPool(DEFAULT_SLAB_SIZE, 256, false);
+    return defaultPool;
+  }
+
+  public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("Illegal buffer size: " + bufferSize);
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.direct = direct;
+  }
+
+  public int getBufferSize() { return bufferSize; }
+
+  public boolean isDirect() { return direct; }
+
+  /** Get an empty buffer, from the pool if one is free. */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer != null) {
+      numFree.decrementAndGet();
+      numReused.incrementAndGet();
+      buffer.clear();
+      return buffer;
+    }
+
+    numAllocated.incrementAndGet();
+    return direct ? ByteBuffer.allocateDirect(bufferSize) :
+                    ByteBuffer.allocate(bufferSize);
+  }
+
+  /** Give the buffer back to the pool, or drop it if the pool is full. */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize ||
+        buffer.isDirect() != direct)
+      return;
+
+    if (numFree.incrementAndGet() <= maxPooled) {
+      freeBuffers.offer(buffer);
+    } else {
+      numFree.decrementAndGet();
+      numDiscarded.incrementAndGet();
+    }
+  }
+
+  /** The number of buffers newly allocated. */
+  public long getNumAllocated() { return numAllocated.get(); }
+
+  /** The number of buffers served from the pool. */
+  public long getNumReused() { return numReused.get(); }
+
+  /** The number of released buffers dropped because the pool was full. */
+  public long getNumDiscarded() { return numDiscarded.get(); }
+
+  /** The number of idle buffers in the pool. */
+  public int getNumFree() { return numFree.get(); }
+
+}
@@ -0,0 +1,224 @@
+package org.javenstudio.raptor.io;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javenstudio.raptor.conf.Configurable;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.util.ReflectionUtils;
+
+/**
+ * A schema of the classes and methods used by a protocol interface, so that
+ * the compact encoding of {@link ObjectWritable} can write a class or a
+ * method as a small id instead of its name.
+ *
+ * <p>Tables are derived from the protocol interface only, in a deterministic
+ * order, so a client and a server built from the same protocol get the same
+ * ids without exchanging them. Each table has a fingerprint which the two
+ * sides compare when a connection is set up. Tables are built once per
+ * protocol and cached.
+ */
+public final class ClassTable {
+
+  /** Classes every table starts with, in this order. */
+  private static final Class<?>[] BASE_CLASSES = {
+    Boolean.TYPE, Byte.TYPE, Character.TYPE, Short.TYPE, Integer.TYPE,
+    Long.TYPE, Float.TYPE, Double.TYPE, Void.TYPE, String.class,
+    boolean[].class, byte[].class, char[].class, short[].class, int[].class,
+    long[].class, float[].class, double[].class, String[].class,
+    Writable.class, NullWritable.class, Text.class, BytesWritable.class,
+    LongWritable.class, IntWritable.class, BooleanWritable.class,
+    ObjectWritable.class
+  };
+
+  private static final Map<Class<?>, ClassTable> TABLES =
+      new ConcurrentHashMap<Class<?>, ClassTable>();
+
+  private static final Map<String, Class<?>> CLASS_NAMES =
+      new ConcurrentHashMap<String, Class<?>>();
+
+  private static final Map<Class<?>, Object> FACTORIES =
+      new ConcurrentHashMap<Class<?>, Object>();
+
+  private final Class<?> protocol;
+  private final Class<?>[] classes;
+  private final Map<Class<?>, Integer> classIds;
+  private final Method[] methods;
+  private final Map<Method, Integer> methodIds;
+  private final long fingerprint;
+
+  private ClassTable(Class<?> protocol) {
+    this.protocol = protocol;
+
+    Method[] all = protocol.getMethods();
+    List<Method> methodList = new ArrayList<Method>(Arrays.asList(all));
+    Collections.sort(methodList, new Comparator<Method>() {
+        public int compare(Method m1, Method m2) {
+          return getSignature(m1).compareTo(getSignature(m2));
+        }
+      });
+
+    TreeMap<String, Class<?>> found = new TreeMap<String, Class<?>>();
+    for (Method method : methodList) {
+      addClass(found, method.getReturnType());
+      for (Class<?> paramClass : method.getParameterTypes()) {
+        addClass(found, paramClass);
+      }
+    }
+
+    List<Class<?>> classList = new ArrayList<Class<?>>(Arrays.asList(BASE_CLASSES));
+    for (Class<?> cls : found.values()) {
+      if (!classList.contains(cls))
+        classList.add(cls);
+    }
+
+    this.classes = classList.toArray(new Class<?>[classList.size()]);
+    this.classIds = new HashMap<Class<?>, Integer>();
+    for (int i = 0; i < classes.length; i++) {
+      classIds.put(classes[i], i);
+    }
+
+    this.methods = methodList.toArray(new Method[methodList.size()]);
+    this.methodIds = new HashMap<Method, Integer>();
+    for (int i = 0; i < methods.length; i++) {
+      methodIds.put(methods[i], i);
+    }
+
+    StringBuilder schema = new StringBuilder();
+    schema.append(protocol.getName());
+    for (Class<?> cls : classes) {
+      schema.append(';').append(cls.getName());
+    }
+    for (Method method : methods) {
+      schema.append(';').append(getSignature(method));
+    }
+    this.fingerprint = MD5Hash.digest(schema.toString()).halfDigest();
+  }
+
+  private static void addClass(Map<String, Class<?>> found, Class<?> cls) {
+    while (cls != null && !found.containsKey(cls.getName())) {
+      found.put(cls.getName(), cls);
+      cls = cls.getComponentType();
+    }
+  }
+
+  private static String getSignature(Method method) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(method.getName()).append('(');
+    Class<?>[] params = method.getParameterTypes();
+    for (int i = 0; i < params.length; i++) {
+      if (i > 0) sb.append(',');
+      sb.append(params[i].getName());
+    }
+    sb.append(')').append(method.getReturnType().getName());
+    return sb.toString();
+  }
+
+  /** Return the table of a protocol interface, building it on first use. */
+  public static ClassTable get(Class<?> protocol) {
+    ClassTable table = TABLES.get(protocol);
+    if (table == null) {
+      table = new ClassTable(protocol);
+      TABLES.put(protocol, table);
+    }
+    return table;
+  }
+
+  /** The protocol this table was built from. */
+  public Class<?> getProtocol() { return protocol; }
+
+  /** The fingerprint of the classes and methods in this table. */
+  public long getFingerprint() { return fingerprint; }
+
+  /** Return the id of a class, or -1 if it is not in this table. */
+  public int getClassId(Class<?> cls) {
+    Integer id = classIds.get(cls);
+    return id != null ? id.intValue() : -1;
+  }
+
+  /** Return the class with the given id. */
+  public Class<?> getClass(int id) throws IOException {
+    if (id < 0 || id >= classes.length)
+      throw new IOException("Unknown class id " + id + " for " + protocol.getName());
+    return classes[id];
+  }
+
+  /** Return the id of a method, or -1 if it is not in this table. */
+  public int getMethodId(Method method) {
+    Integer id = methodIds.get(method);
+    return id != null ? id.intValue() : -1;
+  }
+
+  /** Return the method with the given id. */
+  public Method getMethod(int id) throws IOException {
+    if (id < 0 || id >= methods.length)
+      throw new IOException("Unknown method id " + id + " for " + protocol.getName());
+    return methods[id];
+  }
+
+  /**
+   * Load a class by name, remembering the result. Used for classes that are
+   * written by name because they are not in the table.
+   */
+  public static Class<?> getClassByName(String name, Configuration conf)
+      throws IOException {
+    Class<?> cls = CLASS_NAMES.get(name);
+    if (cls == null) {
+      try {
+        cls = conf != null ? conf.getClassByName(name) :
+            Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Can't find class " + name, e);
+      }
+      CLASS_NAMES.put(name, cls);
+    }
+    return cls;
+  }
+
+  /**
+   * Create a new instance of a writable class, using its registered
+   * {@link WritableFactory} if any. The factory lookup is done once per
+   * class instead of on every call.
+   */
+  public static Writable newInstance(Class<? extends Writable> cls,
+      Configuration conf) throws IOException {
+    Object factory = FACTORIES.get(cls);
+    if (factory == null) {
+      try {
+        // make sure the static initializer registering the factory has run
+        Class.forName(cls.getName(), true, cls.getClassLoader());
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Can't initialize class " + cls.getName(), e);
+      }
+      factory = WritableFactories.getFactory(cls);
+      if (factory == null)
+        factory = cls;
+      FACTORIES.put(cls, factory);
+    }
+
+    if (factory instanceof WritableFactory) {
+      Writable result = ((WritableFactory)factory).newInstance();
+      if (result instanceof Configurable)
+        ((Configurable)result).setConf(conf);
+      return result;
+    }
+
+    return ReflectionUtils.newInstance(cls, conf);
+  }
+
+  @Override
+  public String toString() {
+    return "ClassTable[protocol=" + protocol.getName() + ",classes=" + classes.length
+        + ",methods=" + methods.length + ",fingerprint=" + Long.toHexString(fingerprint) + "]";
+  }
+
+}
@@ -0,0 +1,17 @@
+package org.javenstudio.raptor.io;
+
+/**
+ * A {@link Writable} that can use the compact encoding of a protocol's
+ * {@link ClassTable}. When a table is set, both {@link #write} and
+ * {@link #readFields} use the compact encoding, so the writer and the reader
+ * must agree on the table.
+ */
+public interface ClassTableWritable extends Writable {
+
+  /** Set the table to encode with, or null for the classic encoding. */
+  public void setClassTable(ClassTable table);
+
+  /** Return the table set by {@link #setClassTable}, or null. */
+  public ClassTable getClassTable();
+
+}
@@ -217,15 +217,16 @@ public class MapFile {
 
     // the data, on disk
     private SequenceFile.Reader data;
-    private SequenceFile.Reader index;
+    private FileSystem fs;
+    private Path indexFile;
+    private Configuration conf;
 
-    // whether the index Reader was closed
-    private boolean indexClosed = false;
-
-    // the index, in memory
+    // the index, in memory and possibly shared with other readers
     private int count = -1;
-    private WritableComparable[] keys;
-    private long[] positions;
+    private MapFileIndex index;
+
+    // the serialized key being searched
+    private DataOutputBuffer keyBuffer = new DataOutputBuffer();
 
     /** Returns the class of keys in this file. */
     public Class<?> getKeyClass() { return data.getKeyClass(); }
@@ -263,7 +264,6 @@ public class MapFile {
         WritableComparator comparator, Configuration conf) throws IOException {
       Path dir = new Path(dirName);
       Path dataFile = new Path(dir, DATA_FILE_NAME);
-      Path indexFile = new Path(dir, INDEX_FILE_NAME);
 
       // open the data
       this.data = createDataFileReader(fs, dataFile, conf);
@@ -274,8 +274,10 @@ public class MapFile {
       else
         this.comparator = comparator;
 
-      // open the index
-      this.index = new SequenceFile.Reader(fs, indexFile, conf);
+      // the index is opened when first needed, unless it is cached
+      this.fs = fs;
+      this.indexFile = new Path(dir, INDEX_FILE_NAME);
+      this.conf = conf;
     }
 
     /**
@@ -288,55 +290,35 @@ public class MapFile {
     }
 
     private void readIndex() throws IOException {
-      // read the index entirely into memory
-      if (this.keys != null)
+      // read the index entirely into memory, or share the cached one
+      if (this.index != null)
         return;
-      this.count = 0;
-      this.keys = new WritableComparable[1024];
-      this.positions = new long[1024];
-      try {
-        int skip = INDEX_SKIP;
-        LongWritable position = new LongWritable();
-        WritableComparable lastKey = null;
-        while (true) {
-          WritableComparable k = comparator.newKey();
-
-          if (!index.next(k, position))
-            break;
-
-          // check order to make sure comparator is compatible
-          if (lastKey != null && comparator.compare(lastKey, k) > 0)
-            throw new IOException("key out of order: "+k+" after "+lastKey);
-          lastKey = k;
-          
-          if (skip > 0) {
-            skip--;
-            continue;                             // skip this entry
-          } else {
-            skip = INDEX_SKIP;                    // reset skip
-          }
 
-          if (count == keys.length) {                // time to grow arrays
-            int newLength = (keys.length*3)/2;
-            WritableComparable[] newKeys = new WritableComparable[newLength];
-            long[] newPositions = new long[newLength];
-            System.arraycopy(keys, 0, newKeys, 0, count);
-            System.arraycopy(positions, 0, newPositions, 0, count);
-            keys = newKeys;
-            positions = newPositions;
+      final int indexSkip = INDEX_SKIP;
+      MapFileIndexCache.Loader loader = new MapFileIndexCache.Loader() {
+          public MapFileIndex load() throws IOException {
+            return MapFileIndex.read(new SequenceFile.Reader(fs, indexFile, conf),
+                                     comparator, indexSkip);
           }
-
-          keys[count] = k;
-          positions[count] = position.get();
-          count++;
-        }
-      } catch (EOFException e) {
-        LOG.warn("Unexpected EOF reading " + index +
-                              " at entry #" + count + ".  Ignoring.");
-      } finally {
-	indexClosed = true;
-        index.close();
+        };
+
+      MapFileIndexCache cache = MapFileIndexCache.get(conf);
+      if (cache.getMaxSize() > 0) {
+        FileStatus status = fs.getFileStatus(indexFile);
+        String key = fs.makeQualified(indexFile) + "@" + 
+          status.getModificationTime() + ":" + status.getLen() + ":" + 
+          indexSkip + ":" + comparator.getClass().getName();
+        this.index = cache.getIndex(key, loader);
+      } else {
+        this.index = loader.load();
       }
+      this.count = index.size();
+    }
+
+    /** Compare the serialized key in <code>keyBuffer</code> with entry i. */
+    private int compareKeyAt(int i) {
+      return -index.compareAt(i, comparator, 
+                              keyBuffer.getData(), 0, keyBuffer.getLength());
     }
 
     /** Re-positions the reader before its first key. */
@@ -356,7 +338,7 @@ public class MapFile {
         throw new IOException("MapFile empty");
       }
       
-      return keys[pos];
+      return index.getKey(pos, comparator.newKey());
     }
     
     /** Reads the final key from the file.
@@ -370,7 +352,7 @@ public class MapFile {
       try {
         readIndex();                              // make sure index is valid
         if (count > 0) {
-          data.seek(positions[count-1]);          // skip to last indexed entry
+          data.seek(index.getPosition(count-1));  // skip to last indexed entry
         } else {
           reset();                                // start at the beginning
         }
@@ -419,21 +401,25 @@ public class MapFile {
       throws IOException {
       readIndex();                                // make sure index is read
 
+      keyBuffer.reset();                          // serialize the key once
+      key.write(keyBuffer);
+
       if (seekIndex != -1                         // seeked before
           && seekIndex+1 < count           
-          && comparator.compare(key, keys[seekIndex+1])<0 // before next indexed
+          && compareKeyAt(seekIndex+1)<0          // before next indexed
           && comparator.compare(key, nextKey)
           >= 0) {                                 // but after last seeked
         // do nothing
       } else {
-        seekIndex = binarySearch(key);
+        seekIndex = index.binarySearch(comparator, 
+            keyBuffer.getData(), 0, keyBuffer.getLength());
         if (seekIndex < 0)                        // decode insertion point
           seekIndex = -seekIndex-2;
 
         if (seekIndex == -1)                      // belongs before first entry
           seekPosition = firstPosition;           // use beginning of file
         else
-          seekPosition = positions[seekIndex];    // else use index
+          seekPosition = index.getPosition(seekIndex); // else use index
       }
       data.seek(seekPosition);
       
@@ -475,25 +461,6 @@ public class MapFile {
       return 1;
     }
 
-    private int binarySearch(WritableComparable key) {
-      int low = 0;
-      int high = count-1;
-
-      while (low <= high) {
-        int mid = (low + high) >>> 1;
-        WritableComparable midVal = keys[mid];
-        int cmp = comparator.compare(midVal, key);
-
-        if (cmp < 0)
-          low = mid + 1;
-        else if (cmp > 0)
-          high = mid - 1;
-        else
-          return mid;                             // key found
-      }
-      return -(low + 1);                          // key not found.
-    }
-
     /** Read the next key/value pair in the map into <code>key</code> and
      * <code>val</code>.  Returns true if such a pair exists and false when at
      * the end of the map */
@@ -557,9 +524,7 @@ public class MapFile {
 
     /** Close the map. */
     public synchronized void close() throws IOException {
-      if (!indexClosed) {
-        index.close();
-      }
+      index = null;
       data.close();
     }
 
@@ -0,0 +1,152 @@
+package org.javenstudio.raptor.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.javenstudio.common.util.Logger;
+
+/**
+ * The in-memory index of a {@link MapFile}. The serialized keys are packed
+ * into one byte array with an array of offsets, so an index costs a few
+ * objects whatever its number of entries, and it is searched with the raw
+ * compare of a {@link RawComparator}.
+ * <p>
+ * An index is immutable once read and may be shared by all the readers of
+ * its file, see {@link MapFileIndexCache}.
+ */
+@SuppressWarnings("rawtypes")
+public final class MapFileIndex {
+  private static final Logger LOG = Logger.getLogger(MapFileIndex.class);
+
+  private final byte[] keyData;
+  private final int[] keyOffsets;               // count+1 offsets
+  private final long[] positions;
+  private final int count;
+
+  private MapFileIndex(byte[] keyData, int[] keyOffsets, long[] positions,
+      int count) {
+    this.keyData = keyData;
+    this.keyOffsets = keyOffsets;
+    this.positions = positions;
+    this.count = count;
+  }
+
+  /**
+   * Read an index file entirely, keeping one entry out of
+   * <code>indexSkip+1</code>. The reader is closed.
+   */
+  static MapFileIndex read(SequenceFile.Reader index,
+      WritableComparator comparator, int indexSkip) throws IOException {
+    DataOutputBuffer keyBuffer = new DataOutputBuffer();
+    int[] keyOffsets = new int[1025];
+    long[] positions = new long[1024];
+    int count = 0;
+    try {
+      int skip = indexSkip;
+      LongWritable position = new LongWritable();
+      WritableComparable lastKey = null;
+      while (true) {
+        WritableComparable k = comparator.newKey();
+
+        if (!index.next(k, position))
+          break;
+
+        // check order to make sure comparator is compatible
+        if (lastKey != null && comparator.compare(lastKey, k) > 0)
+          throw new IOException("key out of order: "+k+" after "+lastKey);
+        lastKey = k;
+
+        if (skip > 0) {
+          skip--;
+          continue;                             // skip this entry
+        } else {
+          skip = indexSkip;                     // reset skip
+        }
+
+        if (count == positions.length) {        // time to grow arrays
+          int newLength = (positions.length*3)/2;
+          int[] newOffsets = new int[newLength+1];
+          long[] newPositions = new long[newLength];
+          System.arraycopy(keyOffsets, 0, newOffsets, 0, count+1);
+          System.arraycopy(positions, 0, newPositions, 0, count);
+          keyOffsets = newOffsets;
+          positions = newPositions;
+        }
+
+        k.write(keyBuffer);
+        positions[count] = position.get();
+        keyOffsets[++count] = keyBuffer.getLength();
+      }
+    } catch (EOFException e) {
+      LOG.warn("Unexpected EOF reading " + index +
+               " at entry #" + count + ".  Ignoring.");
+    } finally {
+      index.close();
+    }
+
+    // trim to size, the index is kept for long
+    byte[] keyData = new byte[keyBuffer.getLength()];
+    System.arraycopy(keyBuffer.getData(), 0, keyData, 0, keyData.length);
+    int[] offsets = new int[count+1];
+    System.arraycopy(keyOffsets, 0, offsets, 0, count+1);
+    long[] pos = new long[count];
+    System.arraycopy(positions, 0, pos, 0, count);
+
+    return new MapFileIndex(keyData, offsets, pos, count);
+  }
+
+  /** Returns the number of entries. */
+  public int size() { return count; }
+
+  /** Returns the data file position of an entry. */
+  public long getPosition(int i) { return positions[i]; }
+
+  /** Deserialize the key of an entry into <code>key</code>. */
+  public WritableComparable getKey(int i, WritableComparable key)
+      throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(keyData, keyOffsets[i], keyOffsets[i+1] - keyOffsets[i]);
+    key.readFields(in);
+    return key;
+  }
+
+  /**
+   * Compare the key of an entry with a serialized key.
+   * @return the result of comparing the entry key with <code>b</code>
+   */
+  public int compareAt(int i, RawComparator comparator,
+      byte[] b, int s, int l) {
+    return comparator.compare(keyData, keyOffsets[i],
+        keyOffsets[i+1] - keyOffsets[i], b, s, l);
+  }
+
+  /**
+   * Search a serialized key.
+   * @return the index of the key, or <code>-(insertion point) - 1</code>
+   *         if it is not found
+   */
+  public int binarySearch(RawComparator comparator, byte[] b, int s, int l) {
+    int low = 0;
+    int high = count-1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareAt(mid, comparator, b, s, l);
+
+      if (cmp < 0)
+        low = mid + 1;
+      else if (cmp > 0)
+        high = mid - 1;
+      else
+        return mid;                             // key found
+    }
+    return -(low + 1);                          // key not found.
+  }
+
+  /** Returns the approximate number of heap bytes of this index. */
+  public long heapSize() {
+    // object headers and array headers
+    return 16 + 3 * 16 + keyData.length + 4L * keyOffsets.length
+        + 8L * positions.length;
+  }
+}
@@ -0,0 +1,149 @@
+package org.javenstudio.raptor.io;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.metrics.MetricsContext;
+import org.javenstudio.raptor.metrics.MetricsRecord;
+import org.javenstudio.raptor.metrics.MetricsUtil;
+import org.javenstudio.raptor.metrics.Updater;
+
+/**
+ * A size-bounded LRU cache of {@link MapFileIndex}es, shared by all the
+ * {@link MapFile.Reader}s of the process so each index is held once
+ * however many readers have its file open. An evicted index stays in use
+ * by the readers which have it until they are closed.
+ * <p>
+ * The size is set by <tt>io.map.index.cache.size</tt> in bytes, zero
+ * disables sharing. Index memory, hits and misses are published to the
+ * "io" metrics context as the "mapfile" record.
+ */
+public class MapFileIndexCache implements Updater {
+  private static final Logger LOG = Logger.getLogger(MapFileIndexCache.class);
+
+  public static final String CACHE_SIZE_KEY = "io.map.index.cache.size";
+  public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+  private static MapFileIndexCache theInstance = null;
+
+  /** Loads an index on a cache miss. */
+  public static interface Loader {
+    public MapFileIndex load() throws IOException;
+  }
+
+  private final LinkedHashMap<String, MapFileIndex> cache =
+    new LinkedHashMap<String, MapFileIndex>(16, 0.75f, true);
+  private final long maxSize;
+  private final MetricsRecord metricsRecord;
+
+  private long size = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictedCount = 0;
+  private long loadedBytes = 0;
+
+  /** Returns the cache of the process, created with the first configuration. */
+  public static synchronized MapFileIndexCache get(Configuration conf) {
+    if (theInstance == null) {
+      theInstance = new MapFileIndexCache(
+          conf.getLong(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE));
+    }
+    return theInstance;
+  }
+
+  private MapFileIndexCache(long maxSize) {
+    this.maxSize = maxSize;
+    if (LOG.isDebugEnabled())
+      LOG.debug("Initializing MapFile index cache with maxSize=" + maxSize);
+
+    MetricsContext context = MetricsUtil.getContext("io");
+    metricsRecord = MetricsUtil.createRecord(context, "mapfile");
+    context.registerUpdater(this);
+  }
+
+  /**
+   * Returns the cached index of the given key, or loads and caches it.
+   * @param key identifies an index file and the way it is read
+   */
+  public MapFileIndex getIndex(String key, Loader loader) throws IOException {
+    synchronized (this) {
+      MapFileIndex index = cache.get(key);
+      if (index != null) {
+        hitCount++;
+        return index;
+      }
+      missCount++;
+    }
+
+    // load without the lock, a concurrent load of the same file is dropped
+    MapFileIndex index = loader.load();
+    long heapSize = index.heapSize();
+
+    synchronized (this) {
+      loadedBytes += heapSize;
+      if (heapSize > maxSize)
+        return index;
+
+      MapFileIndex cached = cache.get(key);
+      if (cached != null)
+        return cached;
+
+      cache.put(key, index);
+      size += heapSize;
+      evict();
+    }
+    return index;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, MapFileIndex>> it = cache.entrySet().iterator();
+    while (size > maxSize && it.hasNext()) {
+      MapFileIndex index = it.next().getValue();
+      it.remove();
+      size -= index.heapSize();
+      evictedCount++;
+    }
+  }
+
+  /** Drop all the cached indexes. */
+  public synchronized void clear() {
+    cache.clear();
+    size = 0;
+  }
+
+  /** Returns the heap bytes of the cached indexes. */
+  public synchronized long getSize() { return size; }
+
+  /** Returns the maximum heap bytes of the cached indexes. */
+  public long getMaxSize() { return maxSize; }
+
+  /** Returns the number of cached indexes. */
+  public synchronized int getCount() { return cache.size(); }
+
+  public synchronized long getHitCount() { return hitCount; }
+  public synchronized long getMissCount() { return missCount; }
+  public synchronized long getEvictedCount() { return evictedCount; }
+
+  /** Returns the heap bytes of all the indexes loaded so far. */
+  public synchronized long getLoadedBytes() { return loadedBytes; }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      metricsRecord.setMetric("indexCacheBytes", size);
+      metricsRecord.setMetric("indexCacheCount", cache.size());
+      metricsRecord.setMetric("indexCacheHits", hitCount);
+      metricsRecord.setMetric("indexCacheMisses", missCount);
+      metricsRecord.setMetric("indexCacheEvictions", evictedCount);
+      metricsRecord.setMetric("indexLoadedBytes", loadedBytes);
+    }
+    metricsRecord.update();
+  }
+}
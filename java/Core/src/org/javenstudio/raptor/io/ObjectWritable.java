@@ -10,13 +10,18 @@ import org.javenstudio.raptor.conf.*;
 /** 
  * A polymorphic Writable that writes an instance with it's class name.
  * Handles arrays, strings and primitive types without a Writable wrapper.
+ *
+ * <p>When a {@link ClassTable} is set the instance is written in a compact
+ * form instead: classes known to the table are written as a vint id, lengths
+ * and integers as vints, and primitive arrays in bulk.
  */
 @SuppressWarnings("rawtypes")
-public class ObjectWritable implements Writable, Configurable {
+public class ObjectWritable implements ClassTableWritable, Configurable {
 
   private Class declaredClass;
   private Object instance;
   private Configuration conf;
+  private ClassTable classTable;
 
   public ObjectWritable() {}
   
@@ -46,12 +51,22 @@ public class ObjectWritable implements Writable, Configurable {
   }
 
   
+  public void setClassTable(ClassTable table) { this.classTable = table; }
+
+  public ClassTable getClassTable() { return classTable; }
+
   public void readFields(DataInput in) throws IOException {
-    readObject(in, this, this.conf);
+    if (classTable != null) 
+      readCompactObject(in, this, classTable, this.conf);
+    else
+      readObject(in, this, this.conf);
   }
   
   public void write(DataOutput out) throws IOException {
-    writeObject(out, instance, declaredClass, conf);
+    if (classTable != null) 
+      writeCompactObject(out, instance, declaredClass, classTable);
+    else
+      writeObject(out, instance, declaredClass, conf);
   }
 
   private static final Map<String, Class<?>> PRIMITIVE_NAMES = 
@@ -252,6 +267,240 @@ public class ObjectWritable implements Writable, Configurable {
     return instance;
   }
 
+  /** 
+   * Write an instance and its declared class in the compact encoding of
+   * the given table.
+   */
+  public static void writeCompactObject(DataOutput out, Object instance,
+      Class declaredClass, ClassTable table) throws IOException {
+    writeClassRef(out, declaredClass, table);
+    writeCompactValue(out, instance, declaredClass, table);
+  }
+
+  /** 
+   * Read an instance written by {@link #writeCompactObject}.
+   */
+  public static Object readCompactObject(DataInput in, 
+      ObjectWritable objectWritable, ClassTable table, Configuration conf) 
+      throws IOException {
+    Class<?> declaredClass = readClassRef(in, table, conf);
+    Object instance = readCompactValue(in, declaredClass, table, conf);
+
+    if (objectWritable != null) {                 // store values
+      objectWritable.declaredClass = declaredClass;
+      objectWritable.instance = instance;
+    }
+
+    return instance;
+  }
+
+  /** Write a class as its id in the table, or by name if it is not in it. */
+  public static void writeClassRef(DataOutput out, Class<?> cls, 
+      ClassTable table) throws IOException {
+    int id = table.getClassId(cls);
+    WritableUtils.writeVInt(out, id);
+    if (id < 0) 
+      Text.writeString(out, cls.getName());
+  }
+
+  /** Read a class written by {@link #writeClassRef}. */
+  public static Class<?> readClassRef(DataInput in, ClassTable table, 
+      Configuration conf) throws IOException {
+    int id = WritableUtils.readVInt(in);
+    if (id >= 0) 
+      return table.getClass(id);
+
+    String className = Text.readString(in);
+    Class<?> cls = PRIMITIVE_NAMES.get(className);
+    if (cls == null) 
+      cls = ClassTable.getClassByName(className, conf);
+    return cls;
+  }
+
+  /** 
+   * Write an instance in the compact encoding without its declared class,
+   * for a reader which already knows it, like the parameter types of a
+   * method.
+   */
+  public static void writeCompactValue(DataOutput out, Object instance,
+      Class declaredClass, ClassTable table) throws IOException {
+    if (declaredClass.isPrimitive()) {            // primitive type
+      writeCompactPrimitive(out, instance, declaredClass);
+      return;
+    }
+
+    if (instance == null) {                       // null
+      out.writeBoolean(false);
+      return;
+    }
+    out.writeBoolean(true);
+
+    if (declaredClass.isArray()) {                // array
+      Class<?> componentType = declaredClass.getComponentType();
+      int length = Array.getLength(instance);
+      WritableUtils.writeVInt(out, length);
+
+      if (componentType == Byte.TYPE) {
+        out.write((byte[])instance);
+      } else if (componentType == Integer.TYPE) {
+        int[] values = (int[])instance;
+        for (int i = 0; i < length; i++) {
+          WritableUtils.writeVInt(out, values[i]);
+        }
+      } else if (componentType == Long.TYPE) {
+        long[] values = (long[])instance;
+        for (int i = 0; i < length; i++) {
+          WritableUtils.writeVLong(out, values[i]);
+        }
+      } else if (componentType.isPrimitive()) {
+        for (int i = 0; i < length; i++) {
+          writeCompactPrimitive(out, Array.get(instance, i), componentType);
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          writeCompactValue(out, Array.get(instance, i), componentType, table);
+        }
+      }
+      
+    } else if (declaredClass == String.class) {   // String
+      Text.writeString(out, (String)instance);
+      
+    } else if (declaredClass.isEnum()) {          // enum
+      Text.writeString(out, ((Enum)instance).name());
+
+    } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
+      writeClassRef(out, instance.getClass(), table);
+      ((Writable)instance).write(out);
+
+    } else if (Serializable.class.isAssignableFrom(declaredClass)) { // Serializable
+      ObjectUtils.writeSerializable(out, instance); 
+
+    } else {
+      throw new IOException("Can't write: "+instance+" as "+declaredClass);
+    }
+  }
+
+  /** 
+   * Read an instance written by {@link #writeCompactValue}.
+   */
+  @SuppressWarnings("unchecked")
+  public static Object readCompactValue(DataInput in, Class<?> declaredClass, 
+      ClassTable table, Configuration conf) throws IOException {
+    if (declaredClass.isPrimitive())              // primitive type
+      return readCompactPrimitive(in, declaredClass);
+
+    if (!in.readBoolean())                        // null
+      return null;
+
+    if (declaredClass.isArray()) {                // array
+      Class<?> componentType = declaredClass.getComponentType();
+      int length = WritableUtils.readVInt(in);
+      if (length < 0) 
+        throw new IOException("Invalid array length " + length);
+
+      if (componentType == Byte.TYPE) {
+        byte[] values = new byte[length];
+        in.readFully(values);
+        return values;
+      } else if (componentType == Integer.TYPE) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+          values[i] = WritableUtils.readVInt(in);
+        }
+        return values;
+      } else if (componentType == Long.TYPE) {
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+          values[i] = WritableUtils.readVLong(in);
+        }
+        return values;
+      } else if (componentType.isPrimitive()) {
+        Object values = Array.newInstance(componentType, length);
+        for (int i = 0; i < length; i++) {
+          Array.set(values, i, readCompactPrimitive(in, componentType));
+        }
+        return values;
+      } else {
+        Object values = Array.newInstance(componentType, length);
+        for (int i = 0; i < length; i++) {
+          Array.set(values, i, readCompactValue(in, componentType, table, conf));
+        }
+        return values;
+      }
+
+    } else if (declaredClass == String.class) {   // String
+      return Text.readString(in);
+
+    } else if (declaredClass.isEnum()) {          // enum
+      return Enum.valueOf((Class<? extends Enum>) declaredClass, Text.readString(in));
+
+    } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
+      Class<?> instanceClass = readClassRef(in, table, conf);
+      if (!Writable.class.isAssignableFrom(instanceClass))
+        throw new IOException("Not a writable: " + instanceClass.getName());
+
+      Writable writable = ClassTable.newInstance(
+          (Class<? extends Writable>)instanceClass, conf);
+      writable.readFields(in);
+      return writable;
+
+    } else if (Serializable.class.isAssignableFrom(declaredClass)) { // Serializable
+      return ObjectUtils.readSerializable(in); 
+
+    } else {
+      throw new IOException("Can't read: "+declaredClass);
+    }
+  }
+
+  private static void writeCompactPrimitive(DataOutput out, Object instance, 
+      Class<?> declaredClass) throws IOException {
+    if (declaredClass == Boolean.TYPE) {          // boolean
+      out.writeBoolean(((Boolean)instance).booleanValue());
+    } else if (declaredClass == Character.TYPE) { // char
+      out.writeChar(((Character)instance).charValue());
+    } else if (declaredClass == Byte.TYPE) {      // byte
+      out.writeByte(((Byte)instance).byteValue());
+    } else if (declaredClass == Short.TYPE) {     // short
+      out.writeShort(((Short)instance).shortValue());
+    } else if (declaredClass == Integer.TYPE) {   // int
+      WritableUtils.writeVInt(out, ((Integer)instance).intValue());
+    } else if (declaredClass == Long.TYPE) {      // long
+      WritableUtils.writeVLong(out, ((Long)instance).longValue());
+    } else if (declaredClass == Float.TYPE) {     // float
+      out.writeFloat(((Float)instance).floatValue());
+    } else if (declaredClass == Double.TYPE) {    // double
+      out.writeDouble(((Double)instance).doubleValue());
+    } else if (declaredClass == Void.TYPE) {      // void
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+    }
+  }
+
+  private static Object readCompactPrimitive(DataInput in, 
+      Class<?> declaredClass) throws IOException {
+    if (declaredClass == Boolean.TYPE) {               // boolean
+      return Boolean.valueOf(in.readBoolean());
+    } else if (declaredClass == Character.TYPE) {      // char
+      return Character.valueOf(in.readChar());
+    } else if (declaredClass == Byte.TYPE) {           // byte
+      return Byte.valueOf(in.readByte());
+    } else if (declaredClass == Short.TYPE) {          // short
+      return Short.valueOf(in.readShort());
+    } else if (declaredClass == Integer.TYPE) {        // int
+      return Integer.valueOf(WritableUtils.readVInt(in));
+    } else if (declaredClass == Long.TYPE) {           // long
+      return Long.valueOf(WritableUtils.readVLong(in));
+    } else if (declaredClass == Float.TYPE) {          // float
+      return Float.valueOf(in.readFloat());
+    } else if (declaredClass == Double.TYPE) {         // double
+      return Double.valueOf(in.readDouble());
+    } else if (declaredClass == Void.TYPE) {           // void
+      return null;
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+    }
+  }
+
   public void setConf(Configuration conf) {
     this.conf = conf;
   }
@@ -2,6 +2,11 @@ package org.javenstudio.raptor.io;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.rmi.server.UID;
 import java.security.MessageDigest;
 
@@ -232,6 +237,39 @@ public class SequenceFile {
     job.set("io.seqfile.compression.type", val.toString());
   }
     
+  /** 
+   * How a {@link Reader} reads the bytes of its file.
+   */
+  public static enum ReadMode {
+    /** Read through the buffered stream of the file system. */
+    STREAM,
+    /** 
+     * Memory-map local files, read other files with large positional 
+     * reads of <tt>io.seqfile.reader.read.size</tt> bytes. 
+     */
+    MAPPED
+  }
+
+  /**
+   * Get the read mode of sequence file readers.
+   * @param conf the configuration to look in
+   * @return the mode to read files with, STREAM by default
+   */
+  static public ReadMode getReadMode(Configuration conf) {
+    String name = conf.get("io.seqfile.reader.mode");
+    return name == null ? ReadMode.STREAM : 
+      ReadMode.valueOf(name.toUpperCase());
+  }
+
+  /**
+   * Set the read mode of sequence file readers.
+   * @param conf the configuration to modify
+   * @param val the new read mode (stream, mapped)
+   */
+  static public void setReadMode(Configuration conf, ReadMode val) {
+    conf.set("io.seqfile.reader.mode", val.toString());
+  }
+
   /**
    * Construct the preferred type of SequenceFile Writer.
    * @param fs The configured filesystem. 
@@ -1331,7 +1369,11 @@ public class SequenceFile {
   
   } // BlockCompressionWriter
   
-  /** Reads key/value pairs from a sequence-format file. */
+  /** 
+   * Reads key/value pairs from a sequence-format file. The bytes are read 
+   * as set by {@link SequenceFile#getReadMode(Configuration)}, a reader can 
+   * be restricted to one split of the file with {@link #seekToSplit(Split)}.
+   */
   public static class Reader implements java.io.Closeable {
     private Path file;
     private FSDataInputStream in;
@@ -1404,8 +1446,8 @@ public class SequenceFile {
                    long length, Configuration conf, boolean tempReader) 
     throws IOException {
       this.file = file;
-      this.in = openFile(fs, file, bufferSize, length);
       this.conf = conf;
+      this.in = openFile(fs, file, bufferSize, length);
       seek(start);
       this.end = in.getPos() + length;
       init(tempReader);
@@ -1417,6 +1459,20 @@ public class SequenceFile {
      */
     protected FSDataInputStream openFile(FileSystem fs, Path file,
         int bufferSize, long length) throws IOException {
+      if (getReadMode(conf) == ReadMode.MAPPED) {
+        if (fs instanceof LocalFileSystem) {
+          return new FSDataInputStream(new MappedFSInputStream(
+              ((LocalFileSystem)fs).pathToFile(file)));
+        } else if (fs instanceof RawLocalFileSystem) {
+          return new FSDataInputStream(new MappedFSInputStream(
+              ((RawLocalFileSystem)fs).pathToFile(file)));
+        } else {
+          int readSize = conf.getInt("io.seqfile.reader.read.size", 4*1024*1024);
+          return new FSDataInputStream(new PreadBufferedFSInputStream(
+              fs.open(file, bufferSize), fs.getFileStatus(file).getLen(), 
+              readSize));
+        }
+      }
       return fs.open(file, bufferSize);
     }
     
@@ -1648,6 +1704,11 @@ public class SequenceFile {
         in.seek(WritableUtils.readVInt(in)+in.getPos());
       }
       
+      // The next block may belong to the next split
+      if (in.getPos() >= end) {
+        throw new EOFException("End of split at " + end);
+      }
+      
       // Reset internal states
       noBufferedKeys = 0; noBufferedValues = 0; noBufferedRecords = 0;
       valuesDecompressed = false;
@@ -2172,6 +2233,20 @@ public class SequenceFile {
     /** Returns true iff the previous call to next passed a sync mark.*/
     public boolean syncSeen() { return syncSeen; }
 
+    /**
+     * Restrict this reader to a split of its file, as returned by 
+     * {@link SequenceFile#getSplits(FileSystem, Path, Configuration, int)}.
+     * The reader is positioned at the first record of the split and 
+     * reports end of file after the last one.
+     */
+    public synchronized void seekToSplit(Split split) throws IOException {
+      if (!split.getPath().equals(file)) {
+        throw new IOException("Split " + split + " is not in " + file);
+      }
+      seek(split.getStart());
+      end = split.getEnd();
+    }
+
     /** Return the current byte position in the input file. */
     public synchronized long getPosition() throws IOException {
       return in.getPos();
@@ -2183,6 +2258,150 @@ public class SequenceFile {
     }
   }
 
+  /**
+   * A range of a sequence file which starts at a sync mark, or at the 
+   * first record, and ends at the next split or at the end of the file. 
+   * Each record of the file belongs to exactly one split, the one its 
+   * first byte is in.
+   */
+  public static class Split {
+    private final Path file;
+    private final long start;
+    private final long end;
+
+    public Split(Path file, long start, long end) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** The file containing this split. */
+    public Path getPath() { return file; }
+
+    /** The position of the first record of this split. */
+    public long getStart() { return start; }
+
+    /** The position after the last record of this split. */
+    public long getEnd() { return end; }
+
+    /** The number of bytes of this split. */
+    public long getLength() { return end - start; }
+
+    public String toString() {
+      return file + ":" + start + "+" + (end - start);
+    }
+  }
+
+  /**
+   * Split a sequence file at sync marks into at most <code>numSplits</code>
+   * splits of about the same size, so that they can be read in parallel
+   * with {@link Reader#seekToSplit(Split)}.
+   * <p>
+   * The splits are returned in file order, do not overlap and together 
+   * cover all the records of the file. Reading the splits one after the 
+   * other in this order gives the records in file order; there is no order 
+   * between records of different splits read in parallel. Files written 
+   * without sync marks (version 1) are returned as a single split.
+   */
+  public static Split[] getSplits(FileSystem fs, Path file, 
+      Configuration conf, int numSplits) throws IOException {
+    List<Split> splits = new ArrayList<Split>();
+    Reader reader = new Reader(fs, file, 
+        conf.getInt("io.file.buffer.size", 4096), conf, true);
+    try {
+      long start = reader.getPosition();
+      long end = reader.end;
+      long last = start;
+      
+      if (reader.version > 1 && numSplits > 1) {
+        long step = (end - start) / numSplits;
+        for (int i = 1; i < numSplits && step > 0; i++) {
+          reader.sync(start + i * step);
+          long pos = reader.getPosition();
+          if (pos >= end) 
+            break;
+          if (pos > last) {
+            splits.add(new Split(file, last, pos));
+            last = pos;
+          }
+        }
+      }
+      splits.add(new Split(file, last, end));
+    } finally {
+      reader.close();
+    }
+    return splits.toArray(new Split[splits.size()]);
+  }
+
+  /** Reads the records of one split, see {@link SequenceFile#scan}. */
+  public static interface SplitScanner {
+    /**
+     * Read the records of a split. The reader is positioned at the split 
+     * and is closed after this call.
+     */
+    public void scan(Reader reader, Split split) throws IOException;
+  }
+
+  /**
+   * Scan a sequence file with <code>numThreads</code> threads, each 
+   * reading one of the splits of 
+   * {@link #getSplits(FileSystem, Path, Configuration, int)} with its own 
+   * {@link Reader}. Records of a split are handed to the scanner in file 
+   * order by a single thread; splits are scanned concurrently in no 
+   * particular order. Returns when all the splits are scanned, throwing 
+   * the first failure if any.
+   */
+  public static void scan(final FileSystem fs, final Path file, 
+      final Configuration conf, int numThreads, final SplitScanner scanner) 
+      throws IOException {
+    Split[] splits = getSplits(fs, file, conf, numThreads);
+    if (splits.length == 1) {
+      scanSplit(fs, conf, splits[0], scanner);
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(splits.length);
+    try {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (final Split split : splits) {
+        futures.add(executor.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+              scanSplit(fs, conf, split, scanner);
+              return null;
+            }
+          }));
+      }
+      for (Future<Object> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          throw (IOException)new InterruptedIOException(
+              "Interrupted scanning " + file).initCause(e);
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) 
+            throw (IOException)cause;
+          if (cause instanceof RuntimeException) 
+            throw (RuntimeException)cause;
+          throw new IOException("Failed scanning " + file, cause);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void scanSplit(FileSystem fs, Configuration conf, 
+      Split split, SplitScanner scanner) throws IOException {
+    Reader reader = new Reader(fs, split.getPath(), conf);
+    try {
+      reader.seekToSplit(split);
+      scanner.scan(reader, split);
+    } finally {
+      reader.close();
+    }
+  }
+
   /** 
    * Sorts key/value pairs in a sequence-format file.
    *
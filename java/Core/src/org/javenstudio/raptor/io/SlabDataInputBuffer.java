@@ -0,0 +1,127 @@
+package org.javenstudio.raptor.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** A reusable {@link DataInput} implementation that reads from a sequence
+ * of {@link ByteBuffer}s, such as the slabs of a
+ * {@link SlabDataOutputBuffer}.
+ *
+ * <p>This saves memory over creating a new DataInputStream and
+ * ByteArrayInputStream each time data is read, and reads direct buffers
+ * without first copying them into one array.
+ *
+ * <p>Typical usage is something like the following:<pre>
+ *
+ * SlabDataInputBuffer buffer = new SlabDataInputBuffer();
+ * while (... loop condition ...) {
+ *   SlabDataOutputBuffer data = ... get data ...;
+ *   buffer.reset(data);
+ *   ... read buffer using DataInput methods ...
+ * }
+ * </pre>
+ */
+public class SlabDataInputBuffer extends DataInputStream {
+
+  private static class Buffer extends InputStream {
+    private ByteBuffer[] buffers = new ByteBuffer[0];
+    private int index = 0;
+    private int position = 0;
+    private int length = 0;
+
+    public void reset(ByteBuffer[] input) {
+      this.buffers = new ByteBuffer[input.length];
+      this.index = 0;
+      this.position = 0;
+      this.length = 0;
+      for (int i = 0; i < input.length; i++) {
+        buffers[i] = input[i].duplicate();
+        length += buffers[i].remaining();
+      }
+    }
+
+    /** Returns the buffer to read from, null at the end of the data. */
+    private ByteBuffer current() {
+      while (index < buffers.length) {
+        if (buffers[index].hasRemaining())
+          return buffers[index];
+        index++;
+      }
+      return null;
+    }
+
+    public int read() {
+      ByteBuffer buffer = current();
+      if (buffer == null)
+        return -1;
+      position++;
+      return buffer.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (off < 0 || len < 0 || off > b.length - len)
+        throw new IndexOutOfBoundsException();
+      if (len == 0)
+        return 0;
+
+      int total = 0;
+      ByteBuffer buffer;
+      while (total < len && (buffer = current()) != null) {
+        int n = Math.min(len - total, buffer.remaining());
+        buffer.get(b, off + total, n);
+        total += n;
+      }
+      position += total;
+      return total == 0 ? -1 : total;
+    }
+
+    public long skip(long n) {
+      long total = 0;
+      ByteBuffer buffer;
+      while (total < n && (buffer = current()) != null) {
+        int m = (int)Math.min(n - total, buffer.remaining());
+        buffer.position(buffer.position() + m);
+        total += m;
+      }
+      position += (int)total;
+      return total;
+    }
+
+    public int available() { return length - position; }
+
+    public int getPosition() { return position; }
+    public int getLength() { return length; }
+  }
+
+  private Buffer buffer;
+
+  /** Constructs a new empty buffer. */
+  public SlabDataInputBuffer() {
+    this(new Buffer());
+  }
+
+  private SlabDataInputBuffer(Buffer buffer) {
+    super(buffer);
+    this.buffer = buffer;
+  }
+
+  /**
+   * Resets the data that the buffer reads, from the position to the limit
+   * of each buffer. The given buffers are not modified.
+   */
+  public void reset(ByteBuffer[] input) {
+    buffer.reset(input);
+  }
+
+  /** Resets the data that the buffer reads to the content of a slab buffer. */
+  public void reset(SlabDataOutputBuffer input) {
+    buffer.reset(input.getByteBuffers());
+  }
+
+  /** Returns the number of bytes read so far. */
+  public int getPosition() { return buffer.getPosition(); }
+
+  /** Returns the length of the input. */
+  public int getLength() { return buffer.getLength(); }
+
+}
@@ -0,0 +1,210 @@
+package org.javenstudio.raptor.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+
+/** A reusable {@link DataOutput} implementation that writes to a chain of
+ * fixed size slabs taken from a {@link ByteBufferPool}.
+ *
+ * <p>Unlike {@link DataOutputBuffer} it never copies what was written when
+ * it grows, and the slabs may be direct buffers. The data is read back as
+ * a {@link ByteBuffer} array with {@link #getByteBuffers()}, which can be
+ * handed to a gathering write or to a {@link SlabDataInputBuffer}.
+ *
+ * <p>The slabs go back to the pool on {@link #reset()} and {@link #close()}.
+ * Buffers returned by {@link #getByteBuffers()} are invalid after that.
+ *
+ * <p>Typical usage is something like the following:<pre>
+ *
+ * SlabDataOutputBuffer buffer = new SlabDataOutputBuffer(pool);
+ * try {
+ *   ... write data to its ultimate destination ...
+ *   buffer.writeTo(channel);
+ * } finally {
+ *   buffer.close();
+ * }
+ * </pre>
+ */
+public class SlabDataOutputBuffer extends DataOutputStream {
+
+  private static class Buffer extends OutputStream {
+    private final ByteBufferPool pool;
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer current = null;
+    private int count = 0;
+
+    public Buffer(ByteBufferPool pool) {
+      this.pool = pool;
+    }
+
+    private ByteBuffer nextSlab() {
+      current = pool.acquire();
+      slabs.add(current);
+      return current;
+    }
+
+    public void write(int b) {
+      ByteBuffer slab = current;
+      if (slab == null || !slab.hasRemaining())
+        slab = nextSlab();
+      slab.put((byte)b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      if (off < 0 || len < 0 || off > b.length - len)
+        throw new IndexOutOfBoundsException();
+      while (len > 0) {
+        ByteBuffer slab = current;
+        if (slab == null || !slab.hasRemaining())
+          slab = nextSlab();
+        int n = Math.min(len, slab.remaining());
+        slab.put(b, off, n);
+        off += n;
+        len -= n;
+        count += n;
+      }
+    }
+
+    public void write(DataInput in, int len) throws IOException {
+      byte[] chunk = null;
+      while (len > 0) {
+        ByteBuffer slab = current;
+        if (slab == null || !slab.hasRemaining())
+          slab = nextSlab();
+        int n = Math.min(len, slab.remaining());
+        if (slab.hasArray()) {
+          in.readFully(slab.array(), slab.arrayOffset() + slab.position(), n);
+          slab.position(slab.position() + n);
+        } else {
+          if (chunk == null)
+            chunk = new byte[Math.min(len, 8192)];
+          n = Math.min(n, chunk.length);
+          in.readFully(chunk, 0, n);
+          slab.put(chunk, 0, n);
+        }
+        len -= n;
+        count += n;
+      }
+    }
+
+    public int getLength() { return count; }
+
+    public ByteBuffer[] getByteBuffers() {
+      ByteBuffer[] buffers = new ByteBuffer[slabs.size()];
+      for (int i = 0; i < buffers.length; i++) {
+        ByteBuffer buffer = slabs.get(i).duplicate();
+        buffer.flip();
+        buffers[i] = buffer;
+      }
+      return buffers;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      byte[] chunk = null;
+      for (ByteBuffer slab : slabs) {
+        if (slab.hasArray()) {
+          out.write(slab.array(), slab.arrayOffset(), slab.position());
+        } else {
+          if (chunk == null)
+            chunk = new byte[Math.min(count, 8192)];
+          ByteBuffer buffer = slab.duplicate();
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+          }
+        }
+      }
+    }
+
+    public byte[] toByteArray() {
+      byte[] data = new byte[count];
+      int off = 0;
+      for (ByteBuffer buffer : getByteBuffers()) {
+        int n = buffer.remaining();
+        buffer.get(data, off, n);
+        off += n;
+      }
+      return data;
+    }
+
+    public void reset() {
+      for (ByteBuffer slab : slabs) {
+        pool.release(slab);
+      }
+      slabs.clear();
+      current = null;
+      count = 0;
+    }
+
+    public void close() {
+      reset();
+    }
+  }
+
+  private Buffer buffer;
+
+  /** Constructs a new empty buffer on the default pool. */
+  public SlabDataOutputBuffer() {
+    this(ByteBufferPool.getDefault());
+  }
+
+  /** Constructs a new empty buffer taking its slabs from <code>pool</code>. */
+  public SlabDataOutputBuffer(ByteBufferPool pool) {
+    this(new Buffer(pool));
+  }
+
+  private SlabDataOutputBuffer(Buffer buffer) {
+    super(buffer);
+    this.buffer = buffer;
+  }
+
+  /** Returns the length of the valid data currently in the buffer. */
+  public int getLength() { return buffer.getLength(); }
+
+  /**
+   * Returns the valid data currently in the buffer as read views of the
+   * slabs, in order. The views share the slabs and are positioned at
+   * their first byte.
+   */
+  public ByteBuffer[] getByteBuffers() { return buffer.getByteBuffers(); }
+
+  /** Returns a copy of the valid data currently in the buffer. */
+  public byte[] toByteArray() { return buffer.toByteArray(); }
+
+  /** Resets the buffer to empty, returning its slabs to the pool. */
+  public SlabDataOutputBuffer reset() {
+    this.written = 0;
+    buffer.reset();
+    return this;
+  }
+
+  /** Writes bytes from a DataInput directly into the buffer. */
+  public void write(DataInput in, int length) throws IOException {
+    buffer.write(in, length);
+  }
+
+  /** Write the buffer content to an output stream. */
+  public void writeTo(OutputStream out) throws IOException {
+    buffer.writeTo(out);
+  }
+
+  /**
+   * Write the buffer content to a channel, such as a
+   * {@link java.nio.channels.FileChannel}, with gathering writes.
+   */
+  public void writeTo(GatheringByteChannel channel) throws IOException {
+    ByteBuffer[] buffers = getByteBuffers();
+    long remaining = getLength();
+    while (remaining > 0) {
+      long n = channel.write(buffers);
+      if (n < 0)
+        throw new EOFException("Channel closed writing " + remaining + " bytes");
+      remaining -= n;
+    }
+  }
+}
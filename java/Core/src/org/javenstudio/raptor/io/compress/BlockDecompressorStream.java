@@ -0,0 +1,106 @@
+package org.javenstudio.raptor.io.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link DecompressorStream} which works with 'block-based' based
+ * compression algorithms, as opposed to 'stream-based' compression
+ * algorithms. It reads the format written by {@link BlockCompressorStream}.
+ */
+public class BlockDecompressorStream extends DecompressorStream {
+  private int originalBlockSize = 0;
+  private int noUncompressedBytes = 0;
+
+  /**
+   * Create a {@link BlockDecompressorStream}.
+   *
+   * @param in input stream
+   * @param decompressor decompressor to use
+   * @param bufferSize size of buffer
+   */
+  public BlockDecompressorStream(InputStream in, Decompressor decompressor,
+                                 int bufferSize) {
+    super(in, decompressor, bufferSize);
+  }
+
+  /**
+   * Create a {@link BlockDecompressorStream}.
+   *
+   * @param in input stream
+   * @param decompressor decompressor to use
+   */
+  public BlockDecompressorStream(InputStream in, Decompressor decompressor) {
+    super(in, decompressor);
+  }
+
+  protected int decompress(byte[] b, int off, int len) throws IOException {
+    // Check if we are the beginning of a block, skipping empty ones
+    while (noUncompressedBytes == originalBlockSize) {
+      // Get original data size
+      try {
+        originalBlockSize = rawReadInt();
+      } catch (EOFException e) {
+        eof = true;
+        return -1;
+      }
+      noUncompressedBytes = 0;
+    }
+
+    int n = 0;
+    while ((n = decompressor.decompress(b, off, len)) == 0) {
+      if (decompressor.needsInput()) {
+        getCompressedData();
+      }
+    }
+
+    // Note the no. of decompressed bytes read from 'current' block
+    noUncompressedBytes += n;
+
+    return n;
+  }
+
+  protected void getCompressedData() throws IOException {
+    checkStream();
+
+    // Get the size of the compressed chunk
+    int len = rawReadInt();
+    if (len < 0) {
+      throw new IOException("Invalid compressed chunk length " + len);
+    }
+
+    // Read len bytes from underlying stream
+    if (len > buffer.length) {
+      buffer = new byte[len];
+    }
+    int n = 0, off = 0;
+    while (n < len) {
+      int count = in.read(buffer, off + n, len - n);
+      if (count < 0) {
+        throw new EOFException("Unexpected end of block in input stream");
+      }
+      n += count;
+    }
+
+    // Send the read data to the decompressor
+    decompressor.setInput(buffer, 0, len);
+  }
+
+  public void resetState() throws IOException {
+    originalBlockSize = 0;
+    noUncompressedBytes = 0;
+    super.resetState();
+  }
+
+  private int rawReadInt() throws IOException {
+    int b1 = in.read();
+    int b2 = in.read();
+    int b3 = in.read();
+    int b4 = in.read();
+    if ((b1 | b2 | b3 | b4) < 0)
+      throw new EOFException();
+    return ((b1 << 24) + (b2 << 16) + (b3 << 8) + (b4 << 0));
+  }
+
+}
@@ -109,7 +109,7 @@ public class CompressionCodecFactory {
   
   /**
    * Find the codecs specified in the config value io.compression.codecs 
-   * and register them. Defaults to gzip and zip.
+   * and register them. Defaults to gzip, zip and lz4.
    */
   public CompressionCodecFactory(Configuration conf) {
     codecs = new TreeMap<String, CompressionCodec>();
@@ -117,6 +117,7 @@ public class CompressionCodecFactory {
     if (codecClasses == null) {
       addCodec(new GzipCodec());
       addCodec(new DefaultCodec());      
+      addCodec(new Lz4Codec());
     } else {
       Iterator<Class<? extends CompressionCodec>> itr = codecClasses.iterator();
       while (itr.hasNext()) {
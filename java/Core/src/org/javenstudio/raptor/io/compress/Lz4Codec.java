@@ -0,0 +1,84 @@
+package org.javenstudio.raptor.io.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.javenstudio.raptor.conf.Configurable;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.io.compress.lz4.Lz4;
+import org.javenstudio.raptor.io.compress.lz4.Lz4Compressor;
+import org.javenstudio.raptor.io.compress.lz4.Lz4Decompressor;
+
+/**
+ * This class creates lz4 compressors/decompressors. LZ4 is much faster
+ * than gzip at the price of a lower compression ratio, and needs no
+ * native library.
+ */
+public class Lz4Codec implements Configurable, CompressionCodec {
+
+  public static final String BUFFER_SIZE_KEY = "io.compression.codec.lz4.buffersize";
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  Configuration conf;
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  private int getBufferSize() {
+    return conf != null ? conf.getInt(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE)
+                        : DEFAULT_BUFFER_SIZE;
+  }
+
+  public CompressionOutputStream createOutputStream(OutputStream out) 
+  throws IOException {
+    return createOutputStream(out, createCompressor());
+  }
+
+  public CompressionOutputStream createOutputStream(OutputStream out, 
+                                                    Compressor compressor) 
+  throws IOException {
+    int bufferSize = getBufferSize();
+    int compressionOverhead = Lz4.maxCompressedLength(bufferSize) - bufferSize;
+    return new BlockCompressorStream(out, compressor, 
+        bufferSize + compressionOverhead, compressionOverhead);
+  }
+
+  public Class<? extends Compressor> getCompressorType() {
+    return Lz4Compressor.class;
+  }
+
+  public Compressor createCompressor() {
+    return new Lz4Compressor(getBufferSize());
+  }
+
+  public CompressionInputStream createInputStream(InputStream in) 
+  throws IOException {
+    return createInputStream(in, createDecompressor());
+  }
+
+  public CompressionInputStream createInputStream(InputStream in, 
+                                                  Decompressor decompressor) 
+  throws IOException {
+    return new BlockDecompressorStream(in, decompressor, 
+        Lz4.maxCompressedLength(getBufferSize()));
+  }
+
+  public Class<? extends Decompressor> getDecompressorType() {
+    return Lz4Decompressor.class;
+  }
+
+  public Decompressor createDecompressor() {
+    return new Lz4Decompressor(getBufferSize());
+  }
+
+  public String getDefaultExtension() {
+    return ".lz4";
+  }
+
+}
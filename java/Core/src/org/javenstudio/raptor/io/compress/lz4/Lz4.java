@@ -0,0 +1,246 @@
+package org.javenstudio.raptor.io.compress.lz4;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure-java implementation of the LZ4 block format.
+ * <p>
+ * A block is a sequence of (literals, match) pairs. Each starts with a
+ * token byte holding the literal length in the high four bits and the
+ * match length minus four in the low four bits; lengths of 15 or more
+ * continue in following bytes of 255 and a final smaller byte. The
+ * literals follow, then the two byte little-endian match offset. The
+ * last sequence has literals only.
+ * <p>
+ * The compressor is the greedy single-probe hash matcher of the reference
+ * implementation: it trades ratio for speed and skips faster over data
+ * which does not compress.
+ */
+public final class Lz4 {
+
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int ML_BITS = 4;
+  private static final int ML_MASK = (1 << ML_BITS) - 1;
+  private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+  private static final int SKIP_STRENGTH = 6;
+
+  /** log2 of the number of entries of the hash table */
+  public static final int HASH_LOG = 14;
+  public static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+  private Lz4() {}
+
+  /** The largest size <code>len</code> bytes can compress to. */
+  public static int maxCompressedLength(int len) {
+    return len + len / 255 + 16;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8)
+        | ((b[i+2] & 0xff) << 16) | ((b[i+3] & 0xff) << 24);
+  }
+
+  private static int hash(int value) {
+    return (value * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLength(int len, byte[] dest, int op) {
+    while (len >= 255) {
+      dest[op++] = (byte)255;
+      len -= 255;
+    }
+    dest[op++] = (byte)len;
+    return op;
+  }
+
+  private static int writeLiterals(byte[] src, int anchor, int litLen,
+      byte[] dest, int op, int tokenPos) {
+    if (litLen >= RUN_MASK) {
+      dest[tokenPos] = (byte)(RUN_MASK << ML_BITS);
+      op = writeLength(litLen - RUN_MASK, dest, op);
+    } else {
+      dest[tokenPos] = (byte)(litLen << ML_BITS);
+    }
+    System.arraycopy(src, anchor, dest, op, litLen);
+    return op + litLen;
+  }
+
+  /**
+   * Compress <code>srcLen</code> bytes of <code>src</code> into
+   * <code>dest</code>, which must have room for
+   * {@link #maxCompressedLength(int)} bytes.
+   *
+   * @param hashTable a scratch table of {@link #HASH_TABLE_SIZE} entries
+   * @return the compressed length
+   */
+  public static int compress(byte[] src, int srcOff, int srcLen,
+      byte[] dest, int destOff, int[] hashTable) {
+    final int srcEnd = srcOff + srcLen;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+    final int mfLimit = srcEnd - MF_LIMIT;
+
+    int ip = srcOff;
+    int anchor = srcOff;
+    int op = destOff;
+
+    if (srcLen > MF_LIMIT) {
+      Arrays.fill(hashTable, -1);
+      hashTable[hash(readInt(src, ip))] = ip;
+      ip++;
+
+      search:
+      while (true) {
+        // find the next match, stepping faster while nothing matches
+        int ref;
+        int forwardIp = ip;
+        int searchMatchNb = 1 << SKIP_STRENGTH;
+        do {
+          ip = forwardIp;
+          forwardIp = ip + (searchMatchNb++ >>> SKIP_STRENGTH);
+          if (forwardIp > mfLimit)
+            break search;
+          int h = hash(readInt(src, ip));
+          ref = hashTable[h];
+          hashTable[h] = ip;
+        } while (ref < 0 || ip - ref > MAX_DISTANCE
+            || readInt(src, ref) != readInt(src, ip));
+
+        // extend the match backwards
+        while (ip > anchor && ref > srcOff && src[ip-1] == src[ref-1]) {
+          ip--;
+          ref--;
+        }
+
+        int tokenPos = op++;
+        op = writeLiterals(src, anchor, ip - anchor, dest, op, tokenPos);
+
+        while (true) {
+          int offset = ip - ref;
+          dest[op++] = (byte)offset;
+          dest[op++] = (byte)(offset >>> 8);
+
+          ip += MIN_MATCH;
+          ref += MIN_MATCH;
+          int matchStart = ip;
+          while (ip < matchLimit && src[ip] == src[ref]) {
+            ip++;
+            ref++;
+          }
+          int matchLen = ip - matchStart;
+          if (matchLen >= ML_MASK) {
+            dest[tokenPos] |= ML_MASK;
+            op = writeLength(matchLen - ML_MASK, dest, op);
+          } else {
+            dest[tokenPos] |= matchLen;
+          }
+
+          anchor = ip;
+          if (ip > mfLimit)
+            break search;
+
+          hashTable[hash(readInt(src, ip - 2))] = ip - 2;
+
+          // a match right away needs no literals
+          int h = hash(readInt(src, ip));
+          ref = hashTable[h];
+          hashTable[h] = ip;
+          if (ref >= 0 && ip - ref <= MAX_DISTANCE
+              && readInt(src, ref) == readInt(src, ip)) {
+            tokenPos = op++;
+            dest[tokenPos] = 0;
+            continue;
+          }
+
+          ip++;
+          break;
+        }
+      }
+    }
+
+    // the last literals
+    int tokenPos = op++;
+    op = writeLiterals(src, anchor, srcEnd - anchor, dest, op, tokenPos);
+    return op - destOff;
+  }
+
+  /**
+   * Decompress the block in <code>src</code> into <code>dest</code>.
+   *
+   * @return the decompressed length
+   * @throws IOException if the block is malformed or does not fit in
+   *         <code>destLen</code> bytes
+   */
+  public static int decompress(byte[] src, int srcOff, int srcLen,
+      byte[] dest, int destOff, int destLen) throws IOException {
+    final int srcEnd = srcOff + srcLen;
+    final int destEnd = destOff + destLen;
+    int ip = srcOff;
+    int op = destOff;
+
+    while (true) {
+      if (ip >= srcEnd)
+        throw new IOException("Malformed LZ4 block: truncated at " + (ip - srcOff));
+      int token = src[ip++] & 0xff;
+
+      int litLen = token >>> ML_BITS;
+      if (litLen == RUN_MASK) {
+        int b;
+        do {
+          if (ip >= srcEnd)
+            throw new IOException("Malformed LZ4 block: truncated literal length");
+          b = src[ip++] & 0xff;
+          litLen += b;
+        } while (b == 255);
+      }
+      if (litLen > srcEnd - ip)
+        throw new IOException("Malformed LZ4 block: literals past end of input");
+      if (litLen > destEnd - op)
+        throw new IOException("LZ4 block does not fit in " + destLen + " bytes");
+      System.arraycopy(src, ip, dest, op, litLen);
+      ip += litLen;
+      op += litLen;
+
+      if (ip == srcEnd)
+        break;
+
+      if (srcEnd - ip < 2)
+        throw new IOException("Malformed LZ4 block: truncated offset");
+      int offset = (src[ip] & 0xff) | ((src[ip+1] & 0xff) << 8);
+      ip += 2;
+      int ref = op - offset;
+      if (offset == 0 || ref < destOff)
+        throw new IOException("Malformed LZ4 block: bad offset " + offset);
+
+      int matchLen = token & ML_MASK;
+      if (matchLen == ML_MASK) {
+        int b;
+        do {
+          if (ip >= srcEnd)
+            throw new IOException("Malformed LZ4 block: truncated match length");
+          b = src[ip++] & 0xff;
+          matchLen += b;
+        } while (b == 255);
+      }
+      matchLen += MIN_MATCH;
+      if (matchLen > destEnd - op)
+        throw new IOException("LZ4 block does not fit in " + destLen + " bytes");
+
+      if (offset >= matchLen) {
+        System.arraycopy(dest, ref, dest, op, matchLen);
+        op += matchLen;
+      } else {
+        // overlapping copy repeats the last offset bytes
+        for (int i = 0; i < matchLen; i++) {
+          dest[op++] = dest[ref++];
+        }
+      }
+    }
+
+    return op - destOff;
+  }
+
+}
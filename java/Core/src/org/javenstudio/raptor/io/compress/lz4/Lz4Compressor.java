@@ -0,0 +1,130 @@
+package org.javenstudio.raptor.io.compress.lz4;
+
+import java.io.IOException;
+
+import org.javenstudio.raptor.io.compress.Compressor;
+
+/**
+ * A {@link Compressor} for the LZ4 block format. All the input given
+ * between two resets is buffered and compressed as one block, so it is
+ * meant to be driven by a {@link org.javenstudio.raptor.io.compress.BlockCompressorStream}
+ * which bounds the block size.
+ */
+public class Lz4Compressor implements Compressor {
+
+  private byte[] uncompressedBuf;
+  private int uncompressedLen = 0;
+
+  private byte[] compressedBuf;
+  private int compressedOff = 0;
+  private int compressedLen = 0;
+
+  private final int[] hashTable = new int[Lz4.HASH_TABLE_SIZE];
+
+  private boolean finish, finished;
+  private long bytesRead = 0L;
+  private long bytesWritten = 0L;
+
+  /**
+   * Creates a new compressor.
+   *
+   * @param bufferSize the initial size of the input buffer
+   */
+  public Lz4Compressor(int bufferSize) {
+    this.uncompressedBuf = new byte[bufferSize];
+    this.compressedBuf = new byte[Lz4.maxCompressedLength(bufferSize)];
+  }
+
+  public synchronized void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    finished = false;
+
+    if (uncompressedLen + len > uncompressedBuf.length) {
+      byte[] buf = new byte[Math.max(uncompressedLen + len,
+                                     uncompressedBuf.length * 2)];
+      System.arraycopy(uncompressedBuf, 0, buf, 0, uncompressedLen);
+      uncompressedBuf = buf;
+    }
+    System.arraycopy(b, off, uncompressedBuf, uncompressedLen, len);
+    uncompressedLen += len;
+    bytesRead += len;
+  }
+
+  /**
+   * Input is always accepted until compressed output is pending.
+   */
+  public synchronized boolean needsInput() {
+    return compressedOff >= compressedLen;
+  }
+
+  /** Does nothing, LZ4 has no preset dictionary. */
+  public synchronized void setDictionary(byte[] b, int off, int len) {
+  }
+
+  public synchronized void finish() {
+    finish = true;
+  }
+
+  public synchronized boolean finished() {
+    return finish && finished && compressedOff >= compressedLen;
+  }
+
+  public synchronized int compress(byte[] b, int off, int len)
+      throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    if (compressedOff >= compressedLen) {
+      if (uncompressedLen == 0) {
+        // nothing buffered, done if finishing
+        finished = finish;
+        return 0;
+      }
+
+      int maxLen = Lz4.maxCompressedLength(uncompressedLen);
+      if (compressedBuf.length < maxLen) {
+        compressedBuf = new byte[maxLen];
+      }
+      compressedLen = Lz4.compress(uncompressedBuf, 0, uncompressedLen,
+                                   compressedBuf, 0, hashTable);
+      compressedOff = 0;
+      uncompressedLen = 0;
+      bytesWritten += compressedLen;
+      finished = finish;
+    }
+
+    int n = Math.min(len, compressedLen - compressedOff);
+    System.arraycopy(compressedBuf, compressedOff, b, off, n);
+    compressedOff += n;
+    return n;
+  }
+
+  public synchronized void reset() {
+    finish = false;
+    finished = false;
+    uncompressedLen = 0;
+    compressedOff = compressedLen = 0;
+    bytesRead = bytesWritten = 0L;
+  }
+
+  public synchronized long getBytesRead() {
+    return bytesRead;
+  }
+
+  public synchronized long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public synchronized void end() {
+  }
+
+}
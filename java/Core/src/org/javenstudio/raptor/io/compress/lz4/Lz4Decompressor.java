@@ -0,0 +1,115 @@
+package org.javenstudio.raptor.io.compress.lz4;
+
+import java.io.IOException;
+
+import org.javenstudio.raptor.io.compress.Decompressor;
+
+/**
+ * A {@link Decompressor} for the LZ4 block format. Each call to
+ * {@link #setInput(byte[], int, int)} must hand over exactly one whole
+ * compressed block, as done by a
+ * {@link org.javenstudio.raptor.io.compress.BlockDecompressorStream}.
+ */
+public class Lz4Decompressor implements Decompressor {
+
+  /** Limit for growing the output buffer of an oversized block. */
+  private static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+
+  private byte[] compressedBuf;
+  private int compressedLen = 0;
+
+  private byte[] uncompressedBuf;
+  private int uncompressedOff = 0;
+  private int uncompressedLen = 0;
+
+  private boolean finished;
+
+  /**
+   * Creates a new decompressor.
+   *
+   * @param bufferSize the largest block size expected
+   */
+  public Lz4Decompressor(int bufferSize) {
+    this.compressedBuf = new byte[Lz4.maxCompressedLength(bufferSize)];
+    this.uncompressedBuf = new byte[bufferSize];
+  }
+
+  public synchronized void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    if (compressedBuf.length < len) {
+      compressedBuf = new byte[len];
+    }
+    System.arraycopy(b, off, compressedBuf, 0, len);
+    compressedLen = len;
+    finished = false;
+  }
+
+  public synchronized boolean needsInput() {
+    return uncompressedOff >= uncompressedLen && compressedLen == 0;
+  }
+
+  /** Does nothing, LZ4 has no preset dictionary. */
+  public synchronized void setDictionary(byte[] b, int off, int len) {
+  }
+
+  public synchronized boolean needsDictionary() {
+    return false;
+  }
+
+  public synchronized boolean finished() {
+    return finished;
+  }
+
+  public synchronized int decompress(byte[] b, int off, int len)
+      throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    if (uncompressedOff >= uncompressedLen) {
+      if (compressedLen == 0)
+        return 0;
+
+      while (true) {
+        try {
+          uncompressedLen = Lz4.decompress(compressedBuf, 0, compressedLen,
+              uncompressedBuf, 0, uncompressedBuf.length);
+          break;
+        } catch (IOException e) {
+          // the block may come from a writer with a larger buffer size
+          if (uncompressedBuf.length >= MAX_BUFFER_SIZE)
+            throw e;
+          uncompressedBuf = new byte[uncompressedBuf.length * 2];
+        }
+      }
+      uncompressedOff = 0;
+      compressedLen = 0;
+    }
+
+    int n = Math.min(len, uncompressedLen - uncompressedOff);
+    System.arraycopy(uncompressedBuf, uncompressedOff, b, off, n);
+    uncompressedOff += n;
+    if (uncompressedOff >= uncompressedLen)
+      finished = true;
+    return n;
+  }
+
+  public synchronized void reset() {
+    finished = false;
+    compressedLen = 0;
+    uncompressedOff = uncompressedLen = 0;
+  }
+
+  public synchronized void end() {
+  }
+
+}
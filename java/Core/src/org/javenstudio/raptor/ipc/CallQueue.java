@@ -0,0 +1,71 @@
+package org.javenstudio.raptor.ipc;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.util.ReflectionUtils;
+
+
+/**
+ * The queue between the readers and the handler threads of a server. 
+ * Implementations decide in which order the queued calls are served; 
+ * the implementation is chosen by <code>ipc.server.callqueue.class</code>
+ * and defaults to {@link FifoCallQueue}.
+ * 
+ * @see FairCallQueue
+ */
+public abstract class CallQueue<E extends Schedulable> {
+  
+  public static final String CALLQUEUE_CLASS_KEY = "ipc.server.callqueue.class";
+  
+  /**
+   * Create the call queue configured by {@link #CALLQUEUE_CLASS_KEY}.
+   * @param conf the configuration
+   * @param capacity the maximum number of normal calls queued
+   * @return a new call queue
+   */
+  @SuppressWarnings("unchecked")
+  public static <E extends Schedulable> CallQueue<E> newInstance(
+      Configuration conf, int capacity) {
+    Class<? extends CallQueue> queueClass = conf.getClass(CALLQUEUE_CLASS_KEY, 
+        FifoCallQueue.class, CallQueue.class);
+    CallQueue<E> queue = ReflectionUtils.newInstance(queueClass, conf);
+    queue.initialize(capacity, conf);
+    return queue;
+  }
+  
+  /**
+   * Called once after the queue is created.
+   * @param capacity the maximum number of normal calls queued
+   * @param conf the configuration
+   */
+  protected abstract void initialize(int capacity, Configuration conf);
+  
+  /**
+   * Insert the call, waiting if necessary for space to become available.
+   * @param call the call to queue
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public abstract void put(E call) throws InterruptedException;
+  
+  /**
+   * Retrieve and remove the next call to serve, waiting if necessary
+   * until a call becomes available.
+   * @return the next call
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public abstract E take() throws InterruptedException;
+  
+  /**
+   * The number of calls in the queue, including the priority calls.
+   * @return the number of queued calls
+   */
+  public abstract int size();
+  
+  /**
+   * The number of calls waiting in the priority lane.
+   * @return the number of queued priority calls
+   */
+  public int getPriorityQueueLen() {
+    return 0;
+  }
+  
+}
@@ -17,6 +17,10 @@ import java.io.InputStream;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -26,6 +30,8 @@ import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.io.IOUtils;
 import org.javenstudio.raptor.io.Writable;
+import org.javenstudio.raptor.io.ClassTable;
+import org.javenstudio.raptor.io.ClassTableWritable;
 import org.javenstudio.raptor.io.WritableUtils;
 import org.javenstudio.raptor.io.DataOutputBuffer;
 import org.javenstudio.raptor.net.NetUtils;
@@ -55,6 +61,7 @@ public class Client {
   final private int maxRetries; //the max. no. of retries for socket connections
   private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
   private int pingInterval; // how often sends ping to the server in msecs
+  private boolean compact; // if T then use the compact encoding of the protocol
 
   private SocketFactory socketFactory;           // how to create sockets
   private int refCount = 1;
@@ -152,6 +159,104 @@ public class Client {
     }
   }
 
+  /** Receives the outcome of an asynchronous call. The methods are invoked
+   * by the connection thread which reads the responses, so they should 
+   * return quickly and must not make blocking calls on the same client. */
+  public static interface Callback {
+    /** Called with the return value when the call succeeded. */
+    public void onValue(Writable value);
+    
+    /** Called when the call failed, either remotely or locally. */
+    public void onError(IOException error);
+  }
+  
+  /** Call implementation used for asynchronous calls. The caller is
+   * notified through the {@link Future} and the optional {@link Callback}
+   * instead of waiting on the call. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final InetSocketAddress address;
+    private final Callback callback;
+    
+    public AsyncCall(Writable param, InetSocketAddress address, 
+        Callback callback) {
+      super(param);
+      this.address = address;
+      this.callback = callback;
+    }
+    
+    @Override
+    protected synchronized void callComplete() {
+      this.done = true;
+      notifyAll();                              // notify all waiters
+      
+      if (callback != null) {
+        try {
+          if (error != null) 
+            callback.onError(getException());
+          else
+            callback.onValue(value);
+        } catch (Throwable e) {
+          LOG.warn("Callback of call #" + id + " to " + address + 
+              " threw exception: " + e, e);
+        }
+      }
+    }
+    
+    private IOException getException() {
+      if (error instanceof RemoteException) 
+        return error;
+      else
+        return wrapException(address, error);
+    }
+    
+    private Writable getValue() throws ExecutionException {
+      if (error != null) 
+        throw new ExecutionException(getException());
+      return value;
+    }
+    
+    /** Remote calls cannot be cancelled, the call always runs to the end. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public synchronized Writable get() 
+        throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getValue();
+    }
+
+    @Override
+    public synchronized Writable get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long waitTime = unit.toMillis(timeout);
+      long endTime = System.currentTimeMillis() + waitTime;
+      while (!done && waitTime > 0) {
+        wait(waitTime);
+        waitTime = endTime - System.currentTimeMillis();
+      }
+      if (!done) {
+        throw new TimeoutException("Call #" + id + " to " + address + 
+            " timed out after " + unit.toMillis(timeout) + "ms");
+      }
+      return getValue();
+    }
+  }
+
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
    * socket: responses may be delivered out of order. */
@@ -159,6 +264,7 @@ public class Client {
     private InetSocketAddress server;             // server ip:port
     private ConnectionHeader header;              // connection header
     private ConnectionId remoteId;                // connection id
+    private ClassTable classTable;                // compact encoding, or null
     
     private Socket socket = null;                 // connected socket
     private DataInputStream in;
@@ -182,6 +288,8 @@ public class Client {
       Class<?> protocol = remoteId.getProtocol();
       header = 
         new ConnectionHeader(protocol == null ? null : protocol.getName(), ticket);
+      if (compact && protocol != null) 
+        classTable = ClassTable.get(protocol);
       
       this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
           remoteId.getAddress().toString() +
@@ -358,11 +466,13 @@ public class Client {
     private void writeHeader() throws IOException {
       // Write out the header and version
       out.write(Server.HEADER.array());
-      out.write(Server.CURRENT_VERSION);
+      out.write(classTable != null ? Server.COMPACT_VERSION : Server.CURRENT_VERSION);
 
       // Write out the ConnectionHeader
       DataOutputBuffer buf = new DataOutputBuffer();
       header.write(buf);
+      if (classTable != null) 
+        buf.writeLong(classTable.getFingerprint());
       
       // Write out the payload length
       int bufLen = buf.getLength();
@@ -456,6 +566,8 @@ public class Client {
           //data to be written
           d = new DataOutputBuffer();
           d.writeInt(call.id);
+          if (classTable != null && call.param instanceof ClassTableWritable) 
+            ((ClassTableWritable)call.param).setClassTable(classTable);
           call.param.write(d);
           byte[] data = d.getData();
           int dataLength = d.getLength();
@@ -493,6 +605,8 @@ public class Client {
         int state = in.readInt();     // read call status
         if (state == Status.SUCCESS.state) {
           Writable value = ReflectionUtils.newInstance(valueClass, conf);
+          if (classTable != null && value instanceof ClassTableWritable) 
+            ((ClassTableWritable)value).setClassTable(classTable);
           value.readFields(in);                 // read value
           call.setValue(value);
         } else if (state == Status.ERROR.state) {
@@ -614,6 +728,7 @@ public class Client {
       conf.getInt("ipc.client.connection.maxidletime", 10000); //10s
     this.maxRetries = conf.getInt("ipc.client.connect.max.retries", 10);
     this.tcpNoDelay = conf.getBoolean("ipc.client.tcpnodelay", false);
+    this.compact = conf.getBoolean("ipc.client.compact", false);
     this.pingInterval = getPingInterval(conf);
     if (LOG.isDebugEnabled()) {
       LOG.debug("The ping interval is" + this.pingInterval + "ms.");
@@ -731,6 +846,36 @@ public class Client {
     }
   }
 
+  /** Make an asynchronous call, passing <code>param</code>, to the IPC server 
+   * running at <code>address</code> which is servicing the <code>protocol</code> 
+   * protocol, with the <code>ticket</code> credentials. The call returns as 
+   * soon as the parameter is sent, so many calls may be in flight on one 
+   * connection without a waiting thread per call. The responses are 
+   * matched to the calls by id and may complete in any order.
+   * 
+   * @param callback notified when the call completes, may be null
+   * @return the future holding the value of the call; {@link Future#get()} 
+   *         throws an {@link ExecutionException} whose cause is the 
+   *         {@link RemoteException} or the local IOException
+   * @throws IOException if no connection to the server could be set up
+   */
+  public Future<Writable> asyncCall(Writable param, InetSocketAddress addr, 
+      Class<?> protocol, UserGroupInformation ticket, Callback callback) 
+      throws IOException {
+    AsyncCall call = new AsyncCall(param, addr, callback);
+    Connection connection = getConnection(addr, protocol, ticket, call);
+    connection.sendParam(call);                 // send the parameter
+    return call;
+  }
+  
+  /** Make an asynchronous call, see 
+   * {@link #asyncCall(Writable, InetSocketAddress, Class, UserGroupInformation, Callback)}.
+   */
+  public Future<Writable> asyncCall(Writable param, InetSocketAddress addr, 
+      Class<?> protocol, UserGroupInformation ticket) throws IOException {
+    return asyncCall(param, addr, protocol, ticket, null);
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
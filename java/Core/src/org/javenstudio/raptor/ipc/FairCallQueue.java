@@ -0,0 +1,148 @@
+package org.javenstudio.raptor.ipc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.javenstudio.raptor.conf.Configuration;
+
+
+/**
+ * A {@link CallQueue} that shares the handlers fairly between users. 
+ * <p>
+ * Normal calls are kept in one FIFO list per user and the users with 
+ * pending calls are served round robin, one call each, so a client 
+ * flooding the server with bulk calls only delays its own calls.
+ * <p>
+ * Priority calls (heartbeats, meta lookups and other admin methods, see 
+ * {@link Schedulable#isPriority()}) go to a separate lane which is always 
+ * drained first and has its own capacity, 
+ * <code>ipc.server.callqueue.priority.size</code>, so they are never 
+ * blocked behind a full normal queue.
+ */
+public class FairCallQueue<E extends Schedulable> extends CallQueue<E> {
+
+  private static final String UNKNOWN_USER = "";
+  
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Condition priorityNotFull = lock.newCondition();
+  
+  private final LinkedList<E> priorityCalls = new LinkedList<E>();
+  // users in the order they will be served, each with its pending calls
+  private final LinkedHashMap<String, LinkedList<E>> userCalls = 
+    new LinkedHashMap<String, LinkedList<E>>();
+  
+  private int capacity = 0;
+  private int priorityCapacity = 0;
+  private int count = 0;              // number of normal calls queued
+  
+  public FairCallQueue() {}
+  
+  @Override
+  protected void initialize(int capacity, Configuration conf) {
+    this.capacity = capacity;
+    this.priorityCapacity = conf.getInt("ipc.server.callqueue.priority.size", capacity);
+  }
+  
+  @Override
+  public void put(E call) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if (call.isPriority()) {
+        while (priorityCalls.size() >= priorityCapacity) {
+          priorityNotFull.await();
+        }
+        priorityCalls.addLast(call);
+        
+      } else {
+        while (count >= capacity) {
+          notFull.await();
+        }
+        String user = call.getUserName();
+        if (user == null) user = UNKNOWN_USER;
+        
+        LinkedList<E> calls = userCalls.get(user);
+        if (calls == null) {
+          calls = new LinkedList<E>();
+          userCalls.put(user, calls);
+        }
+        calls.addLast(call);
+        count++;
+      }
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (priorityCalls.isEmpty() && count == 0) {
+        notEmpty.await();
+      }
+      if (!priorityCalls.isEmpty()) {
+        E call = priorityCalls.removeFirst();
+        priorityNotFull.signal();
+        return call;
+      }
+      
+      // serve the head of the first user and move the user to the tail
+      Iterator<Map.Entry<String, LinkedList<E>>> it = 
+        userCalls.entrySet().iterator();
+      Map.Entry<String, LinkedList<E>> entry = it.next();
+      it.remove();
+      
+      LinkedList<E> calls = entry.getValue();
+      E call = calls.removeFirst();
+      if (!calls.isEmpty()) 
+        userCalls.put(entry.getKey(), calls);
+      
+      count--;
+      notFull.signal();
+      return call;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count + priorityCalls.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Override
+  public int getPriorityQueueLen() {
+    lock.lock();
+    try {
+      return priorityCalls.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * The number of users with calls waiting in the queue.
+   * @return the number of active users
+   */
+  public int getNumActiveUsers() {
+    lock.lock();
+    try {
+      return userCalls.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+}
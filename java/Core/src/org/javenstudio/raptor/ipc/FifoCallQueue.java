@@ -0,0 +1,39 @@
+package org.javenstudio.raptor.ipc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.javenstudio.raptor.conf.Configuration;
+
+
+/**
+ * The default {@link CallQueue}. All calls are served in arrival order 
+ * regardless of the user or the priority of the call.
+ */
+public class FifoCallQueue<E extends Schedulable> extends CallQueue<E> {
+
+  private BlockingQueue<E> queue = null;
+  
+  public FifoCallQueue() {}
+  
+  @Override
+  protected void initialize(int capacity, Configuration conf) {
+    this.queue = new LinkedBlockingQueue<E>(capacity);
+  }
+  
+  @Override
+  public void put(E call) throws InterruptedException {
+    queue.put(call);
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    return queue.take();
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+  
+}
@@ -0,0 +1,169 @@
+package org.javenstudio.raptor.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.io.ClassTable;
+import org.javenstudio.raptor.io.DataInputBuffer;
+import org.javenstudio.raptor.io.DataOutputBuffer;
+import org.javenstudio.raptor.io.LongWritable;
+import org.javenstudio.raptor.io.Text;
+
+
+/**
+ * Measures encoding and decoding of RPC invocations, with the classic
+ * class-name encoding and with the compact encoding of a {@link ClassTable}.
+ * <p>
+ * Each mode runs a number of warmup iterations, then measured iterations
+ * whose mean and deviation are reported in nanoseconds per operation,
+ * along with the encoded size of one invocation.
+ * <pre>
+ * Usage: InvocationBenchmark [-ops n] [-warmup n] [-iterations n] [-size bytes]
+ * </pre>
+ */
+public class InvocationBenchmark {
+
+  /** A protocol with parameter types typical of the servers. */
+  public static interface SampleProtocol extends VersionedProtocol {
+    public LongWritable put(String table, long row, byte[] value,
+        Text[] columns, int[] timestamps, boolean sync) throws IOException;
+  }
+
+  private final Configuration conf;
+  private final RPC.Invocation invocation;
+  private final ClassTable table;
+  private final int numOps;
+
+  public InvocationBenchmark(Configuration conf, int numOps, int size)
+      throws IOException {
+    Method method;
+    try {
+      method = SampleProtocol.class.getMethod("put", String.class, Long.TYPE,
+          byte[].class, Text[].class, int[].class, Boolean.TYPE);
+    } catch (NoSuchMethodException e) {
+      throw new IOException(e.toString());
+    }
+
+    Text[] columns = new Text[4];
+    int[] timestamps = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = new Text("family:qualifier" + i);
+      timestamps[i] = 1000 + i;
+    }
+
+    this.conf = conf;
+    this.numOps = numOps;
+    this.table = ClassTable.get(SampleProtocol.class);
+    this.invocation = new RPC.Invocation(method, new Object[] {
+        "sample_table", Long.valueOf(123456789L), new byte[size],
+        columns, timestamps, Boolean.TRUE });
+  }
+
+  private RPC.Invocation newInvocation(boolean compact) {
+    RPC.Invocation call = new RPC.Invocation();
+    call.setConf(conf);
+    call.setClassTable(compact ? table : null);
+    return call;
+  }
+
+  /** Encode the invocation once and return its length. */
+  public int encodedLength(boolean compact) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    invocation.setClassTable(compact ? table : null);
+    invocation.write(out);
+    return out.getLength();
+  }
+
+  /** @return nanoseconds per encode */
+  public double runEncode(boolean compact) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    invocation.setClassTable(compact ? table : null);
+
+    long startTime = System.nanoTime();
+    for (int i = 0; i < numOps; i++) {
+      out.reset();
+      invocation.write(out);
+    }
+    return (double)(System.nanoTime() - startTime) / numOps;
+  }
+
+  /** @return nanoseconds per decode */
+  public double runDecode(boolean compact) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    invocation.setClassTable(compact ? table : null);
+    invocation.write(out);
+
+    DataInputBuffer in = new DataInputBuffer();
+    long startTime = System.nanoTime();
+    for (int i = 0; i < numOps; i++) {
+      in.reset(out.getData(), out.getLength());
+      newInvocation(compact).readFields(in);
+    }
+    return (double)(System.nanoTime() - startTime) / numOps;
+  }
+
+  private static void report(String name, double[] results) {
+    double sum = 0;
+    for (double result : results) {
+      sum += result;
+    }
+    double mean = sum / results.length;
+    double variance = 0;
+    for (double result : results) {
+      variance += (result - mean) * (result - mean);
+    }
+    double deviation = Math.sqrt(variance / results.length);
+    System.out.println(String.format("%-16s %10.1f ns/op  +- %.1f",
+        name, mean, deviation));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numOps = 100000;
+    int warmup = 5;
+    int iterations = 10;
+    int size = 64;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-ops".equals(args[i])) {
+        numOps = Integer.parseInt(args[++i]);
+      } else if ("-warmup".equals(args[i])) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("-size".equals(args[i])) {
+        size = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: InvocationBenchmark [-ops n] [-warmup n] " +
+            "[-iterations n] [-size bytes]");
+        System.exit(-1);
+      }
+    }
+
+    Configuration conf = ConfigurationFactory.create(true);
+    InvocationBenchmark benchmark = new InvocationBenchmark(conf, numOps, size);
+
+    System.out.println("classic: " + benchmark.encodedLength(false) +
+        " bytes, compact: " + benchmark.encodedLength(true) + " bytes");
+
+    for (int mode = 0; mode < 2; mode++) {
+      boolean compact = mode == 1;
+      String prefix = compact ? "compact" : "classic";
+
+      for (int i = 0; i < warmup; i++) {
+        benchmark.runEncode(compact);
+        benchmark.runDecode(compact);
+      }
+
+      double[] encodes = new double[iterations];
+      double[] decodes = new double[iterations];
+      for (int i = 0; i < iterations; i++) {
+        encodes[i] = benchmark.runEncode(compact);
+        decodes[i] = benchmark.runDecode(compact);
+      }
+      report(prefix + " encode", encodes);
+      report(prefix + " decode", decodes);
+    }
+  }
+}
@@ -12,6 +12,12 @@ import java.net.SocketTimeoutException;
 import java.io.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -54,11 +60,13 @@ public class RPC {
 
 
   /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  static class Invocation implements ClassTableWritable, Configurable {
     private String methodName;
     private Class[] parameterClasses;
     private Object[] parameters;
     private Configuration conf;
+    private Method method;
+    private ClassTable classTable;
 
     @SuppressWarnings("unused")
 	public Invocation() {}
@@ -67,6 +75,7 @@ public class RPC {
       this.methodName = method.getName();
       this.parameterClasses = method.getParameterTypes();
       this.parameters = parameters;
+      this.method = method;
     }
 
     /** The name of the method invoked. */
@@ -78,11 +87,23 @@ public class RPC {
     /** The parameter instances. */
     public Object[] getParameters() { return parameters; }
 
+    /** The method invoked, or null if it was read by name. */
+    public Method getMethod() { return method; }
+
+    public void setClassTable(ClassTable table) { this.classTable = table; }
+
+    public ClassTable getClassTable() { return classTable; }
+
     @SuppressWarnings("deprecation")
 	public void readFields(DataInput in) throws IOException {
+      if (classTable != null) {
+        readCompactFields(in);
+        return;
+      }
       methodName = UTF8.readString(in);
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
+      method = null;
       ObjectWritable objectWritable = new ObjectWritable();
       for (int i = 0; i < parameters.length; i++) {
         parameters[i] = ObjectWritable.readObject(in, objectWritable, this.conf);
@@ -92,6 +113,10 @@ public class RPC {
 
     @SuppressWarnings("deprecation")
 	public void write(DataOutput out) throws IOException {
+      if (classTable != null) {
+        writeCompactFields(out);
+        return;
+      }
       UTF8.writeString(out, methodName);
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
@@ -100,6 +125,48 @@ public class RPC {
       }
     }
 
+    /** 
+     * Write the method as its id in the class table, followed by the 
+     * parameter values without their classes, which the reader takes 
+     * from the method.
+     */
+    private void writeCompactFields(DataOutput out) throws IOException {
+      int id = method != null ? classTable.getMethodId(method) : -1;
+      WritableUtils.writeVInt(out, id);
+      if (id < 0) {
+        Text.writeString(out, methodName);
+        WritableUtils.writeVInt(out, parameterClasses.length);
+        for (int i = 0; i < parameterClasses.length; i++) {
+          ObjectWritable.writeClassRef(out, parameterClasses[i], classTable);
+        }
+      }
+      for (int i = 0; i < parameterClasses.length; i++) {
+        ObjectWritable.writeCompactValue(out, parameters[i], 
+            parameterClasses[i], classTable);
+      }
+    }
+
+    private void readCompactFields(DataInput in) throws IOException {
+      int id = WritableUtils.readVInt(in);
+      if (id >= 0) {
+        method = classTable.getMethod(id);
+        methodName = method.getName();
+        parameterClasses = method.getParameterTypes();
+      } else {
+        method = null;
+        methodName = Text.readString(in);
+        parameterClasses = new Class[WritableUtils.readVInt(in)];
+        for (int i = 0; i < parameterClasses.length; i++) {
+          parameterClasses[i] = ObjectWritable.readClassRef(in, classTable, conf);
+        }
+      }
+      parameters = new Object[parameterClasses.length];
+      for (int i = 0; i < parameters.length; i++) {
+        parameters[i] = ObjectWritable.readCompactValue(in, 
+            parameterClasses[i], classTable, conf);
+      }
+    }
+
     public String toString() {
       StringBuffer buffer = new StringBuffer();
       buffer.append(methodName);
@@ -183,9 +250,9 @@ public class RPC {
   private static ClientCache CLIENTS=new ClientCache();
   
   private static class Invoker implements InvocationHandler {
-    private InetSocketAddress address;
-    private UserGroupInformation ticket;
-    private Client client;
+    protected InetSocketAddress address;
+    protected UserGroupInformation ticket;
+    protected Client client;
     private boolean isClosed = false;
 
     public Invoker(InetSocketAddress address, UserGroupInformation ticket, 
@@ -216,7 +283,7 @@ public class RPC {
     }
     
     /* close the IPC client that's responsible for this invoker's RPCs */ 
-    synchronized private void close() {
+    synchronized protected void close() {
       if (!isClosed) {
         isClosed = true;
         CLIENTS.stopClient(client);
@@ -224,6 +291,102 @@ public class RPC {
     }
   }
 
+  /** Invoker of an asynchronous proxy. Each method of the async interface 
+   * is mapped to the protocol method of the same name and parameter types,
+   * and returns a {@link Future} of the protocol method's value. */
+  private static class AsyncInvoker extends Invoker {
+    private Class<?> protocol;
+    private Map<Method, Method> methods = new HashMap<Method, Method>();
+    
+    public AsyncInvoker(Class<?> asyncProtocol, Class<?> protocol, 
+                        InetSocketAddress address, UserGroupInformation ticket, 
+                        Configuration conf, SocketFactory factory) {
+      super(address, ticket, conf, factory);
+      this.protocol = protocol;
+      for (Method asyncMethod : asyncProtocol.getMethods()) {
+        if (asyncMethod.getDeclaringClass() == Object.class) 
+          continue;
+        if (!Future.class.isAssignableFrom(asyncMethod.getReturnType())) {
+          throw new IllegalArgumentException("Async method " + asyncMethod + 
+              " does not return a Future");
+        }
+        try {
+          methods.put(asyncMethod, protocol.getMethod(asyncMethod.getName(), 
+              asyncMethod.getParameterTypes()));
+        } catch (NoSuchMethodException e) {
+          throw new IllegalArgumentException("Async method " + asyncMethod + 
+              " has no counterpart in " + protocol.getName());
+        }
+      }
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+      Method target = methods.get(method);
+      if (target == null) {
+        // Object methods are answered by the invoker itself
+        return method.invoke(this, args);
+      }
+      return new ValueFuture(
+          client.asyncCall(new Invocation(target, args), address, 
+                           protocol, ticket));
+    }
+    
+    /** Check the server's version with a blocking call. */
+    private long getProtocolVersion(long clientVersion) throws IOException {
+      try {
+        Method method = VersionedProtocol.class.getMethod("getProtocolVersion", 
+            String.class, long.class);
+        ObjectWritable value = (ObjectWritable)
+          client.call(new Invocation(method, 
+              new Object[] { protocol.getName(), clientVersion }), 
+              address, protocol, ticket);
+        return ((Long)value.get()).longValue();
+      } catch (NoSuchMethodException e) {
+        throw new IOException(e.toString());
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while checking the version of " + 
+            protocol.getName());
+      }
+    }
+  }
+  
+  /** Unwraps the {@link ObjectWritable} returned by an asynchronous call. */
+  private static class ValueFuture implements Future<Object> {
+    private final Future<Writable> future;
+    
+    public ValueFuture(Future<Writable> future) {
+      this.future = future;
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return future.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+      return ((ObjectWritable)future.get()).get();
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) 
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return ((ObjectWritable)future.get(timeout, unit)).get();
+    }
+  }
+
   /**
    * A version mismatch for the RPC protocol.
    */
@@ -383,6 +546,57 @@ public class RPC {
       ((Invoker)Proxy.getInvocationHandler(proxy)).close();
     }
   }
+  
+  /** Construct a client-side asynchronous proxy object talking to a server 
+   * at the named address. The <code>asyncProtocol</code> interface declares 
+   * the methods of <code>protocol</code> that will be called, with the same 
+   * names and parameter types, but returning a {@link Future} of the 
+   * protocol method's return type (a {@link Future} of the wrapper type for 
+   * primitives), e.g. <code>Future&lt;Long&gt; getLength(String path)</code>.
+   * The calls share the connection of the blocking proxies and do not 
+   * hold a thread while they are in flight. 
+   */
+  public static <T> T getAsyncProxy(Class<T> asyncProtocol, Class<?> protocol,
+      long clientVersion, InetSocketAddress addr, UserGroupInformation ticket,
+      Configuration conf, SocketFactory factory) throws IOException {
+    AsyncInvoker invoker = new AsyncInvoker(asyncProtocol, protocol, 
+        addr, ticket, conf, factory);
+    long serverVersion = invoker.getProtocolVersion(clientVersion);
+    if (serverVersion != clientVersion) {
+      invoker.close();
+      throw new VersionMismatch(protocol.getName(), clientVersion, 
+                                serverVersion);
+    }
+    return asyncProtocol.cast(Proxy.newProxyInstance(
+        asyncProtocol.getClassLoader(), new Class[] { asyncProtocol }, invoker));
+  }
+  
+  /** Construct a client-side asynchronous proxy object with the default 
+   * SocketFactory, see 
+   * {@link #getAsyncProxy(Class, Class, long, InetSocketAddress, UserGroupInformation, Configuration, SocketFactory)}.
+   */
+  public static <T> T getAsyncProxy(Class<T> asyncProtocol, Class<?> protocol,
+      long clientVersion, InetSocketAddress addr, Configuration conf) 
+      throws IOException {
+    UserGroupInformation ugi = null;
+    try {
+      ugi = UserGroupInformation.login(conf);
+    } catch (LoginException le) {
+      throw new RuntimeException("Couldn't login!");
+    }
+    return getAsyncProxy(asyncProtocol, protocol, clientVersion, addr, ugi, 
+        conf, NetUtils.getDefaultSocketFactory(conf));
+  }
+  
+  /**
+   * Stop this asynchronous proxy and release its invoker's resource
+   * @param proxy the proxy to be stopped
+   */
+  public static void stopAsyncProxy(Object proxy) {
+    if (proxy!=null) {
+      ((Invoker)Proxy.getInvocationHandler(proxy)).close();
+    }
+  }
 
   /** 
    * Expert: Make multiple, parallel calls to a set of servers.
@@ -444,9 +658,17 @@ public class RPC {
 
   /** An RPC Server. */
   public static class Server extends org.javenstudio.raptor.ipc.Server {
+    /** Methods served in the priority lane unless 
+     * <code>ipc.server.priority.methods</code> is set: the protocol 
+     * handshake, datanode and regionserver heartbeats and meta lookups. */
+    public static final String[] DEFAULT_PRIORITY_METHODS = { 
+        "getProtocolVersion", "sendHeartbeat", "regionServerReport", 
+        "getClosestRowBefore", "getRegionInfo" };
+    
     private Object instance;
     private boolean verbose;
     private boolean authorize = false;
+    private Set<String> priorityMethods = new HashSet<String>();
 
     /** Construct an RPC server.
      * @param instance the instance whose methods will be called
@@ -484,6 +706,21 @@ public class RPC {
       this.authorize = 
         conf.getBoolean(ServiceAuthorizationManager.SERVICE_AUTHORIZATION_CONFIG, 
                         false);
+      
+      String[] methods = conf.getStrings("ipc.server.priority.methods", 
+                                         DEFAULT_PRIORITY_METHODS);
+      if (methods != null) {
+        for (String method : methods) {
+          priorityMethods.add(method.trim());
+        }
+      }
+    }
+    
+    @Override
+    protected boolean isPriorityCall(Class<?> protocol, Writable param) {
+      if (param instanceof Invocation) 
+        return priorityMethods.contains(((Invocation)param).getMethodName());
+      return false;
     }
 
     @SuppressWarnings("unused")
@@ -493,9 +730,11 @@ public class RPC {
         Invocation call = (Invocation)param;
         if (verbose) log("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
+        Method method = call.getMethod();
+        if (method == null) {
+          method = protocol.getMethod(call.getMethodName(),
+                                      call.getParameterClasses());
+        }
         method.setAccessible(true);
 
         long startTime = System.currentTimeMillis();
@@ -528,7 +767,9 @@ public class RPC {
 
         if (verbose) log("Return: "+value);
 
-        return new ObjectWritable(method.getReturnType(), value);
+        ObjectWritable result = new ObjectWritable(method.getReturnType(), value);
+        result.setClassTable(call.getClassTable());
+        return result;
 
       } catch (InvocationTargetException e) {
         Throwable target = e.getTargetException();
@@ -0,0 +1,175 @@
+package org.javenstudio.raptor.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+
+
+/**
+ * Compares the throughput of blocking and pipelined RPC calls against a 
+ * local {@link RPC.Server}.
+ * <p>
+ * The blocking run uses one thread per outstanding call, the pipelined run 
+ * keeps the same number of calls in flight from a single thread through 
+ * {@link RPC#getAsyncProxy(Class, Class, long, InetSocketAddress, Configuration)}.
+ * <pre>
+ * Usage: RPCBenchmark [-calls n] [-inflight n] [-handlers n] [-size bytes] [-compact]
+ * </pre>
+ */
+public class RPCBenchmark {
+
+  public static final long VERSION = 1L;
+  
+  /** The protocol served by the benchmark server. */
+  public static interface EchoProtocol extends VersionedProtocol {
+    public byte[] echo(byte[] data) throws IOException;
+  }
+  
+  /** The asynchronous view of {@link EchoProtocol}. */
+  public static interface AsyncEchoProtocol {
+    public Future<byte[]> echo(byte[] data);
+  }
+  
+  private static class EchoServer implements EchoProtocol {
+    @Override
+    public long getProtocolVersion(String protocol, long clientVersion) {
+      return VERSION;
+    }
+    
+    @Override
+    public byte[] echo(byte[] data) {
+      return data;
+    }
+  }
+  
+  private final Configuration conf;
+  private final InetSocketAddress address;
+  private final int numCalls;
+  private final int inflight;
+  private final byte[] data;
+  
+  public RPCBenchmark(Configuration conf, InetSocketAddress address, 
+      int numCalls, int inflight, int size) {
+    this.conf = conf;
+    this.address = address;
+    this.numCalls = numCalls;
+    this.inflight = inflight;
+    this.data = new byte[size];
+  }
+  
+  /** Run the calls from <code>inflight</code> threads, each waiting 
+   * for its call to return. 
+   * @return the elapsed time in msec */
+  public long runBlocking() throws Exception {
+    final EchoProtocol proxy = (EchoProtocol)RPC.getProxy(
+        EchoProtocol.class, VERSION, address, conf);
+    final AtomicLong remaining = new AtomicLong(numCalls);
+    final AtomicLong failures = new AtomicLong(0);
+    Thread[] threads = new Thread[inflight];
+    
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            while (remaining.getAndDecrement() > 0) {
+              try {
+                proxy.echo(data);
+              } catch (IOException e) {
+                failures.incrementAndGet();
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.currentTimeMillis() - startTime;
+    
+    RPC.stopProxy(proxy);
+    if (failures.get() > 0) 
+      System.out.println("blocking: " + failures.get() + " calls failed");
+    return elapsed;
+  }
+  
+  /** Run the calls from one thread keeping <code>inflight</code> 
+   * calls outstanding. 
+   * @return the elapsed time in msec */
+  public long runPipelined() throws Exception {
+    AsyncEchoProtocol proxy = RPC.getAsyncProxy(AsyncEchoProtocol.class, 
+        EchoProtocol.class, VERSION, address, conf);
+    LinkedList<Future<byte[]>> futures = new LinkedList<Future<byte[]>>();
+    
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < numCalls; i++) {
+      if (futures.size() >= inflight) 
+        futures.removeFirst().get();
+      futures.addLast(proxy.echo(data));
+    }
+    while (!futures.isEmpty()) {
+      futures.removeFirst().get();
+    }
+    long elapsed = System.currentTimeMillis() - startTime;
+    
+    RPC.stopAsyncProxy(proxy);
+    return elapsed;
+  }
+  
+  private void report(String name, long elapsed) {
+    System.out.println(name + ": " + numCalls + " calls of " + data.length + 
+        " bytes, " + inflight + " in flight, " + elapsed + " ms, " + 
+        (elapsed > 0 ? (numCalls * 1000L / elapsed) : numCalls) + " calls/s");
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numCalls = 100000;
+    int inflight = 32;
+    int handlers = 8;
+    int size = 128;
+    boolean compact = false;
+    
+    for (int i = 0; i < args.length; i++) {
+      if ("-calls".equals(args[i])) {
+        numCalls = Integer.parseInt(args[++i]);
+      } else if ("-inflight".equals(args[i])) {
+        inflight = Integer.parseInt(args[++i]);
+      } else if ("-handlers".equals(args[i])) {
+        handlers = Integer.parseInt(args[++i]);
+      } else if ("-size".equals(args[i])) {
+        size = Integer.parseInt(args[++i]);
+      } else if ("-compact".equals(args[i])) {
+        compact = true;
+      } else {
+        System.err.println("Usage: RPCBenchmark [-calls n] [-inflight n] " + 
+            "[-handlers n] [-size bytes] [-compact]");
+        System.exit(-1);
+      }
+    }
+    
+    Configuration conf = ConfigurationFactory.create(true);
+    conf.setBoolean("ipc.client.compact", compact);
+    Server server = RPC.getServer(new EchoServer(), "127.0.0.1", 0, 
+        handlers, false, conf);
+    server.start();
+    try {
+      RPCBenchmark benchmark = new RPCBenchmark(conf, 
+          server.getListenerAddress(), numCalls, inflight, size);
+      
+      // warm up both paths before measuring
+      benchmark.runBlocking();
+      benchmark.runPipelined();
+      
+      benchmark.report("blocking", benchmark.runBlocking());
+      benchmark.report("pipelined", benchmark.runPipelined());
+    } finally {
+      server.stop();
+    }
+  }
+}
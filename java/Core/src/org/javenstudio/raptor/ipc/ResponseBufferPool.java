@@ -0,0 +1,81 @@
+package org.javenstudio.raptor.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of fixed size buffers which the server serializes the responses 
+ * into. The buffers are direct by default, so the responder can hand them 
+ * to the socket with a gathering write and the JDK does not copy them into 
+ * a temporary direct buffer first. Buffers are returned to the pool after 
+ * the response is sent; at most <code>maxPooled</code> idle buffers are kept.
+ */
+class ResponseBufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final boolean direct;
+  
+  private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = 
+    new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger numFree = new AtomicInteger(0);
+  
+  // allocation counters, since the pool was created
+  private final AtomicLong numAllocated = new AtomicLong(0);
+  private final AtomicLong numReused = new AtomicLong(0);
+  private final AtomicLong numDiscarded = new AtomicLong(0);
+  
+  ResponseBufferPool(int bufferSize, int maxPooled, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.direct = direct;
+  }
+  
+  int getBufferSize() {
+    return bufferSize;
+  }
+  
+  /** Get an empty buffer, from the pool if one is free. */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = freeBuffers.poll();
+    if (buffer != null) {
+      numFree.decrementAndGet();
+      numReused.incrementAndGet();
+      buffer.clear();
+      return buffer;
+    }
+    
+    numAllocated.incrementAndGet();
+    return direct ? ByteBuffer.allocateDirect(bufferSize) : 
+                    ByteBuffer.allocate(bufferSize);
+  }
+  
+  /** Give the buffer back to the pool, or drop it if the pool is full. */
+  void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize) 
+      return;
+    
+    if (numFree.incrementAndGet() <= maxPooled) {
+      freeBuffers.offer(buffer);
+    } else {
+      numFree.decrementAndGet();
+      numDiscarded.incrementAndGet();
+    }
+  }
+  
+  /** The number of buffers newly allocated. */
+  long getNumAllocated() { return numAllocated.get(); }
+  
+  /** The number of buffers served from the pool. */
+  long getNumReused() { return numReused.get(); }
+  
+  /** The number of released buffers dropped because the pool was full. */
+  long getNumDiscarded() { return numDiscarded.get(); }
+  
+  /** The number of idle buffers in the pool. */
+  int getNumFree() { return numFree.get(); }
+  
+}
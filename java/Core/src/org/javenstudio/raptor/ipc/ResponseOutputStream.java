@@ -0,0 +1,86 @@
+package org.javenstudio.raptor.ipc;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+/**
+ * An output stream writing into a chain of buffers taken from a 
+ * {@link ResponseBufferPool}. The stream grows by adding buffers, so a large 
+ * response is never copied to grow it, and the written data is handed to 
+ * the channel as is by {@link #getBuffers()}.
+ */
+class ResponseOutputStream extends OutputStream {
+
+  private final ResponseBufferPool pool;
+  private final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(2);
+  private ByteBuffer current = null;
+  private int length = 0;
+  
+  ResponseOutputStream(ResponseBufferPool pool) {
+    this.pool = pool;
+  }
+  
+  private ByteBuffer nextBuffer() {
+    current = pool.acquire();
+    buffers.add(current);
+    return current;
+  }
+  
+  @Override
+  public void write(int b) {
+    ByteBuffer buffer = current;
+    if (buffer == null || !buffer.hasRemaining()) 
+      buffer = nextBuffer();
+    buffer.put((byte)b);
+    length++;
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      ByteBuffer buffer = current;
+      if (buffer == null || !buffer.hasRemaining()) 
+        buffer = nextBuffer();
+      int n = Math.min(len, buffer.remaining());
+      buffer.put(b, off, n);
+      off += n;
+      len -= n;
+      length += n;
+    }
+  }
+  
+  /** The number of bytes written. */
+  int getLength() {
+    return length;
+  }
+  
+  /** Flip the buffers for reading; no more data may be written after. 
+   * @return the buffers holding the written data */
+  ByteBuffer[] getBuffers() {
+    ByteBuffer[] result = new ByteBuffer[buffers.size()];
+    for (int i = 0; i < result.length; i++) {
+      ByteBuffer buffer = buffers.get(i);
+      buffer.flip();
+      result[i] = buffer;
+    }
+    current = null;
+    return result;
+  }
+  
+  /** Return all buffers to the pool. */
+  void release() {
+    for (ByteBuffer buffer : buffers) {
+      pool.release(buffer);
+    }
+    buffers.clear();
+    current = null;
+    length = 0;
+  }
+  
+  @Override
+  public void close() {
+    // the buffers are released explicitly once the response is sent
+  }
+}
@@ -0,0 +1,23 @@
+package org.javenstudio.raptor.ipc;
+
+
+/**
+ * A queued call as seen by a {@link CallQueue}. The queue only needs
+ * to know who made the call and which lane it belongs to.
+ */
+public interface Schedulable {
+
+  /**
+   * The name of the user who made the call.
+   * @return the user name, or null if the connection did not send one
+   */
+  public String getUserName();
+  
+  /**
+   * Whether the call is an admin or meta call that should be served 
+   * ahead of the normal calls.
+   * @return true if the call belongs to the priority lane
+   */
+  public boolean isPriority();
+  
+}
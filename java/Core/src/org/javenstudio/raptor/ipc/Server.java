@@ -4,11 +4,11 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -36,16 +36,20 @@ import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.auth.Subject;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.io.ClassTable;
+import org.javenstudio.raptor.io.ClassTableWritable;
 import org.javenstudio.raptor.io.Writable;
 import org.javenstudio.raptor.io.WritableUtils;
 import org.javenstudio.raptor.util.ReflectionUtils;
 import org.javenstudio.raptor.util.StringUtils;
 import org.javenstudio.raptor.ipc.metrics.RpcMetrics;
+import org.javenstudio.raptor.ipc.metrics.RpcReaderMetrics;
 import org.javenstudio.raptor.security.SecurityUtil;
 import org.javenstudio.raptor.security.authorize.AuthorizationException;
 
@@ -69,6 +73,10 @@ public abstract class Server {
   // 3 : Introduce the protocol into the RPC connection header
   public static final byte CURRENT_VERSION = 3;
   
+  // 4 : Same as 3, with the calls and values in the compact encoding of 
+  //     the protocol's class table, whose fingerprint follows the header
+  public static final byte COMPACT_VERSION = 4;
+  
   /**
    * How many calls/handler are allowed in the queue.
    */
@@ -125,6 +133,7 @@ public abstract class Server {
   private String bindAddress; 
   private int port;                               // port we listen on
   private int handlerCount;                       // number of handler threads
+  private int readThreads;                        // number of read threads
   private Class<? extends Writable> paramClass;   // class of call parameters
   private int maxIdleTime;                        // the maximum idle time after 
                                                   // which a client may be disconnected
@@ -145,7 +154,7 @@ public abstract class Server {
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
   volatile private boolean running = true;         // true while server runs
-  private BlockingQueue<Call> callQueue; // queued calls
+  private CallQueue<Call> callQueue; // queued calls
 
   private List<Connection> connectionList = 
     Collections.synchronizedList(new LinkedList<Connection>());
@@ -155,6 +164,7 @@ public abstract class Server {
   private Responder responder = null;
   private int numConnections = 0;
   private Handler[] handlers = null;
+  private ResponseBufferPool responseBufferPool = null;
 
   /**
    * A convenience method to bind to a given address and report 
@@ -188,13 +198,15 @@ public abstract class Server {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     private int id;                               // the client's call id
     private Writable param;                       // the parameter passed
     private Connection connection;                // connection to client
     private long timestamp;     // the time received when response is null
                                    // the time served when response is not null
-    private ByteBuffer response;                      // the response for this call
+    private ByteBuffer[] response;                // the response for this call
+    private ResponseOutputStream responseStream;  // owns the response buffers
+    private boolean priority = false;             // served in the priority lane
 
     public Call(int id, Writable param, Connection connection) { 
       this.id = id;
@@ -209,8 +221,34 @@ public abstract class Server {
       return param.toString() + " from " + connection.toString();
     }
 
-    public void setResponse(ByteBuffer response) {
-      this.response = response;
+    public void setResponse(ResponseOutputStream responseStream) {
+      this.responseStream = responseStream;
+      this.response = responseStream.getBuffers();
+    }
+    
+    /* True if part of the response is not written yet */
+    private boolean hasRemaining() {
+      return response.length > 0 && 
+             response[response.length - 1].hasRemaining();
+    }
+    
+    /* Give the response buffers back to the pool once they are written */
+    private void releaseResponse() {
+      if (responseStream != null) {
+        responseStream.release();
+        responseStream = null;
+      }
+      response = null;
+    }
+    
+    @Override
+    public String getUserName() {
+      return connection.userName;
+    }
+    
+    @Override
+    public boolean isPriority() {
+      return priority;
     }
   }
 
@@ -219,6 +257,8 @@ public abstract class Server {
     
     private ServerSocketChannel acceptChannel = null; //the accept channel
     private Selector selector = null; //the selector that we use for the server
+    private Reader[] readers = null;
+    private int currentReader = 0;
     private InetSocketAddress address; //the address we bind at
     private Random rand = new Random();
     private long lastCleanupRunTime = 0; //the last time when a cleanup connec-
@@ -238,12 +278,150 @@ public abstract class Server {
       port = acceptChannel.socket().getLocalPort(); //Could be an ephemeral port
       // create a selector;
       selector= Selector.open();
+      readers = new Reader[readThreads];
+      for (int i = 0; i < readThreads; i++) {
+        readers[i] = new Reader(i);
+      }
 
       // Register accepts on the server socket with the selector.
       acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
       this.setName("IPC Server listener on " + port);
       this.setDaemon(true);
     }
+    
+    /** Reads calls from the connections handed over by the listener. 
+     * Each reader owns a selector, so reading and parsing of the calls 
+     * is spread over the reader threads. */
+    private class Reader extends Thread {
+      private final int index;
+      private final Selector readSelector;
+      private final BlockingQueue<Connection> pendingConnections = 
+        new LinkedBlockingQueue<Connection>();
+      private final AtomicInteger numReaderConnections = new AtomicInteger(0);
+      
+      Reader(int index) throws IOException {
+        this.index = index;
+        this.readSelector = Selector.open();
+        this.setName("IPC Server reader " + index + " on " + port);
+        this.setDaemon(true);
+      }
+      
+      /** Assign the connection to this reader. */
+      void assignConnection(Connection c) {
+        c.reader = this;
+        numReaderConnections.incrementAndGet();
+      }
+      
+      /** Queue the connection and wake up the selector to register it. */
+      void addConnection(Connection c) {
+        pendingConnections.add(c);
+        readSelector.wakeup();
+      }
+      
+      void removeConnection(Connection c) {
+        numReaderConnections.decrementAndGet();
+      }
+      
+      int getNumConnections() {
+        return numReaderConnections.get();
+      }
+      
+      int getNumPendingConnections() {
+        return pendingConnections.size();
+      }
+      
+      private void registerPendingConnections() {
+        Connection c = null;
+        while ((c = pendingConnections.poll()) != null) {
+          try {
+            c.channel.register(readSelector, SelectionKey.OP_READ, c);
+          } catch (ClosedChannelException e) {
+            // the connection was closed before we got to it
+            closeConnection(c);
+          }
+        }
+      }
+      
+      @Override
+      public void run() {
+        LOG.info(getName() + ": starting");
+        SERVER.set(Server.this);
+        while (running) {
+          SelectionKey key = null;
+          try {
+            registerPendingConnections();
+            readSelector.select();
+            Iterator<SelectionKey> iter = readSelector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+              key = iter.next();
+              iter.remove();
+              if (key.isValid() && key.isReadable()) 
+                doRead(key);
+              key = null;
+            }
+          } catch (OutOfMemoryError e) {
+            // we can run out of memory if we have too many threads
+            // log the event and sleep for a minute and give 
+            // some thread(s) a chance to finish
+            LOG.warn("Out of Memory in server select", e);
+            closeCurrentConnection(key, e);
+            try { Thread.sleep(60000); } catch (Exception ie) {}
+          } catch (InterruptedException e) {
+            if (running) {                          // unexpected -- log it
+              LOG.info(getName() + " caught: " +
+                       StringUtils.stringifyException(e));
+            }
+          } catch (Exception e) {
+            closeCurrentConnection(key, e);
+          }
+        }
+        LOG.info("Stopping " + this.getName());
+        
+        try {
+          readSelector.close();
+        } catch (IOException e) { }
+      }
+      
+      void doRead(SelectionKey key) throws InterruptedException {
+        int count = 0;
+        Connection c = (Connection)key.attachment();
+        if (c == null) {
+          return;  
+        }
+        c.setLastContact(System.currentTimeMillis());
+        
+        try {
+          count = c.readAndProcess();
+        } catch (InterruptedException ieo) {
+          if (LOG.isWarnEnabled())
+            LOG.warn(getName() + ": readAndProcess caught InterruptedException", ieo);
+          throw ieo;
+        } catch (Exception e) {
+          if (LOG.isWarnEnabled())
+            LOG.warn(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
+          count = -1; //so that the (count < 0) block is executed
+        }
+        if (count < 0) {
+          if (LOG.isDebugEnabled())
+            LOG.debug(getName() + ": disconnecting client " + 
+                      c.getHostAddress() + ". Number of active connections: "+
+                      numConnections);
+          closeConnection(c);
+          c = null;
+        }
+        else {
+          if (count > 0 && rpcMetrics != null) 
+            rpcMetrics.getReaderMetrics(index).bytesRead.inc(count);
+          c.setLastContact(System.currentTimeMillis());
+        }
+      }
+      
+      void doStop() {
+        readSelector.wakeup();
+        interrupt();
+      }
+    }
+    
     /** cleanup connections from connectionList. Choose a random range
      * to scan and also have a limit on the number of the connections
      * that will be cleanedup per run. The criteria for cleanup is the time
@@ -296,6 +474,9 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
+      for (Reader reader : readers) {
+        reader.start();
+      }
       while (running) {
         SelectionKey key = null;
         try {
@@ -308,8 +489,6 @@ public abstract class Server {
               if (key.isValid()) {
                 if (key.isAcceptable())
                   doAccept(key);
-                else if (key.isReadable())
-                  doRead(key);
               }
             } catch (IOException e) {
             }
@@ -323,11 +502,6 @@ public abstract class Server {
           closeCurrentConnection(key, e);
           cleanupConnections(true);
           try { Thread.sleep(60000); } catch (Exception ie) {}
-        } catch (InterruptedException e) {
-          if (running) {                          // unexpected -- log it
-            LOG.info(getName() + " caught: " +
-                     StringUtils.stringifyException(e));
-          }
         } catch (Exception e) {
           closeCurrentConnection(key, e);
         }
@@ -377,13 +551,14 @@ public abstract class Server {
 
         channel.configureBlocking(false);
         channel.socket().setTcpNoDelay(tcpNoDelay);
-        SelectionKey readKey = channel.register(selector, SelectionKey.OP_READ);
-        c = new Connection(readKey, channel, System.currentTimeMillis());
-        readKey.attach(c);
+        Reader reader = getReader();
+        c = new Connection(channel, System.currentTimeMillis());
         synchronized (connectionList) {
           connectionList.add(numConnections, c);
           numConnections++;
+          reader.assignConnection(c);
         }
+        reader.addConnection(c);
         if (LOG.isDebugEnabled())
           LOG.debug("Server connection from " + c.toString() +
               "; # active connections: " + numConnections +
@@ -391,38 +566,13 @@ public abstract class Server {
       }
     }
 
-    void doRead(SelectionKey key) throws InterruptedException {
-      int count = 0;
-      Connection c = (Connection)key.attachment();
-      if (c == null) {
-        return;  
-      }
-      c.setLastContact(System.currentTimeMillis());
-      
-      try {
-        count = c.readAndProcess();
-      } catch (InterruptedException ieo) {
-    	if (LOG.isWarnEnabled())
-          LOG.warn(getName() + ": readAndProcess caught InterruptedException", ieo);
-        throw ieo;
-      } catch (Exception e) {
-    	if (LOG.isWarnEnabled())
-          LOG.warn(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
-        count = -1; //so that the (count < 0) block is executed
-      }
-      if (count < 0) {
-        if (LOG.isDebugEnabled())
-          LOG.debug(getName() + ": disconnecting client " + 
-                    c.getHostAddress() + ". Number of active connections: "+
-                    numConnections);
-        closeConnection(c);
-        c = null;
-      }
-      else {
-        c.setLastContact(System.currentTimeMillis());
-      }
-    }   
-
+    // The listener is the only thread that hands out connections, 
+    // so a plain round robin counter is enough.
+    private Reader getReader() {
+      currentReader = (currentReader + 1) % readers.length;
+      return readers[currentReader];
+    }
+    
     synchronized void doStop() {
       if (selector != null) {
         selector.wakeup();
@@ -436,6 +586,9 @@ public abstract class Server {
             LOG.warn(getName() + ": Exception in closing listener socket. " + e);
         }
       }
+      for (Reader reader : readers) {
+        reader.doStop();
+      }
     }
   }
 
@@ -600,11 +753,12 @@ public abstract class Server {
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.response);
+          long numBytes = channelWrite(channel, call.response);
           if (numBytes < 0) {
             return true;
           }
-          if (!call.response.hasRemaining()) {
+          if (!call.hasRemaining()) {
+            call.releaseResponse();
             call.connection.decRpcCount();
             if (numElements == 1) {    // last call fully processes.
               done = true;             // no more data for this channel.
@@ -652,6 +806,7 @@ public abstract class Server {
           if (LOG.isWarnEnabled())
             LOG.warn(getName()+", call " + call + ": output error");
           done = true;               // error. no more data for this channel.
+          call.releaseResponse();
           closeConnection(call.connection);
         }
       }
@@ -708,17 +863,20 @@ public abstract class Server {
     
     ConnectionHeader header = new ConnectionHeader();
     Class<?> protocol;
+    boolean compact = false;             // if the client asked for compact encoding
+    ClassTable classTable = null;        // the agreed table, null if none
     
     Subject user = null;
+    String userName = null;
+    
+    Listener.Reader reader = null;      // the reader this connection is assigned to
 
-    // Fake 'call' for failed authorization response
+    // Fake 'call' for failed authorization or class table response
     private final int AUTHROIZATION_FAILED_CALLID = -1;
     private final Call authFailedCall = 
       new Call(AUTHROIZATION_FAILED_CALLID, null, null);
-    private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
     
-    public Connection(SelectionKey key, SocketChannel channel, 
-                      long lastContact) {
+    public Connection(SocketChannel channel, long lastContact) {
       this.channel = channel;
       this.lastContact = lastContact;
       this.data = null;
@@ -803,7 +961,8 @@ public abstract class Server {
           int version = versionBuffer.get(0);
           
           dataLengthBuffer.flip();          
-          if (!HEADER.equals(dataLengthBuffer) || version != CURRENT_VERSION) {
+          if (!HEADER.equals(dataLengthBuffer) || 
+              (version != CURRENT_VERSION && version != COMPACT_VERSION)) {
             //Warning is ok since this is not supposed to happen.
             LOG.warn("Incorrect header or version mismatch from " + 
                      hostAddress + ":" + remotePort +
@@ -812,6 +971,7 @@ public abstract class Server {
             return -1;
           }
           dataLengthBuffer.clear();
+          compact = version == COMPACT_VERSION;
           versionRead = true;
           continue;
         }
@@ -842,6 +1002,18 @@ public abstract class Server {
             headerRead = true;
             data = null;
             
+            if (compact && classTable == null) {
+              authFailedCall.connection = this;
+              setupResponse(authFailedCall, 
+                            Status.FATAL, null, IOException.class.getName(), 
+                            "Class table of " + header.getProtocol() + 
+                            " does not match the server's, set ipc.client.compact to false");
+              responder.doRespond(authFailedCall);
+              
+              // Close this connection
+              return -1;
+            }
+            
             // Authorize the connection
             try {
               authorize(user, header);
@@ -851,7 +1023,7 @@ public abstract class Server {
               }
             } catch (AuthorizationException ae) {
               authFailedCall.connection = this;
-              setupResponse(authFailedResponse, authFailedCall, 
+              setupResponse(authFailedCall, 
                             Status.FATAL, null, 
                             ae.getClass().getName(), ae.getMessage());
               responder.doRespond(authFailedCall);
@@ -881,9 +1053,21 @@ public abstract class Server {
         throw new IOException("Unknown protocol: " + header.getProtocol());
       }
       
+      if (compact && protocol != null) {
+        long fingerprint = in.readLong();
+        ClassTable table = ClassTable.get(protocol);
+        if (table.getFingerprint() == fingerprint) 
+          classTable = table;
+        else 
+          LOG.warn("Class table mismatch from " + hostAddress + ":" + remotePort + 
+                   " for " + protocol.getName());
+      }
+      
       // TODO: Get the user name from the GSS API for Kerberbos-based security
       // Create the user subject
       user = SecurityUtil.getSubject(header.getUgi());
+      if (header.getUgi() != null) 
+        userName = header.getUgi().getUserName();
     }
     
     @SuppressWarnings("unused")
@@ -896,10 +1080,16 @@ public abstract class Server {
         LOG.debug(" got #" + id);
 
       Writable param = ReflectionUtils.newInstance(paramClass, conf);           // read param
+      if (classTable != null && param instanceof ClassTableWritable) 
+        ((ClassTableWritable)param).setClassTable(classTable);
       param.readFields(dis);        
         
       Call call = new Call(id, param, this);
+      call.priority = isPriorityCall(protocol, param);
       callQueue.put(call);              // queue the call; maybe blocked here
+      
+      if (reader != null && rpcMetrics != null) 
+        rpcMetrics.getReaderMetrics(reader.index).callsRead.inc();
     }
 
     private synchronized void close() throws IOException {
@@ -927,10 +1117,15 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
-      ByteArrayOutputStream buf = new ByteArrayOutputStream(10240);
       while (running) {
         try {
           final Call call = callQueue.take(); // pop the queue; maybe blocked here
+          
+          long queueTime = System.currentTimeMillis() - call.timestamp;
+          if (call.priority) 
+            rpcMetrics.rpcPriorityQueueTimeHistogram.inc(queueTime);
+          else
+            rpcMetrics.rpcQueueTimeHistogram.inc(queueTime);
 
           if (DEBUG && LOG.isDebugEnabled())
             LOG.debug(getName() + ": has #" + call.id + " from " +
@@ -971,7 +1166,7 @@ public abstract class Server {
           }
           CurCall.set(null);
 
-          setupResponse(buf, call, 
+          setupResponse(call, 
                         (error == null) ? Status.SUCCESS : Status.ERROR, 
                         value, errorClass, error);
           responder.doRespond(call);
@@ -1011,9 +1206,10 @@ public abstract class Server {
     this.port = port;
     this.paramClass = paramClass;
     this.handlerCount = handlerCount;
+    this.readThreads = Math.max(1, conf.getInt("ipc.server.read.threadpool.size", 1));
     this.socketSendBufferSize = 0;
     this.maxQueueSize = handlerCount * MAX_QUEUE_SIZE_PER_HANDLER;
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.callQueue  = CallQueue.newInstance(conf, maxQueueSize); 
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1024,7 +1220,10 @@ public abstract class Server {
     this.rpcMetrics = new RpcMetrics(serverName,
                           Integer.toString(this.port), this);
     this.tcpNoDelay = conf.getBoolean("ipc.server.tcpnodelay", false);
-
+    this.responseBufferPool = new ResponseBufferPool(
+        conf.getInt("ipc.server.response.buffer.size", NIO_BUFFER_LIMIT), 
+        conf.getInt("ipc.server.response.buffer.pool.size", 1024), 
+        conf.getBoolean("ipc.server.response.buffer.direct", true));
 
     // Create the responder here
     responder = new Responder();
@@ -1032,8 +1231,11 @@ public abstract class Server {
 
   private void closeConnection(Connection connection) {
     synchronized (connectionList) {
-      if (connectionList.remove(connection))
+      if (connectionList.remove(connection)) {
         numConnections--;
+        if (connection.reader != null) 
+          connection.reader.removeConnection(connection);
+      }
     }
     try {
       connection.close();
@@ -1042,9 +1244,9 @@ public abstract class Server {
   }
   
   /**
-   * Setup response for the IPC Call.
+   * Setup response for the IPC Call. The response is serialized into 
+   * buffers from the {@link ResponseBufferPool}.
    * 
-   * @param response buffer to serialize the response into
    * @param call {@link Call} to which we are setting up the response
    * @param status {@link Status} of the IPC call
    * @param rv return value for the IPC Call, if the call was successful
@@ -1052,11 +1254,10 @@ public abstract class Server {
    * @param error error message, if the call failed
    * @throws IOException
    */
-  private void setupResponse(ByteArrayOutputStream response, 
-                             Call call, Status status, 
+  private void setupResponse(Call call, Status status, 
                              Writable rv, String errorClass, String error) 
       throws IOException {
-    response.reset();
+    ResponseOutputStream response = new ResponseOutputStream(responseBufferPool);
     DataOutputStream out = new DataOutputStream(response);
     out.writeInt(call.id);                // write call id
     out.writeInt(status.state);           // write status
@@ -1067,7 +1268,7 @@ public abstract class Server {
       WritableUtils.writeString(out, errorClass);
       WritableUtils.writeString(out, error);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    call.setResponse(response);
   }
   
   Configuration getConf() {
@@ -1151,6 +1352,19 @@ public abstract class Server {
   public void authorize(Subject user, ConnectionHeader connection) 
   throws AuthorizationException {}
   
+  /**
+   * Whether the call should be served in the priority lane of the 
+   * {@link CallQueue}. Called by the reader threads for each call read.
+   * 
+   * @param protocol the protocol of the connection
+   * @param param the call parameter
+   * @return true for admin or meta calls which should not wait behind 
+   *         the normal calls
+   */
+  protected boolean isPriorityCall(Class<?> protocol, Writable param) {
+    return false;
+  }
+  
   /**
    * The number of open RPC conections
    * @return the number of open rpc connections
@@ -1167,6 +1381,81 @@ public abstract class Server {
     return callQueue.size();
   }
   
+  /**
+   * The number of rpc calls waiting in the priority lane of the queue.
+   * @return The number of priority rpc calls in the queue.
+   */
+  public int getPriorityCallQueueLen() {
+    return callQueue.getPriorityQueueLen();
+  }
+  
+  /**
+   * The number of response buffers allocated since the server started.
+   * @return the number of allocated response buffers
+   */
+  public long getResponseBuffersAllocated() {
+    return responseBufferPool.getNumAllocated();
+  }
+  
+  /**
+   * The number of response buffers taken from the pool instead of allocated.
+   * @return the number of reused response buffers
+   */
+  public long getResponseBuffersReused() {
+    return responseBufferPool.getNumReused();
+  }
+  
+  /**
+   * The number of response buffers dropped because the pool was full.
+   * @return the number of discarded response buffers
+   */
+  public long getResponseBuffersDiscarded() {
+    return responseBufferPool.getNumDiscarded();
+  }
+  
+  /**
+   * The number of idle response buffers in the pool.
+   * @return the number of pooled response buffers
+   */
+  public int getResponseBuffersPooled() {
+    return responseBufferPool.getNumFree();
+  }
+  
+  /**
+   * The size of one response buffer in bytes.
+   * @return the response buffer size
+   */
+  public int getResponseBufferSize() {
+    return responseBufferPool.getBufferSize();
+  }
+  
+  /**
+   * The number of reader threads, set by <code>ipc.server.read.threadpool.size</code>.
+   * @return the number of reader threads
+   */
+  public int getNumReaders() {
+    return readThreads;
+  }
+  
+  /**
+   * The number of connections assigned to the given reader.
+   * @param index index of the reader
+   * @return the number of connections served by the reader
+   */
+  public int getReaderNumConnections(int index) {
+    return listener.readers[index].getNumConnections();
+  }
+  
+  /**
+   * The number of accepted connections waiting to be registered 
+   * with the given reader.
+   * @param index index of the reader
+   * @return the number of pending connections of the reader
+   */
+  public int getReaderPendingConnections(int index) {
+    return listener.readers[index].getNumPendingConnections();
+  }
+  
   
   /**
    * When the read or write buffer size is larger than this limit, i/o will be 
@@ -1192,6 +1481,33 @@ public abstract class Server {
   }
   
   
+  /**
+   * Write the buffers of a response. Direct buffers are written with one 
+   * gathering write, heap buffers one by one through 
+   * {@link #channelWrite(WritableByteChannel, ByteBuffer)} so the jdk 
+   * does not need a temporary direct buffer as large as the response.
+   *
+   * @see GatheringByteChannel#write(ByteBuffer[])
+   */
+  private static long channelWrite(SocketChannel channel, 
+                                   ByteBuffer[] buffers) throws IOException {
+    if (buffers.length > 0 && buffers[0].isDirect()) 
+      return channel.write(buffers);
+    
+    long total = 0;
+    for (ByteBuffer buffer : buffers) {
+      if (!buffer.hasRemaining()) 
+        continue;
+      int n = channelWrite(channel, buffer);
+      if (n < 0) 
+        return (total > 0) ? total : n;
+      total += n;
+      if (buffer.hasRemaining()) 
+        break;
+    }
+    return total;
+  }
+  
   /**
    * This is a wrapper around {@link ReadableByteChannel#read(ByteBuffer)}.
    * If the amount of data is large, it writes to channel in smaller chunks. 
@@ -7,7 +7,9 @@ import org.javenstudio.raptor.metrics.MetricsRecord;
 import org.javenstudio.raptor.metrics.MetricsUtil;
 import org.javenstudio.raptor.metrics.Updater;
 import org.javenstudio.raptor.metrics.util.MetricsBase;
+import org.javenstudio.raptor.metrics.util.MetricsHistogram;
 import org.javenstudio.raptor.metrics.util.MetricsIntValue;
+import org.javenstudio.raptor.metrics.util.MetricsLongValue;
 import org.javenstudio.raptor.metrics.util.MetricsRegistry;
 import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingRate;
 
@@ -30,6 +32,7 @@ public class RpcMetrics implements Updater {
   private Server myServer;
   private static Logger LOG = Logger.getLogger(RpcMetrics.class);
   RpcActivityMBean rpcMBean;
+  private final RpcReaderMetrics[] readerMetrics;
   
   public RpcMetrics(String hostName, String port, Server server) {
     myServer = server;
@@ -41,6 +44,12 @@ public class RpcMetrics implements Updater {
     LOG.info("Initializing RPC Metrics with hostName=" 
         + hostName + ", port=" + port);
 
+    int numReaders = (server != null) ? server.getNumReaders() : 0;
+    readerMetrics = new RpcReaderMetrics[numReaders];
+    for (int i = 0; i < numReaders; i++) {
+      readerMetrics[i] = new RpcReaderMetrics(i, registry);
+    }
+
     context.registerUpdater(this);
     
     // Need to clean up the interface to RpcMgt - don't need both metrics and server params
@@ -62,6 +71,30 @@ public class RpcMetrics implements Updater {
           new MetricsIntValue("NumOpenConnections", registry);
   public MetricsIntValue callQueueLen = 
           new MetricsIntValue("callQueueLen", registry);
+  public MetricsIntValue priorityCallQueueLen = 
+          new MetricsIntValue("priorityCallQueueLen", registry);
+  public MetricsHistogram rpcQueueTimeHistogram = 
+          new MetricsHistogram("RpcQueueTimeHistogram", registry);
+  public MetricsHistogram rpcPriorityQueueTimeHistogram = 
+          new MetricsHistogram("RpcPriorityQueueTimeHistogram", registry);
+  public MetricsLongValue responseBuffersAllocated = 
+          new MetricsLongValue("ResponseBuffersAllocated", registry);
+  public MetricsLongValue responseBufferBytesAllocated = 
+          new MetricsLongValue("ResponseBufferBytesAllocated", registry);
+  public MetricsLongValue responseBuffersReused = 
+          new MetricsLongValue("ResponseBuffersReused", registry);
+  public MetricsLongValue responseBuffersDiscarded = 
+          new MetricsLongValue("ResponseBuffersDiscarded", registry);
+  public MetricsIntValue responseBuffersPooled = 
+          new MetricsIntValue("ResponseBuffersPooled", registry);
+  
+  /**
+   * Get the metrics of the given reader thread.
+   * @param index index of the reader
+   */
+  public RpcReaderMetrics getReaderMetrics(int index) {
+    return readerMetrics[index];
+  }
   
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
@@ -73,6 +106,17 @@ public class RpcMetrics implements Updater {
       // the metrics do not have be copied here.
       numOpenConnections.set(myServer.getNumOpenConnections());
       callQueueLen.set(myServer.getCallQueueLen());
+      priorityCallQueueLen.set(myServer.getPriorityCallQueueLen());
+      responseBuffersAllocated.set(myServer.getResponseBuffersAllocated());
+      responseBufferBytesAllocated.set(myServer.getResponseBuffersAllocated() * 
+          myServer.getResponseBufferSize());
+      responseBuffersReused.set(myServer.getResponseBuffersReused());
+      responseBuffersDiscarded.set(myServer.getResponseBuffersDiscarded());
+      responseBuffersPooled.set(myServer.getResponseBuffersPooled());
+      for (int i = 0; i < readerMetrics.length; i++) {
+        readerMetrics[i].numConnections.set(myServer.getReaderNumConnections(i));
+        readerMetrics[i].pendingConnections.set(myServer.getReaderPendingConnections(i));
+      }
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
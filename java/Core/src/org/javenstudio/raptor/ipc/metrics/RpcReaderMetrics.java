@@ -0,0 +1,39 @@
+package org.javenstudio.raptor.ipc.metrics;
+
+import org.javenstudio.raptor.metrics.util.MetricsIntValue;
+import org.javenstudio.raptor.metrics.util.MetricsRegistry;
+import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingInt;
+import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingLong;
+
+
+/**
+ * 
+ * This class holds the statistics of one IPC server reader thread.
+ * The metrics are registered in the {@link RpcMetrics} registry with
+ * the reader index as a name prefix (e.g. "Reader0NumConnections"),
+ * so an imbalance between the readers shows up side by side.
+ *
+ */
+public class RpcReaderMetrics {
+  private final int index;
+  
+  public final MetricsIntValue numConnections;
+  public final MetricsIntValue pendingConnections;
+  public final MetricsTimeVaryingInt callsRead;
+  public final MetricsTimeVaryingLong bytesRead;
+  
+  RpcReaderMetrics(int index, MetricsRegistry registry) {
+    this.index = index;
+    
+    String prefix = "Reader" + index;
+    numConnections = new MetricsIntValue(prefix + "NumConnections", registry);
+    pendingConnections = new MetricsIntValue(prefix + "PendingConnections", registry);
+    callsRead = new MetricsTimeVaryingInt(prefix + "CallsRead", registry);
+    bytesRead = new MetricsTimeVaryingLong(prefix + "BytesRead", registry);
+  }
+  
+  /** @return the index of the reader */
+  public int getIndex() { 
+    return index;
+  }
+}
@@ -0,0 +1,76 @@
+package org.javenstudio.raptor.metrics.util;
+
+
+/**
+ * The MetricsHistogram class counts how many values fall into each of a 
+ * fixed set of buckets over an interval (e.g. queue times in msec).
+ * Every bucket is a {@link MetricsTimeVaryingLong} registered as
+ * <code>&lt;name&gt;_&lt;upper bound&gt;</code>, and the last bucket,
+ * holding all larger values, as <code>&lt;name&gt;_inf</code>, so the 
+ * buckets are published and shown in JMX like any other counter.
+ *
+ */
+public class MetricsHistogram {
+  
+  /** Bucket upper bounds suitable for times measured in msec */
+  public static final long[] DEFAULT_TIME_BOUNDS = 
+    { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000 };
+  
+  private final String name;
+  private final long[] bounds;
+  private final MetricsTimeVaryingLong[] buckets;
+  
+  /**
+   * Constructor - create a new histogram
+   * @param nam the name prefix of the bucket metrics
+   * @param registry - where the bucket metrics will be registered
+   * @param bounds - the inclusive upper bounds of the buckets, ascending
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry, 
+      final long[] bounds) {
+    this.name = nam;
+    this.bounds = bounds.clone();
+    this.buckets = new MetricsTimeVaryingLong[bounds.length + 1];
+    for (int i = 0; i < bounds.length; i++) {
+      if (i > 0 && bounds[i] <= bounds[i-1]) 
+        throw new IllegalArgumentException("Bucket bounds must be ascending");
+      buckets[i] = new MetricsTimeVaryingLong(nam + "_" + bounds[i], registry);
+    }
+    buckets[bounds.length] = new MetricsTimeVaryingLong(nam + "_inf", registry);
+  }
+  
+  /**
+   * Constructor - create a new histogram with the {@link #DEFAULT_TIME_BOUNDS}
+   * @param nam the name prefix of the bucket metrics
+   * @param registry - where the bucket metrics will be registered
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry) {
+    this(nam, registry, DEFAULT_TIME_BOUNDS);
+  }
+  
+  public String getName() { return name; }
+  
+  /**
+   * Count the value in its bucket
+   * @param value the value to add
+   */
+  public void inc(final long value) {
+    int i = 0;
+    while (i < bounds.length && value > bounds[i]) {
+      i++;
+    }
+    buckets[i].inc();
+  }
+  
+  /**
+   * The counts of the previous interval, one per bucket
+   * @return the bucket counts
+   */
+  public long[] getPreviousIntervalValues() {
+    long[] values = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      values[i] = buckets[i].getPreviousIntervalValue();
+    }
+    return values;
+  }
+}
@@ -5,8 +5,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.nio.channels.SocketChannel;
@@ -429,5 +431,22 @@ public class NetUtils {
     }
     return hostNames;
   }
-}
 
+  /**
+   * Is the address one of this host, either a wildcard or loopback
+   * address or the address of one of its network interfaces?
+   * 
+   * @param addr an address
+   * @return true if the address is local
+   */
+  public static boolean isLocalAddress(InetAddress addr) {
+    if (addr.isAnyLocalAddress() || addr.isLoopbackAddress()) {
+      return true;
+    }
+    try {
+      return NetworkInterface.getByInetAddress(addr) != null;
+    } catch (SocketException e) {
+      return false;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
@@ -129,6 +130,60 @@ public class SocketOutputStream extends OutputStream
     return writer.doIO(src, SelectionKey.OP_WRITE);
   }
   
+  /**
+   * Writes all the remaining bytes of the buffers, in order, with gathering
+   * writes when the channel supports them. Used to send the slabs of a
+   * {@link org.javenstudio.raptor.io.SlabDataOutputBuffer} without copying
+   * them into one array first.
+   *
+   * @throws SocketTimeoutException 
+   *         if the channel is not writable within the timeout.
+   * @throws IOException
+   *         if any other I/O error occurs, the stream is then closed if
+   *         some of the data was written.
+   */
+  public void write(ByteBuffer[] srcs) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer src : srcs) {
+      remaining += src.remaining();
+    }
+    if (!(writer.channel instanceof GatheringByteChannel)) {
+      for (ByteBuffer src : srcs) {
+        while (src.hasRemaining()) {
+          if (write(src) < 0) {
+            throw new IOException("The stream is closed");
+          }
+        }
+      }
+      return;
+    }
+
+    GatheringByteChannel channel = (GatheringByteChannel)writer.channel;
+    boolean partial = false;
+    int first = 0;
+    try {
+      while (remaining > 0) {
+        while (!srcs[first].hasRemaining()) {
+          first++;
+        }
+        long n = channel.write(srcs, first, srcs.length - first);
+        if (n < 0) {
+          throw new IOException("The stream is closed");
+        } else if (n == 0) {
+          waitForWritable();
+        } else {
+          partial = true;
+          remaining -= n;
+        }
+      }
+    } catch (IOException e) {
+      if (partial) {
+        writer.close();
+      }
+      throw e;
+    }
+  }
+
   /**
    * waits for the underlying channel to be ready for writing.
    * The timeout specified for this stream applies to this wait.
@@ -5,6 +5,7 @@ import java.util.zip.CRC32;
 
 import java.io.*;
 
+import org.javenstudio.raptor.fs.ChecksumException;
 
 /**
  * This class provides inteface and utilities for processing checksums for
@@ -19,9 +20,30 @@ public class DataChecksum implements Checksum {
   // checksum types
   public static final int CHECKSUM_NULL    = 0;
   public static final int CHECKSUM_CRC32   = 1;
+  public static final int CHECKSUM_CRC32C  = 2;
   
   private static final int CHECKSUM_NULL_SIZE  = 0;
   private static final int CHECKSUM_CRC32_SIZE = 4;
+  private static final int CHECKSUM_CRC32C_SIZE = 4;
+  
+  /** Configuration key of the checksum type used for new data */
+  public static final String CHECKSUM_TYPE_KEY = "io.checksum.type";
+  public static final String DEFAULT_CHECKSUM_TYPE = "CRC32";
+  
+  /**
+   * Returns the checksum type for a name as used in configurations:
+   * "NULL", "CRC32" or "CRC32C", case insensitive.
+   */
+  public static int getChecksumTypeByName( String name ) {
+    if ( name == null || name.equalsIgnoreCase("CRC32") ) {
+      return CHECKSUM_CRC32;
+    } else if ( name.equalsIgnoreCase("CRC32C") ) {
+      return CHECKSUM_CRC32C;
+    } else if ( name.equalsIgnoreCase("NULL") ) {
+      return CHECKSUM_NULL;
+    }
+    throw new IllegalArgumentException( "Unknown checksum type " + name );
+  }
   
   
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum ) {
@@ -36,6 +58,9 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, new CRC32(), 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, new PureJavaCrc32C(), 
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
@@ -55,7 +80,7 @@ public class DataChecksum implements Checksum {
                            ( (bytes[offset+2] & 0xff) << 16 ) |
                            ( (bytes[offset+3] & 0xff) << 8 )  |
                            ( (bytes[offset+4] & 0xff) );
-    return newDataChecksum( bytes[0], bytesPerChecksum );
+    return newDataChecksum( bytes[offset], bytesPerChecksum );
   }
   
   /**
@@ -105,7 +130,7 @@ public class DataChecksum implements Checksum {
        return 0;
      }
 
-     if ( type == CHECKSUM_CRC32 ) {
+     if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
        out.writeInt( (int) summer.getValue() );
      } else {
        throw new IOException( "Unknown Checksum " + type );
@@ -129,7 +154,7 @@ public class DataChecksum implements Checksum {
         return 0;
       }
 
-      if ( type == CHECKSUM_CRC32 ) {
+      if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
         int checksum = (int) summer.getValue();
         buf[offset+0] = (byte) ((checksum >>> 24) & 0xff);
         buf[offset+1] = (byte) ((checksum >>> 16) & 0xff);
@@ -151,7 +176,7 @@ public class DataChecksum implements Checksum {
     * @return true if the checksum matches and false otherwise.
     */
    public boolean compare( byte buf[], int offset ) {
-     if ( size > 0 && type == CHECKSUM_CRC32 ) {
+     if ( size > 0 && (type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C) ) {
        int checksum = ( (buf[offset+0] & 0xff) << 24 ) | 
                       ( (buf[offset+1] & 0xff) << 16 ) |
                       ( (buf[offset+2] & 0xff) << 8 )  |
@@ -161,11 +186,88 @@ public class DataChecksum implements Checksum {
      return size == 0;
    }
    
+   /**
+    * Calculates the checksums of all the chunks in 
+    * <i>data[dataOffset, dataOffset+dataLength)</i> into <i>sums</i>
+    * starting at <i>sumsOffset</i>, one checksum per bytesPerChecksum 
+    * bytes; the last chunk may be partial. The running checksum used by 
+    * {@link #update(byte[], int, int)} is not affected.
+    */
+   public void calculateChunkedSums( byte[] data, int dataOffset, int dataLength,
+                                     byte[] sums, int sumsOffset ) {
+     if ( size <= 0 ) {
+       return;
+     }
+     
+     while ( dataLength > 0 ) {
+       int n = Math.min( dataLength, bytesPerChecksum );
+       int checksum = chunkSum( data, dataOffset, n );
+       sums[sumsOffset+0] = (byte) ((checksum >>> 24) & 0xff);
+       sums[sumsOffset+1] = (byte) ((checksum >>> 16) & 0xff);
+       sums[sumsOffset+2] = (byte) ((checksum >>> 8) & 0xff);
+       sums[sumsOffset+3] = (byte) (checksum & 0xff);
+       dataOffset += n;
+       dataLength -= n;
+       sumsOffset += size;
+     }
+   }
+   
+   /**
+    * Verifies the checksums of all the chunks in 
+    * <i>data[dataOffset, dataOffset+dataLength)</i> against the checksums
+    * stored in <i>sums</i> starting at <i>sumsOffset</i>. The running 
+    * checksum used by {@link #update(byte[], int, int)} is not affected.
+    * 
+    * @param fileName the name reported if a chunk does not match
+    * @param basePos the position of <i>data[dataOffset]</i> in the file
+    * @throws ChecksumException at the position of the first chunk which
+    *         does not match
+    */
+   public void verifyChunkedSums( byte[] data, int dataOffset, int dataLength,
+                                  byte[] sums, int sumsOffset, 
+                                  String fileName, long basePos ) 
+                                  throws ChecksumException {
+     if ( size <= 0 ) {
+       return;
+     }
+     
+     long pos = basePos;
+     while ( dataLength > 0 ) {
+       int n = Math.min( dataLength, bytesPerChecksum );
+       int checksum = chunkSum( data, dataOffset, n );
+       int expected = ( (sums[sumsOffset+0] & 0xff) << 24 ) | 
+                      ( (sums[sumsOffset+1] & 0xff) << 16 ) |
+                      ( (sums[sumsOffset+2] & 0xff) << 8 )  |
+                      ( (sums[sumsOffset+3] & 0xff) );
+       if ( checksum != expected ) {
+         throw new ChecksumException( "Checksum error: " + fileName + 
+             " at " + pos + " exp: " + expected + " got: " + checksum, pos );
+       }
+       dataOffset += n;
+       dataLength -= n;
+       sumsOffset += size;
+       pos += n;
+     }
+   }
+   
+   private int chunkSum( byte[] data, int offset, int length ) {
+     if ( type == CHECKSUM_CRC32C ) {
+       return PureJavaCrc32C.compute( data, offset, length );
+     }
+     if ( chunkSummer == null ) {
+       chunkSummer = new CRC32();
+     }
+     chunkSummer.reset();
+     chunkSummer.update( data, offset, length );
+     return (int) chunkSummer.getValue();
+   }
+   
   private final int type;
   private final int size;
   private final Checksum summer;
   private final int bytesPerChecksum;
   private int inSum = 0;
+  private Checksum chunkSummer = null; // for the chunked sums of CRC32
   
   private DataChecksum( int checksumType, Checksum checksum,
                         int sumSize, int chunkSize ) {
@@ -0,0 +1,111 @@
+package org.javenstudio.raptor.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * A pure-java implementation of the CRC32 checksum that uses
+ * the CRC32-C (Castagnoli) polynomial, as used by iSCSI and SCTP.
+ * <p>
+ * The update loop processes eight bytes at a time with eight lookup
+ * tables ("slicing-by-8"), which avoids the per-call JNI overhead of
+ * {@link java.util.zip.CRC32} on the small chunks used by checksummed
+ * streams.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class PureJavaCrc32C implements Checksum {
+
+  /** The reflected CRC32-C polynomial */
+  private static final int POLY = 0x82F63B78;
+
+  /** Eight 256-entry tables, table k at offset k*256 */
+  private static final int[] T = new int[8 * 256];
+  static {
+    for (int n = 0; n < 256; n++) {
+      int c = n;
+      for (int k = 0; k < 8; k++) {
+        c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+      }
+      T[n] = c;
+    }
+    for (int k = 1; k < 8; k++) {
+      for (int n = 0; n < 256; n++) {
+        int c = T[(k - 1) * 256 + n];
+        T[k * 256 + n] = (c >>> 8) ^ T[c & 0xff];
+      }
+    }
+  }
+
+  private static final int T8_0 = 0;
+  private static final int T8_1 = 256;
+  private static final int T8_2 = 2 * 256;
+  private static final int T8_3 = 3 * 256;
+  private static final int T8_4 = 4 * 256;
+  private static final int T8_5 = 5 * 256;
+  private static final int T8_6 = 6 * 256;
+  private static final int T8_7 = 7 * 256;
+
+  /** the current CRC value, bit-flipped */
+  private int crc;
+
+  /** Create a new PureJavaCrc32C object. */
+  public PureJavaCrc32C() {
+    reset();
+  }
+
+  /** {@inheritDoc} */
+  public long getValue() {
+    return (~crc) & 0xffffffffL;
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    crc = 0xffffffff;
+  }
+
+  /** {@inheritDoc} */
+  public void update(byte[] b, int off, int len) {
+    crc = update(crc, b, off, len);
+  }
+
+  /** {@inheritDoc} */
+  public void update(int b) {
+    crc = (crc >>> 8) ^ T[T8_0 + ((crc ^ b) & 0xff)];
+  }
+
+  /**
+   * Compute the CRC32-C of <code>len</code> bytes of <code>b</code>
+   * starting at <code>off</code>, without any object state.
+   */
+  public static int compute(byte[] b, int off, int len) {
+    return ~update(0xffffffff, b, off, len);
+  }
+
+  private static int update(int crc, byte[] b, int off, int len) {
+    int localCrc = crc;
+
+    while (len > 7) {
+      final int c0 = (b[off + 0] ^ localCrc) & 0xff;
+      final int c1 = (b[off + 1] ^ (localCrc >>>= 8)) & 0xff;
+      final int c2 = (b[off + 2] ^ (localCrc >>>= 8)) & 0xff;
+      final int c3 = (b[off + 3] ^ (localCrc >>>= 8)) & 0xff;
+      localCrc = (T[T8_7 + c0] ^ T[T8_6 + c1]) ^ (T[T8_5 + c2] ^ T[T8_4 + c3]);
+
+      final int c4 = b[off + 4] & 0xff;
+      final int c5 = b[off + 5] & 0xff;
+      final int c6 = b[off + 6] & 0xff;
+      final int c7 = b[off + 7] & 0xff;
+      localCrc ^= (T[T8_3 + c4] ^ T[T8_2 + c5]) ^ (T[T8_1 + c6] ^ T[T8_0 + c7]);
+
+      off += 8;
+      len -= 8;
+    }
+
+    while (len-- > 0) {
+      localCrc = (localCrc >>> 8) ^ T[T8_0 + ((localCrc ^ b[off++]) & 0xff)];
+    }
+
+    return localCrc;
+  }
+
+}
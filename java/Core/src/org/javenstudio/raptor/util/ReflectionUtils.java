@@ -33,6 +33,12 @@ public class ReflectionUtils {
    */
   private static final Map<Class<?>, Constructor<?>> CONSTRUCTOR_CACHE = 
     new ConcurrentHashMap<Class<?>, Constructor<?>>();
+  
+  /** 
+   * Set once JobConf is found missing, so that creating an instance does 
+   * not pay for two failed class lookups every time.
+   */
+  private static volatile boolean jobConfMissing = false;
 
   /**
    * Check and set 'configuration' if necessary.
@@ -60,6 +66,8 @@ public class ReflectionUtils {
     //theObject is of type JobConfigurable AND
     //conf is of type JobConf then
     //invoke configure on theObject
+    if (jobConfMissing) 
+      return;
     try {
       Class<?> jobConfClass = 
         conf.getClassByName("org.javenstudio.raptor.mapred.JobConf");
@@ -73,6 +81,7 @@ public class ReflectionUtils {
       }
     } catch (ClassNotFoundException e) {
       //JobConf/JobConfigurable not in classpath. no need to configure
+      jobConfMissing = true;
     } catch (Exception e) {
       throw new RuntimeException("Error in configuring object", e);
     }
@@ -12,6 +12,7 @@ import org.javenstudio.raptor.io.WritableComparable;
 import org.javenstudio.raptor.bigdb.io.ImmutableBytesWritable;
 import org.javenstudio.raptor.bigdb.io.dbfile.Compression;
 import org.javenstudio.raptor.bigdb.io.dbfile.DBFile;
+import org.javenstudio.raptor.bigdb.io.encoding.DataBlockEncoding;
 import org.javenstudio.raptor.bigdb.regionserver.StoreFile;
 import org.javenstudio.raptor.bigdb.regionserver.StoreFile.BloomType;
 import org.javenstudio.raptor.bigdb.util.Bytes;
@@ -80,6 +81,12 @@ public class DBColumnDescriptor implements WritableComparable<DBColumnDescriptor
   public static final String DEFAULT_COMPRESSION =
     Compression.Algorithm.NONE.getName();
 
+  /**
+   * Default encoding of the data blocks of the store files.
+   */
+  public static final String DEFAULT_DATA_BLOCK_ENCODING =
+    DataBlockEncoding.NONE.toString();
+
   /**
    * Default number of versions of a record to keep.
    */
@@ -393,7 +400,7 @@ public class DBColumnDescriptor implements WritableComparable<DBColumnDescriptor
 
   /**
    * Compression types supported in bigdb.
-   * LZO is not bundled as part of the bigdb distribution.
+   * LZO is not bundled as part of the bigdb distribution, LZ4 is pure java.
    * See <a href="http://wiki.apache.org/hadoop/UsingLzoCompression">LZO Compression</a>
    * for how to enable it.
    * @param type Compression type setting.
@@ -403,6 +410,7 @@ public class DBColumnDescriptor implements WritableComparable<DBColumnDescriptor
     switch (type) {
       case LZO: compressionType = "LZO"; break;
       case GZ: compressionType = "GZ"; break;
+      case LZ4: compressionType = "LZ4"; break;
       default: compressionType = "NONE"; break;
     }
     setValue(COMPRESSION, compressionType);
@@ -476,6 +484,26 @@ public class DBColumnDescriptor implements WritableComparable<DBColumnDescriptor
     setValue(BLOOMFILTER, bt.toString());
   }
 
+  /**
+   * @return encoding of the data blocks of the store files
+   */
+  public DataBlockEncoding getDataBlockEncoding() {
+    String n = getValue(DATA_BLOCK_ENCODING);
+    if (n == null) {
+      n = DEFAULT_DATA_BLOCK_ENCODING;
+    }
+    return DataBlockEncoding.valueOf(n.toUpperCase());
+  }
+
+  /**
+   * Set the encoding of the data blocks of the store files written from
+   * now on; files already written keep theirs until compacted.
+   * @param encoding data block encoding
+   */
+  public void setDataBlockEncoding(final DataBlockEncoding encoding) {
+    setValue(DATA_BLOCK_ENCODING, encoding.toString());
+  }
+
    /**
     * @return the scope tag
     */
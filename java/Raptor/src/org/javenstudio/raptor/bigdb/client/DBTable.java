@@ -769,7 +769,16 @@ public class DBTable implements DBTableInterface {
     private DBRegionInfo currentRegion = null;
     private ScannerCallable callable = null;
     private final LinkedList<Result> cache = new LinkedList<Result>();
-    private final int caching;
+    private int caching;
+    // Rows asked for are adapted to the size of the rows so far when the
+    // scan has a maximum result size, from caching up to this
+    private static final int MAX_ADAPTIVE_CACHING = 10000;
+    // 0xFF bytes appended to a row decremented to get a row before it
+    private static final int ROW_BEFORE_PADDING = 9;
+    private final int minCaching;
+    private final long maxResultSize;
+    // Reversed scans of a region from its last row: a row of the region
+    private byte [] reversedRegionRow = null;
     private long lastNext;
     // Keep lastResult returned successfully in case we have to reset scanner.
     private Result lastResult = null;
@@ -789,6 +798,9 @@ public class DBTable implements DBTableInterface {
       } else {
         this.caching = DBTable.this.scannerCaching;
       }
+      this.minCaching = this.caching;
+      this.maxResultSize = this.scan.getMaxResultSize() > 0 ?
+          this.scan.getMaxResultSize() : maxScannerResultSize;
 
       // Removed filter validation.  We have a new format now, only one of all
       // the current filters has a validate() method.  We can add it back,
@@ -826,6 +838,21 @@ public class DBTable implements DBTableInterface {
       return false; //unlikely.
     }
 
+    // returns true if the passed region startKey is at or below the stop row
+    // of a reversed scan
+    private boolean checkReversedScanStopRow(final byte [] startKey) {
+      if (this.scan.getStopRow().length > 0) {
+        byte [] stopRow = scan.getStopRow();
+        int cmp = Bytes.compareTo(stopRow, 0, stopRow.length,
+          startKey, 0, startKey.length);
+        if (cmp >= 0) {
+          // rows before startKey are all below stopRow
+          return true;
+        }
+      }
+      return false;
+    }
+
     /*
      * Gets a scanner for the next region.  If this.currentRegion != null, then
      * we will move to the endrow of this.currentRegion.  Else we will get
@@ -848,7 +875,25 @@ public class DBTable implements DBTableInterface {
       byte [] localStartKey;
 
       // if we're at end of table, close and return false to stop iterating
-      if (this.currentRegion != null) {
+      if (this.currentRegion != null && this.scan.isReversed()) {
+        byte [] startKey = this.currentRegion.getStartKey();
+        if (startKey == null ||
+            Bytes.equals(startKey, DBConstants.EMPTY_BYTE_ARRAY) ||
+            checkReversedScanStopRow(startKey) ||
+            done) {
+          close();
+          if (CLIENT_LOG.isDebugEnabled()) {
+            CLIENT_LOG.debug("Finished with scanning at " + this.currentRegion);
+          }
+          return false;
+        }
+        // scan the region before from its last row
+        localStartKey = DBConstants.EMPTY_START_ROW;
+        this.reversedRegionRow = createClosestRowBefore(startKey);
+        if (CLIENT_LOG.isDebugEnabled()) {
+          CLIENT_LOG.debug("Finished with region " + this.currentRegion);
+        }
+      } else if (this.currentRegion != null) {
         byte [] endKey = this.currentRegion.getEndKey();
         if (endKey == null ||
             Bytes.equals(endKey, DBConstants.EMPTY_BYTE_ARRAY) ||
@@ -866,6 +911,12 @@ public class DBTable implements DBTableInterface {
         }
       } else {
         localStartKey = this.scan.getStartRow();
+        if (this.scan.isReversed() && localStartKey.length == 0 &&
+            this.reversedRegionRow == null) {
+          // start at the last region
+          byte [][] startKeys = getStartKeys();
+          this.reversedRegionRow = startKeys[startKeys.length - 1];
+        }
       }
 
       if (CLIENT_LOG.isDebugEnabled()) {
@@ -888,12 +939,32 @@ public class DBTable implements DBTableInterface {
     protected ScannerCallable getScannerCallable(byte [] localStartKey,
         int nbRows) {
       scan.setStartRow(localStartKey);
-      ScannerCallable s = new ScannerCallable(getConnection(),
-        getTableName(), scan);
+      ScannerCallable s;
+      if (scan.isReversed() && localStartKey.length == 0) {
+        s = new ScannerCallable(getConnection(), getTableName(), scan,
+          this.reversedRegionRow);
+      } else {
+        s = new ScannerCallable(getConnection(), getTableName(), scan);
+      }
       s.setCaching(nbRows);
       return s;
     }
 
+    /*
+     * @return a row before the passed one, and after any row before it but
+     * for rows longer than the padding; good enough to locate a region by
+     */
+    private byte [] createClosestRowBefore(final byte [] row) {
+      if (row[row.length - 1] == 0) {
+        return Arrays.copyOf(row, row.length - 1);
+      }
+      byte [] closest = new byte[row.length + ROW_BEFORE_PADDING];
+      System.arraycopy(row, 0, closest, 0, row.length);
+      closest[row.length - 1] = (byte)((row[row.length - 1] & 0xFF) - 1);
+      Arrays.fill(closest, row.length, closest.length, (byte)0xFF);
+      return closest;
+    }
+
     public Result next() throws IOException {
       // If the scanner is closed but there is some rows left in the cache,
       // it will first empty it before returning null
@@ -902,7 +973,7 @@ public class DBTable implements DBTableInterface {
       }
       if (cache.size() == 0) {
         Result [] values = null;
-        long remainingResultSize = maxScannerResultSize;
+        long remainingResultSize = this.maxResultSize;
         int countdown = this.caching;
         // We need to reset it if it's a new callable that was created
         // with a countdown in nextScanner
@@ -966,6 +1037,14 @@ public class DBTable implements DBTableInterface {
           }
           // Values == null means server-side filter has determined we must STOP
         } while (remainingResultSize > 0 && countdown > 0 && nextScanner(countdown, values == null));
+
+        if (this.scan.getMaxResultSize() > 0 && this.caching > countdown) {
+          // ask for as many rows as should make up the result size
+          long rowSize = Math.max(1, (this.maxResultSize - remainingResultSize) /
+              (this.caching - countdown));
+          this.caching = (int)Math.max(this.minCaching,
+              Math.min(MAX_ADAPTIVE_CACHING, this.maxResultSize / rowSize));
+        }
       }
 
       if (cache.size() > 0) {
@@ -56,15 +56,27 @@ import org.javenstudio.raptor.bigdb.util.Bytes;
  * <p>
  * Expert: To explicitly disable server-side block caching for this scan,
  * execute {@link #setCacheBlocks(boolean)}.
+ * <p>
+ * To scan from the start row down to the stop row, execute
+ * {@link #setReversed(boolean) setReversed}.
+ * <p>
+ * To have the region server read the next rows while the client works on
+ * the current ones, execute {@link #setPrefetching(boolean) setPrefetching}.
+ * To bound the size of the rows returned for each call to the region
+ * server rather than their number, execute
+ * {@link #setMaxResultSize(long) setMaxResultSize}.
  */
 public class Scan implements Writable {
-  private static final byte SCAN_VERSION = (byte)1;
+  private static final byte SCAN_VERSION = (byte)2;
   private byte [] startRow = DBConstants.EMPTY_START_ROW;
   private byte [] stopRow  = DBConstants.EMPTY_END_ROW;
   private int maxVersions = 1;
   private int batch = -1;
   private int caching = -1;
   private boolean cacheBlocks = true;
+  private boolean reversed = false;
+  private boolean prefetching = false;
+  private long maxResultSize = -1;
   private Filter filter = null;
   private TimeRange tr = new TimeRange();
   private Map<byte [], NavigableSet<byte []>> familyMap =
@@ -114,6 +126,9 @@ public class Scan implements Writable {
     batch = scan.getBatch();
     caching = scan.getCaching();
     cacheBlocks = scan.getCacheBlocks();
+    reversed = scan.isReversed();
+    prefetching = scan.isPrefetching();
+    maxResultSize = scan.getMaxResultSize();
     filter = scan.getFilter(); // clone?
     TimeRange ctr = scan.getTimeRange();
     tr = new TimeRange(ctr.getMin(), ctr.getMax());
@@ -414,6 +429,70 @@ public class Scan implements Writable {
     return cacheBlocks;
   }
 
+  /**
+   * Set whether this scan goes from the start row down to the stop row.
+   * <p>
+   * A reversed scan starts at the start row, or at the last row of the
+   * table if no start row is set, and stops before the stop row, which is
+   * the smaller of the two.  Rows are returned largest first, the values of
+   * each row in the same order as a forward scan.
+   * @param reversed true to scan rows in descending order
+   * @return this
+   */
+  public Scan setReversed(boolean reversed) {
+    this.reversed = reversed;
+    return this;
+  }
+
+  /**
+   * @return true if rows are scanned in descending order
+   */
+  public boolean isReversed() {
+    return this.reversed;
+  }
+
+  /**
+   * Set whether the region server should read the next rows of this scan
+   * while the client works on the rows it was last sent.
+   * <p>
+   * This is false by default.  A prefetching scan saves the client the
+   * wait for the region server on each call to next, but holds a batch of
+   * rows in memory on the region server between calls.
+   * @param prefetching true to have the next rows read ahead
+   * @return this
+   */
+  public Scan setPrefetching(boolean prefetching) {
+    this.prefetching = prefetching;
+    return this;
+  }
+
+  /**
+   * @return true if the region server reads the next rows ahead
+   */
+  public boolean isPrefetching() {
+    return this.prefetching;
+  }
+
+  /**
+   * Set the maximum size in bytes of the rows returned for a call to the
+   * region server.  The number of rows asked for is then adapted to the
+   * size of the rows so far, and the caching only bounds it from below.
+   * If not set, the bigdb.client.scanner.max.result.size setting applies.
+   * @param maxResultSize the maximum result size in bytes
+   * @return this
+   */
+  public Scan setMaxResultSize(long maxResultSize) {
+    this.maxResultSize = maxResultSize;
+    return this;
+  }
+
+  /**
+   * @return the maximum result size in bytes, or -1 if not set
+   */
+  public long getMaxResultSize() {
+    return this.maxResultSize;
+  }
+
   /**
    * @return String
    */
@@ -432,6 +511,16 @@ public class Scan implements Writable {
     sb.append(this.caching);
     sb.append(", cacheBlocks=");
     sb.append(this.cacheBlocks);
+    if (this.reversed) {
+      sb.append(", reversed=true");
+    }
+    if (this.prefetching) {
+      sb.append(", prefetching=true");
+    }
+    if (this.maxResultSize > 0) {
+      sb.append(", maxResultSize=");
+      sb.append(this.maxResultSize);
+    }
     sb.append(", timeRange=");
     sb.append("[").append(this.tr.getMin()).append(",");
     sb.append(this.tr.getMax()).append(")");
@@ -514,6 +603,15 @@ public class Scan implements Writable {
       }
       this.familyMap.put(family, set);
     }
+    if (version >= 2) {
+      this.reversed = in.readBoolean();
+      this.prefetching = in.readBoolean();
+      this.maxResultSize = in.readLong();
+    } else {
+      this.reversed = false;
+      this.prefetching = false;
+      this.maxResultSize = -1;
+    }
   }
 
   public void write(final DataOutput out)
@@ -546,6 +644,9 @@ public class Scan implements Writable {
         out.writeInt(0);
       }
     }
+    out.writeBoolean(this.reversed);
+    out.writeBoolean(this.prefetching);
+    out.writeLong(this.maxResultSize);
   }
 
    /**
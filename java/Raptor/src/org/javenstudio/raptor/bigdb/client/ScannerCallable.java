@@ -33,6 +33,19 @@ public class ScannerCallable extends ServerCallable<Result[]> {
     this.scan = scan;
   }
 
+  /**
+   * @param connection which connection
+   * @param tableName table callable is on
+   * @param scan the scan to execute
+   * @param row row of the region to scan, for reversed scans starting at
+   * the last row of a region
+   */
+  public ScannerCallable (DBConnection connection, byte [] tableName, Scan scan,
+      byte [] row) {
+    super(connection, tableName, row);
+    this.scan = scan;
+  }
+
   /**
    * @param reload force reload of server location
    * @throws IOException
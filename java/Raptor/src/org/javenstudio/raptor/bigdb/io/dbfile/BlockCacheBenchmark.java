@@ -0,0 +1,191 @@
+package org.javenstudio.raptor.bigdb.io.dbfile;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Measures the garbage collection time of a block cache holding a working
+ * set of DBFile blocks, either all on heap in an {@link LruBlockCache}, or
+ * in a small {@link LruBlockCache} backed by an off-heap {@link BucketCache}.
+ * <p>
+ * The working set is first loaded, then read at random by a few threads.
+ * A missed block is made again and cached, as a region server would read
+ * it from its DBFile. The collection count and time of all the collectors
+ * are reported with the throughput and the hit ratio.
+ * <pre>
+ * Usage: BlockCacheBenchmark [-cache lru|bucket] [-workingset bytes]
+ *          [-l1 bytes] [-ioengine offheap|file:path] [-blocksize bytes]
+ *          [-reads n] [-threads n]
+ * </pre>
+ * Sizes take a k, m or g suffix. A 20g working set on heap needs e.g.
+ * <tt>-Xmx24g</tt>, off heap <tt>-Xmx4g -XX:MaxDirectMemorySize=22g</tt>.
+ */
+public class BlockCacheBenchmark {
+
+  private final BlockCache cache;
+  private final int blockSize;
+  private final int blockCount;
+  private final AtomicLong misses = new AtomicLong(0);
+  private final Object[] blockLocks = new Object[1024];
+
+  public BlockCacheBenchmark(BlockCache cache, long workingSet,
+      int blockSize) {
+    this.cache = cache;
+    this.blockSize = blockSize;
+    this.blockCount = (int)(workingSet / blockSize);
+    for (int i = 0; i < blockLocks.length; i++) {
+      blockLocks[i] = new Object();
+    }
+  }
+
+  private ByteBuffer makeBlock(int block) {
+    byte[] b = new byte[blockSize];
+    for (int i = 0; i < b.length; i += 8) {
+      b[i] = (byte)block;
+    }
+    return ByteBuffer.wrap(b);
+  }
+
+  private void read(int block) {
+    String name = "block" + block;
+    // one loader per block, as DBFile.Reader does
+    synchronized (blockLocks[block % blockLocks.length]) {
+      if (cache.getBlock(name) == null) {
+        misses.incrementAndGet();
+        cache.cacheBlock(name, makeBlock(block));
+      }
+    }
+  }
+
+  /** Load every block of the working set once. */
+  public void load() {
+    for (int i = 0; i < blockCount; i++) {
+      read(i);
+    }
+  }
+
+  /** Read random blocks from a few threads. */
+  public void run(final long reads, int threads) throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      workers[t] = new Thread("BlockCacheBenchmark-" + t) {
+          public void run() {
+            Random rand = new Random(seed);
+            for (long i = 0; i < reads; i++) {
+              read(rand.nextInt(blockCount));
+            }
+          }
+        };
+      workers[t].start();
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+  }
+
+  static long[] gcStats() {
+    long count = 0, time = 0;
+    for (GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] { count, time };
+  }
+
+  static long parseSize(String s) {
+    s = s.trim().toLowerCase();
+    long unit = 1;
+    char c = s.charAt(s.length() - 1);
+    if (c == 'k') unit = 1024L;
+    else if (c == 'm') unit = 1024L * 1024;
+    else if (c == 'g') unit = 1024L * 1024 * 1024;
+    if (unit > 1) s = s.substring(0, s.length() - 1);
+    return Long.parseLong(s) * unit;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String cacheType = "bucket";
+    long workingSet = 20L * 1024 * 1024 * 1024;
+    long l1Size = -1;
+    String ioEngine = "offheap";
+    int blockSize = 64 * 1024;
+    long reads = 1000000;
+    int threads = 4;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-cache".equals(args[i])) {
+        cacheType = args[++i];
+      } else if ("-workingset".equals(args[i])) {
+        workingSet = parseSize(args[++i]);
+      } else if ("-l1".equals(args[i])) {
+        l1Size = parseSize(args[++i]);
+      } else if ("-ioengine".equals(args[i])) {
+        ioEngine = args[++i];
+      } else if ("-blocksize".equals(args[i])) {
+        blockSize = (int)parseSize(args[++i]);
+      } else if ("-reads".equals(args[i])) {
+        reads = Long.parseLong(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: BlockCacheBenchmark [-cache lru|bucket] " +
+            "[-workingset bytes] [-l1 bytes] [-ioengine offheap|file:path] " +
+            "[-blocksize bytes] [-reads n] [-threads n]");
+        System.exit(-1);
+      }
+    }
+
+    // room for the working set in the cache holding it, the LRU cache
+    // evicts down to 75% of its size
+    long fullSize = workingSet + workingSet / 2;
+    LruBlockCache lru;
+    if ("lru".equals(cacheType)) {
+      lru = new LruBlockCache(fullSize, blockSize);
+    } else if ("bucket".equals(cacheType)) {
+      if (l1Size < 0) l1Size = Math.max(workingSet / 20, 16L * blockSize);
+      lru = new LruBlockCache(l1Size, blockSize);
+      lru.setVictimCache(new BucketCache(ioEngine, fullSize));
+    } else {
+      throw new IllegalArgumentException("Unknown cache type: " + cacheType);
+    }
+
+    BlockCacheBenchmark benchmark =
+      new BlockCacheBenchmark(lru, workingSet, blockSize);
+    System.out.println("cache " + cacheType + ", working set " +
+        StringUtils.byteDesc(workingSet) + " in " + benchmark.blockCount +
+        " blocks, heap max " +
+        StringUtils.byteDesc(Runtime.getRuntime().maxMemory()));
+
+    long[] gc0 = gcStats();
+    long startTime = System.currentTimeMillis();
+    benchmark.load();
+    long loadTime = System.currentTimeMillis() - startTime;
+    long[] gc1 = gcStats();
+    System.out.println(String.format(
+        "load  %8d ms  gc %6d collections %8d ms",
+        loadTime, gc1[0] - gc0[0], gc1[1] - gc0[1]));
+
+    benchmark.misses.set(0);
+    startTime = System.currentTimeMillis();
+    benchmark.run(reads, threads);
+    long readTime = System.currentTimeMillis() - startTime;
+    long[] gc2 = gcStats();
+    long total = reads * threads;
+    System.out.println(String.format(
+        "read  %8d ms  gc %6d collections %8d ms  %10.0f reads/s  " +
+        "hit ratio %5.1f%%",
+        readTime, gc2[0] - gc1[0], gc2[1] - gc1[1],
+        total * 1000.0 / Math.max(1, readTime),
+        100.0 * (total - benchmark.misses.get()) / total));
+
+    lru.logStats();
+    lru.shutdown();
+  }
+}
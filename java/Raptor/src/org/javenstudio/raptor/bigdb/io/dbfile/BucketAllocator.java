@@ -0,0 +1,153 @@
+package org.javenstudio.raptor.bigdb.io.dbfile;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Allocates the space of a {@link BucketCache}.
+ * <p>
+ * The space is cut into buckets of a fixed capacity. A free bucket is
+ * given to one of the item sizes when an item of that size needs room, and
+ * is cut into slots of that size. When all its slots are freed it goes back
+ * to the free buckets, so the item sizes share the space as the cached
+ * blocks need it, without compaction.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+class BucketAllocator {
+
+  /** The slot sizes, a block goes into the smallest slot it fits. */
+  static final int[] ITEM_SIZES = new int[] {
+    5 * 1024, 9 * 1024, 17 * 1024, 33 * 1024, 41 * 1024, 49 * 1024,
+    57 * 1024, 65 * 1024, 97 * 1024, 129 * 1024, 193 * 1024, 257 * 1024,
+    385 * 1024, 513 * 1024
+  };
+
+  /** Capacity of a bucket, room for a few items of the largest size. */
+  static final int BUCKET_CAPACITY = 4 * ITEM_SIZES[ITEM_SIZES.length - 1];
+
+  /** A bucket, with the free slots of its item size. */
+  private static final class Bucket {
+    private final long baseOffset;
+    private int sizeIndex = -1;
+    private int itemCount = 0;
+    private int[] freeList = null;
+    private int freeCount = 0;
+
+    Bucket(long baseOffset) {
+      this.baseOffset = baseOffset;
+    }
+
+    void reconfigure(int sizeIndex) {
+      this.sizeIndex = sizeIndex;
+      this.itemCount = BUCKET_CAPACITY / ITEM_SIZES[sizeIndex];
+      this.freeList = new int[itemCount];
+      for (int i = 0; i < itemCount; i++)
+        freeList[i] = i;
+      this.freeCount = itemCount;
+    }
+
+    boolean isFree() { return sizeIndex < 0; }
+    boolean isCompletelyFree() { return freeCount == itemCount; }
+    boolean hasFreeSpace() { return freeCount > 0; }
+
+    long allocate() {
+      int item = freeList[--freeCount];
+      return baseOffset + (long)item * ITEM_SIZES[sizeIndex];
+    }
+
+    void free(long offset) {
+      int item = (int)((offset - baseOffset) / ITEM_SIZES[sizeIndex]);
+      freeList[freeCount++] = item;
+    }
+  }
+
+  private final Bucket[] buckets;
+  private final LinkedList<Bucket> freeBuckets = new LinkedList<Bucket>();
+  // the buckets of each item size which have free slots
+  private final List<LinkedHashSet<Bucket>> sizeBuckets;
+  private final long totalSize;
+  private long usedSize = 0;
+
+  /**
+   * @param availableSpace bytes of the cache, rounded down to a multiple
+   *        of {@link #BUCKET_CAPACITY}
+   */
+  BucketAllocator(long availableSpace) {
+    int count = (int)(availableSpace / BUCKET_CAPACITY);
+    if (count <= 0) {
+      throw new IllegalArgumentException("Bucket cache needs at least " +
+          BUCKET_CAPACITY + " bytes, not " + availableSpace);
+    }
+    this.buckets = new Bucket[count];
+    for (int i = 0; i < count; i++) {
+      buckets[i] = new Bucket((long)i * BUCKET_CAPACITY);
+      freeBuckets.add(buckets[i]);
+    }
+    this.totalSize = (long)count * BUCKET_CAPACITY;
+    this.sizeBuckets = new ArrayList<LinkedHashSet<Bucket>>(ITEM_SIZES.length);
+    for (int i = 0; i < ITEM_SIZES.length; i++)
+      sizeBuckets.add(new LinkedHashSet<Bucket>());
+  }
+
+  /** Returns the index of the item size of a block, or -1 if too large. */
+  static int sizeIndexOf(int blockSize) {
+    for (int i = 0; i < ITEM_SIZES.length; i++) {
+      if (blockSize <= ITEM_SIZES[i])
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Allocate a slot.
+   * @return the offset of the slot, or -1 if there is no room left for
+   *         this size
+   */
+  long allocate(int sizeIndex) {
+    LinkedHashSet<Bucket> available = sizeBuckets.get(sizeIndex);
+    Bucket b;
+    Iterator<Bucket> it = available.iterator();
+    if (it.hasNext()) {
+      b = it.next();
+    } else {
+      b = freeBuckets.poll();
+      if (b == null)
+        return -1;
+      b.reconfigure(sizeIndex);
+      available.add(b);
+    }
+    long offset = b.allocate();
+    if (!b.hasFreeSpace())
+      available.remove(b);
+    usedSize += ITEM_SIZES[sizeIndex];
+    return offset;
+  }
+
+  /** Free a slot, returning its bucket to the free ones if it is empty. */
+  void free(long offset) {
+    Bucket b = buckets[(int)(offset / BUCKET_CAPACITY)];
+    if (!b.hasFreeSpace())
+      sizeBuckets.get(b.sizeIndex).add(b);
+    b.free(offset);
+    usedSize -= ITEM_SIZES[b.sizeIndex];
+    if (b.isCompletelyFree()) {
+      sizeBuckets.get(b.sizeIndex).remove(b);
+      b.sizeIndex = -1;
+      b.freeList = null;
+      freeBuckets.add(b);
+    }
+  }
+
+  /** Returns true if a slot of this size can be allocated. */
+  boolean hasFreeSpace(int sizeIndex) {
+    return !freeBuckets.isEmpty() || !sizeBuckets.get(sizeIndex).isEmpty();
+  }
+
+  long getTotalSize() { return totalSize; }
+  long getUsedSize() { return usedSize; }
+  int getFreeBucketCount() { return freeBuckets.size(); }
+}
@@ -0,0 +1,435 @@
+package org.javenstudio.raptor.bigdb.io.dbfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.bigdb.io.HeapSize;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.bigdb.util.ClassSize;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * A block cache which keeps the blocks out of the java heap, in direct
+ * buffers or in a memory mapped file, so its size is not bound by the heap
+ * and its blocks cost the garbage collector nothing.<p>
+ *
+ * The space is managed by a {@link BucketAllocator}: blocks are copied
+ * into fixed size slots, and only a small entry per block, its offset,
+ * length and last access, is kept on heap in a {@link ConcurrentHashMap}.
+ * A block read from the cache is copied back to the heap.<p>
+ *
+ * It is meant as a victim cache behind the {@link LruBlockCache}, caching
+ * the blocks it evicts, see {@link LruBlockCache#setVictimCache}. When there
+ * is no slot left for a block, the least recently used blocks are evicted
+ * until the allocator has room again.<p>
+ *
+ * Reads and evictions of a slot are serialized by a striped read-write
+ * lock on the offset, so a slot is never reused while it is being copied.
+ */
+public class BucketCache implements BlockCache, HeapSize {
+
+  static final Logger LOG = Logger.getLogger(BucketCache.class);
+
+  /** Bytes of a storage segment, a multiple of the bucket capacity. */
+  static final long SEGMENT_SIZE =
+    (1024L * 1024 * 1024 / BucketAllocator.BUCKET_CAPACITY) *
+    BucketAllocator.BUCKET_CAPACITY;
+
+  /** Count of stripes of the offset locks */
+  static final int LOCK_STRIPES = 256;
+
+  /** Fraction of the cache freed by an eviction */
+  static final float DEFAULT_EVICT_FACTOR = 0.01f;
+
+  /** A cached block: where it is, how long, and when it was last read */
+  static class BucketEntry {
+    final long offset;
+    final int length;
+    final int sizeIndex;
+    final boolean inMemory;
+    volatile long accessTime;
+
+    BucketEntry(long offset, int length, int sizeIndex, boolean inMemory,
+        long accessTime) {
+      this.offset = offset;
+      this.length = length;
+      this.sizeIndex = sizeIndex;
+      this.inMemory = inMemory;
+      this.accessTime = accessTime;
+    }
+  }
+
+  public final static long PER_ENTRY_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + Bytes.SIZEOF_LONG * 2 + Bytes.SIZEOF_INT * 2 +
+      Bytes.SIZEOF_BOOLEAN) + ClassSize.CONCURRENT_HASHMAP_ENTRY +
+      ClassSize.STRING;
+
+  /** Concurrent map (the index of the cache) */
+  private final ConcurrentHashMap<String,BucketEntry> map =
+    new ConcurrentHashMap<String,BucketEntry>();
+
+  private final ReentrantReadWriteLock[] offsetLocks =
+    new ReentrantReadWriteLock[LOCK_STRIPES];
+
+  /** Storage segments, direct or mapped buffers */
+  private final ByteBuffer[] segments;
+
+  /** Backing file of mapped segments, or null */
+  private final File file;
+
+  private final BucketAllocator allocator;
+
+  /** Cache access count (sequential ID) */
+  private final AtomicLong count = new AtomicLong(0);
+
+  /** Current number of bytes of the cached blocks */
+  private final AtomicLong size = new AtomicLong(0);
+
+  /** Blocks not cached because too large or no room could be made */
+  private final AtomicLong failedCount = new AtomicLong(0);
+
+  private final LruBlockCache.CacheStats stats = new LruBlockCache.CacheStats();
+
+  private volatile boolean enabled = true;
+
+  /**
+   * Create a bucket cache.
+   * @param ioEngine <tt>offheap</tt> for direct buffers, or
+   *        <tt>file:path</tt> for a memory mapped file
+   * @param capacity bytes of the cache
+   */
+  public BucketCache(String ioEngine, long capacity) throws IOException {
+    this.allocator = new BucketAllocator(capacity);
+    long totalSize = allocator.getTotalSize();
+    int segmentCount = (int)((totalSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    this.segments = new ByteBuffer[segmentCount];
+
+    if (ioEngine == null || ioEngine.equals("offheap")) {
+      this.file = null;
+      for (int i = 0; i < segmentCount; i++) {
+        segments[i] = ByteBuffer.allocateDirect(
+            (int)Math.min(SEGMENT_SIZE, totalSize - i * SEGMENT_SIZE));
+      }
+    } else if (ioEngine.startsWith("file:")) {
+      this.file = new File(ioEngine.substring(5));
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(totalSize);
+        FileChannel channel = raf.getChannel();
+        for (int i = 0; i < segmentCount; i++) {
+          segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+              i * SEGMENT_SIZE,
+              Math.min(SEGMENT_SIZE, totalSize - i * SEGMENT_SIZE));
+        }
+      } finally {
+        // the mappings stay valid once the file is closed
+        raf.close();
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown bucket cache ioengine: " +
+          ioEngine);
+    }
+
+    for (int i = 0; i < offsetLocks.length; i++)
+      offsetLocks[i] = new ReentrantReadWriteLock();
+
+    LOG.info("Allocated BucketCache of " + StringUtils.byteDesc(totalSize) +
+        " in " + segmentCount + " " + (file == null ? "direct" : "mapped") +
+        " segments");
+  }
+
+  private ReentrantReadWriteLock getOffsetLock(long offset) {
+    return offsetLocks[(int)((offset / BucketAllocator.ITEM_SIZES[0])
+        % LOCK_STRIPES)];
+  }
+
+  /** Returns a buffer positioned on the slot at the offset. */
+  private ByteBuffer getSegmentBuffer(long offset, int length) {
+    ByteBuffer bb = segments[(int)(offset / SEGMENT_SIZE)].duplicate();
+    int pos = (int)(offset % SEGMENT_SIZE);
+    bb.limit(pos + length);
+    bb.position(pos);
+    return bb;
+  }
+
+  // BlockCache implementation
+
+  /**
+   * Cache the block with the specified name and buffer.
+   * <p>
+   * A block which is already cached is left as it is.
+   * @param blockName block name
+   * @param buf block buffer
+   * @param inMemory if block is in-memory
+   */
+  public void cacheBlock(String blockName, ByteBuffer buf, boolean inMemory) {
+    if (!enabled || map.containsKey(blockName))
+      return;
+
+    int length = buf.remaining();
+    int sizeIndex = BucketAllocator.sizeIndexOf(length);
+    if (sizeIndex < 0) {
+      failedCount.incrementAndGet();
+      return;
+    }
+
+    long offset = allocate(sizeIndex);
+    if (offset < 0) {
+      failedCount.incrementAndGet();
+      return;
+    }
+
+    getSegmentBuffer(offset, length).put(buf.duplicate());
+    BucketEntry entry = new BucketEntry(offset, length, sizeIndex, inMemory,
+        count.incrementAndGet());
+    if (map.putIfAbsent(blockName, entry) != null) {
+      // lost a race with another caching of the block
+      synchronized (allocator) {
+        allocator.free(offset);
+      }
+      return;
+    }
+    size.addAndGet(length);
+  }
+
+  /**
+   * Cache the block with the specified name and buffer.
+   * @param blockName block name
+   * @param buf block buffer
+   */
+  public void cacheBlock(String blockName, ByteBuffer buf) {
+    cacheBlock(blockName, buf, false);
+  }
+
+  /**
+   * Get a heap copy of the block with the specified name.
+   * @param blockName block name
+   * @return buffer of specified block name, or null if not in cache
+   */
+  public ByteBuffer getBlock(String blockName) {
+    BucketEntry entry = map.get(blockName);
+    if (entry != null) {
+      ReentrantReadWriteLock lock = getOffsetLock(entry.offset);
+      lock.readLock().lock();
+      try {
+        // the entry may have been evicted while we were getting the lock
+        if (map.get(blockName) == entry) {
+          ByteBuffer buf = ByteBuffer.allocate(entry.length);
+          buf.put(getSegmentBuffer(entry.offset, entry.length));
+          buf.flip();
+          entry.accessTime = count.incrementAndGet();
+          stats.hit();
+          return buf;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+    stats.miss();
+    return null;
+  }
+
+  /**
+   * Evict the block with the specified name.
+   * @return true if the block was cached
+   */
+  public boolean evictBlock(String blockName) {
+    BucketEntry entry = map.get(blockName);
+    return entry != null && evictBlock(blockName, entry);
+  }
+
+  private boolean evictBlock(String blockName, BucketEntry entry) {
+    ReentrantReadWriteLock lock = getOffsetLock(entry.offset);
+    lock.writeLock().lock();
+    try {
+      if (!map.remove(blockName, entry))
+        return false;
+      synchronized (allocator) {
+        allocator.free(entry.offset);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    size.addAndGet(-entry.length);
+    stats.evicted();
+    return true;
+  }
+
+  /**
+   * Allocate a slot, evicting the least recently used blocks if there is
+   * no room.
+   * @return the offset of the slot, or -1
+   */
+  private long allocate(int sizeIndex) {
+    synchronized (allocator) {
+      long offset = allocator.allocate(sizeIndex);
+      if (offset >= 0)
+        return offset;
+    }
+    freeSpace(sizeIndex);
+    synchronized (allocator) {
+      return allocator.allocate(sizeIndex);
+    }
+  }
+
+  /**
+   * Evict the least recently used blocks until there is room for blocks
+   * of the given size, freeing at least a fraction of the cache at once so
+   * the next misses do not evict again. In-memory blocks go last.
+   */
+  private synchronized void freeSpace(int sizeIndex) {
+    synchronized (allocator) {
+      if (allocator.hasFreeSpace(sizeIndex))
+        return;
+    }
+    stats.evict();
+
+    // snapshot the access times, they change while sorting
+    List<EvictionCandidate> entries =
+      new ArrayList<EvictionCandidate>(map.size());
+    for (Map.Entry<String,BucketEntry> e : map.entrySet()) {
+      entries.add(new EvictionCandidate(e.getKey(), e.getValue()));
+    }
+    Collections.sort(entries);
+
+    long bytesToFree = Math.max(BucketAllocator.ITEM_SIZES[sizeIndex],
+        (long)(allocator.getTotalSize() * DEFAULT_EVICT_FACTOR));
+    long bytesFreed = 0;
+    int evicted = 0;
+
+    for (EvictionCandidate candidate : entries) {
+      BucketEntry entry = candidate.entry;
+      if (!evictBlock(candidate.name, entry))
+        continue;
+      evicted++;
+      bytesFreed += entry.length;
+
+      if (bytesFreed >= bytesToFree) {
+        synchronized (allocator) {
+          if (allocator.hasFreeSpace(sizeIndex))
+            break;
+        }
+      }
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Bucket cache eviction for size " +
+          BucketAllocator.ITEM_SIZES[sizeIndex] + " freed " + evicted +
+          " blocks, " + StringUtils.byteDesc(bytesFreed) + ", total=" +
+          StringUtils.byteDesc(size.get()));
+    }
+  }
+
+  /** A block to evict, ordered by priority and access time */
+  private static class EvictionCandidate
+      implements Comparable<EvictionCandidate> {
+    final String name;
+    final BucketEntry entry;
+    final long accessTime;
+
+    EvictionCandidate(String name, BucketEntry entry) {
+      this.name = name;
+      this.entry = entry;
+      this.accessTime = entry.accessTime;
+    }
+
+    public int compareTo(EvictionCandidate that) {
+      if (this.entry.inMemory != that.entry.inMemory)
+        return this.entry.inMemory ? 1 : -1;
+      if (this.accessTime == that.accessTime) return 0;
+      return this.accessTime < that.accessTime ? -1 : 1;
+    }
+  }
+
+  /**
+   * Get the maximum size of this cache.
+   * @return max size in bytes
+   */
+  public long getMaxSize() {
+    return allocator.getTotalSize();
+  }
+
+  /**
+   * Get the bytes of the cached blocks.
+   * @return current size in bytes
+   */
+  public long getCurrentSize() {
+    return size.get();
+  }
+
+  /**
+   * Get the bytes not allocated to a block, slots are larger than their
+   * blocks so this is less than max size minus current size.
+   * @return free size in bytes
+   */
+  public long getFreeSize() {
+    synchronized (allocator) {
+      return allocator.getTotalSize() - allocator.getUsedSize();
+    }
+  }
+
+  /**
+   * Get the size of this cache (number of cached blocks)
+   * @return number of cached blocks
+   */
+  public long size() {
+    return map.size();
+  }
+
+  /**
+   * Get the number of blocks which could not be cached.
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * Get counter statistics for this cache.
+   */
+  public LruBlockCache.CacheStats getStats() {
+    return this.stats;
+  }
+
+  public void logStats() {
+    if (!LOG.isDebugEnabled()) return;
+    LOG.debug("Bucket Stats: " +
+        "used=" + StringUtils.byteDesc(getCurrentSize()) + ", " +
+        "free=" + StringUtils.byteDesc(getFreeSize()) + ", " +
+        "max=" + StringUtils.byteDesc(getMaxSize()) + ", " +
+        "blocks=" + size() + ", " +
+        "accesses=" + stats.getRequestCount() + ", " +
+        "hits=" + stats.getHitCount() + ", " +
+        "hitRatio=" + StringUtils.formatPercent(stats.getHitRatio(), 2) + "%, " +
+        "evictions=" + stats.getEvictionCount() + ", " +
+        "evicted=" + stats.getEvictedCount() + ", " +
+        "failed=" + getFailedCount());
+  }
+
+  // HeapSize implementation, only the index is on heap
+  public long heapSize() {
+    return ClassSize.CONCURRENT_HASHMAP + map.size() * PER_ENTRY_OVERHEAD;
+  }
+
+  /**
+   * Drop all the blocks. Direct buffers are released when collected, a
+   * backing file is deleted.
+   */
+  public void shutdown() {
+    enabled = false;
+    map.clear();
+    if (file != null && !file.delete()) {
+      LOG.warn("Failed to delete bucket cache file " + file);
+    }
+  }
+}
@@ -19,6 +19,7 @@ import org.javenstudio.raptor.io.compress.Compressor;
 import org.javenstudio.raptor.io.compress.Decompressor;
 import org.javenstudio.raptor.io.compress.GzipCodec;
 import org.javenstudio.raptor.io.compress.DefaultCodec;
+import org.javenstudio.raptor.io.compress.Lz4Codec;
 import org.javenstudio.raptor.util.ReflectionUtils;
 
 /**
@@ -125,6 +126,23 @@ public final class Compression {
 
         return downStream;
       }
+    },
+
+    // Appended after NONE since files and column descriptors store the
+    // ordinal of the algorithm.
+    LZ4("lz4") {
+      private transient Lz4Codec codec;
+
+      @Override
+      CompressionCodec getCodec() {
+        if (codec == null) {
+          Configuration conf = ConfigurationFactory.get();
+          codec = new Lz4Codec();
+          codec.setConf(conf);
+        }
+
+        return codec;
+      }
     };
 
     private final String compressName;
@@ -0,0 +1,242 @@
+package org.javenstudio.raptor.bigdb.io.dbfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.fs.FileSystem;
+import org.javenstudio.raptor.fs.Path;
+import org.javenstudio.raptor.io.compress.Compressor;
+import org.javenstudio.raptor.io.compress.Decompressor;
+
+/**
+ * Measures the compression ratio and speed of the {@link Compression}
+ * algorithms on DBFile data blocks.
+ * <p>
+ * The blocks are laid out as DBFile writes them, a sequence of key length,
+ * value length, key and value, cut at the block size. They are filled
+ * either from the KeyValues of an existing DBFile or from generated rows
+ * of a few columns with text, number and id values.
+ * <pre>
+ * Usage: CompressionBenchmark [-file path] [-rows n] [-blocksize bytes]
+ *          [-algorithms gz,lz4] [-iterations n]
+ * </pre>
+ */
+public class CompressionBenchmark {
+
+  private static final String[] WORDS = {
+    "the", "of", "and", "region", "server", "table", "column", "family",
+    "value", "status", "active", "pending", "user", "http", "www", "com",
+    "error", "request", "response", "time", "data", "block", "cache",
+    "index", "name", "email", "address", "city", "country", "order"
+  };
+
+  private final List<byte[]> blocks = new ArrayList<byte[]>();
+  private long totalBytes = 0;
+
+  /** Cut the KeyValues into blocks of about <code>blockSize</code>. */
+  private void addKeyValues(Iterable<KeyValue> kvs, int blockSize)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(blockSize * 2);
+    DataOutputStream out = new DataOutputStream(baos);
+    for (KeyValue kv : kvs) {
+      out.writeInt(kv.getKeyLength());
+      out.writeInt(kv.getValueLength());
+      out.write(kv.getBuffer(), kv.getKeyOffset(), kv.getKeyLength());
+      out.write(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+      if (baos.size() >= blockSize) {
+        addBlock(baos.toByteArray());
+        baos.reset();
+      }
+    }
+    if (baos.size() > 0) {
+      addBlock(baos.toByteArray());
+    }
+  }
+
+  private void addBlock(byte[] block) {
+    blocks.add(block);
+    totalBytes += block.length;
+  }
+
+  /** Generate rows of user records, as a web table would hold them. */
+  static List<KeyValue> generateKeyValues(int rows, long seed) {
+    Random rand = new Random(seed);
+    byte[] family = Bytes.toBytes("info");
+    byte[][] qualifiers = new byte[][] {
+      Bytes.toBytes("name"), Bytes.toBytes("email"), Bytes.toBytes("visits"),
+      Bytes.toBytes("status"), Bytes.toBytes("about")
+    };
+    long now = System.currentTimeMillis();
+
+    List<KeyValue> kvs = new ArrayList<KeyValue>(rows * qualifiers.length);
+    for (int i = 0; i < rows; i++) {
+      byte[] row = Bytes.toBytes(String.format("user%010d", i * 7));
+      long ts = now - rand.nextInt(1000000);
+      String name = WORDS[rand.nextInt(WORDS.length)] + " " +
+          WORDS[rand.nextInt(WORDS.length)];
+
+      byte[][] values = new byte[][] {
+        Bytes.toBytes(name),
+        Bytes.toBytes(name.replace(' ', '.') + "@" +
+            WORDS[rand.nextInt(WORDS.length)] + ".com"),
+        Bytes.toBytes((long)rand.nextInt(100000)),
+        Bytes.toBytes(rand.nextInt(4) == 0 ? "pending" : "active"),
+        Bytes.toBytes(sentence(rand, 5 + rand.nextInt(20)))
+      };
+      for (int j = 0; j < qualifiers.length; j++) {
+        kvs.add(new KeyValue(row, family, qualifiers[j], ts, values[j]));
+      }
+    }
+    return kvs;
+  }
+
+  private static String sentence(Random rand, int words) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) sb.append(' ');
+      sb.append(WORDS[rand.nextInt(WORDS.length)]);
+      if (rand.nextInt(8) == 0) sb.append(rand.nextInt(1000));
+    }
+    return sb.toString();
+  }
+
+  /** Read all the KeyValues of a DBFile. */
+  static List<KeyValue> readKeyValues(Configuration conf, Path path)
+      throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    DBFile.Reader reader = new DBFile.Reader(fs, path, null, false);
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    try {
+      reader.loadFileInfo();
+      DBFileScanner scanner = reader.getScanner(false, false);
+      if (scanner.seekTo()) {
+        do {
+          kvs.add(scanner.getKeyValue());
+        } while (scanner.next());
+      }
+    } finally {
+      reader.close();
+    }
+    return kvs;
+  }
+
+  /**
+   * Compress and decompress every block once.
+   *
+   * @return compressed size, compress and decompress nanoseconds
+   */
+  public long[] run(Compression.Algorithm algo) throws IOException {
+    long compressedBytes = 0;
+    long compressTime = 0;
+    long decompressTime = 0;
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buf = new byte[0];
+
+    for (byte[] block : blocks) {
+      baos.reset();
+      Compressor compressor = algo.getCompressor();
+      long startTime = System.nanoTime();
+      try {
+        OutputStream out = algo.createCompressionStream(baos, compressor, 0);
+        out.write(block);
+        out.flush();
+      } finally {
+        algo.returnCompressor(compressor);
+      }
+      compressTime += System.nanoTime() - startTime;
+      compressedBytes += baos.size();
+
+      byte[] compressed = baos.toByteArray();
+      if (buf.length < block.length) {
+        buf = new byte[block.length];
+      }
+      Decompressor decompressor = algo.getDecompressor();
+      startTime = System.nanoTime();
+      try {
+        InputStream in = algo.createDecompressionStream(
+            new ByteArrayInputStream(compressed), decompressor, 0);
+        new DataInputStream(in).readFully(buf, 0, block.length);
+      } finally {
+        algo.returnDecompressor(decompressor);
+      }
+      decompressTime += System.nanoTime() - startTime;
+
+      if (Bytes.compareTo(buf, 0, block.length, block, 0, block.length) != 0) {
+        throw new IOException(algo.getName() + " did not round trip a block");
+      }
+    }
+    return new long[] { compressedBytes, compressTime, decompressTime };
+  }
+
+  private double mbPerSecond(long nanos) {
+    return nanos > 0 ? (totalBytes / (1024.0 * 1024.0)) / (nanos / 1e9) : 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String file = null;
+    int rows = 100000;
+    int blockSize = 64 * 1024;
+    String algorithms = "gz,lz4";
+    int iterations = 5;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-file".equals(args[i])) {
+        file = args[++i];
+      } else if ("-rows".equals(args[i])) {
+        rows = Integer.parseInt(args[++i]);
+      } else if ("-blocksize".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else if ("-algorithms".equals(args[i])) {
+        algorithms = args[++i];
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: CompressionBenchmark [-file path] " +
+            "[-rows n] [-blocksize bytes] [-algorithms gz,lz4] [-iterations n]");
+        System.exit(-1);
+      }
+    }
+
+    Configuration conf = ConfigurationFactory.create(true);
+    List<KeyValue> kvs = file != null ? readKeyValues(conf, new Path(file))
+        : generateKeyValues(rows, 0x5eed);
+
+    CompressionBenchmark benchmark = new CompressionBenchmark();
+    benchmark.addKeyValues(kvs, blockSize);
+    System.out.println(kvs.size() + " keyvalues in " + benchmark.blocks.size() +
+        " blocks, " + benchmark.totalBytes + " bytes");
+
+    for (String name : algorithms.split(",")) {
+      Compression.Algorithm algo =
+          Compression.getCompressionAlgorithmByName(name.trim());
+
+      // first pass warms up
+      long[] result = benchmark.run(algo);
+      long compressTime = Long.MAX_VALUE;
+      long decompressTime = Long.MAX_VALUE;
+      for (int i = 0; i < iterations; i++) {
+        result = benchmark.run(algo);
+        compressTime = Math.min(compressTime, result[1]);
+        decompressTime = Math.min(decompressTime, result[2]);
+      }
+
+      System.out.println(String.format(
+          "%-5s ratio %5.2f  compress %8.1f MB/s  decompress %8.1f MB/s",
+          algo.getName(), (double)benchmark.totalBytes / result[0],
+          benchmark.mbPerSecond(compressTime),
+          benchmark.mbPerSecond(decompressTime)));
+    }
+  }
+}
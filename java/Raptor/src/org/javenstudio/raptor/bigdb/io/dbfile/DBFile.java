@@ -38,6 +38,8 @@ import org.javenstudio.raptor.bigdb.KeyValue.KeyComparator;
 import org.javenstudio.raptor.bigdb.KeyValue;
 import org.javenstudio.raptor.bigdb.io.DBMapWritable;
 import org.javenstudio.raptor.bigdb.io.HeapSize;
+import org.javenstudio.raptor.bigdb.io.encoding.DataBlockEncoder;
+import org.javenstudio.raptor.bigdb.io.encoding.DataBlockEncoding;
 import org.javenstudio.raptor.bigdb.util.Bytes;
 import org.javenstudio.raptor.bigdb.util.ClassSize;
 import org.javenstudio.raptor.bigdb.util.FSUtils;
@@ -101,6 +103,20 @@ import org.javenstudio.raptor.bigdb.util.FSUtils;
  * <pre>&lt;fileinfo>&lt;trailer></pre>.  That is, there are not data nor meta
  * blocks present.
  * <p>
+ * Files of version 2 have a multi-level data block index.  The first keys of
+ * the data blocks go into leaf index blocks, written among the data blocks
+ * when they fill up, and the leaf blocks are indexed by intermediate index
+ * blocks if need be, up to a root index block written where the single-level
+ * index of version 1 files is.  Only the root is loaded when a file is
+ * opened; the leaf and intermediate blocks are read when needed and cached in
+ * the {@link BlockCache} like data blocks.  Files of version 1 are still read.
+ * <p>
+ * The key/values of the data blocks may be encoded with a
+ * {@link DataBlockEncoding}, each relative to the one before it in the block,
+ * which shrinks the repeated rows and columns of the keys on disk and in the
+ * block cache.  The encoding is recorded in the fileinfo; blocks are cached
+ * encoded and the scanner seeks in them decoding only the keys.
+ * <p>
  * TODO: Do scanners need to be able to take a start and end row?
  * TODO: Should BlockIndex know the name of its file?  Should it have a Path
  * that points at its file say for the case where an index lives apart from
@@ -120,6 +136,22 @@ public class DBFile {
     { 'M', 'E', 'T', 'A', 'B', 'L', 'K', 99 };
   final static byte [] TRAILERBLOCKMAGIC =
     { 'T', 'R', 'A', 'B', 'L', 'K', 34, 36 };
+  final static byte [] ROOTINDEXMAGIC =
+    { 'I', 'D', 'X', 'R', 'O', 'O', 'T', 2 };
+  final static byte [] INTERMEDIATEINDEXMAGIC =
+    { 'I', 'D', 'X', 'I', 'N', 'T', 'R', 2 };
+  final static byte [] LEAFINDEXMAGIC =
+    { 'I', 'D', 'X', 'L', 'E', 'A', 'F', 2 };
+
+  /**
+   * Version of the files with a single-level data block index.
+   */
+  final static int VERSION_SINGLE_LEVEL_INDEX = 1;
+
+  /**
+   * Version of the files with a multi-level data block index.
+   */
+  final static int VERSION_MULTI_LEVEL_INDEX = 2;
 
   /**
    * Maximum length of key in DBFile.
@@ -131,6 +163,11 @@ public class DBFile {
    */
   public final static int DEFAULT_BLOCKSIZE = 64 * 1024;
 
+  /**
+   * Default maximum size of a leaf or intermediate index block.
+   */
+  public final static int DEFAULT_INDEX_BLOCKSIZE = 128 * 1024;
+
   /**
    * Default compression: none.
    */
@@ -214,13 +251,9 @@ public class DBFile {
     private int lastKeyOffset = -1;
     private int lastKeyLength = -1;
 
-    // See {@link BlockIndex}. Below four fields are used to write the block
-    // index.
-    ArrayList<byte[]> blockKeys = new ArrayList<byte[]>();
-    // Block offset in backing stream.
-    ArrayList<Long> blockOffsets = new ArrayList<Long>();
-    // Raw (decompressed) data size.
-    ArrayList<Integer> blockDataSizes = new ArrayList<Integer>();
+    // See {@link IndexWriter}. Writes the leaf index blocks as they fill
+    // up and the upper levels of the data block index on close.
+    private final IndexWriter dataIndexWriter = new IndexWriter();
 
     // Meta block system.
     private ArrayList<byte []> metaNames = new ArrayList<byte []>();
@@ -230,6 +263,10 @@ public class DBFile {
     private final Compression.Algorithm compressAlgo;
     private Compressor compressor;
 
+    // Encoding of the key/values in the data blocks.
+    private DataBlockEncoding dataBlockEncoding = DataBlockEncoding.NONE;
+    private DataBlockEncoder.BlockEncoder blockEncoder = null;
+
     // Special datastructure to hold fileinfo.
     private FileInfo fileinfo = new FileInfo();
 
@@ -317,6 +354,37 @@ public class DBFile {
         DEFAULT_COMPRESSION_ALGORITHM: compress;
     }
 
+    /**
+     * Set the maximum size of the leaf and intermediate index blocks.
+     * Call before appending.
+     * @param indexBlockSize size in bytes
+     */
+    public void setIndexBlockSize(int indexBlockSize) {
+      this.dataIndexWriter.maxChunkSize = indexBlockSize;
+    }
+
+    /**
+     * Set the encoding of the key/values in the data blocks.
+     * Call before appending.
+     * @param encoding Pass null to get {@link DataBlockEncoding#NONE}.
+     */
+    public void setDataBlockEncoding(DataBlockEncoding encoding) {
+      if (this.entryCount > 0) {
+        throw new IllegalStateException("Set the encoding before appending");
+      }
+      this.dataBlockEncoding = encoding == null?
+        DataBlockEncoding.NONE: encoding;
+      this.blockEncoder = this.dataBlockEncoding.getEncoder() == null? null:
+        this.dataBlockEncoding.getEncoder().newBlockEncoder();
+    }
+
+    /**
+     * @return Encoding of the key/values in the data blocks.
+     */
+    public DataBlockEncoding getDataBlockEncoding() {
+      return this.dataBlockEncoding;
+    }
+
     /*
      * If at block boundary, opens new block.
      * @throws IOException
@@ -337,9 +405,12 @@ public class DBFile {
 
       int size = releaseCompressingStream(this.out);
       this.out = null;
-      blockKeys.add(firstKey);
-      blockOffsets.add(Long.valueOf(blockBegin));
-      blockDataSizes.add(Integer.valueOf(size));
+      int onDiskSize = longToInt(outputStream.getPos() - blockBegin);
+      dataIndexWriter.add(firstKey, blockBegin, onDiskSize, size);
+      if (dataIndexWriter.isLeafFull()) {
+        // write the leaf index block inline, between the data blocks
+        dataIndexWriter.writeLeaf(outputStream);
+      }
       this.totalBytes += size;
 
       writeTime += System.currentTimeMillis() - now;
@@ -356,6 +427,9 @@ public class DBFile {
       this.out = getCompressingStream();
       this.out.write(DATABLOCKMAGIC);
       firstKey = null;
+      if (this.blockEncoder != null) {
+        this.blockEncoder.reset();
+      }
     }
 
     /*
@@ -411,10 +485,11 @@ public class DBFile {
       byte[] key = Bytes.toBytes(metaBlockName);
       int i;
       for (i = 0; i < metaNames.size(); ++i) {
-        // stop when the current key is greater than our own
+        // stop when the current key is greater than our own, names are in
+        // byte order as the reader looks them up
         byte[] cur = metaNames.get(i);
-        if (this.rawComparator.compare(cur, 0, cur.length, key, 0, key.length)
-            > 0) {
+        if (Bytes.BYTES_RAWCOMPARATOR.compare(cur, 0, cur.length,
+            key, 0, key.length) > 0) {
           break;
         }
       }
@@ -458,7 +533,7 @@ public class DBFile {
     @Override
     public String toString() {
       return "writer=" + this.name + ", compression=" +
-        this.compressAlgo.getName();
+        this.compressAlgo.getName() + ", encoding=" + this.dataBlockEncoding;
     }
 
     /**
@@ -506,13 +581,18 @@ public class DBFile {
       if (!dupKey) {
         checkBlockBoundary();
       }
-      // Write length of key and value and then actual key and value bytes.
-      this.out.writeInt(klength);
+      if (this.blockEncoder != null) {
+        this.blockEncoder.encode(this.out, key, koffset, klength, value,
+          voffset, vlength);
+      } else {
+        // Write length of key and value and then actual key and value bytes.
+        this.out.writeInt(klength);
+        this.out.writeInt(vlength);
+        this.out.write(key, koffset, klength);
+        this.out.write(value, voffset, vlength);
+      }
       this.keylength += klength;
-      this.out.writeInt(vlength);
       this.valuelength += vlength;
-      this.out.write(key, koffset, klength);
-      this.out.write(value, voffset, vlength);
       // Are we the first key in this block?
       if (this.firstKey == null) {
         // Copy the key.
@@ -575,6 +655,7 @@ public class DBFile {
       // followed by fileinfo, data block index and meta block index.
 
       finishBlock();
+      dataIndexWriter.finishLeaves(outputStream);
 
       FixedFileTrailer trailer = new FixedFileTrailer();
 
@@ -601,9 +682,8 @@ public class DBFile {
       // Write fileinfo.
       trailer.fileinfoOffset = writeFileInfo(this.outputStream);
 
-      // Write the data block index.
-      trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
-        this.blockKeys, this.blockOffsets, this.blockDataSizes);
+      // Write the intermediate levels and the root of the data block index.
+      trailer.dataIndexOffset = dataIndexWriter.writeRoot(this.outputStream);
 
       // Meta block index.
       if (metaNames.size() > 0) {
@@ -612,8 +692,9 @@ public class DBFile {
       }
 
       // Now finish off the trailer.
-      trailer.dataIndexCount = blockKeys.size();
+      trailer.dataIndexCount = dataIndexWriter.getBlockCount();
       trailer.metaIndexCount = metaNames.size();
+      trailer.version = VERSION_MULTI_LEVEL_INDEX;
 
       trailer.totalUncompressedBytes = totalBytes;
       trailer.entryCount = entryCount;
@@ -654,6 +735,8 @@ public class DBFile {
         Bytes.toBytes(avgValueLen), false);
       appendFileInfo(this.fileinfo, FileInfo.COMPARATOR,
         Bytes.toBytes(this.rawComparator.getClass().getName()), false);
+      appendFileInfo(this.fileinfo, FileInfo.DATA_BLOCK_ENCODING,
+        Bytes.toBytes(this.dataBlockEncoding.name()), false);
       long pos = o.getPos();
       this.fileinfo.write(o);
       return pos;
@@ -671,7 +754,7 @@ public class DBFile {
     private boolean closeIStream;
 
     // These are read in when the file info is loaded.
-    DBFile.BlockIndex blockIndex;
+    DataBlockIndex blockIndex;
     private BlockIndex metaIndex;
     FixedFileTrailer trailer;
     private volatile boolean fileInfoLoaded = false;
@@ -679,6 +762,9 @@ public class DBFile {
     // Filled when we read in the trailer.
     private Compression.Algorithm compressAlgo;
 
+    // Encoding of the data blocks, filled in when we read in the file info.
+    private DataBlockEncoding dataBlockEncoding = DataBlockEncoding.NONE;
+
     // Last key in the file.  Filled in when we read in the file info
     private byte [] lastkey = null;
     // Stats read in when we load file info.
@@ -700,6 +786,9 @@ public class DBFile {
     // Whether file is from in-memory store
     private boolean inMemory = false;
 
+    // For any given block, synchronize its reads, see readBlock.
+    private final Object[] blockLocks = new Object[64];
+
     // Name for this object used when logging or in toString.  Is either
     // the result of a toString on the stream or else is toString of passed
     // file Path plus metadata key/value pairs.
@@ -739,6 +828,9 @@ public class DBFile {
       this.closeIStream = false;
       this.name = this.istream == null? "": this.istream.toString();
       this.inMemory = inMemory;
+      for (int i = 0; i < this.blockLocks.length; i++) {
+        this.blockLocks[i] = new Object();
+      }
     }
 
     @Override
@@ -746,6 +838,7 @@ public class DBFile {
       return "reader=" + this.name +
           (!isFileInfoLoaded()? "":
             ", compression=" + this.compressAlgo.getName() +
+            ", encoding=" + this.dataBlockEncoding +
             ", inMemory=" + this.inMemory +
             ", firstKey=" + toStringFirstKey() +
             ", lastKey=" + toStringLastKey()) +
@@ -790,16 +883,29 @@ public class DBFile {
       this.avgValueLen = Bytes.toInt(fi.get(FileInfo.AVG_VALUE_LEN));
       String clazzName = Bytes.toString(fi.get(FileInfo.COMPARATOR));
       this.comparator = getComparator(clazzName);
-
-      // Read in the data index.
-      this.blockIndex = BlockIndex.readIndex(this.comparator, this.istream,
-        this.trailer.dataIndexOffset, this.trailer.dataIndexCount);
+      this.dataBlockEncoding = getDataBlockEncoding(
+        fi.get(FileInfo.DATA_BLOCK_ENCODING));
 
       // Read in the metadata index.
       if (trailer.metaIndexCount > 0) {
         this.metaIndex = BlockIndex.readIndex(Bytes.BYTES_RAWCOMPARATOR,
           this.istream, this.trailer.metaIndexOffset, trailer.metaIndexCount);
       }
+
+      // Read in the data index, all of it or only its root.
+      if (this.trailer.version == VERSION_SINGLE_LEVEL_INDEX) {
+        BlockIndex bi = BlockIndex.readIndex(this.comparator, this.istream,
+          this.trailer.dataIndexOffset, this.trailer.dataIndexCount);
+        // The end of data block is first meta block if there is
+        // one or if there isn't, the fileinfo offset.
+        bi.endOffset = this.metaIndex != null?
+          this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset;
+        this.blockIndex = bi;
+      } else {
+        this.blockIndex = MultiLevelBlockIndex.readRoot(this, this.comparator,
+          this.istream, this.trailer.dataIndexOffset,
+          this.trailer.dataIndexCount);
+      }
       this.fileInfoLoaded = true;
       return fi;
     }
@@ -825,6 +931,30 @@ public class DBFile {
       }
     }
 
+    /*
+     * @param name Encoding name from the fileinfo, null in files written
+     * before data blocks were encoded.
+     */
+    private DataBlockEncoding getDataBlockEncoding(final byte [] name)
+    throws IOException {
+      if (name == null) {
+        return DataBlockEncoding.NONE;
+      }
+      try {
+        return DataBlockEncoding.valueOf(Bytes.toString(name));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unknown data block encoding " +
+          Bytes.toString(name) + " in " + this.name);
+      }
+    }
+
+    /**
+     * @return Encoding of the key/values in the data blocks.
+     */
+    public DataBlockEncoding getDataBlockEncoding() {
+      return this.dataBlockEncoding;
+    }
+
     /**
      * Read the trailer off the input stream.  As side effect, sets the
      * compression algorithm.
@@ -853,6 +983,9 @@ public class DBFile {
      * @return Scanner on this file.
      */
     public DBFileScanner getScanner(boolean cacheBlocks, final boolean pread) {
+      if (this.dataBlockEncoding != DataBlockEncoding.NONE) {
+        return new EncodedScanner(this, cacheBlocks, pread);
+      }
       return new Scanner(this, cacheBlocks, pread);
     }
 
@@ -861,7 +994,8 @@ public class DBFile {
      * @return Block number of the block containing the key or -1 if not in this
      * file.
      */
-    protected int blockContainingKey(final byte [] key, int offset, int length) {
+    protected int blockContainingKey(final byte [] key, int offset, int length)
+        throws IOException {
       if (blockIndex == null) {
         throw new RuntimeException("Block index not loaded");
       }
@@ -947,15 +1081,15 @@ public class DBFile {
       if (blockIndex == null) {
         throw new IOException("Block index not loaded");
       }
-      if (block < 0 || block >= blockIndex.count) {
+      if (block < 0 || block >= blockIndex.getBlockCount()) {
         throw new IOException("Requested block is out of range: " + block +
-          ", max: " + blockIndex.count);
+          ", max: " + blockIndex.getBlockCount());
       }
       // For any given block from any given file, synchronize reads for said
       // block.
       // Without a cache, this synchronizing is needless overhead, but really
       // the other choice is to duplicate work (which the cache would prevent you from doing).
-      synchronized (blockIndex.blockKeys[block]) {
+      synchronized (blockLocks[block % blockLocks.length]) {
         blockLoads++;
         // Check cache for block.  If found return.
         if (cache != null) {
@@ -971,20 +1105,9 @@ public class DBFile {
 
         // Load block from filesystem.
         long now = System.currentTimeMillis();
-        long onDiskBlockSize;
-        if (block == blockIndex.count - 1) {
-          // last block!  The end of data block is first meta block if there is
-          // one or if there isn't, the fileinfo offset.
-          long offset = this.metaIndex != null?
-            this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset;
-          onDiskBlockSize = offset - blockIndex.blockOffsets[block];
-        } else {
-          onDiskBlockSize = blockIndex.blockOffsets[block+1] -
-          blockIndex.blockOffsets[block];
-        }
-        ByteBuffer buf = decompress(blockIndex.blockOffsets[block],
-          longToInt(onDiskBlockSize), this.blockIndex.blockDataSizes[block],
-          pread);
+        BlockLocation location = blockIndex.getBlockLocation(block);
+        ByteBuffer buf = decompress(location.offset, location.onDiskSize,
+          location.dataSize, pread);
 
         byte [] magic = new byte[DATABLOCKMAGIC.length];
         buf.get(magic, 0, magic.length);
@@ -1009,6 +1132,51 @@ public class DBFile {
       }
     }
 
+    /**
+     * Read in an index block of a multi-level index.  Index blocks are not
+     * compressed.  They are always cached, as the index of a version 1 file
+     * is kept on heap.
+     * @param offset Offset of the block.
+     * @param size Size of the block.
+     * @param magic Magic expected at the start of the block.
+     * @return Block wrapped in a ByteBuffer, past the magic.
+     * @throws IOException
+     */
+    ByteBuffer readIndexBlock(final long offset, final int size,
+        final byte [] magic) throws IOException {
+      String cacheName = name + "idx" + offset;
+      if (cache != null) {
+        ByteBuffer cachedBuf = cache.getBlock(cacheName);
+        if (cachedBuf != null) {
+          cacheHits++;
+          return cachedBuf.duplicate();
+        }
+      }
+
+      long now = System.currentTimeMillis();
+      ByteBuffer buf = ByteBuffer.allocate(size);
+      InputStream is = new BoundedRangeFileInputStream(this.istream, offset,
+        size, true);
+      IOUtils.readFully(is, buf.array(), 0, size);
+      is.close();
+
+      byte [] m = new byte[magic.length];
+      buf.get(m, 0, m.length);
+      if (!Arrays.equals(m, magic)) {
+        throw new IOException("Index block magic is wrong at offset " +
+          offset + ": " + Arrays.toString(m));
+      }
+      buf = buf.slice();
+
+      readTime += System.currentTimeMillis() - now;
+      readOps++;
+
+      if (cache != null) {
+        cache.cacheBlock(cacheName, buf.duplicate(), inMemory);
+      }
+      return buf;
+    }
+
     /**
      * Decompress <code>compressedSize</code> bytes off the backing
      * FSDataInputStream.
@@ -1058,7 +1226,7 @@ public class DBFile {
       if (blockIndex == null) {
         throw new RuntimeException("Block index not loaded");
       }
-      return this.blockIndex.isEmpty()? null: this.blockIndex.blockKeys[0];
+      return this.blockIndex.isEmpty()? null: this.blockIndex.getFirstKey();
     }
 
     /**
@@ -1215,7 +1383,7 @@ public class DBFile {
         if (block.remaining() <= 0) {
           // LOG.debug("Fetch next block");
           currBlock++;
-          if (currBlock >= reader.blockIndex.count) {
+          if (currBlock >= reader.blockIndex.getBlockCount()) {
             // damn we are at the end
             currBlock = 0;
             block = null;
@@ -1333,8 +1501,8 @@ public class DBFile {
           return false; // key is before the start of the file.
 
         // Question: does this block begin with 'key'?
-        if (this.reader.comparator.compare(reader.blockIndex.blockKeys[b],
-            0, reader.blockIndex.blockKeys[b].length,
+        byte [] firstKey = reader.blockIndex.getBlockFirstKey(b);
+        if (this.reader.comparator.compare(firstKey, 0, firstKey.length,
             key, offset, length) == 0) {
           // Ok the key we're interested in is the first of the block, so go back one.
           if (b == 0) {
@@ -1414,6 +1582,183 @@ public class DBFile {
       }
     }
 
+    /**
+     * {@link DBFileScanner} of a file with encoded data blocks.  Moves
+     * between the blocks as {@link Scanner} does, and within a block through
+     * the {@link DataBlockEncoder.EncodedSeeker} of the encoding.  The
+     * KeyValues and keys returned are copies, the values are in the block.
+     */
+    protected static class EncodedScanner implements DBFileScanner {
+      private final Reader reader;
+      private final DataBlockEncoder.EncodedSeeker seeker;
+      private ByteBuffer block;
+      private int currBlock;
+
+      private final boolean cacheBlocks;
+      private final boolean pread;
+
+      public int blockFetches = 0;
+
+      public EncodedScanner(Reader r, boolean cacheBlocks,
+          final boolean pread) {
+        this.reader = r;
+        this.cacheBlocks = cacheBlocks;
+        this.pread = pread;
+        this.seeker = r.dataBlockEncoding.getEncoder().createSeeker(
+          r.comparator);
+      }
+
+      public KeyValue getKeyValue() {
+        if (this.block == null) {
+          return null;
+        }
+        return this.seeker.getKeyValue();
+      }
+
+      public ByteBuffer getKey() {
+        if (this.block == null) {
+          throw new RuntimeException("you need to seekTo() before calling getKey()");
+        }
+        return this.seeker.getKeyDeepCopy();
+      }
+
+      public ByteBuffer getValue() {
+        if (this.block == null) {
+          throw new RuntimeException("you need to seekTo() before calling getValue()");
+        }
+        return this.seeker.getValueShallowCopy();
+      }
+
+      public boolean next() throws IOException {
+        if (this.block == null) {
+          throw new IOException("Next called on non-seeked scanner");
+        }
+        if (this.seeker.next()) {
+          return true;
+        }
+        this.currBlock++;
+        if (this.currBlock >= this.reader.blockIndex.getBlockCount()) {
+          // at the end
+          this.currBlock = 0;
+          this.block = null;
+          return false;
+        }
+        setBlock(this.currBlock);
+        return true;
+      }
+
+      public int seekTo(byte [] key) throws IOException {
+        return seekTo(key, 0, key.length);
+      }
+
+      public int seekTo(byte[] key, int offset, int length) throws IOException {
+        int b = this.reader.blockContainingKey(key, offset, length);
+        if (b < 0) return -1; // falls before the beginning of the file
+        loadBlock(b, true);
+        return this.seeker.blockSeekTo(key, offset, length, false);
+      }
+
+      public int reseekTo(byte [] key) throws IOException {
+        return reseekTo(key, 0, key.length);
+      }
+
+      public int reseekTo(byte[] key, int offset, int length)
+          throws IOException {
+        if (this.block != null) {
+          int compared = this.seeker.compareKey(key, offset, length);
+          if (compared < 1) {
+            // the required key is less than or equal to the current key
+            return compared;
+          }
+        }
+        int b = this.reader.blockContainingKey(key, offset, length);
+        if (b < 0) {
+          return -1;
+        }
+        loadBlock(b, false);
+        return this.seeker.blockSeekTo(key, offset, length, false);
+      }
+
+      public boolean seekBefore(byte [] key) throws IOException {
+        return seekBefore(key, 0, key.length);
+      }
+
+      public boolean seekBefore(byte[] key, int offset, int length)
+          throws IOException {
+        int b = this.reader.blockContainingKey(key, offset, length);
+        if (b < 0)
+          return false; // key is before the start of the file.
+
+        byte [] firstKey = this.reader.blockIndex.getBlockFirstKey(b);
+        if (this.reader.comparator.compare(firstKey, 0, firstKey.length,
+            key, offset, length) == 0) {
+          // the key is the first of the block, so go back one block
+          if (b == 0) {
+            return false;
+          }
+          b--;
+        }
+        loadBlock(b, true);
+        this.seeker.blockSeekTo(key, offset, length, true);
+        return true;
+      }
+
+      public String getKeyString() {
+        ByteBuffer key = getKey();
+        return Bytes.toStringBinary(key.array(), key.arrayOffset(),
+          key.limit());
+      }
+
+      public String getValueString() {
+        ByteBuffer value = getValue();
+        return Bytes.toString(value.array(), value.arrayOffset(),
+          value.limit());
+      }
+
+      public Reader getReader() {
+        return this.reader;
+      }
+
+      public boolean isSeeked() {
+        return this.block != null;
+      }
+
+      public boolean seekTo() throws IOException {
+        if (this.reader.blockIndex.isEmpty()) {
+          return false;
+        }
+        if (this.block != null && this.currBlock == 0) {
+          this.seeker.rewind();
+          return true;
+        }
+        setBlock(0);
+        return true;
+      }
+
+      private void setBlock(int bloc) throws IOException {
+        this.block = this.reader.readBlock(bloc, this.cacheBlocks, this.pread);
+        this.currBlock = bloc;
+        this.seeker.setCurrentBuffer(this.block);
+        this.blockFetches++;
+      }
+
+      private void loadBlock(int bloc, boolean rewind) throws IOException {
+        if (this.block == null || bloc != this.currBlock) {
+          setBlock(bloc);
+        } else if (rewind) {
+          // we are already in the same block, just rewind to seek again.
+          this.seeker.rewind();
+        }
+        // else seek on from the current key
+      }
+
+      @Override
+      public String toString() {
+        return "DBFileScanner for reader " + String.valueOf(reader) +
+          ", encoding=" + reader.dataBlockEncoding;
+      }
+    }
+
     public String getTrailerInfo() {
       return trailer.toString();
     }
@@ -1437,7 +1782,7 @@ public class DBFile {
     long totalUncompressedBytes;
     int entryCount;
     int compressionCodec;
-    int version = 1;
+    int version = VERSION_SINGLE_LEVEL_INDEX;
 
     FixedFileTrailer() {
       super();
@@ -1483,7 +1828,8 @@ public class DBFile {
       compressionCodec       = inputStream.readInt();
       version                = inputStream.readInt();
 
-      if (version != 1) {
+      if (version != VERSION_SINGLE_LEVEL_INDEX &&
+          version != VERSION_MULTI_LEVEL_INDEX) {
         throw new IOException("Wrong version: " + version);
       }
     }
@@ -1501,17 +1847,78 @@ public class DBFile {
     }
   }
 
+  /**
+   * The data block index of a file, as used by the reader.
+   */
+  interface DataBlockIndex extends HeapSize {
+    /**
+     * @return Number of data blocks.
+     */
+    int getBlockCount();
+
+    /**
+     * @return True if there is no data block.
+     */
+    boolean isEmpty();
+
+    /**
+     * @return First key of the file.
+     */
+    byte [] getFirstKey();
+
+    /**
+     * @return Block number of the block containing <code>key</code> or -1
+     * if this file does not contain the request.
+     */
+    int blockContainingKey(byte [] key, int offset, int length)
+      throws IOException;
+
+    /**
+     * @return First key of a data block.
+     */
+    byte [] getBlockFirstKey(int block) throws IOException;
+
+    /**
+     * @return Where a data block is in the file.
+     */
+    BlockLocation getBlockLocation(int block) throws IOException;
+
+    /**
+     * @return File midkey.  Inexact.  Operates on block boundaries.
+     */
+    byte [] midkey() throws IOException;
+  }
+
+  /**
+   * Offset and sizes of a block in the file.
+   */
+  static final class BlockLocation {
+    final long offset;
+    final int onDiskSize;
+    final int dataSize;
+
+    BlockLocation(final long offset, final int onDiskSize,
+        final int dataSize) {
+      this.offset = offset;
+      this.onDiskSize = onDiskSize;
+      this.dataSize = dataSize;
+    }
+  }
+
   /**
    * The block index for a RFile.
-   * Used reading.
+   * Used reading.  This is the single-level data block index of version 1
+   * files, and the meta block index.
    */
-  static class BlockIndex implements HeapSize {
+  static class BlockIndex implements DataBlockIndex {
     // How many actual items are there? The next insert location too.
     int count = 0;
     byte [][] blockKeys;
     long [] blockOffsets;
     int [] blockDataSizes;
     int size = 0;
+    // Where the last block ends.
+    long endOffset = -1;
 
     /** Needed doing lookup on blocks.
      */
@@ -1538,10 +1945,29 @@ public class DBFile {
     /**
      * @return True if block index is empty.
      */
-    boolean isEmpty() {
+    public boolean isEmpty() {
       return this.blockKeys.length <= 0;
     }
 
+    public int getBlockCount() {
+      return this.count;
+    }
+
+    public byte [] getFirstKey() {
+      return this.blockKeys[0];
+    }
+
+    public byte [] getBlockFirstKey(int block) {
+      return this.blockKeys[block];
+    }
+
+    public BlockLocation getBlockLocation(int block) {
+      long end = block == this.count - 1? this.endOffset:
+        this.blockOffsets[block+1];
+      return new BlockLocation(this.blockOffsets[block],
+        longToInt(end - this.blockOffsets[block]), this.blockDataSizes[block]);
+    }
+
     /**
      * Adds a new entry in the block index.
      *
@@ -1562,7 +1988,7 @@ public class DBFile {
      * @return Offset of block containing <code>key</code> or -1 if this file
      * does not contain the request.
      */
-    int blockContainingKey(final byte[] key, int offset, int length) {
+    public int blockContainingKey(final byte[] key, int offset, int length) {
       int pos = Bytes.binarySearch(blockKeys, key, offset, length, this.comparator);
       if (pos < 0) {
         pos ++;
@@ -1586,7 +2012,7 @@ public class DBFile {
      * @return File midkey.  Inexact.  Operates on block boundaries.  Does
      * not go into blocks.
      */
-    byte [] midkey() throws IOException {
+    public byte [] midkey() throws IOException {
       int pos = ((this.count - 1)/2);              // middle of the index
       if (pos < 0) {
         throw new IOException("DBFile empty");
@@ -1672,7 +2098,8 @@ public class DBFile {
 
     public long heapSize() {
       long heapsize = ClassSize.align(ClassSize.OBJECT +
-          2 * Bytes.SIZEOF_INT + (3 + 1) * ClassSize.REFERENCE);
+          2 * Bytes.SIZEOF_INT + Bytes.SIZEOF_LONG +
+          (3 + 1) * ClassSize.REFERENCE);
       //Calculating the size of blockKeys
       if(blockKeys != null) {
         //Adding array + references overhead
@@ -1697,6 +2124,475 @@ public class DBFile {
 
   }
 
+  /**
+   * Writes the multi-level data block index of version 2 files.
+   * <p>
+   * Entries of data blocks are gathered into a leaf chunk which is written
+   * as a leaf index block when it reaches the maximum chunk size.  On close
+   * the entries of the leaf blocks are written the same way as intermediate
+   * blocks, level after level, until they fit in the root block.  When all
+   * the data block entries fit in one chunk the root is the only level.
+   * <p>
+   * A leaf or intermediate block is the magic, the count of entries, the
+   * offsets of the entries relative to the first one (count + 1 of them, so
+   * the block can be searched without being parsed) and the entries.  An
+   * entry is the offset and on-disk size of the block it points to, an int
+   * and the first key of that block.  The int is the uncompressed size of a
+   * data block in leaf entries, and the number of the first data block under
+   * the index block pointed to in intermediate entries.
+   * <p>
+   * The root block is the magic, the number of levels including the root,
+   * the count of entries, and the entries with their keys written as byte
+   * arrays.
+   */
+  static class IndexWriter {
+    int maxChunkSize = DEFAULT_INDEX_BLOCKSIZE;
+
+    // Entries of the chunk being filled.
+    private final List<byte []> chunkKeys = new ArrayList<byte []>();
+    private final List<Long> chunkOffsets = new ArrayList<Long>();
+    private final List<Integer> chunkSizes = new ArrayList<Integer>();
+    private final List<Integer> chunkValues = new ArrayList<Integer>();
+    private int chunkBytes = 0;
+
+    // Entries of the written leaf blocks.
+    private final List<byte []> leafKeys = new ArrayList<byte []>();
+    private final List<Long> leafOffsets = new ArrayList<Long>();
+    private final List<Integer> leafSizes = new ArrayList<Integer>();
+    private final List<Integer> leafValues = new ArrayList<Integer>();
+
+    private int blockCount = 0;
+    private int chunkFirstBlock = 0;
+
+    /**
+     * Add the entry of a data block.
+     */
+    void add(final byte [] firstKey, final long offset, final int onDiskSize,
+        final int dataSize) {
+      chunkKeys.add(firstKey);
+      chunkOffsets.add(Long.valueOf(offset));
+      chunkSizes.add(Integer.valueOf(onDiskSize));
+      chunkValues.add(Integer.valueOf(dataSize));
+      chunkBytes += entrySize(firstKey);
+      blockCount++;
+    }
+
+    int getBlockCount() {
+      return blockCount;
+    }
+
+    boolean isLeafFull() {
+      return chunkBytes >= maxChunkSize;
+    }
+
+    /**
+     * Write the chunk as a leaf index block.
+     */
+    void writeLeaf(final FSDataOutputStream o) throws IOException {
+      if (chunkKeys.isEmpty()) return;
+      long pos = o.getPos();
+      int size = writeBlock(o, LEAFINDEXMAGIC, chunkKeys, chunkOffsets,
+        chunkSizes, chunkValues, 0, chunkKeys.size());
+      leafKeys.add(chunkKeys.get(0));
+      leafOffsets.add(Long.valueOf(pos));
+      leafSizes.add(Integer.valueOf(size));
+      leafValues.add(Integer.valueOf(chunkFirstBlock));
+      chunkFirstBlock = blockCount;
+      chunkKeys.clear();
+      chunkOffsets.clear();
+      chunkSizes.clear();
+      chunkValues.clear();
+      chunkBytes = 0;
+    }
+
+    /**
+     * Write the last leaf block after the last data block, unless all the
+     * data block entries can stay in the root.
+     */
+    void finishLeaves(final FSDataOutputStream o) throws IOException {
+      if (!leafKeys.isEmpty()) {
+        writeLeaf(o);
+      }
+    }
+
+    /**
+     * Write the intermediate levels, if any, and the root.
+     * @return Position of the root block.
+     */
+    long writeRoot(final FSDataOutputStream o) throws IOException {
+      List<byte []> keys = chunkKeys;
+      List<Long> offsets = chunkOffsets;
+      List<Integer> sizes = chunkSizes;
+      List<Integer> values = chunkValues;
+      int levels = 1;
+      if (!leafKeys.isEmpty()) {
+        keys = leafKeys;
+        offsets = leafOffsets;
+        sizes = leafSizes;
+        values = leafValues;
+        levels = 2;
+      }
+
+      // Cut the level in intermediate blocks until it fits in the root.
+      while (bytesOf(keys) > maxChunkSize && keys.size() > 1) {
+        List<byte []> upperKeys = new ArrayList<byte []>();
+        List<Long> upperOffsets = new ArrayList<Long>();
+        List<Integer> upperSizes = new ArrayList<Integer>();
+        List<Integer> upperValues = new ArrayList<Integer>();
+        int start = 0;
+        while (start < keys.size()) {
+          int end = start;
+          int bytes = 0;
+          while (end < keys.size() && (end == start || bytes < maxChunkSize)) {
+            bytes += entrySize(keys.get(end));
+            end++;
+          }
+          long pos = o.getPos();
+          int size = writeBlock(o, INTERMEDIATEINDEXMAGIC, keys, offsets, sizes,
+            values, start, end);
+          upperKeys.add(keys.get(start));
+          upperOffsets.add(Long.valueOf(pos));
+          upperSizes.add(Integer.valueOf(size));
+          upperValues.add(values.get(start));
+          start = end;
+        }
+        keys = upperKeys;
+        offsets = upperOffsets;
+        sizes = upperSizes;
+        values = upperValues;
+        levels++;
+      }
+
+      long pos = o.getPos();
+      o.write(ROOTINDEXMAGIC);
+      o.writeInt(levels);
+      o.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        o.writeLong(offsets.get(i).longValue());
+        o.writeInt(sizes.get(i).intValue());
+        o.writeInt(values.get(i).intValue());
+        Bytes.writeByteArray(o, keys.get(i));
+      }
+      return pos;
+    }
+
+    private static int entrySize(final byte [] key) {
+      // the entry and its relative offset
+      return Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT + key.length +
+        Bytes.SIZEOF_INT;
+    }
+
+    private static int bytesOf(final List<byte []> keys) {
+      int bytes = 0;
+      for (byte [] key : keys) {
+        bytes += entrySize(key);
+      }
+      return bytes;
+    }
+
+    /**
+     * Write a leaf or intermediate block of the entries from start to end.
+     * @return Size of the block.
+     */
+    private static int writeBlock(final FSDataOutputStream o,
+        final byte [] magic, final List<byte []> keys, final List<Long> offsets,
+        final List<Integer> sizes, final List<Integer> values,
+        final int start, final int end) throws IOException {
+      long pos = o.getPos();
+      o.write(magic);
+      o.writeInt(end - start);
+      int entryOffset = 0;
+      for (int i = start; i < end; i++) {
+        o.writeInt(entryOffset);
+        entryOffset += Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT +
+          keys.get(i).length;
+      }
+      o.writeInt(entryOffset);
+      for (int i = start; i < end; i++) {
+        o.writeLong(offsets.get(i).longValue());
+        o.writeInt(sizes.get(i).intValue());
+        o.writeInt(values.get(i).intValue());
+        o.write(keys.get(i));
+      }
+      return longToInt(o.getPos() - pos);
+    }
+  }
+
+  /**
+   * A leaf or intermediate index block, searched in place.
+   */
+  static class IndexBlock {
+    private static final int ENTRY_HEADER =
+      Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT;
+
+    private final ByteBuffer buf;
+    private final byte [] array;
+    private final int entriesOffset;
+    final int count;
+    // Number of the first data block under this block.
+    final int firstBlock;
+
+    IndexBlock(final ByteBuffer buf, final int firstBlock) {
+      this.buf = buf;
+      this.array = buf.array();
+      this.count = buf.getInt(0);
+      this.entriesOffset = buf.arrayOffset() + Bytes.SIZEOF_INT * (count + 2);
+      this.firstBlock = firstBlock;
+    }
+
+    private int relativeOffset(final int i) {
+      return buf.getInt(Bytes.SIZEOF_INT * (i + 1));
+    }
+
+    private int entryOffset(final int i) {
+      return entriesOffset + relativeOffset(i);
+    }
+
+    long getOffset(final int i) {
+      return Bytes.toLong(array, entryOffset(i));
+    }
+
+    int getOnDiskSize(final int i) {
+      return Bytes.toInt(array, entryOffset(i) + Bytes.SIZEOF_LONG);
+    }
+
+    int getValue(final int i) {
+      return Bytes.toInt(array, entryOffset(i) + Bytes.SIZEOF_LONG +
+        Bytes.SIZEOF_INT);
+    }
+
+    byte [] getKey(final int i) {
+      int start = entryOffset(i) + ENTRY_HEADER;
+      int length = relativeOffset(i + 1) - relativeOffset(i) - ENTRY_HEADER;
+      byte [] key = new byte[length];
+      System.arraycopy(array, start, key, 0, length);
+      return key;
+    }
+
+    /**
+     * @return Last entry with a key not greater than <code>key</code>, or
+     * -1 if the key is before the first entry.
+     */
+    int entryContainingKey(final byte [] key, final int offset,
+        final int length, final RawComparator<byte []> comparator) {
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int start = entryOffset(mid) + ENTRY_HEADER;
+        int klen = relativeOffset(mid + 1) - relativeOffset(mid) - ENTRY_HEADER;
+        int cmp = comparator.compare(array, start, klen, key, offset, length);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return low - 1;
+    }
+
+    /**
+     * @return Last entry with a value not greater than <code>value</code>,
+     * values of intermediate entries being data block numbers.
+     */
+    int entryContainingValue(final int value) {
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int v = getValue(mid);
+        if (v < value) {
+          low = mid + 1;
+        } else if (v > value) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return low - 1;
+    }
+  }
+
+  /**
+   * The multi-level data block index of version 2 files.  Only the root is
+   * kept on heap; the leaf and intermediate blocks are read through the
+   * reader, which caches them.
+   */
+  static class MultiLevelBlockIndex implements DataBlockIndex {
+    private final Reader reader;
+    private final RawComparator<byte []> comparator;
+    // Levels including the root, 1 if the root points to data blocks.
+    private int levels;
+    private int blockCount;
+    private byte [][] rootKeys;
+    private long [] rootOffsets;
+    private int [] rootSizes;
+    private int [] rootValues;
+
+    // The leaf block used last, sequential reads mostly stay in it.
+    private volatile IndexBlock lastLeaf = null;
+
+    private MultiLevelBlockIndex(final Reader reader,
+        final RawComparator<byte []> c) {
+      this.reader = reader;
+      this.comparator = c;
+    }
+
+    /**
+     * Read in the root of the index at <code>rootOffset</code>, as written
+     * by {@link IndexWriter#writeRoot}.
+     */
+    static MultiLevelBlockIndex readRoot(final Reader reader,
+        final RawComparator<byte []> c, final FSDataInputStream in,
+        final long rootOffset, final int blockCount) throws IOException {
+      MultiLevelBlockIndex mi = new MultiLevelBlockIndex(reader, c);
+      in.seek(rootOffset);
+      byte [] magic = new byte[ROOTINDEXMAGIC.length];
+      IOUtils.readFully(in, magic, 0, magic.length);
+      if (!Arrays.equals(magic, ROOTINDEXMAGIC)) {
+        throw new IOException("Root index block magic is wrong: " +
+          Arrays.toString(magic));
+      }
+      mi.levels = in.readInt();
+      int count = in.readInt();
+      mi.blockCount = blockCount;
+      mi.rootKeys = new byte[count][];
+      mi.rootOffsets = new long[count];
+      mi.rootSizes = new int[count];
+      mi.rootValues = new int[count];
+      for (int i = 0; i < count; i++) {
+        mi.rootOffsets[i] = in.readLong();
+        mi.rootSizes[i] = in.readInt();
+        mi.rootValues[i] = in.readInt();
+        mi.rootKeys[i] = Bytes.readByteArray(in);
+      }
+      return mi;
+    }
+
+    public int getBlockCount() {
+      return this.blockCount;
+    }
+
+    public boolean isEmpty() {
+      return this.blockCount <= 0;
+    }
+
+    public byte [] getFirstKey() {
+      return this.rootKeys[0];
+    }
+
+    public int blockContainingKey(final byte [] key, final int offset,
+        final int length) throws IOException {
+      int pos = Bytes.binarySearch(rootKeys, key, offset, length, comparator);
+      if (pos < 0) {
+        pos = -(pos + 1) - 1;
+        if (pos < 0) {
+          // falls before the beginning of the file.
+          return -1;
+        }
+      }
+      if (levels == 1) {
+        return pos;
+      }
+      IndexBlock b = readChild(rootOffsets[pos], rootSizes[pos],
+        rootValues[pos], 2);
+      for (int level = 3; level <= levels; level++) {
+        int i = Math.max(0, b.entryContainingKey(key, offset, length,
+          comparator));
+        b = readChild(b.getOffset(i), b.getOnDiskSize(i), b.getValue(i), level);
+      }
+      int i = Math.max(0, b.entryContainingKey(key, offset, length,
+        comparator));
+      return b.firstBlock + i;
+    }
+
+    public byte [] getBlockFirstKey(final int block) throws IOException {
+      if (levels == 1) {
+        return rootKeys[block];
+      }
+      IndexBlock leaf = getLeaf(block);
+      return leaf.getKey(block - leaf.firstBlock);
+    }
+
+    public BlockLocation getBlockLocation(final int block) throws IOException {
+      if (levels == 1) {
+        return new BlockLocation(rootOffsets[block], rootSizes[block],
+          rootValues[block]);
+      }
+      IndexBlock leaf = getLeaf(block);
+      int i = block - leaf.firstBlock;
+      return new BlockLocation(leaf.getOffset(i), leaf.getOnDiskSize(i),
+        leaf.getValue(i));
+    }
+
+    public byte [] midkey() throws IOException {
+      int pos = ((this.blockCount - 1)/2);          // middle of the index
+      if (pos < 0) {
+        throw new IOException("DBFile empty");
+      }
+      return getBlockFirstKey(pos);
+    }
+
+    /**
+     * @return The leaf block with the entry of a data block.
+     */
+    private IndexBlock getLeaf(final int block) throws IOException {
+      IndexBlock leaf = this.lastLeaf;
+      if (leaf != null && block >= leaf.firstBlock &&
+          block < leaf.firstBlock + leaf.count) {
+        return leaf;
+      }
+      int pos = Arrays.binarySearch(rootValues, block);
+      if (pos < 0) {
+        pos = -(pos + 1) - 1;
+      }
+      IndexBlock b = readChild(rootOffsets[pos], rootSizes[pos],
+        rootValues[pos], 2);
+      for (int level = 3; level <= levels; level++) {
+        int i = b.entryContainingValue(block);
+        b = readChild(b.getOffset(i), b.getOnDiskSize(i), b.getValue(i), level);
+      }
+      return b;
+    }
+
+    /**
+     * Read the index block at the given level, the root being level 1.
+     */
+    private IndexBlock readChild(final long offset, final int size,
+        final int firstBlock, final int level) throws IOException {
+      boolean leaf = level == levels;
+      IndexBlock b = new IndexBlock(reader.readIndexBlock(offset, size,
+        leaf? LEAFINDEXMAGIC: INTERMEDIATEINDEXMAGIC), firstBlock);
+      if (leaf) {
+        this.lastLeaf = b;
+      }
+      return b;
+    }
+
+    public long heapSize() {
+      long heapsize = ClassSize.align(ClassSize.OBJECT +
+          2 * Bytes.SIZEOF_INT + 8 * ClassSize.REFERENCE);
+      heapsize += ClassSize.align(ClassSize.ARRAY +
+          rootKeys.length * ClassSize.REFERENCE);
+      for (byte [] bs : rootKeys) {
+        heapsize += ClassSize.align(ClassSize.ARRAY + bs.length);
+      }
+      heapsize += ClassSize.align(ClassSize.ARRAY +
+          rootOffsets.length * Bytes.SIZEOF_LONG);
+      heapsize += 2 * ClassSize.align(ClassSize.ARRAY +
+          rootSizes.length * Bytes.SIZEOF_INT);
+      return ClassSize.align(heapsize);
+    }
+
+    @Override
+    public String toString() {
+      return "levels=" + levels + ", blocks=" + blockCount +
+        ", rootEntries=" + rootKeys.length;
+    }
+  }
+
   /**
    * Metadata for this file.  Conjured by the writer.  Read in by the reader.
    */
@@ -1710,6 +2606,8 @@ public class DBFile {
       Bytes.toBytes(RESERVED_PREFIX + "AVG_VALUE_LEN");
     static final byte [] COMPARATOR =
       Bytes.toBytes(RESERVED_PREFIX + "COMPARATOR");
+    static final byte [] DATA_BLOCK_ENCODING =
+      Bytes.toBytes(RESERVED_PREFIX + "DATA_BLOCK_ENCODING");
 
     /**
      * Constructor.
@@ -1738,6 +2636,7 @@ public class DBFile {
    *         <ul>
    *         <li>"none" - No compression.
    *         <li>"gz" - GZIP compression.
+   *         <li>"lz4" - LZ4 compression, faster than GZIP with a lower ratio.
    *         </ul>
    */
   public static String[] getSupportedCompressionAlgorithms() {
@@ -0,0 +1,216 @@
+package org.javenstudio.raptor.bigdb.io.dbfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.io.encoding.DataBlockEncoding;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.fs.FileSystem;
+import org.javenstudio.raptor.fs.Path;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Compares the {@link DataBlockEncoding}s on DBFiles of wide rows.
+ * <p>
+ * The same KeyValues are written to a DBFile per encoding, either those of
+ * an existing DBFile or generated rows of many columns.  Each file is then
+ * scanned through a block cache twice, once loading the blocks and once out
+ * of the cache, and read at random keys.  The file size, the block cache
+ * footprint and the scan and seek speeds are reported per encoding.
+ * <pre>
+ * Usage: DataBlockEncodingBenchmark [-file path] [-rows n] [-columns n]
+ *          [-valuesize bytes] [-blocksize bytes] [-encodings none,prefix]
+ *          [-seeks n] [-dir path]
+ * </pre>
+ */
+public class DataBlockEncodingBenchmark {
+
+  private final FileSystem fs;
+  private final Path dir;
+  private final List<KeyValue> kvs;
+  private final int blockSize;
+
+  public DataBlockEncodingBenchmark(FileSystem fs, Path dir,
+      List<KeyValue> kvs, int blockSize) {
+    this.fs = fs;
+    this.dir = dir;
+    this.kvs = kvs;
+    this.blockSize = blockSize;
+  }
+
+  /** Generate wide rows: a few rows of many columns with small values. */
+  static List<KeyValue> generateKeyValues(int rows, int columns,
+      int valueSize, long seed) {
+    Random rand = new Random(seed);
+    byte[] family = Bytes.toBytes("d");
+    long now = System.currentTimeMillis();
+    List<KeyValue> kvs = new ArrayList<KeyValue>(rows * columns);
+    for (int i = 0; i < rows; i++) {
+      byte[] row = Bytes.toBytes(String.format("device-%08d", i * 13));
+      for (int j = 0; j < columns; j++) {
+        byte[] qualifier = Bytes.toBytes(String.format("metric:%06d", j));
+        byte[] value = new byte[valueSize];
+        // mostly small counters, some repeated
+        if (rand.nextInt(4) != 0) {
+          Bytes.putInt(value, Math.max(0, valueSize - 4), rand.nextInt(1000));
+        }
+        kvs.add(new KeyValue(row, family, qualifier,
+            now - rand.nextInt(60000), value));
+      }
+    }
+    return kvs;
+  }
+
+  /** Write the KeyValues to a file of the encoding. */
+  Path write(DataBlockEncoding encoding) throws IOException {
+    Path path = new Path(dir, "bench-" + encoding.name().toLowerCase());
+    DBFile.Writer writer = new DBFile.Writer(fs, path, blockSize,
+        Compression.Algorithm.NONE, KeyValue.KEY_COMPARATOR);
+    writer.setDataBlockEncoding(encoding);
+    try {
+      for (KeyValue kv : kvs) {
+        writer.append(kv);
+      }
+    } finally {
+      writer.close();
+    }
+    return path;
+  }
+
+  /**
+   * Scan a file through the cache.
+   * @return KeyValues scanned
+   */
+  static long scan(DBFile.Reader reader) throws IOException {
+    DBFileScanner scanner = reader.getScanner(true, false);
+    long count = 0;
+    if (scanner.seekTo()) {
+      do {
+        KeyValue kv = scanner.getKeyValue();
+        if (kv.getValueLength() >= 0) {
+          count++;
+        }
+      } while (scanner.next());
+    }
+    return count;
+  }
+
+  /**
+   * Seek to random KeyValues of the file.
+   * @return exact matches
+   */
+  long seek(DBFile.Reader reader, int seeks) throws IOException {
+    Random rand = new Random(seeks);
+    DBFileScanner scanner = reader.getScanner(true, true);
+    long found = 0;
+    for (int i = 0; i < seeks; i++) {
+      KeyValue kv = kvs.get(rand.nextInt(kvs.size()));
+      if (scanner.seekTo(kv.getBuffer(), kv.getKeyOffset(),
+          kv.getKeyLength()) == 0) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  public void run(DataBlockEncoding encoding, int seeks) throws IOException {
+    long startTime = System.currentTimeMillis();
+    Path path = write(encoding);
+    long writeTime = System.currentTimeMillis() - startTime;
+    long fileSize = fs.getFileStatus(path).getLen();
+
+    LruBlockCache cache = new LruBlockCache(Math.max(fileSize * 4,
+        64L * 1024 * 1024), blockSize);
+    DBFile.Reader reader = new DBFile.Reader(fs, path, cache, false);
+    try {
+      reader.loadFileInfo();
+      startTime = System.nanoTime();
+      long count = scan(reader);
+      long coldTime = System.nanoTime() - startTime;
+      startTime = System.nanoTime();
+      scan(reader);
+      long warmTime = System.nanoTime() - startTime;
+      if (count != kvs.size()) {
+        throw new IOException(encoding + " scanned " + count + " of " +
+            kvs.size() + " keyvalues");
+      }
+      startTime = System.nanoTime();
+      long found = seek(reader, seeks);
+      long seekTime = System.nanoTime() - startTime;
+      if (found != seeks) {
+        throw new IOException(encoding + " found " + found + " of " +
+            seeks + " keys");
+      }
+
+      System.out.println(String.format(
+          "%-9s file %10s  cache %10s  write %6d ms  scan cold %8.0f kv/ms" +
+          "  warm %8.0f kv/ms  seek %8.1f us",
+          encoding, StringUtils.byteDesc(fileSize),
+          StringUtils.byteDesc(cache.getCurrentSize()), writeTime,
+          count * 1e6 / Math.max(1, coldTime),
+          count * 1e6 / Math.max(1, warmTime),
+          seekTime / 1e3 / Math.max(1, seeks)));
+    } finally {
+      reader.close();
+      cache.shutdown();
+      fs.delete(path, false);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String file = null;
+    int rows = 100;
+    int columns = 2000;
+    int valueSize = 8;
+    int blockSize = 64 * 1024;
+    String encodings = "none,prefix,diff,fast_diff";
+    int seeks = 100000;
+    String dir = System.getProperty("java.io.tmpdir");
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-file".equals(args[i])) {
+        file = args[++i];
+      } else if ("-rows".equals(args[i])) {
+        rows = Integer.parseInt(args[++i]);
+      } else if ("-columns".equals(args[i])) {
+        columns = Integer.parseInt(args[++i]);
+      } else if ("-valuesize".equals(args[i])) {
+        valueSize = Integer.parseInt(args[++i]);
+      } else if ("-blocksize".equals(args[i])) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else if ("-encodings".equals(args[i])) {
+        encodings = args[++i];
+      } else if ("-seeks".equals(args[i])) {
+        seeks = Integer.parseInt(args[++i]);
+      } else if ("-dir".equals(args[i])) {
+        dir = args[++i];
+      } else {
+        System.err.println("Usage: DataBlockEncodingBenchmark [-file path] " +
+            "[-rows n] [-columns n] [-valuesize bytes] [-blocksize bytes] " +
+            "[-encodings none,prefix] [-seeks n] [-dir path]");
+        System.exit(-1);
+      }
+    }
+
+    Configuration conf = ConfigurationFactory.create(true);
+    List<KeyValue> kvs = file != null ?
+        CompressionBenchmark.readKeyValues(conf, new Path(file)) :
+        generateKeyValues(rows, columns, valueSize, 0x5eed);
+    Path dirPath = new Path(dir);
+    DataBlockEncodingBenchmark benchmark = new DataBlockEncodingBenchmark(
+        dirPath.getFileSystem(conf), dirPath, kvs, blockSize);
+    System.out.println(kvs.size() + " keyvalues, blocks of " +
+        StringUtils.byteDesc(blockSize));
+
+    for (String name : encodings.split(",")) {
+      DataBlockEncoding encoding =
+          DataBlockEncoding.valueOf(name.trim().toUpperCase());
+      benchmark.run(encoding, seeks);
+    }
+  }
+}
@@ -53,7 +53,11 @@ import org.javenstudio.raptor.util.StringUtils;
  * size, and then while scanning determines the fewest least-recently-used
  * blocks necessary from each of the three priorities (would be 3 times bytes
  * to free).  It then uses the priority chunk sizes to evict fairly according
- * to the relative sizes and usage.
+ * to the relative sizes and usage.<p>
+ *
+ * A victim cache, such as an off-heap {@link BucketCache}, may be set to
+ * take the evicted blocks.  It is looked up on a miss and the blocks found
+ * there are cached again.
  */
 public class LruBlockCache implements BlockCache, HeapSize {
 
@@ -129,6 +133,9 @@ public class LruBlockCache implements BlockCache, HeapSize {
   /** Overhead of the structure itself */
   private long overhead;
 
+  /** Cache of the evicted blocks, or null */
+  private volatile BlockCache victimCache = null;
+
   /**
    * Default constructor.  Specify maximum size and expected average block
    * size (approximation is fine).
@@ -206,6 +213,21 @@ public class LruBlockCache implements BlockCache, HeapSize {
         statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
   }
 
+  /**
+   * Set the cache which takes the blocks evicted from this one.
+   * @param victimCache the victim cache, or null for none
+   */
+  public void setVictimCache(BlockCache victimCache) {
+    this.victimCache = victimCache;
+  }
+
+  /**
+   * @return the victim cache, or null
+   */
+  public BlockCache getVictimCache() {
+    return this.victimCache;
+  }
+
   public void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
     if(this.size.get() > acceptableSize() && !evictionInProgress) {
@@ -263,6 +285,14 @@ public class LruBlockCache implements BlockCache, HeapSize {
     CachedBlock cb = map.get(blockName);
     if(cb == null) {
       stats.miss();
+      BlockCache victim = this.victimCache;
+      if(victim != null) {
+        ByteBuffer buf = victim.getBlock(blockName);
+        if(buf != null) {
+          recacheBlock(blockName, buf);
+          return buf;
+        }
+      }
       return null;
     }
     stats.hit();
@@ -270,11 +300,31 @@ public class LruBlockCache implements BlockCache, HeapSize {
     return cb.getBuffer();
   }
 
+  /**
+   * Cache again a block found in the victim cache, unless it was cached
+   * meanwhile.
+   */
+  private void recacheBlock(String blockName, ByteBuffer buf) {
+    CachedBlock cb = new CachedBlock(blockName, buf.duplicate(),
+        count.incrementAndGet(), false);
+    if(map.putIfAbsent(blockName, cb) != null) return;
+    long newSize = size.addAndGet(cb.heapSize());
+    elements.incrementAndGet();
+    if(newSize > acceptableSize() && !evictionInProgress) {
+      runEviction();
+    }
+  }
+
   protected long evictBlock(CachedBlock block) {
     map.remove(block.getName());
     size.addAndGet(-1 * block.heapSize());
     elements.decrementAndGet();
     stats.evicted();
+    BlockCache victim = this.victimCache;
+    if(victim != null) {
+      victim.cacheBlock(block.getName(), block.getBuffer().duplicate(),
+          block.getPriority() == CachedBlock.BlockPriority.MEMORY);
+    }
     return block.heapSize();
   }
 
@@ -539,6 +589,8 @@ public class LruBlockCache implements BlockCache, HeapSize {
         "evictions=" + stats.getEvictionCount() + ", " +
         "evicted=" + stats.getEvictedCount() + ", " +
         "evictedPerRun=" + stats.evictedPerEviction());
+    BlockCache victim = this.victimCache;
+    if (victim instanceof BucketCache) ((BucketCache)victim).logStats();
   }
 
   /**
@@ -610,7 +662,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
   }
 
   public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
-      (3 * Bytes.SIZEOF_LONG) + (8 * ClassSize.REFERENCE) +
+      (3 * Bytes.SIZEOF_LONG) + (9 * ClassSize.REFERENCE) +
       (5 * Bytes.SIZEOF_FLOAT) + Bytes.SIZEOF_BOOLEAN
       + ClassSize.OBJECT);
 
@@ -647,6 +699,8 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
   public void shutdown() {
     this.scheduleThreadPool.shutdown();
+    BlockCache victim = this.victimCache;
+    if(victim != null) victim.shutdown();
   }
 }
 
@@ -0,0 +1,360 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.javenstudio.raptor.io.RawComparator;
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+
+/**
+ * Base of the encoders which encode each KeyValue relative to the previous
+ * one.  Keeps the previous KeyValue while writing, and decodes the key of
+ * the current KeyValue into a buffer while reading.
+ */
+abstract class BufferedDataBlockEncoder implements DataBlockEncoder {
+
+  /*
+   * The previous KeyValue of the block being written.
+   */
+  protected static class EncodingState {
+    byte [] prevKey = new byte[64];
+    // 0 if the next KeyValue is the first of the block
+    int prevKeyLength = 0;
+    byte [] prevValue = new byte[0];
+    int prevValueLength = -1;
+
+    void reset() {
+      this.prevKeyLength = 0;
+      this.prevValueLength = -1;
+    }
+
+    boolean isFirst() {
+      return this.prevKeyLength == 0;
+    }
+
+    void update(final byte [] key, final int koffset, final int klength,
+        final byte [] value, final int voffset, final int vlength,
+        final boolean keepValue) {
+      if (this.prevKey.length < klength) {
+        this.prevKey = new byte[Math.max(klength, this.prevKey.length * 2)];
+      }
+      System.arraycopy(key, koffset, this.prevKey, 0, klength);
+      this.prevKeyLength = klength;
+      if (keepValue) {
+        if (this.prevValue.length < vlength) {
+          this.prevValue = new byte[Math.max(vlength, this.prevValue.length * 2)];
+        }
+        System.arraycopy(value, voffset, this.prevValue, 0, vlength);
+      }
+      this.prevValueLength = vlength;
+    }
+  }
+
+  /*
+   * The current KeyValue of a block being read.
+   */
+  protected static class SeekerState {
+    byte [] keyBuffer = new byte[64];
+    // 0 if no KeyValue is decoded yet
+    int keyLength = 0;
+    int valueOffset = -1;
+    int valueLength = -1;
+    // Offset of the current and the next KeyValue in the block
+    int offset = 0;
+    int nextOffset = 0;
+
+    void reset() {
+      this.keyLength = 0;
+      this.valueOffset = -1;
+      this.valueLength = -1;
+      this.offset = 0;
+      this.nextOffset = 0;
+    }
+
+    /** Make room for a key, keeping the current one. */
+    void ensureKeyCapacity(final int length) {
+      if (this.keyBuffer.length < length) {
+        byte [] b = new byte[Math.max(length, this.keyBuffer.length * 2)];
+        System.arraycopy(this.keyBuffer, 0, b, 0, this.keyLength);
+        this.keyBuffer = b;
+      }
+    }
+
+    void copyFrom(final SeekerState other) {
+      ensureKeyCapacity(other.keyLength);
+      System.arraycopy(other.keyBuffer, 0, this.keyBuffer, 0, other.keyLength);
+      this.keyLength = other.keyLength;
+      this.valueOffset = other.valueOffset;
+      this.valueLength = other.valueLength;
+      this.offset = other.offset;
+      this.nextOffset = other.nextOffset;
+    }
+  }
+
+  /**
+   * Encode a KeyValue after the previous one of the block.
+   * @param prev the previous KeyValue of the block
+   * @throws IOException
+   */
+  protected abstract void encodeKeyValue(EncodingState prev,
+      DataOutputStream out, byte [] key, int koffset, int klength,
+      byte [] value, int voffset, int vlength) throws IOException;
+
+  /**
+   * Decode the KeyValue at the position of the block over the current one.
+   * The block is left at the next KeyValue.
+   * @param current the previous KeyValue, made the decoded one
+   */
+  protected abstract void decodeNext(ByteBuffer block, SeekerState current);
+
+  /**
+   * @return true if the encoding needs the previous value
+   */
+  protected boolean keepsPreviousValue() {
+    return false;
+  }
+
+  @Override
+  public BlockEncoder newBlockEncoder() {
+    final EncodingState state = new EncodingState();
+    final boolean keepValue = keepsPreviousValue();
+    return new BlockEncoder() {
+        @Override
+        public void reset() {
+          state.reset();
+        }
+
+        @Override
+        public void encode(DataOutputStream out, byte [] key, int koffset,
+            int klength, byte [] value, int voffset, int vlength)
+            throws IOException {
+          encodeKeyValue(state, out, key, koffset, klength, value, voffset,
+            vlength);
+          state.update(key, koffset, klength, value, voffset, vlength,
+            keepValue);
+        }
+      };
+  }
+
+  @Override
+  public EncodedSeeker createSeeker(final RawComparator<byte []> comparator) {
+    return new BufferedEncodedSeeker(comparator);
+  }
+
+  @Override
+  public ByteBuffer decodeKeyValues(final ByteBuffer block) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(block.remaining() * 2);
+    DataOutputStream out = new DataOutputStream(baos);
+    ByteBuffer in = block.duplicate();
+    SeekerState state = new SeekerState();
+    state.nextOffset = in.position();
+    while (in.hasRemaining()) {
+      decodeNext(in, state);
+      out.writeInt(state.keyLength);
+      out.writeInt(state.valueLength);
+      out.write(state.keyBuffer, 0, state.keyLength);
+      out.write(in.array(), in.arrayOffset() + state.valueOffset,
+        state.valueLength);
+    }
+    out.flush();
+    return ByteBuffer.wrap(baos.toByteArray());
+  }
+
+  /*
+   * Walks the KeyValues of a block, keeping the previous one to step back
+   * to when a seek goes past the key.
+   */
+  protected class BufferedEncodedSeeker implements EncodedSeeker {
+    private final RawComparator<byte []> comparator;
+    private ByteBuffer block;
+    private SeekerState current = new SeekerState();
+    private SeekerState previous = new SeekerState();
+
+    BufferedEncodedSeeker(final RawComparator<byte []> comparator) {
+      this.comparator = comparator;
+    }
+
+    @Override
+    public void setCurrentBuffer(final ByteBuffer block) {
+      this.block = block;
+      rewind();
+    }
+
+    @Override
+    public void rewind() {
+      this.block.rewind();
+      this.current.reset();
+      this.previous.reset();
+      decode();
+    }
+
+    private void decode() {
+      this.block.position(this.current.nextOffset);
+      this.current.offset = this.current.nextOffset;
+      decodeNext(this.block, this.current);
+      this.current.nextOffset = this.block.position();
+    }
+
+    private boolean hasNext() {
+      return this.current.nextOffset < this.block.limit();
+    }
+
+    @Override
+    public boolean next() {
+      if (!hasNext()) {
+        return false;
+      }
+      decode();
+      return true;
+    }
+
+    @Override
+    public int blockSeekTo(final byte [] key, final int offset,
+        final int length, final boolean seekBefore) {
+      boolean hasPrevious = false;
+      while (true) {
+        int comp = compareKey(key, offset, length);
+        if (comp == 0 && !seekBefore) {
+          return 0; // exact match
+        }
+        if (comp <= 0) {
+          // went past the key, go back one
+          if (hasPrevious) {
+            SeekerState tmp = this.current;
+            this.current = this.previous;
+            this.previous = tmp;
+          }
+          return 1;
+        }
+        if (!hasNext()) {
+          // the key is after the last of the block
+          return 1;
+        }
+        this.previous.copyFrom(this.current);
+        hasPrevious = true;
+        decode();
+      }
+    }
+
+    @Override
+    public int compareKey(final byte [] key, final int offset,
+        final int length) {
+      return this.comparator.compare(key, offset, length,
+        this.current.keyBuffer, 0, this.current.keyLength);
+    }
+
+    @Override
+    public ByteBuffer getKeyDeepCopy() {
+      byte [] key = new byte[this.current.keyLength];
+      System.arraycopy(this.current.keyBuffer, 0, key, 0, key.length);
+      return ByteBuffer.wrap(key);
+    }
+
+    @Override
+    public ByteBuffer getValueShallowCopy() {
+      ByteBuffer dup = this.block.duplicate();
+      dup.limit(this.current.valueOffset + this.current.valueLength);
+      dup.position(this.current.valueOffset);
+      return dup.slice();
+    }
+
+    @Override
+    public KeyValue getKeyValue() {
+      int klength = this.current.keyLength;
+      int vlength = this.current.valueLength;
+      byte [] b = new byte[KeyValue.ROW_OFFSET + klength + vlength];
+      int pos = Bytes.putInt(b, 0, klength);
+      pos = Bytes.putInt(b, pos, vlength);
+      System.arraycopy(this.current.keyBuffer, 0, b, pos, klength);
+      System.arraycopy(this.block.array(), this.block.arrayOffset() +
+        this.current.valueOffset, b, pos + klength, vlength);
+      return new KeyValue(b, 0, b.length);
+    }
+  }
+
+  /**
+   * @return length of the common prefix of the two ranges
+   */
+  static int commonPrefix(final byte [] a, final int aoffset, final int alength,
+      final byte [] b, final int boffset, final int blength) {
+    int max = Math.min(alength, blength);
+    int i = 0;
+    while (i < max && a[aoffset + i] == b[boffset + i]) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Write a non negative int in 7 bit groups, low group first.
+   * @throws IOException
+   */
+  static void writeCompressedInt(final OutputStream out, int i)
+      throws IOException {
+    while ((i & ~0x7F) != 0) {
+      out.write((i & 0x7F) | 0x80);
+      i >>>= 7;
+    }
+    out.write(i);
+  }
+
+  /**
+   * Read an int written by {@link #writeCompressedInt(OutputStream, int)}.
+   */
+  static int readCompressedInt(final ByteBuffer in) {
+    int b = in.get();
+    int i = b & 0x7F;
+    int shift = 7;
+    while ((b & 0x80) != 0) {
+      b = in.get();
+      i |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    return i;
+  }
+
+  /**
+   * @return bytes needed by the non zero low bytes of <code>v</code>, 1 for 0
+   */
+  static int bytesNeeded(final long v) {
+    if (v < 0) {
+      return 8;
+    }
+    int n = 1;
+    while (n < 8 && (v >>> (n * 8)) != 0) {
+      n++;
+    }
+    return n;
+  }
+
+  /** Write the <code>n</code> low bytes of <code>v</code>, high first. */
+  static void writeLong(final OutputStream out, final long v, final int n)
+      throws IOException {
+    for (int i = n - 1; i >= 0; i--) {
+      out.write((int)(v >>> (i * 8)));
+    }
+  }
+
+  /** Read <code>n</code> bytes written by {@link #writeLong}. */
+  static long readLong(final ByteBuffer in, final int n) {
+    long v = 0;
+    for (int i = 0; i < n; i++) {
+      v = (v << 8) | (in.get() & 0xFF);
+    }
+    return v;
+  }
+
+  /**
+   * @throws IOException if the key is too short to be the key of a KeyValue
+   */
+  static void checkKeyValueKey(final int klength) throws IOException {
+    if (klength < KeyValue.KEY_INFRASTRUCTURE_SIZE) {
+      throw new IOException("Key of " + klength +
+        " bytes is not the key of a KeyValue");
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.javenstudio.raptor.io.RawComparator;
+import org.javenstudio.raptor.bigdb.KeyValue;
+
+/**
+ * Encodes the KeyValues of a data block, and seeks in encoded blocks.
+ * <p>
+ * The KeyValues of a block are encoded one after the other, each relative
+ * to the one before it in the block, so a block is decoded from its start.
+ * Encoders hold no state, the state of a block being written is in its
+ * {@link BlockEncoder} and of a block being read in its {@link EncodedSeeker}.
+ */
+public interface DataBlockEncoder {
+
+  /**
+   * @return a new encoder of blocks, positioned at the start of a block
+   */
+  public BlockEncoder newBlockEncoder();
+
+  /**
+   * @param comparator comparator of the keys
+   * @return a new seeker for blocks of this encoding
+   */
+  public EncodedSeeker createSeeker(RawComparator<byte []> comparator);
+
+  /**
+   * Decode a whole block.
+   * @param block encoded block, from its first KeyValue to its limit
+   * @return the KeyValues of the block as DBFile lays them out unencoded,
+   * key length, value length, key and value
+   * @throws IOException
+   */
+  public ByteBuffer decodeKeyValues(ByteBuffer block) throws IOException;
+
+  /**
+   * Writes the KeyValues of the blocks of a file.
+   */
+  public interface BlockEncoder {
+
+    /** Start a new block, the next KeyValue is the first of a block. */
+    public void reset();
+
+    /**
+     * Encode a KeyValue after the ones already encoded in the block.
+     * @throws IOException
+     */
+    public void encode(DataOutputStream out, byte [] key, int koffset,
+        int klength, byte [] value, int voffset, int vlength)
+        throws IOException;
+  }
+
+  /**
+   * Reads an encoded block.  The key of the current KeyValue is decoded,
+   * the value is left in the block.  Seeking decodes the keys only.
+   */
+  public interface EncodedSeeker {
+
+    /**
+     * Set the block to read, and go to its first KeyValue.
+     * @param block encoded block, from its first KeyValue to its limit
+     */
+    public void setCurrentBuffer(ByteBuffer block);
+
+    /** Go back to the first KeyValue of the block. */
+    public void rewind();
+
+    /**
+     * Go to the next KeyValue of the block.
+     * @return false if at the last KeyValue of the block
+     */
+    public boolean next();
+
+    /**
+     * Go forward from the current KeyValue to the last one not after the
+     * key, or before it if <code>seekBefore</code>.
+     * @return 0 if on the key, 1 if on a KeyValue before it
+     */
+    public int blockSeekTo(byte [] key, int offset, int length,
+        boolean seekBefore);
+
+    /**
+     * @return the passed key compared to the current key
+     */
+    public int compareKey(byte [] key, int offset, int length);
+
+    /**
+     * @return copy of the current key
+     */
+    public ByteBuffer getKeyDeepCopy();
+
+    /**
+     * @return the current value, in the block
+     */
+    public ByteBuffer getValueShallowCopy();
+
+    /**
+     * @return copy of the current KeyValue
+     */
+    public KeyValue getKeyValue();
+  }
+}
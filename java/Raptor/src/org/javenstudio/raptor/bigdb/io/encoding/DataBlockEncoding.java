@@ -0,0 +1,56 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+/**
+ * The encodings of the KeyValues in the data blocks of a DBFile.
+ * Set per column family, see
+ * {@link org.javenstudio.raptor.bigdb.DBColumnDescriptor#setDataBlockEncoding}.
+ * The encoding of a file is kept in its file info, so files of a family
+ * written before the encoding was changed are still read.
+ */
+public enum DataBlockEncoding {
+
+  /** KeyValues as they are, key length, value length, key and value. */
+  NONE(0, null),
+  /** Only the part of a key not shared with the previous key. */
+  PREFIX(2, new PrefixKeyDeltaEncoder()),
+  /** Prefix plus lengths, timestamp and type relative to the previous. */
+  DIFF(3, new DiffKeyDeltaEncoder()),
+  /** Like diff, but quicker to decode and skipping repeated values. */
+  FAST_DIFF(4, new FastDiffDeltaEncoder());
+
+  private final short id;
+  private final DataBlockEncoder encoder;
+
+  private DataBlockEncoding(final int id, final DataBlockEncoder encoder) {
+    this.id = (short)id;
+    this.encoder = encoder;
+  }
+
+  /**
+   * @return id of the encoding
+   */
+  public short getId() {
+    return this.id;
+  }
+
+  /**
+   * @return encoder of the encoding, null for {@link #NONE}
+   */
+  public DataBlockEncoder getEncoder() {
+    return this.encoder;
+  }
+
+  /**
+   * @param id id of an encoding
+   * @return the encoding
+   * @throws IllegalArgumentException if there is no encoding of that id
+   */
+  public static DataBlockEncoding getEncodingById(final short id) {
+    for (DataBlockEncoding encoding : values()) {
+      if (encoding.id == id) {
+        return encoding;
+      }
+    }
+    throw new IllegalArgumentException("No data block encoding of id " + id);
+  }
+}
@@ -0,0 +1,134 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+
+/**
+ * Encodes each KeyValue by its differences with the previous one, knowing
+ * the layout of KeyValue keys.
+ * <p>
+ * A KeyValue is written as:
+ * <ul>
+ * <li>a flag byte, telling whether the key length, the value length and the
+ * type are those of the previous KeyValue, how many bytes the timestamp
+ * takes and whether it is a difference with the previous timestamp;
+ * <li>the key and value lengths as compressed ints, unless the same;
+ * <li>the length of the prefix of row, family and qualifier shared with
+ * the previous key, and the rest of them;
+ * <li>the timestamp, or its difference with the previous one if shorter,
+ * in as few bytes as it takes;
+ * <li>the type unless the same, then the value.
+ * </ul>
+ */
+public class DiffKeyDeltaEncoder extends BufferedDataBlockEncoder {
+
+  static final int FLAG_SAME_KEY_LENGTH = 1;
+  static final int FLAG_SAME_VALUE_LENGTH = 1 << 1;
+  static final int FLAG_SAME_TYPE = 1 << 2;
+  static final int FLAG_TIMESTAMP_IS_DIFF = 1 << 3;
+  static final int MASK_TIMESTAMP_LENGTH = (1 << 4) | (1 << 5) | (1 << 6);
+  static final int SHIFT_TIMESTAMP_LENGTH = 4;
+  static final int FLAG_TIMESTAMP_SIGN = 1 << 7;
+
+  @Override
+  protected void encodeKeyValue(final EncodingState prev,
+      final DataOutputStream out, final byte [] key, final int koffset,
+      final int klength, final byte [] value, final int voffset,
+      final int vlength) throws IOException {
+    checkKeyValueKey(klength);
+    int restLength = klength - KeyValue.TIMESTAMP_TYPE_SIZE;
+    long timestamp = Bytes.toLong(key, koffset + restLength);
+    byte type = key[koffset + klength - 1];
+
+    int flags = 0;
+    int common = 0;
+    long tsValue = timestamp;
+    if (!prev.isFirst()) {
+      int prevRestLength = prev.prevKeyLength - KeyValue.TIMESTAMP_TYPE_SIZE;
+      if (klength == prev.prevKeyLength) {
+        flags |= FLAG_SAME_KEY_LENGTH;
+      }
+      if (vlength == prev.prevValueLength) {
+        flags |= FLAG_SAME_VALUE_LENGTH;
+      }
+      if (type == prev.prevKey[prev.prevKeyLength - 1]) {
+        flags |= FLAG_SAME_TYPE;
+      }
+      common = commonPrefix(prev.prevKey, 0, prevRestLength, key, koffset,
+        restLength);
+      long diff = Bytes.toLong(prev.prevKey, prevRestLength) - timestamp;
+      if (bytesNeeded(Math.abs(diff)) < bytesNeeded(timestamp)) {
+        flags |= FLAG_TIMESTAMP_IS_DIFF;
+        if (diff < 0) {
+          flags |= FLAG_TIMESTAMP_SIGN;
+        }
+        tsValue = Math.abs(diff);
+      }
+    }
+    int tsLength = bytesNeeded(tsValue);
+    flags |= (tsLength - 1) << SHIFT_TIMESTAMP_LENGTH;
+
+    out.write(flags);
+    if ((flags & FLAG_SAME_KEY_LENGTH) == 0) {
+      writeCompressedInt(out, klength);
+    }
+    if ((flags & FLAG_SAME_VALUE_LENGTH) == 0) {
+      writeCompressedInt(out, vlength);
+    }
+    writeCompressedInt(out, common);
+    out.write(key, koffset + common, restLength - common);
+    writeLong(out, tsValue, tsLength);
+    if ((flags & FLAG_SAME_TYPE) == 0) {
+      out.write(type);
+    }
+    out.write(value, voffset, vlength);
+  }
+
+  @Override
+  protected void decodeNext(final ByteBuffer block, final SeekerState current) {
+    int flags = block.get() & 0xFF;
+    int prevKeyLength = current.keyLength;
+    int klength = (flags & FLAG_SAME_KEY_LENGTH) != 0? prevKeyLength:
+      readCompressedInt(block);
+    int vlength = (flags & FLAG_SAME_VALUE_LENGTH) != 0? current.valueLength:
+      readCompressedInt(block);
+    int common = readCompressedInt(block);
+
+    // read what is needed of the previous key before overwriting it
+    long prevTimestamp = 0;
+    byte prevType = 0;
+    if (prevKeyLength > 0) {
+      prevTimestamp = Bytes.toLong(current.keyBuffer,
+        prevKeyLength - KeyValue.TIMESTAMP_TYPE_SIZE);
+      prevType = current.keyBuffer[prevKeyLength - 1];
+    }
+
+    int restLength = klength - KeyValue.TIMESTAMP_TYPE_SIZE;
+    current.ensureKeyCapacity(klength);
+    block.get(current.keyBuffer, common, restLength - common);
+
+    int tsLength = ((flags & MASK_TIMESTAMP_LENGTH) >>> SHIFT_TIMESTAMP_LENGTH) + 1;
+    long timestamp = readLong(block, tsLength);
+    if ((flags & FLAG_TIMESTAMP_IS_DIFF) != 0) {
+      timestamp = (flags & FLAG_TIMESTAMP_SIGN) != 0?
+        prevTimestamp + timestamp: prevTimestamp - timestamp;
+    }
+    Bytes.putLong(current.keyBuffer, restLength, timestamp);
+    current.keyBuffer[klength - 1] = (flags & FLAG_SAME_TYPE) != 0?
+      prevType: block.get();
+
+    current.keyLength = klength;
+    current.valueOffset = block.position();
+    current.valueLength = vlength;
+    block.position(block.position() + vlength);
+  }
+
+  @Override
+  public String toString() {
+    return "DiffKeyDeltaEncoder";
+  }
+}
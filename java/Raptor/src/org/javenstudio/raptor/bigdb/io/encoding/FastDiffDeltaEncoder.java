@@ -0,0 +1,136 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+
+/**
+ * Like {@link DiffKeyDeltaEncoder}, but decoded by copying bytes rather
+ * than by arithmetic, and leaving out values equal to the previous one.
+ * <p>
+ * A KeyValue is written as:
+ * <ul>
+ * <li>a flag byte, telling whether the key length, the value length, the
+ * type and the value are those of the previous KeyValue, and how many
+ * leading bytes of the timestamp are those of the previous timestamp;
+ * <li>the key and value lengths as compressed ints, unless the same;
+ * <li>the length of the prefix of row, family and qualifier shared with
+ * the previous key, and the rest of them;
+ * <li>the timestamp bytes after the shared ones;
+ * <li>the type unless the same, then the value unless the same.
+ * </ul>
+ */
+public class FastDiffDeltaEncoder extends BufferedDataBlockEncoder {
+
+  static final int FLAG_SAME_KEY_LENGTH = 1;
+  static final int FLAG_SAME_VALUE_LENGTH = 1 << 1;
+  static final int FLAG_SAME_TYPE = 1 << 2;
+  static final int FLAG_SAME_VALUE = 1 << 3;
+  static final int MASK_TIMESTAMP_COMMON = (1 << 4) | (1 << 5) | (1 << 6);
+  static final int SHIFT_TIMESTAMP_COMMON = 4;
+  // At most 7 of the 8 timestamp bytes are shared, to fit in the flags
+  static final int MAX_TIMESTAMP_COMMON = 7;
+
+  @Override
+  protected boolean keepsPreviousValue() {
+    return true;
+  }
+
+  @Override
+  protected void encodeKeyValue(final EncodingState prev,
+      final DataOutputStream out, final byte [] key, final int koffset,
+      final int klength, final byte [] value, final int voffset,
+      final int vlength) throws IOException {
+    checkKeyValueKey(klength);
+    int restLength = klength - KeyValue.TIMESTAMP_TYPE_SIZE;
+    byte type = key[koffset + klength - 1];
+
+    int flags = 0;
+    int common = 0;
+    int tsCommon = 0;
+    if (!prev.isFirst()) {
+      int prevRestLength = prev.prevKeyLength - KeyValue.TIMESTAMP_TYPE_SIZE;
+      if (klength == prev.prevKeyLength) {
+        flags |= FLAG_SAME_KEY_LENGTH;
+      }
+      if (vlength == prev.prevValueLength) {
+        flags |= FLAG_SAME_VALUE_LENGTH;
+        if (Bytes.compareTo(value, voffset, vlength, prev.prevValue, 0,
+            vlength) == 0) {
+          flags |= FLAG_SAME_VALUE;
+        }
+      }
+      if (type == prev.prevKey[prev.prevKeyLength - 1]) {
+        flags |= FLAG_SAME_TYPE;
+      }
+      common = commonPrefix(prev.prevKey, 0, prevRestLength, key, koffset,
+        restLength);
+      tsCommon = commonPrefix(prev.prevKey, prevRestLength,
+        MAX_TIMESTAMP_COMMON, key, koffset + restLength, MAX_TIMESTAMP_COMMON);
+    }
+    flags |= tsCommon << SHIFT_TIMESTAMP_COMMON;
+
+    out.write(flags);
+    if ((flags & FLAG_SAME_KEY_LENGTH) == 0) {
+      writeCompressedInt(out, klength);
+    }
+    if ((flags & FLAG_SAME_VALUE_LENGTH) == 0) {
+      writeCompressedInt(out, vlength);
+    }
+    writeCompressedInt(out, common);
+    out.write(key, koffset + common, restLength - common);
+    out.write(key, koffset + restLength + tsCommon, Bytes.SIZEOF_LONG - tsCommon);
+    if ((flags & FLAG_SAME_TYPE) == 0) {
+      out.write(type);
+    }
+    if ((flags & FLAG_SAME_VALUE) == 0) {
+      out.write(value, voffset, vlength);
+    }
+  }
+
+  @Override
+  protected void decodeNext(final ByteBuffer block, final SeekerState current) {
+    int flags = block.get() & 0xFF;
+    int prevKeyLength = current.keyLength;
+    int klength = (flags & FLAG_SAME_KEY_LENGTH) != 0? prevKeyLength:
+      readCompressedInt(block);
+    int vlength = (flags & FLAG_SAME_VALUE_LENGTH) != 0? current.valueLength:
+      readCompressedInt(block);
+    int common = readCompressedInt(block);
+    int restLength = klength - KeyValue.TIMESTAMP_TYPE_SIZE;
+    current.ensureKeyCapacity(klength);
+
+    int tsCommon = (flags & MASK_TIMESTAMP_COMMON) >>> SHIFT_TIMESTAMP_COMMON;
+    byte prevType = 0;
+    if (prevKeyLength > 0) {
+      prevType = current.keyBuffer[prevKeyLength - 1];
+      if (tsCommon > 0 && klength != prevKeyLength) {
+        // move the shared timestamp bytes to where the timestamp now is,
+        // before the rest of the key overwrites them
+        System.arraycopy(current.keyBuffer,
+          prevKeyLength - KeyValue.TIMESTAMP_TYPE_SIZE, current.keyBuffer,
+          restLength, tsCommon);
+      }
+    }
+    block.get(current.keyBuffer, common, restLength - common);
+    block.get(current.keyBuffer, restLength + tsCommon,
+      Bytes.SIZEOF_LONG - tsCommon);
+    current.keyBuffer[klength - 1] = (flags & FLAG_SAME_TYPE) != 0?
+      prevType: block.get();
+
+    current.keyLength = klength;
+    current.valueLength = vlength;
+    if ((flags & FLAG_SAME_VALUE) == 0) {
+      current.valueOffset = block.position();
+      block.position(block.position() + vlength);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FastDiffDeltaEncoder";
+  }
+}
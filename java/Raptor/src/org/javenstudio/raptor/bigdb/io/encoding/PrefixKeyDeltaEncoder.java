@@ -0,0 +1,48 @@
+package org.javenstudio.raptor.bigdb.io.encoding;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes only the part of each key not shared with the previous key.
+ * <p>
+ * A KeyValue is written as key length, value length, length of the prefix
+ * shared with the previous key, all as compressed ints, then the rest of
+ * the key and the value.  Rows of many columns keep only one copy of
+ * the row per block, whatever the layout of their keys.
+ */
+public class PrefixKeyDeltaEncoder extends BufferedDataBlockEncoder {
+
+  @Override
+  protected void encodeKeyValue(final EncodingState prev,
+      final DataOutputStream out, final byte [] key, final int koffset,
+      final int klength, final byte [] value, final int voffset,
+      final int vlength) throws IOException {
+    int common = prev.isFirst()? 0: commonPrefix(prev.prevKey, 0,
+      prev.prevKeyLength, key, koffset, klength);
+    writeCompressedInt(out, klength);
+    writeCompressedInt(out, vlength);
+    writeCompressedInt(out, common);
+    out.write(key, koffset + common, klength - common);
+    out.write(value, voffset, vlength);
+  }
+
+  @Override
+  protected void decodeNext(final ByteBuffer block, final SeekerState current) {
+    int klength = readCompressedInt(block);
+    int vlength = readCompressedInt(block);
+    int common = readCompressedInt(block);
+    current.ensureKeyCapacity(klength);
+    block.get(current.keyBuffer, common, klength - common);
+    current.keyLength = klength;
+    current.valueOffset = block.position();
+    current.valueLength = vlength;
+    block.position(block.position() + vlength);
+  }
+
+  @Override
+  public String toString() {
+    return "PrefixKeyDeltaEncoder";
+  }
+}
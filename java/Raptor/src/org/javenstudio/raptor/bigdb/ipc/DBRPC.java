@@ -13,7 +13,9 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configurable;
@@ -486,6 +488,7 @@ public class DBRPC {
     private Class<?> implementation;
     private Class<?> ifaces[];
     private boolean verbose;
+    private Set<String> priorityMethods = new HashSet<String>();
 
     private static String classNameBase(String className) {
       String[] names = className.split("\\.", -1);
@@ -517,6 +520,21 @@ public class DBRPC {
 
       // create metrics for the advertised interfaces this server implements.
       this.rpcMetrics.createMetrics(this.ifaces);
+
+      String[] methods = conf.getStrings("ipc.server.priority.methods",
+          org.javenstudio.raptor.ipc.RPC.Server.DEFAULT_PRIORITY_METHODS);
+      if (methods != null) {
+        for (String method : methods) {
+          priorityMethods.add(method.trim());
+        }
+      }
+    }
+
+    @Override
+    protected boolean isPriorityCall(Writable param) {
+      if (param instanceof Invocation)
+        return priorityMethods.contains(((Invocation)param).getMethodName());
+      return false;
     }
 
     @Override
@@ -27,16 +27,16 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.io.ObjectWritable;
 import org.javenstudio.raptor.io.Writable;
 import org.javenstudio.raptor.io.WritableUtils;
+import org.javenstudio.raptor.ipc.CallQueue;
+import org.javenstudio.raptor.ipc.Schedulable;
 import org.javenstudio.raptor.security.UserGroupInformation;
 import org.javenstudio.raptor.util.ReflectionUtils;
 import org.javenstudio.raptor.util.StringUtils;
@@ -132,7 +132,7 @@ public abstract class DBServer {
   protected final boolean tcpKeepAlive; // if T then use keepalives
 
   volatile protected boolean running = true;         // true while server runs
-  protected BlockingQueue<Call> callQueue; // queued calls
+  protected CallQueue<Call> callQueue; // queued calls
 
   protected final List<Connection> connectionList =
     Collections.synchronizedList(new LinkedList<Connection>());
@@ -176,13 +176,14 @@ public abstract class DBServer {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     protected int id;                             // the client's call id
     protected Writable param;                     // the parameter passed
     protected Connection connection;              // connection to client
     protected long timestamp;      // the time received when response is null
                                    // the time served when response is not null
     protected ByteBuffer response;                // the response for this call
+    protected boolean priority = false;           // served in the priority lane
 
     public Call(int id, Writable param, Connection connection) {
       this.id = id;
@@ -200,6 +201,17 @@ public abstract class DBServer {
     public void setResponse(ByteBuffer response) {
       this.response = response;
     }
+
+    @Override
+    public String getUserName() {
+      UserGroupInformation ticket = connection.ticket;
+      return (ticket == null) ? null : ticket.getUserName();
+    }
+
+    @Override
+    public boolean isPriority() {
+      return priority;
+    }
   }
 
   /** Listens on the socket. Creates jobs for the handler threads*/
@@ -936,6 +948,7 @@ public abstract class DBServer {
       param.readFields(dis);
 
       Call call = new Call(id, param, this);
+      call.priority = isPriorityCall(param);
       callQueue.put(call);              // queue the call; maybe blocked here
     }
 
@@ -1061,7 +1074,7 @@ public abstract class DBServer {
      this.readThreads = conf.getInt(
         "ipc.server.read.threadpool.size",
         10);
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize);
+    this.callQueue  = CallQueue.newInstance(conf, maxQueueSize);
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1151,6 +1164,16 @@ public abstract class DBServer {
   public abstract Writable call(Writable param, long receiveTime)
                                                 throws IOException;
 
+  /**
+   * Whether the call should be served in the priority lane of the
+   * {@link CallQueue}. Called by the reader threads for each call read.
+   * @param param writable parameter
+   * @return true for admin or meta calls
+   */
+  protected boolean isPriorityCall(Writable param) {
+    return false;
+  }
+
   /**
    * The number of open RPC conections
    * @return the number of open rpc connections
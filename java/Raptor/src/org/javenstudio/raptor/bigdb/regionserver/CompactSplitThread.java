@@ -2,32 +2,59 @@ package org.javenstudio.raptor.bigdb.regionserver;
 
 import java.io.IOException;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.bigdb.DBTableDescriptor;
 import org.javenstudio.raptor.bigdb.RemoteExceptionHandler;
 import org.javenstudio.raptor.util.StringUtils;
 
+import com.google.common.util.concurrent.DaemonThreadFactory;
+import com.google.common.util.concurrent.NamingThreadFactory;
+
 /**
- * Compact region on request and then run split if appropriate
+ * Compact region on request and then run split if appropriate.
+ * <p>
+ * Compactions run in two thread pools, so a long compaction of a large
+ * region does not hold back the small ones of other regions. A request
+ * goes to the large pool when the store files of the region add up to
+ * more than <tt>bigdb.regionserver.thread.compaction.throttle</tt> bytes,
+ * else to the small pool. Each pool takes the region with the most urgent
+ * store first, the one with the most store files relative to the count
+ * at which its flushes are blocked, then the oldest request. Splits
+ * following compactions are done one at a time.
+ * <p>
+ * This thread only lives as long as the region server, and shuts the
+ * pools down on its way out.
  */
 class CompactSplitThread extends Thread {
   static final Logger LOG = Logger.getLogger(CompactSplitThread.class);
 
+  public static final String LARGE_THREADS_KEY =
+    "bigdb.regionserver.thread.compaction.large";
+  public static final String SMALL_THREADS_KEY =
+    "bigdb.regionserver.thread.compaction.small";
+  public static final String THROTTLE_POINT_KEY =
+    "bigdb.regionserver.thread.compaction.throttle";
+
   private final long frequency;
-  private final ReentrantLock lock = new ReentrantLock();
+  private final ReentrantLock splitLock = new ReentrantLock();
 
   private final DBRegionServer server;
   private final Configuration conf;
 
-  private final BlockingQueue<DBRegion> compactionQueue =
-    new LinkedBlockingQueue<DBRegion>();
+  private final ThreadPoolExecutor largeCompactions;
+  private final ThreadPoolExecutor smallCompactions;
+  private final long throttlePoint;
 
   private final HashSet<DBRegion> regionsInQueue = new HashSet<DBRegion>();
+  private long requestCount = 0;
 
   /**
    * Splitting should not take place if the total number of regions exceed this.
@@ -46,51 +73,120 @@ class CompactSplitThread extends Thread {
     this.frequency =
       conf.getLong("bigdb.regionserver.thread.splitcompactcheckfrequency",
       20 * 1000);
+
+    int largeThreads = Math.max(1, conf.getInt(LARGE_THREADS_KEY, 1));
+    int smallThreads = Math.max(1, conf.getInt(SMALL_THREADS_KEY, 1));
+    // by default, what a compaction of the flushes of a region up to the
+    // file count limit of a minor compaction would read
+    this.throttlePoint = conf.getLong(THROTTLE_POINT_KEY,
+        2 * conf.getInt("bigdb.hstore.compaction.max", 10) *
+        conf.getLong("bigdb.hregion.memstore.flush.size",
+          DBTableDescriptor.DEFAULT_MEMSTORE_FLUSH_SIZE));
+    this.largeCompactions = createPool("largeCompactions", largeThreads);
+    this.smallCompactions = createPool("smallCompactions", smallThreads);
+    LOG.info("Compaction threads: large=" + largeThreads + ", small=" +
+        smallThreads + ", throttlePoint=" +
+        StringUtils.humanReadableInt(this.throttlePoint));
+  }
+
+  private static ThreadPoolExecutor createPool(String name, int threads) {
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(),
+        new NamingThreadFactory(name + "-%1$d",
+          new DaemonThreadFactory(Executors.defaultThreadFactory())));
   }
 
   @Override
   public void run() {
     while (!this.server.isStopRequested()) {
-      DBRegion r = null;
       try {
-        r = compactionQueue.poll(this.frequency, TimeUnit.MILLISECONDS);
-        if (r != null && !this.server.isStopRequested()) {
-          synchronized (regionsInQueue) {
-            regionsInQueue.remove(r);
-          }
-          lock.lock();
+        Thread.sleep(this.frequency);
+      } catch (InterruptedException ex) {
+        continue;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Compaction queues: large=" + getLargeCompactionQueueSize() +
+            ", small=" + getSmallCompactionQueueSize());
+      }
+    }
+    // Queued requests return at once now stop is requested; let the
+    // compactions under way finish.
+    this.largeCompactions.shutdown();
+    this.smallCompactions.shutdown();
+    waitFor(this.largeCompactions, "largeCompactions");
+    waitFor(this.smallCompactions, "smallCompactions");
+    synchronized (regionsInQueue) {
+      regionsInQueue.clear();
+    }
+    LOG.info(getName() + " exiting");
+  }
+
+  private void waitFor(ThreadPoolExecutor pool, String name) {
+    try {
+      while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOG.info("Waiting for " + name + " to finish");
+      }
+    } catch (InterruptedException ie) {
+      LOG.warn("Interrupted waiting for " + name + " to finish");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A queued compaction of a region, ordered by the priority of the region
+   * when requested and then by age.
+   */
+  private class CompactionRequest implements Runnable,
+      Comparable<CompactionRequest> {
+    private final DBRegion region;
+    private final int priority;
+    private final long seq;
+
+    CompactionRequest(DBRegion region, int priority, long seq) {
+      this.region = region;
+      this.priority = priority;
+      this.seq = seq;
+    }
+
+    @Override
+    public int compareTo(CompactionRequest o) {
+      if (this.priority != o.priority) {
+        return this.priority < o.priority ? -1 : 1;
+      }
+      return this.seq < o.seq ? -1 : (this.seq == o.seq ? 0 : 1);
+    }
+
+    @Override
+    public void run() {
+      synchronized (regionsInQueue) {
+        regionsInQueue.remove(this.region);
+      }
+      if (server.isStopRequested()) {
+        return;
+      }
+      DBRegion r = this.region;
+      try {
+        byte [] midKey = r.compactStores();
+        if (shouldSplitRegion() && midKey != null &&
+            !server.isStopRequested()) {
+          splitLock.lock();
           try {
-            // Don't interrupt us while we are working
-            byte [] midKey = r.compactStores();
-            if (shouldSplitRegion() && midKey != null &&
-                !this.server.isStopRequested()) {
-              split(r, midKey);
-            }
+            split(r, midKey);
           } finally {
-            lock.unlock();
+            splitLock.unlock();
           }
         }
-      } catch (InterruptedException ex) {
-        continue;
       } catch (IOException ex) {
         LOG.error("Compaction/Split failed for region " +
             r.getRegionNameAsString(),
           RemoteExceptionHandler.checkIOException(ex));
-        if (!server.checkFileSystem()) {
-          break;
-        }
+        server.checkFileSystem();
       } catch (Exception ex) {
-        LOG.error("Compaction failed" +
-            (r != null ? (" for region " + r.getRegionNameAsString()) : ""),
-            ex);
-        if (!server.checkFileSystem()) {
-          break;
-        }
+        LOG.error("Compaction failed for region " +
+            r.getRegionNameAsString(), ex);
+        server.checkFileSystem();
       }
     }
-    regionsInQueue.clear();
-    compactionQueue.clear();
-    LOG.info(getName() + " exiting");
   }
 
   /**
@@ -113,15 +209,30 @@ class CompactSplitThread extends Thread {
       return;
     }
     r.setForceMajorCompaction(force);
+    synchronized (regionsInQueue) {
+      if (regionsInQueue.contains(r)) {
+        return;
+      }
+      regionsInQueue.add(r);
+    }
+    long size = r.getStorefilesSize();
+    int priority = r.getCompactPriority();
+    boolean large = size > this.throttlePoint;
     if (LOG.isDebugEnabled()) {
       LOG.debug("Compaction " + (force? "(major) ": "") +
         "requested for region " + r.getRegionNameAsString() +
-        (why != null && !why.isEmpty()? " because: " + why: ""));
+        (why != null && !why.isEmpty()? " because: " + why: "") +
+        "; priority=" + priority + ", size=" +
+        StringUtils.humanReadableInt(size) + " in " +
+        (large ? "large" : "small") + " queue");
     }
-    synchronized (regionsInQueue) {
-      if (!regionsInQueue.contains(r)) {
-        compactionQueue.add(r);
-        regionsInQueue.add(r);
+    CompactionRequest cr = new CompactionRequest(r, priority, requestCount++);
+    try {
+      (large ? this.largeCompactions : this.smallCompactions).execute(cr);
+    } catch (RejectedExecutionException ree) {
+      // shutting down
+      synchronized (regionsInQueue) {
+        regionsInQueue.remove(r);
       }
     }
   }
@@ -163,22 +274,29 @@ class CompactSplitThread extends Thread {
   }
 
   /**
-   * Only interrupt once it's done with a run through the work loop.
+   * Wake the thread so it notices the stop and shuts the pools down;
+   * compactions under way are not interrupted.
    */
   void interruptIfNecessary() {
-    if (lock.tryLock()) {
-      this.interrupt();
-    }
+    this.interrupt();
   }
 
   /**
-   * Returns the current size of the queue containing regions that are
+   * Returns the current size of the queues containing regions that are
    * processed.
    *
-   * @return The current size of the regions queue.
+   * @return The current size of the regions queues.
    */
   public int getCompactionQueueSize() {
-    return compactionQueue.size();
+    return getLargeCompactionQueueSize() + getSmallCompactionQueueSize();
+  }
+
+  public int getLargeCompactionQueueSize() {
+    return this.largeCompactions.getQueue().size();
+  }
+
+  public int getSmallCompactionQueueSize() {
+    return this.smallCompactions.getQueue().size();
   }
 
   private boolean shouldSplitRegion() {
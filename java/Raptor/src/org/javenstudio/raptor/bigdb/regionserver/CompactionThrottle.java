@@ -0,0 +1,100 @@
+package org.javenstudio.raptor.bigdb.regionserver;
+
+import java.io.InterruptedIOException;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Limits the bytes per second written by the compactions of the process.
+ * <p>
+ * Compacting stores report the bytes they write; once the compactions of
+ * all the threads are ahead of <tt>bigdb.regionserver.compaction.max.throughput</tt>
+ * bytes per second, the reporting thread sleeps until the rate is back
+ * under the limit. A limit of zero, the default, leaves compactions
+ * unthrottled. The bytes compacted are counted for the region server
+ * metrics either way.
+ */
+public class CompactionThrottle {
+  static final Logger LOG = Logger.getLogger(CompactionThrottle.class);
+
+  public static final String MAX_THROUGHPUT_KEY =
+    "bigdb.regionserver.compaction.max.throughput";
+
+  // The rate is measured over windows of this length
+  private static final long WINDOW = 1000;
+
+  private static CompactionThrottle theInstance = null;
+
+  // For measuring compaction throughput and time held back
+  private static volatile long compactedBytes;
+  private static volatile long throttledTime;
+
+  public static final long getCompactedBytes() {
+    long ret = compactedBytes;
+    compactedBytes = 0;
+    return ret;
+  }
+
+  public static final long getThrottledTime() {
+    long ret = throttledTime;
+    throttledTime = 0;
+    return ret;
+  }
+
+  private final long maxThroughput;
+  private long windowStart = System.currentTimeMillis();
+  private long windowBytes = 0;
+
+  /** Returns the throttle of the process, created with the first configuration. */
+  static synchronized CompactionThrottle get(Configuration conf) {
+    if (theInstance == null) {
+      theInstance = new CompactionThrottle(conf.getLong(MAX_THROUGHPUT_KEY, 0));
+    }
+    return theInstance;
+  }
+
+  CompactionThrottle(long maxThroughput) {
+    this.maxThroughput = maxThroughput;
+    if (maxThroughput > 0) {
+      LOG.info("Compaction throughput limited to " +
+        StringUtils.humanReadableInt(maxThroughput) + "/s");
+    }
+  }
+
+  /**
+   * Account bytes written by a compaction, sleeping if the compactions
+   * write faster than allowed.
+   * @param bytes bytes written since the last call
+   * @throws InterruptedIOException if interrupted while held back
+   */
+  void throttle(final long bytes) throws InterruptedIOException {
+    compactedBytes += bytes;
+    if (maxThroughput <= 0) {
+      return;
+    }
+    long sleep;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - windowStart >= WINDOW) {
+        windowStart = now;
+        windowBytes = 0;
+      }
+      windowBytes += bytes;
+      sleep = windowBytes * 1000 / maxThroughput - (now - windowStart);
+    }
+    if (sleep > 0) {
+      try {
+        Thread.sleep(sleep);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+      throttledTime += sleep;
+    }
+  }
+
+  long getMaxThroughput() {
+    return maxThroughput;
+  }
+}
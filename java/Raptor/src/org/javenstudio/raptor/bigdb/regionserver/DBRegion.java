@@ -11,10 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.Random;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -53,6 +50,7 @@ import org.javenstudio.raptor.bigdb.io.dbfile.BlockCache;
 import org.javenstudio.raptor.bigdb.ipc.DBRegionInterface;
 import org.javenstudio.raptor.bigdb.regionserver.wal.DBLog;
 import org.javenstudio.raptor.bigdb.regionserver.wal.DBLogKey;
+import org.javenstudio.raptor.bigdb.regionserver.wal.DBLogPrefetcher;
 import org.javenstudio.raptor.bigdb.regionserver.wal.WALEdit;
 import org.javenstudio.raptor.bigdb.util.Bytes;
 import org.javenstudio.raptor.bigdb.util.ClassSize;
@@ -115,12 +113,7 @@ public class DBRegion implements HeapSize { // , Writable{
   // Members
   //////////////////////////////////////////////////////////////////////////////
 
-  private final Set<byte[]> lockedRows =
-    new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
-  private final Map<Integer, byte []> lockIds =
-    new HashMap<Integer, byte []>();
-  private int lockIdGenerator = 1;
-  static private Random rand = new Random();
+  private final RowLockManager rowLocks;
 
   protected final Map<byte [], Store> stores =
     new ConcurrentSkipListMap<byte [], Store>(Bytes.BYTES_RAWCOMPARATOR);
@@ -225,6 +218,7 @@ public class DBRegion implements HeapSize { // , Writable{
     this.regiondir = null;
     this.regionInfo = null;
     this.threadWakeFrequency = 0L;
+    this.rowLocks = new RowLockManager(RowLockManager.DEFAULT_WAIT_DURATION);
   }
 
   /**
@@ -264,6 +258,8 @@ public class DBRegion implements HeapSize { // , Writable{
     this.flushListener = flushListener;
     this.threadWakeFrequency = conf.getLong(DBConstants.THREAD_WAKE_FREQUENCY,
         10 * 1000);
+    this.rowLocks = new RowLockManager(conf.getLong(
+        RowLockManager.WAIT_DURATION_KEY, RowLockManager.DEFAULT_WAIT_DURATION));
     String encodedNameStr = this.regionInfo.getEncodedName();
     this.regiondir = getRegionDir(this.tableDir, encodedNameStr);
     if (LOG.isDebugEnabled()) {
@@ -631,6 +627,30 @@ public class DBRegion implements HeapSize { // , Writable{
     return this.forceMajorCompaction;
   }
 
+  /**
+   * @return The compaction priority of the most urgent store, lower is
+   * more urgent
+   * @see Store#getCompactPriority()
+   */
+  int getCompactPriority() {
+    int priority = Integer.MAX_VALUE;
+    for (Store store : this.stores.values()) {
+      priority = Math.min(priority, store.getCompactPriority());
+    }
+    return priority;
+  }
+
+  /**
+   * @return The size of the store files of all stores, in bytes
+   */
+  long getStorefilesSize() {
+    long size = 0;
+    for (Store store : this.stores.values()) {
+      size += store.getStorefilesSize();
+    }
+    return size;
+  }
+
   /**
    * Called by compaction thread and after region is opened to compact the
    * HStores if necessary.
@@ -1746,24 +1766,47 @@ public class DBRegion implements HeapSize { // , Writable{
     long seqid = minSeqId;
     NavigableSet<Path> files = DBLog.getSplitEditFilesSorted(this.fs, regiondir);
     if (files == null || files.isEmpty()) return seqid;
+    List<Path> replayFiles = new ArrayList<Path>(files.size());
     for (Path edits: files) {
       if (edits == null || !this.fs.exists(edits)) {
         LOG.warn("Null or non-existent edits file: " + edits);
         continue;
       }
       if (isZeroLengthThenDelete(this.fs, edits)) continue;
-      try {
-        seqid = replayRecoveredEdits(edits, seqid, reporter);
-      } catch (IOException e) {
-        boolean skipErrors = conf.getBoolean("bigdb.skip.errors", false);
-        if (skipErrors) {
-          Path p = DBLog.moveAsideBadEditsFile(fs, edits);
-          LOG.error("bigdb.skip.errors=true so continuing. Renamed " + edits +
-            " as " + p, e);
-        } else {
-          throw e;
+      replayFiles.add(edits);
+    }
+    // Read the files ahead while the edits are applied, in order
+    long startTime = System.currentTimeMillis();
+    DBLogPrefetcher prefetcher = new DBLogPrefetcher(this.fs, this.conf,
+      replayFiles, conf.getInt("bigdb.region.replay.reader.threads", 3),
+      conf.getInt("bigdb.region.replay.buffer.edits", 1000));
+    try {
+      for (int i = 0; i < replayFiles.size(); i++) {
+        Path edits = replayFiles.get(i);
+        LOG.info("Replaying edits from " + edits + "; minSequenceid=" + seqid);
+        DBLog.Reader reader = prefetcher.getReader(i);
+        try {
+          seqid = replayRecoveredEdits(reader, seqid, reporter);
+        } catch (IOException e) {
+          boolean skipErrors = conf.getBoolean("bigdb.skip.errors", false);
+          if (skipErrors) {
+            Path p = DBLog.moveAsideBadEditsFile(fs, edits);
+            LOG.error("bigdb.skip.errors=true so continuing. Renamed " + edits +
+              " as " + p, e);
+          } else {
+            throw e;
+          }
+        } finally {
+          reader.close();
         }
       }
+    } finally {
+      prefetcher.close();
+    }
+    if (!replayFiles.isEmpty()) {
+      LOG.info("Replayed " + replayFiles.size() + " recovered edits file(s) of " +
+        this + " in " + (System.currentTimeMillis() - startTime) +
+        "ms, waited " + prefetcher.getWaitTime() + "ms on reads");
     }
     if (seqid > minSeqId) {
       // Then we added some edits to memory. Flush and cleanup split edit files.
@@ -1779,27 +1822,6 @@ public class DBRegion implements HeapSize { // , Writable{
     return seqid;
   }
 
-  /*
-   * @param edits File of recovered edits.
-   * @param minSeqId Minimum sequenceid found in a store file.  Edits in log
-   * must be larger than this to be replayed.
-   * @param reporter
-   * @return the sequence id of the last edit added to this region out of the
-   * recovered edits log or <code>minSeqId</code> if nothing added from editlogs.
-   * @throws IOException
-   */
-  private long replayRecoveredEdits(final Path edits,
-      final long minSeqId, final Progressable reporter)
-    throws IOException {
-    LOG.info("Replaying edits from " + edits + "; minSequenceid=" + minSeqId);
-    DBLog.Reader reader = DBLog.getReader(this.fs, edits, conf);
-    try {
-      return replayRecoveredEdits(reader, minSeqId, reporter);
-    } finally {
-      reader.close();
-    }
-  }
-
  /* @param reader Reader against file of recovered edits.
   * @param minSeqId Any edit found in split editlogs needs to be in excess of
   * this minSeqId to be applied, else its skipped.
@@ -1987,38 +2009,9 @@ public class DBRegion implements HeapSize { // , Writable{
     checkRow(row);
     startRegionOperation();
     try {
-      synchronized (lockedRows) {
-        while (lockedRows.contains(row)) {
-          if (!waitForLock) {
-            return null;
-          }
-          try {
-            lockedRows.wait();
-          } catch (InterruptedException ie) {
-            // Empty
-          }
-        }
-        // generate a new lockid. Attempt to insert the new [lockid, row].
-        // if this lockid already exists in the map then revert and retry
-        // We could have first done a lockIds.get, and if it does not exist only
-        // then do a lockIds.put, but the hope is that the lockIds.put will
-        // mostly return null the first time itself because there won't be
-        // too many lockId collisions.
-        byte [] prev = null;
-        Integer lockId = null;
-        do {
-          lockId = new Integer(lockIdGenerator++);
-          prev = lockIds.put(lockId, row);
-          if (prev != null) {
-            lockIds.put(lockId, prev);    // revert old value
-            lockIdGenerator = rand.nextInt(); // generate new start point
-          }
-        } while (prev != null);
-
-        lockedRows.add(row);
-        lockedRows.notifyAll();
-        return lockId;
-      }
+      // waits only on the lock of this row, for at most
+      // bigdb.rowlock.wait.duration
+      return rowLocks.lock(row, waitForLock);
     } finally {
       closeRegionOperation();
     }
@@ -2030,9 +2023,7 @@ public class DBRegion implements HeapSize { // , Writable{
    * @return Row that goes with <code>lockid</code>
    */
   byte [] getRowFromLock(final Integer lockid) {
-    synchronized (lockedRows) {
-      return lockIds.get(lockid);
-    }
+    return rowLocks.getRow(lockid);
   }
 
   /**
@@ -2040,11 +2031,7 @@ public class DBRegion implements HeapSize { // , Writable{
    * @param lockid  The lock ID to release.
    */
   void releaseRowLock(final Integer lockid) {
-    synchronized (lockedRows) {
-      byte[] row = lockIds.remove(lockid);
-      lockedRows.remove(row);
-      lockedRows.notifyAll();
-    }
+    rowLocks.release(lockid);
   }
 
   /**
@@ -2053,12 +2040,7 @@ public class DBRegion implements HeapSize { // , Writable{
    * @return boolean
    */
   boolean isRowLocked(final Integer lockid) {
-    synchronized (lockedRows) {
-      if (lockIds.get(lockid) != null) {
-        return true;
-      }
-      return false;
-    }
+    return rowLocks.isLocked(lockid);
   }
 
   /**
@@ -2139,11 +2121,18 @@ public class DBRegion implements HeapSize { // , Writable{
     private int isScan;
     private boolean filterClosed = false;
     private long readPt;
+    // Rows go from the start row down to the stop row
+    private final boolean reversed;
+    private final boolean prefetching;
+    private final long maxResultSize;
 
     RegionScanner(Scan scan, List<KeyValueScanner> additionalScanners) throws IOException {
       //DebugPrint.println("DBRegionScanner.<init>");
       this.filter = scan.getFilter();
       this.batch = scan.getBatch();
+      this.reversed = scan.isReversed();
+      this.prefetching = scan.isPrefetching();
+      this.maxResultSize = scan.getMaxResultSize();
       if (Bytes.equals(scan.getStopRow(), DBConstants.EMPTY_END_ROW)) {
         this.stopRow = null;
       } else {
@@ -2165,7 +2154,8 @@ public class DBRegion implements HeapSize { // , Writable{
         Store store = stores.get(entry.getKey());
         scanners.add(store.getScanner(scan, entry.getValue()));
       }
-      this.storeHeap = new KeyValueHeap(scanners, comparator);
+      this.storeHeap = new KeyValueHeap(scanners, this.reversed ?
+          KeyValueHeap.reverseRows(comparator) : comparator);
     }
 
     RegionScanner(Scan scan) throws IOException {
@@ -2221,6 +2211,21 @@ public class DBRegion implements HeapSize { // , Writable{
       return this.filter != null && this.filter.filterAllRemaining();
     }
 
+    /**
+     * @return true if the next rows are to be read ahead of the client
+     */
+    boolean isPrefetching() {
+      return this.prefetching;
+    }
+
+    /**
+     * @return the maximum result size in bytes of a call to next the scan
+     * asked for, or -1 if none
+     */
+    long getMaxResultSize() {
+      return this.maxResultSize;
+    }
+
     private boolean nextInternal(int limit) throws IOException {
       while (true) {
         byte [] currentRow = peekRow();
@@ -2296,10 +2301,16 @@ public class DBRegion implements HeapSize { // , Writable{
     }
 
     private boolean isStopRow(byte [] currentRow) {
-      return currentRow == null ||
-          (stopRow != null &&
-          comparator.compareRows(stopRow, 0, stopRow.length,
-              currentRow, 0, currentRow.length) <= isScan);
+      if (currentRow == null || stopRow == null) {
+        return currentRow == null;
+      }
+      if (reversed) {
+        // the stop row is below the rows scanned
+        return comparator.compareRows(currentRow, 0, currentRow.length,
+            stopRow, 0, stopRow.length) <= isScan;
+      }
+      return comparator.compareRows(stopRow, 0, stopRow.length,
+          currentRow, 0, currentRow.length) <= isScan;
     }
 
     public synchronized void close() {
@@ -2914,17 +2925,15 @@ public class DBRegion implements HeapSize { // , Writable{
 
   public static final long FIXED_OVERHEAD = ClassSize.align(
       (4 * Bytes.SIZEOF_LONG) + Bytes.SIZEOF_BOOLEAN +
-      (18 * ClassSize.REFERENCE) + ClassSize.OBJECT + Bytes.SIZEOF_INT);
+      (17 * ClassSize.REFERENCE) + ClassSize.OBJECT);
 
   public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.OBJECT + (2 * ClassSize.ATOMIC_BOOLEAN) +
       ClassSize.ATOMIC_LONG + ClassSize.ATOMIC_INTEGER +
 
-      // Using TreeMap for TreeSet
-      ClassSize.TREEMAP +
-
-      // Using TreeMap for HashMap
-      ClassSize.TREEMAP +
+      // Row locks, two ConcurrentHashMaps and an AtomicInteger
+      RowLockManager.FIXED_OVERHEAD + (2 * ClassSize.CONCURRENT_HASHMAP) +
+      ClassSize.ATOMIC_INTEGER +
 
       ClassSize.CONCURRENT_SKIPLISTMAP + ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY +
       ClassSize.align(ClassSize.OBJECT +
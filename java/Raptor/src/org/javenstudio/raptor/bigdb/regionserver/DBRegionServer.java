@@ -23,7 +23,12 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,6 +42,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
 
+import com.google.common.util.concurrent.DaemonThreadFactory;
+import com.google.common.util.concurrent.NamingThreadFactory;
+
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.conf.ConfigurationFactory;
@@ -76,6 +84,7 @@ import org.javenstudio.raptor.bigdb.client.Result;
 import org.javenstudio.raptor.bigdb.client.Scan;
 import org.javenstudio.raptor.bigdb.client.ServerConnection;
 import org.javenstudio.raptor.bigdb.client.ServerConnectionManager;
+import org.javenstudio.raptor.bigdb.io.dbfile.BucketCache;
 import org.javenstudio.raptor.bigdb.io.dbfile.LruBlockCache;
 import org.javenstudio.raptor.bigdb.ipc.DBRPC;
 import org.javenstudio.raptor.bigdb.ipc.DBRPCErrorHandler;
@@ -205,6 +214,11 @@ public class DBRegionServer implements DBRegionInterface,
   final Map<String, InternalScanner> scanners =
     new ConcurrentHashMap<String, InternalScanner>();
 
+  // Next rows being read ahead for prefetching scanners, by scanner name
+  private final Map<String, Future<Result []>> scannerPrefetches =
+    new ConcurrentHashMap<String, Future<Result []>>();
+  private final ExecutorService scannerPrefetchPool;
+
   private PaxosWrapper paxosWrapper;
 
   // A sleeper that sleeps for msgInterval.
@@ -263,6 +277,10 @@ public class DBRegionServer implements DBRegionInterface,
     this.maxScannerResultSize = conf.getLong(
             DBConstants.BIGDB_CLIENT_SCANNER_MAX_RESULT_SIZE_KEY,
             DBConstants.DEFAULT_BIGDB_CLIENT_SCANNER_MAX_RESULT_SIZE);
+    this.scannerPrefetchPool = Executors.newFixedThreadPool(
+        Math.max(1, conf.getInt("bigdb.regionserver.scanner.prefetch.threads", 10)),
+        new DaemonThreadFactory(new NamingThreadFactory("ScannerPrefetcher-%1$d",
+          Executors.defaultThreadFactory())));
 
     // Task thread to process requests from Master
     this.worker = new Worker();
@@ -564,6 +582,7 @@ public class DBRegionServer implements DBRegionInterface,
       }
     }
     this.leases.closeAfterLeasesExpire();
+    this.scannerPrefetchPool.shutdownNow();
     this.worker.stop();
     this.server.stop();
     if (this.infoServer != null) {
@@ -979,6 +998,10 @@ public class DBRegionServer implements DBRegionInterface,
     this.metrics.storefileIndexSizeMB.set((int)(storefileIndexSize/(1024*1024)));
     this.metrics.compactionQueueSize.set(compactSplitThread.
       getCompactionQueueSize());
+    this.metrics.largeCompactionQueueSize.set(compactSplitThread.
+      getLargeCompactionQueueSize());
+    this.metrics.smallCompactionQueueSize.set(compactSplitThread.
+      getSmallCompactionQueueSize());
 
     LruBlockCache lruBlockCache = (LruBlockCache)StoreFile.getBlockCache(conf);
     if (lruBlockCache != null) {
@@ -988,6 +1011,21 @@ public class DBRegionServer implements DBRegionInterface,
       double ratio = lruBlockCache.getStats().getHitRatio();
       int percent = (int) (ratio * 100);
       this.metrics.blockCacheHitRatio.set(percent);
+
+      if (lruBlockCache.getVictimCache() instanceof BucketCache) {
+        BucketCache bucketCache = (BucketCache)lruBlockCache.getVictimCache();
+        LruBlockCache.CacheStats stats = bucketCache.getStats();
+        this.metrics.bucketCacheCount.set(bucketCache.size());
+        this.metrics.bucketCacheFree.set(bucketCache.getFreeSize());
+        this.metrics.bucketCacheSize.set(bucketCache.getCurrentSize());
+        this.metrics.bucketCacheHitCount.set(stats.getHitCount());
+        this.metrics.bucketCacheMissCount.set(stats.getMissCount());
+        this.metrics.bucketCacheEvictedCount.set(stats.getEvictedCount());
+        if (stats.getRequestCount() > 0) {
+          this.metrics.bucketCacheHitRatio.set(
+              (int)(stats.getHitRatio() * 100));
+        }
+      }
     }
   }
 
@@ -1831,47 +1869,120 @@ public class DBRegionServer implements DBRegionInterface,
         throw e;
       }
       this.leases.renewLease(scannerName);
-      List<Result> results = new ArrayList<Result>(nbRows);
-      long currentScanResultSize = 0;
-      List<KeyValue> values = new ArrayList<KeyValue>();
-      for (int i = 0; i < nbRows && currentScanResultSize < maxScannerResultSize; i++) {
-        requestCount.incrementAndGet();
-        // Collect values to be returned here
-        boolean moreRows = s.next(values);
-        if (!values.isEmpty()) {
-          for (KeyValue kv : values) {
-            currentScanResultSize += kv.heapSize();
-          }
-          results.add(new Result(values));
-        }
-        if (!moreRows) {
-          break;
-        }
-        values.clear();
-      }
       // Below is an ugly hack where we cast the InternalScanner to be a
       // DBRegion.RegionScanner.  The alternative is to change InternalScanner
       // interface but its used everywhere whereas we just need a bit of info
-      // from DBRegion.RegionScanner, IF its filter if any is done with the scan
-      // and wants to tell the client to stop the scan.  This is done by passing
-      // a null result.
-      return ((DBRegion.RegionScanner)s).isFilterDone() && results.isEmpty()?
-        null: results.toArray(new Result[0]);
+      // from DBRegion.RegionScanner.
+      DBRegion.RegionScanner rs = (DBRegion.RegionScanner)s;
+      Future<Result []> prefetch = this.scannerPrefetches.remove(scannerName);
+      Result [] results = prefetch != null ? getPrefetched(prefetch) :
+        nextRows(rs, nbRows);
+      if (rs.isPrefetching() && results != null && results.length > 0) {
+        // Read the next rows while the client works on these
+        prefetchRows(scannerName, rs, nbRows);
+      }
+      return results;
     } catch (Throwable t) {
       if (t instanceof NotServingRegionException) {
         String scannerName = String.valueOf(scannerId);
         this.scanners.remove(scannerName);
+        cancelPrefetch(scannerName);
       }
       throw convertThrowableToIOE(cleanup(t));
     }
   }
 
+  /*
+   * Collect up to nbRows rows of the scanner, stopping early once their
+   * size reaches the maximum result size.
+   * @return the rows, or null if the filter of the scan is done with it and
+   * the client should stop the scan
+   */
+  private Result [] nextRows(final DBRegion.RegionScanner s, final int nbRows)
+      throws IOException {
+    long maxResultSize = s.getMaxResultSize() > 0 ?
+      s.getMaxResultSize() : this.maxScannerResultSize;
+    List<Result> results = new ArrayList<Result>(nbRows);
+    long currentScanResultSize = 0;
+    List<KeyValue> values = new ArrayList<KeyValue>();
+    for (int i = 0; i < nbRows && currentScanResultSize < maxResultSize; i++) {
+      requestCount.incrementAndGet();
+      // Collect values to be returned here
+      boolean moreRows = s.next(values);
+      if (!values.isEmpty()) {
+        for (KeyValue kv : values) {
+          currentScanResultSize += kv.heapSize();
+        }
+        results.add(new Result(values));
+      }
+      if (!moreRows) {
+        break;
+      }
+      values.clear();
+    }
+    // If the filter if any is done with the scan and wants to tell the
+    // client to stop the scan, this is done by passing a null result.
+    return s.isFilterDone() && results.isEmpty()?
+      null: results.toArray(new Result[0]);
+  }
+
+  /*
+   * Start reading the next rows of a scanner in the prefetch pool, to be
+   * handed out by the next call to next.
+   */
+  private void prefetchRows(final String scannerName,
+      final DBRegion.RegionScanner s, final int nbRows) {
+    try {
+      Future<Result []> prefetch = this.scannerPrefetchPool.submit(
+        new Callable<Result []>() {
+          public Result [] call() throws IOException {
+            return nextRows(s, nbRows);
+          }
+        });
+      this.scannerPrefetches.put(scannerName, prefetch);
+    } catch (RuntimeException e) {
+      // Shutting down; the next call reads the rows itself
+      LOG.debug("Not prefetching scanner " + scannerName + ": " + e);
+    }
+  }
+
+  /*
+   * Wait for rows being read ahead.
+   */
+  private Result [] getPrefetched(final Future<Result []> prefetch)
+      throws IOException {
+    try {
+      return prefetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for prefetched rows", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException("Failed prefetching rows", cause);
+    }
+  }
+
+  /*
+   * Drop rows read ahead for a scanner being closed.  The scanner is
+   * synchronized, so its close waits for a prefetch in progress.
+   */
+  private void cancelPrefetch(final String scannerName) {
+    Future<Result []> prefetch = this.scannerPrefetches.remove(scannerName);
+    if (prefetch != null) {
+      prefetch.cancel(false);
+    }
+  }
+
   public void close(final long scannerId) throws IOException {
     try {
       checkOpen();
       requestCount.incrementAndGet();
       String scannerName = String.valueOf(scannerId);
       InternalScanner s = scanners.remove(scannerName);
+      cancelPrefetch(scannerName);
       if (s != null) {
         s.close();
         this.leases.cancelLease(scannerName);
@@ -1895,6 +2006,7 @@ public class DBRegionServer implements DBRegionInterface,
     public void leaseExpired() {
       LOG.info("Scanner " + this.scannerName + " lease expired");
       InternalScanner s = scanners.remove(this.scannerName);
+      cancelPrefetch(this.scannerName);
       if (s != null) {
         try {
           s.close();
@@ -2285,7 +2397,8 @@ public class DBRegionServer implements DBRegionInterface,
   }
 
   /**
-   * Return the total size of all memstores in every region.
+   * Return the total size of all memstores in every region, with the
+   * memstore chunks kept for reuse.
    * @return memstore size in bytes
    */
   public long getGlobalMemStoreSize() {
@@ -2295,6 +2408,10 @@ public class DBRegionServer implements DBRegionInterface,
         total += region.memstoreSize.get();
       }
     }
+    MemStoreChunkPool pool = MemStoreChunkPool.getPool();
+    if (pool != null) {
+      total += pool.heapSize();
+    }
     return total;
   }
 
@@ -19,6 +19,9 @@ import java.util.PriorityQueue;
  * In the Region case, we also need InternalScanner.next(List), so this class
  * also implements InternalScanner.  WARNING: As is, if you try to use this
  * as an InternalScanner at the Store level, you will get runtime exceptions.
+ * <p>
+ * Merging reversed StoreScanners at the Region level takes a comparator from
+ * {@link #reverseRows(KVComparator)}, so the largest row comes first.
  */
 public class KeyValueHeap implements KeyValueScanner, InternalScanner {
   private PriorityQueue<KeyValueScanner> heap = null;
@@ -200,6 +203,16 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     return false;
   }
 
+  public boolean seekToPreviousRow(KeyValue key) {
+    // scanners run out at different rows going forward, and the heap
+    // drops them, so there is nothing to go back with
+    throw new UnsupportedOperationException("Can't seek a KeyValueHeap backwards");
+  }
+
+  public boolean seekToLastRow() {
+    return seekToPreviousRow(null);
+  }
+
   public boolean reseek(KeyValue seekKey) throws IOException {
     //This function is very identical to the seek(KeyValue) function except that
     //scanner.seek(seekKey) is changed to scanner.reseek(seekKey)
@@ -227,6 +240,28 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     return false;
   }
 
+  /**
+   * A comparator ordering rows from the largest, and the KeyValues of a row
+   * as the passed comparator does.
+   * @param comparator
+   * @return comparator for merging reversed scanners
+   */
+  public static KVComparator reverseRows(final KVComparator comparator) {
+    return new KVComparator() {
+      @Override
+      public KeyValue.KeyComparator getRawComparator() {
+        return comparator.getRawComparator();
+      }
+
+      @Override
+      public int compare(final KeyValue left, final KeyValue right) {
+        int ret = comparator.compareRows(left, right);
+        if (ret != 0) return -ret;
+        return comparator.compare(left, right);
+      }
+    };
+  }
+
   /**
    * @return the current Heap
    */
@@ -37,6 +37,23 @@ public interface KeyValueScanner {
    */
   public boolean reseek(KeyValue key) throws IOException;
 
+  /**
+   * Seek the scanner at the first KeyValue of the row of the last KeyValue
+   * before the specified KeyValue.  Pass the first KeyValue on a row to get
+   * at the row before it, the last KeyValue on a row to get at that row or
+   * at the one before it.  Used by reversed scans.
+   * @param key seek value
+   * @return true if there is such a row, false if none is before the key
+   */
+  public boolean seekToPreviousRow(KeyValue key) throws IOException;
+
+  /**
+   * Seek the scanner at the first KeyValue of the last row.
+   * Used by reversed scans.
+   * @return true if scanner has values, false if it is empty
+   */
+  public boolean seekToLastRow() throws IOException;
+
   /**
    * Close the KeyValue scanner.
    */
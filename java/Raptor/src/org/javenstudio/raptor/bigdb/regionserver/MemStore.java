@@ -12,6 +12,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.bigdb.DBConstants;
 import org.javenstudio.raptor.bigdb.KeyValue;
 import org.javenstudio.raptor.bigdb.client.Scan;
@@ -25,6 +26,10 @@ import org.javenstudio.raptor.bigdb.util.ClassSize;
  * to snapshot and is cleared.  We continue to serve edits out of new memstore
  * and backing snapshot until flusher reports in that the flush succeeded. At
  * this point we let the snapshot go.
+ * <p>
+ * Unless <tt>bigdb.hregion.memstore.mslab.enabled</tt> is false, the added
+ * KeyValues are copied into the chunks of a {@link MemStoreLAB}, one for the
+ * memstore and one for the snapshot.
  * TODO: Adjust size of the memstore when we remove items because they have
  * been deleted.
  * TODO: With new KVSLS, need to make sure we update HeapSize with difference
@@ -59,6 +64,13 @@ public class MemStore implements HeapSize {
   TimeRangeTracker timeRangeTracker;
   TimeRangeTracker snapshotTimeRangeTracker;
 
+  final Configuration conf;
+
+  // Buffers the KeyValues of kvset and snapshot are copied into, null if
+  // MSLAB is disabled
+  volatile MemStoreLAB allocator;
+  volatile MemStoreLAB snapshotAllocator;
+
   /**
    * Default constructor. Used for tests.
    */
@@ -71,6 +83,16 @@ public class MemStore implements HeapSize {
    * @param c Comparator
    */
   public MemStore(final KeyValue.KVComparator c) {
+    this(null, c);
+  }
+
+  /**
+   * Constructor.
+   * @param conf Configuration, null to not use MSLAB
+   * @param c Comparator
+   */
+  public MemStore(final Configuration conf, final KeyValue.KVComparator c) {
+    this.conf = conf;
     this.comparator = c;
     this.comparatorIgnoreTimestamp =
       this.comparator.getComparatorIgnoringTimestamps();
@@ -80,6 +102,12 @@ public class MemStore implements HeapSize {
     timeRangeTracker = new TimeRangeTracker();
     snapshotTimeRangeTracker = new TimeRangeTracker();
     this.size = new AtomicLong(DEEP_OVERHEAD);
+    if (conf != null && conf.getBoolean(MemStoreLAB.USEMSLAB_KEY,
+        MemStoreLAB.USEMSLAB_DEFAULT)) {
+      this.allocator = new MemStoreLAB(conf);
+    } else {
+      this.allocator = null;
+    }
   }
 
   void dump() {
@@ -112,6 +140,10 @@ public class MemStore implements HeapSize {
           this.timeRangeTracker = new TimeRangeTracker();
           // Reset heap to not include any keys
           this.size.set(DEEP_OVERHEAD);
+          if (this.allocator != null) {
+            this.snapshotAllocator = this.allocator;
+            this.allocator = new MemStoreLAB(this.conf);
+          }
         }
       }
     } finally {
@@ -139,6 +171,7 @@ public class MemStore implements HeapSize {
    */
   void clearSnapshot(final SortedSet<KeyValue> ss)
   throws UnexpectedException {
+    MemStoreLAB tmpAllocator = null;
     this.lock.writeLock().lock();
     try {
       if (this.snapshot != ss) {
@@ -151,9 +184,15 @@ public class MemStore implements HeapSize {
         this.snapshot = new KeyValueSkipListSet(this.comparator);
         this.snapshotTimeRangeTracker = new TimeRangeTracker();
       }
+      tmpAllocator = this.snapshotAllocator;
+      this.snapshotAllocator = null;
     } finally {
       this.lock.writeLock().unlock();
     }
+    // Its chunks are reused once the scanners of the snapshot are done
+    if (tmpAllocator != null) {
+      tmpAllocator.close();
+    }
   }
 
   /**
@@ -162,18 +201,37 @@ public class MemStore implements HeapSize {
    * @return approximate size of the passed key and value.
    */
   long add(final KeyValue kv) {
-    long s = -1;
     this.lock.readLock().lock();
     try {
-      s = heapSizeChange(kv, this.kvset.add(kv));
-      timeRangeTracker.includeTimestamp(kv);
-      this.size.addAndGet(s);
+      return internalAdd(maybeCloneWithAllocator(kv));
     } finally {
       this.lock.readLock().unlock();
     }
+  }
+
+  /*
+   * Adds the kv as is; presumes we're inside the read lock.
+   * @return approximate size of the passed key and value.
+   */
+  private long internalAdd(final KeyValue kv) {
+    long s = sizeChange(kv, this.kvset.add(kv)) + takeChunkCharges();
+    timeRangeTracker.includeTimestamp(kv);
+    this.size.addAndGet(s);
     return s;
   }
 
+  /*
+   * @return the kv copied into the chunks of the allocator, or the kv itself
+   * if MSLAB is disabled or it is too large to be copied
+   */
+  private KeyValue maybeCloneWithAllocator(final KeyValue kv) {
+    MemStoreLAB mslab = this.allocator;
+    if (mslab == null) {
+      return kv;
+    }
+    return mslab.copyOf(kv);
+  }
+
   /**
    * Write a delete
    * @param delete
@@ -183,8 +241,9 @@ public class MemStore implements HeapSize {
     long s = 0;
     this.lock.readLock().lock();
     try {
-      s += heapSizeChange(delete, this.kvset.add(delete));
-      timeRangeTracker.includeTimestamp(delete);
+      KeyValue toAdd = maybeCloneWithAllocator(delete);
+      s += sizeChange(toAdd, this.kvset.add(toAdd)) + takeChunkCharges();
+      timeRangeTracker.includeTimestamp(toAdd);
     } finally {
       this.lock.readLock().unlock();
     }
@@ -392,10 +451,10 @@ public class MemStore implements HeapSize {
 
       // add the new value now. this might have the same TS as an existing KV, thus confusing
       // readers slightly for a MOMENT until we erase the old one (and thus old value).
-      newKv = new KeyValue(row, family, qualifier,
+      newKv = maybeCloneWithAllocator(new KeyValue(row, family, qualifier,
           now,
-          Bytes.toBytes(newValue));
-      long addedSize = add(newKv);
+          Bytes.toBytes(newValue)));
+      long addedSize = internalAdd(newKv);
 
       // remove extra versions.
       ss = kvset.tailSet(firstKv);
@@ -418,7 +477,7 @@ public class MemStore implements HeapSize {
           // to be extra safe we only remove Puts that have a memstoreTS==0
           if (kv.getType() == KeyValue.Type.Put.getCode()) {
             // false means there was a change, so give us the size.
-            addedSize -= heapSizeChange(kv, true);
+            addedSize -= sizeChange(kv, true);
 
             it.remove();
           }
@@ -527,9 +586,23 @@ public class MemStore implements HeapSize {
 
     */
 
+    // The buffers the scanned KeyValues live in, kept from being reused
+    // until the scanner is closed
+    private MemStoreLAB allocatorAtCreation;
+    private MemStoreLAB snapshotAllocatorAtCreation;
+
     MemStoreScanner() {
       super();
 
+      this.allocatorAtCreation = allocator;
+      this.snapshotAllocatorAtCreation = snapshotAllocator;
+      if (this.allocatorAtCreation != null) {
+        this.allocatorAtCreation.incScannerCount();
+      }
+      if (this.snapshotAllocatorAtCreation != null) {
+        this.snapshotAllocatorAtCreation.incScannerCount();
+      }
+
       //DebugPrint.println(" MS new@" + hashCode());
     }
 
@@ -562,8 +635,8 @@ public class MemStore implements HeapSize {
       kvsetIt = kvTail.iterator();
       snapshotIt = snapshotTail.iterator();
 
-      kvsetNextRow = getNext(kvsetIt);
-      snapshotNextRow = getNext(snapshotIt);
+      kvsetNextRow = copyOutOfChunk(getNext(kvsetIt));
+      snapshotNextRow = copyOutOfChunk(getNext(snapshotIt));
 
 
       //long readPoint = ReadWriteConsistencyControl.getThreadReadPoint();
@@ -581,18 +654,73 @@ public class MemStore implements HeapSize {
 
     @Override
     public boolean reseek(KeyValue key) {
-      while (kvsetNextRow != null &&
-          comparator.compare(kvsetNextRow, key) < 0) {
-        kvsetNextRow = getNext(kvsetIt);
+      // only the KeyValues stopped at are copied, not the ones skipped
+      KeyValue kv = kvsetNextRow;
+      while (kv != null && comparator.compare(kv, key) < 0) {
+        kv = getNext(kvsetIt);
+      }
+      if (kv != kvsetNextRow) {
+        kvsetNextRow = copyOutOfChunk(kv);
       }
 
-      while (snapshotNextRow != null &&
-          comparator.compare(snapshotNextRow, key) < 0) {
-        snapshotNextRow = getNext(snapshotIt);
+      kv = snapshotNextRow;
+      while (kv != null && comparator.compare(kv, key) < 0) {
+        kv = getNext(snapshotIt);
+      }
+      if (kv != snapshotNextRow) {
+        snapshotNextRow = copyOutOfChunk(kv);
       }
       return (kvsetNextRow != null || snapshotNextRow != null);
     }
 
+    public synchronized boolean seekToPreviousRow(KeyValue key) {
+      KeyValue lastBefore = getHigher(
+          getLastVisible(kvset.headSet(key, false)),
+          getLastVisible(snapshot.headSet(key, false)));
+      if (lastBefore == null) {
+        kvsetNextRow = null;
+        snapshotNextRow = null;
+        return false;
+      }
+      return seek(KeyValue.createFirstOnRow(lastBefore.getRow()));
+    }
+
+    public synchronized boolean seekToLastRow() {
+      KeyValue last = getHigher(getLastVisible(kvset),
+          getLastVisible(snapshot));
+      if (last == null) {
+        kvsetNextRow = null;
+        snapshotNextRow = null;
+        return false;
+      }
+      return seek(KeyValue.createFirstOnRow(last.getRow()));
+    }
+
+    /*
+     * Returns the last KeyValue of the set visible to this thread, or null.
+     */
+    protected KeyValue getLastVisible(NavigableSet<KeyValue> set) {
+      long readPoint = ReadWriteConsistencyControl.getThreadReadPoint();
+      Iterator<KeyValue> it = set.descendingIterator();
+      while (it.hasNext()) {
+        KeyValue v = it.next();
+        if (v.getMemstoreTS() <= readPoint) {
+          return v;
+        }
+      }
+      return null;
+    }
+
+    /*
+     * Returns the higher of the two key values, or null if they are both null.
+     */
+    protected KeyValue getHigher(KeyValue first, KeyValue second) {
+      if (first == null || second == null) {
+        return (first != null ? first : second);
+      }
+      return (comparator.compare(first, second) >= 0 ? first : second);
+    }
+
     public synchronized KeyValue peek() {
       //DebugPrint.println(" MS@" + hashCode() + " peek = " + getLowest());
       return getLowest();
@@ -608,9 +736,9 @@ public class MemStore implements HeapSize {
 
       // Advance one of the iterators
       if (theNext == kvsetNextRow) {
-        kvsetNextRow = getNext(kvsetIt);
+        kvsetNextRow = copyOutOfChunk(getNext(kvsetIt));
       } else {
-        snapshotNextRow = getNext(snapshotIt);
+        snapshotNextRow = copyOutOfChunk(getNext(snapshotIt));
       }
 
       //long readpoint = ReadWriteConsistencyControl.getThreadReadPoint();
@@ -619,6 +747,19 @@ public class MemStore implements HeapSize {
       return theNext;
     }
 
+    /*
+     * The KeyValues peeked at and returned may be held by a result after
+     * the scanner is closed, when the chunks they are in may be reused.
+     */
+    private KeyValue copyOutOfChunk(KeyValue kv) {
+      MemStoreLAB mslab = this.allocatorAtCreation != null ?
+        this.allocatorAtCreation : this.snapshotAllocatorAtCreation;
+      if (kv == null || mslab == null) {
+        return kv;
+      }
+      return mslab.copyOutOfChunk(kv);
+    }
+
     protected KeyValue getLowest() {
       return getLower(kvsetNextRow,
           snapshotNextRow);
@@ -646,11 +787,20 @@ public class MemStore implements HeapSize {
 
       this.kvsetIt = null;
       this.snapshotIt = null;
+
+      if (this.allocatorAtCreation != null) {
+        this.allocatorAtCreation.decScannerCount();
+        this.allocatorAtCreation = null;
+      }
+      if (this.snapshotAllocatorAtCreation != null) {
+        this.snapshotAllocatorAtCreation.decScannerCount();
+        this.snapshotAllocatorAtCreation = null;
+      }
     }
   }
 
   public final static long FIXED_OVERHEAD = ClassSize.align(
-      ClassSize.OBJECT + (9 * ClassSize.REFERENCE));
+      ClassSize.OBJECT + (12 * ClassSize.REFERENCE));
 
   public final static long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.REENTRANT_LOCK + ClassSize.ATOMIC_LONG +
@@ -670,9 +820,32 @@ public class MemStore implements HeapSize {
         0;
   }
 
+  /*
+   * Like heapSizeChange, but leaves out the bytes of a KeyValue in a chunk
+   * of the allocator, which are counted with the whole chunk; presumes we
+   * are inside the read lock.
+   */
+  private long sizeChange(final KeyValue kv, final boolean notpresent) {
+    long s = heapSizeChange(kv, notpresent);
+    MemStoreLAB mslab = this.allocator;
+    if (s > 0 && mslab != null && mslab.isInChunk(kv)) {
+      s -= ClassSize.align(ClassSize.ARRAY + kv.getLength());
+    }
+    return s;
+  }
+
+  /*
+   * @return Bytes of the chunks the allocator took for the KeyValues just
+   * added, unused space included
+   */
+  private long takeChunkCharges() {
+    MemStoreLAB mslab = this.allocator;
+    return mslab == null ? 0 : mslab.takeChunkCharges();
+  }
+
   /**
    * Get the entire heap usage for this MemStore not including keys in the
-   * snapshot.
+   * snapshot.  The chunks of the allocator count whole, used or not.
    */
   @Override
   public long heapSize() {
@@ -0,0 +1,255 @@
+package org.javenstudio.raptor.bigdb.regionserver;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.rmi.UnexpectedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Measures the garbage collection pauses of a write load on a set of
+ * MemStores, with or without a {@link MemStoreLAB}.
+ * <p>
+ * A few threads put random rows into the MemStores, and a MemStore reaching
+ * the flush size is snapshotted, read through and let go as the flusher
+ * would after writing it out. Meanwhile the collectors are polled every few
+ * milliseconds, and the time of each collection seen is recorded. The
+ * throughput is reported with the count, the total and the distribution of
+ * the pauses.
+ * <pre>
+ * Usage: MemStoreBenchmark [-mslab true|false] [-memstores n]
+ *          [-flushsize bytes] [-valuesize bytes] [-puts n] [-threads n]
+ * </pre>
+ * Sizes take a k, m or g suffix. Run with a heap holding all the MemStores
+ * twice, e.g. <tt>-Xmx4g -XX:+UseConcMarkSweepGC</tt> with the defaults.
+ */
+public class MemStoreBenchmark {
+
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  private final MemStore[] memstores;
+  private final long flushSize;
+  private final int valueSize;
+  private final AtomicLong flushes = new AtomicLong(0);
+
+  public MemStoreBenchmark(Configuration conf, int count, long flushSize,
+      int valueSize) {
+    this.memstores = new MemStore[count];
+    for (int i = 0; i < count; i++) {
+      memstores[i] = new MemStore(conf, KeyValue.COMPARATOR);
+    }
+    this.flushSize = flushSize;
+    this.valueSize = valueSize;
+  }
+
+  private void put(Random rand) {
+    MemStore memstore = memstores[rand.nextInt(memstores.length)];
+    byte[] value = new byte[valueSize];
+    rand.nextBytes(value);
+    memstore.add(new KeyValue(Bytes.toBytes(rand.nextLong()), FAMILY,
+        QUALIFIER, System.currentTimeMillis(), value));
+    if (memstore.heapSize() >= flushSize) {
+      flush(memstore);
+    }
+  }
+
+  private void flush(MemStore memstore) {
+    // one flusher per memstore, as the region does
+    synchronized (memstore) {
+      if (memstore.heapSize() < flushSize) {
+        return;
+      }
+      memstore.snapshot();
+      KeyValueSkipListSet snapshot = memstore.getSnapshot();
+      long bytes = 0;
+      for (KeyValue kv : snapshot) {
+        bytes += kv.getLength();
+      }
+      try {
+        memstore.clearSnapshot(snapshot);
+      } catch (UnexpectedException e) {
+        throw new RuntimeException(e);
+      }
+      if (bytes > 0) {
+        flushes.incrementAndGet();
+      }
+    }
+  }
+
+  /** Put random rows from a few threads. */
+  public void run(final long puts, int threads) throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      workers[t] = new Thread("MemStoreBenchmark-" + t) {
+          public void run() {
+            Random rand = new Random(seed);
+            for (long i = 0; i < puts; i++) {
+              put(rand);
+            }
+          }
+        };
+      workers[t].start();
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+  }
+
+  /*
+   * Polls the collectors and records the time of the collections seen
+   * since the last poll.
+   */
+  static class PauseMonitor extends Thread {
+    private final List<GarbageCollectorMXBean> gcs =
+      ManagementFactory.getGarbageCollectorMXBeans();
+    private final long[] lastCount = new long[gcs.size()];
+    private final long[] lastTime = new long[gcs.size()];
+    private final List<Long> pauses = new ArrayList<Long>();
+    private volatile boolean running = true;
+
+    PauseMonitor() {
+      super("PauseMonitor");
+      setDaemon(true);
+      for (int i = 0; i < gcs.size(); i++) {
+        lastCount[i] = Math.max(0, gcs.get(i).getCollectionCount());
+        lastTime[i] = Math.max(0, gcs.get(i).getCollectionTime());
+      }
+    }
+
+    public void run() {
+      while (running) {
+        poll();
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+
+    private synchronized void poll() {
+      for (int i = 0; i < gcs.size(); i++) {
+        long count = Math.max(0, gcs.get(i).getCollectionCount());
+        long time = Math.max(0, gcs.get(i).getCollectionTime());
+        long n = count - lastCount[i];
+        if (n > 0) {
+          // several collections between two polls share the time
+          long each = (time - lastTime[i]) / n;
+          for (long j = 0; j < n; j++) {
+            pauses.add(each);
+          }
+        }
+        lastCount[i] = count;
+        lastTime[i] = time;
+      }
+    }
+
+    synchronized List<Long> finish() {
+      running = false;
+      poll();
+      List<Long> ret = new ArrayList<Long>(pauses);
+      Collections.sort(ret);
+      return ret;
+    }
+  }
+
+  static long percentile(List<Long> sorted, double p) {
+    if (sorted.isEmpty()) return 0;
+    int i = (int)Math.ceil(p / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean mslab = true;
+    int count = 16;
+    long flushSize = 64L * 1024 * 1024;
+    int valueSize = 100;
+    long puts = 2000000;
+    int threads = 4;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-mslab".equals(args[i])) {
+        mslab = Boolean.parseBoolean(args[++i]);
+      } else if ("-memstores".equals(args[i])) {
+        count = Integer.parseInt(args[++i]);
+      } else if ("-flushsize".equals(args[i])) {
+        flushSize = parseSize(args[++i]);
+      } else if ("-valuesize".equals(args[i])) {
+        valueSize = (int)parseSize(args[++i]);
+      } else if ("-puts".equals(args[i])) {
+        puts = Long.parseLong(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: MemStoreBenchmark [-mslab true|false] " +
+            "[-memstores n] [-flushsize bytes] [-valuesize bytes] " +
+            "[-puts n] [-threads n]");
+        System.exit(-1);
+      }
+    }
+
+    Configuration conf = ConfigurationFactory.create(true);
+    conf.setBoolean(MemStoreLAB.USEMSLAB_KEY, mslab);
+    // the pool a region server would set up for these memstores
+    MemStoreChunkPool.initialize(conf, count * flushSize);
+
+    MemStoreBenchmark benchmark =
+      new MemStoreBenchmark(conf, count, flushSize, valueSize);
+    System.out.println("mslab " + mslab + ", " + count + " memstores of " +
+        StringUtils.byteDesc(flushSize) + ", values of " + valueSize +
+        " bytes, heap max " +
+        StringUtils.byteDesc(Runtime.getRuntime().maxMemory()));
+
+    PauseMonitor monitor = new PauseMonitor();
+    monitor.start();
+    long startTime = System.currentTimeMillis();
+    benchmark.run(puts, threads);
+    long runTime = System.currentTimeMillis() - startTime;
+    List<Long> pauses = monitor.finish();
+
+    long gcTime = 0;
+    for (long pause : pauses) {
+      gcTime += pause;
+    }
+    long total = puts * threads;
+    System.out.println(String.format(
+        "put   %8d ms  %10.0f puts/s  %6d flushes",
+        runTime, total * 1000.0 / Math.max(1, runTime),
+        benchmark.flushes.get()));
+    System.out.println(String.format(
+        "gc    %6d collections %8d ms  pause p50 %5d ms  p90 %5d ms  " +
+        "p99 %5d ms  max %5d ms",
+        pauses.size(), gcTime, percentile(pauses, 50),
+        percentile(pauses, 90), percentile(pauses, 99),
+        percentile(pauses, 100)));
+    MemStoreChunkPool pool = MemStoreChunkPool.getPool();
+    if (pool != null) {
+      System.out.println(String.format(
+          "chunk %6d created %8d reused %6d pooled",
+          MemStoreChunkPool.getCreatedChunks(),
+          MemStoreChunkPool.getReusedChunks(), pool.getPoolSize()));
+    }
+  }
+
+  static long parseSize(String s) {
+    s = s.trim().toLowerCase();
+    long unit = 1;
+    char c = s.charAt(s.length() - 1);
+    if (c == 'k') unit = 1024L;
+    else if (c == 'm') unit = 1024L * 1024;
+    else if (c == 'g') unit = 1024L * 1024 * 1024;
+    if (unit > 1) s = s.substring(0, s.length() - 1);
+    return Long.parseLong(s) * unit;
+  }
+}
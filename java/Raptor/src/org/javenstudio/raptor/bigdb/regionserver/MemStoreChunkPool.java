@@ -0,0 +1,152 @@
+package org.javenstudio.raptor.bigdb.regionserver;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.bigdb.io.HeapSize;
+import org.javenstudio.raptor.bigdb.util.ClassSize;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Keeps the chunks of flushed {@link MemStoreLAB}s for reuse by the
+ * MemStores filling up next, so a region server under a steady write load
+ * stops allocating chunks at all.
+ * <p>
+ * The pool is set up by the {@link MemStoreFlusher} of the region server;
+ * it holds at most <tt>bigdb.hregion.memstore.chunkpool.maxsize</tt> of the
+ * global MemStore limit, chunks given back beyond that are left to the
+ * garbage collector.  The chunks it holds count against that limit, so it
+ * should stay well below the lower limit the flusher flushes down to.
+ * <p>
+ * The memstore scanners copy the KeyValues they return out of pooled
+ * chunks, as a result may be written to its client after its scanner is
+ * closed and the chunks are reused.
+ */
+public class MemStoreChunkPool implements HeapSize {
+  static final Logger LOG = Logger.getLogger(MemStoreChunkPool.class);
+
+  public static final String POOL_MAX_SIZE_KEY =
+    "bigdb.hregion.memstore.chunkpool.maxsize";
+  public static final float POOL_MAX_SIZE_DEFAULT = 0.5f;
+
+  private static MemStoreChunkPool theInstance = null;
+
+  // For measuring how often chunks are reused
+  private static volatile long createdChunks;
+  private static volatile long reusedChunks;
+
+  public static final long getCreatedChunks() {
+    long ret = createdChunks;
+    createdChunks = 0;
+    return ret;
+  }
+
+  public static final long getReusedChunks() {
+    long ret = reusedChunks;
+    reusedChunks = 0;
+    return ret;
+  }
+
+  private final BlockingQueue<MemStoreLAB.Chunk> reclaimedChunks;
+  private final int chunkSize;
+  private final int maxCount;
+
+  MemStoreChunkPool(final int chunkSize, final int maxCount) {
+    this.chunkSize = chunkSize;
+    this.maxCount = maxCount;
+    this.reclaimedChunks = new LinkedBlockingQueue<MemStoreLAB.Chunk>(maxCount);
+  }
+
+  /**
+   * Set up the pool of the process, if MSLAB and pooling are enabled.
+   * @param globalMemStoreLimit bytes all the MemStores may take
+   * @return the pool, null if there is none
+   */
+  static synchronized MemStoreChunkPool initialize(final Configuration conf,
+      final long globalMemStoreLimit) {
+    if (theInstance != null) {
+      return theInstance;
+    }
+    if (!conf.getBoolean(MemStoreLAB.USEMSLAB_KEY, MemStoreLAB.USEMSLAB_DEFAULT)) {
+      return null;
+    }
+    float poolSize = conf.getFloat(POOL_MAX_SIZE_KEY, POOL_MAX_SIZE_DEFAULT);
+    if (poolSize <= 0) {
+      return null;
+    }
+    if (poolSize > 1) {
+      throw new IllegalArgumentException(POOL_MAX_SIZE_KEY +
+        " must be between 0.0 and 1.0");
+    }
+    int chunkSize = conf.getInt(MemStoreLAB.CHUNK_SIZE_KEY,
+      MemStoreLAB.CHUNK_SIZE_DEFAULT);
+    int maxCount = (int)(globalMemStoreLimit * poolSize / chunkSize);
+    if (maxCount <= 0) {
+      return null;
+    }
+    theInstance = new MemStoreChunkPool(chunkSize, maxCount);
+    LOG.info("MemStore chunk pool of " + maxCount + " chunks of " +
+      StringUtils.humanReadableInt(chunkSize));
+    return theInstance;
+  }
+
+  /**
+   * @return the pool of the process, null if there is none
+   */
+  static synchronized MemStoreChunkPool getPool() {
+    return theInstance;
+  }
+
+  /**
+   * @return a reclaimed chunk, or a new one if there is none
+   */
+  MemStoreLAB.Chunk getChunk() {
+    MemStoreLAB.Chunk chunk = this.reclaimedChunks.poll();
+    if (chunk == null) {
+      createdChunks++;
+      return new MemStoreLAB.Chunk(this.chunkSize);
+    }
+    reusedChunks++;
+    chunk.reset();
+    return chunk;
+  }
+
+  void putbackChunk(final MemStoreLAB.Chunk chunk) {
+    this.reclaimedChunks.offer(chunk);
+  }
+
+  void putbackChunks(final Collection<MemStoreLAB.Chunk> chunks) {
+    for (MemStoreLAB.Chunk chunk : chunks) {
+      if (!this.reclaimedChunks.offer(chunk)) {
+        // the pool is full
+        break;
+      }
+    }
+  }
+
+  int getChunkSize() {
+    return this.chunkSize;
+  }
+
+  int getMaxCount() {
+    return this.maxCount;
+  }
+
+  /**
+   * @return chunks in the pool
+   */
+  public int getPoolSize() {
+    return this.reclaimedChunks.size();
+  }
+
+  /**
+   * @return Bytes of the chunks held by the pool
+   */
+  @Override
+  public long heapSize() {
+    return (long)getPoolSize() * ClassSize.align(ClassSize.ARRAY + this.chunkSize);
+  }
+}
@@ -88,6 +88,8 @@ class MemStoreFlusher extends Thread implements FlushRequester {
       ", globalMemStoreLimitLowMark=" +
       StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark) +
       ", maxHeap=" + StringUtils.humanReadableInt(max));
+    // Let the MemStores of the server reuse the chunks of flushed snapshots
+    MemStoreChunkPool.initialize(conf, this.globalMemStoreLimit);
   }
 
   /**
@@ -0,0 +1,228 @@
+package org.javenstudio.raptor.bigdb.regionserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.io.HeapSize;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.bigdb.util.ClassSize;
+
+/**
+ * A MemStore-local allocation buffer.
+ * <p>
+ * The KeyValues added to a {@link MemStore} are copied into large chunks
+ * handed out by this buffer instead of each keeping its own small byte
+ * array. The chunks of a MemStore are let go together when it is flushed,
+ * so the old generation is freed in large pieces rather than fragmented by
+ * the arrays of the flushed KeyValues, which under a heavy write load ends
+ * in promotion failures.
+ * <p>
+ * Space in the current chunk is taken by a lock free bump of its offset.
+ * KeyValues larger than <tt>bigdb.hregion.memstore.mslab.max.allocation</tt>
+ * are not copied. Once the snapshot using the buffer is flushed and no
+ * scanner reads it anymore, its chunks go back to the {@link MemStoreChunkPool},
+ * if the region server set one up, to be used again by the next buffers.
+ * The KeyValues a read returns are then copied out of the chunks, see
+ * {@link #copyOutOfChunk(KeyValue)}, as a result is written to its client
+ * after its scanner is closed.
+ */
+public class MemStoreLAB implements HeapSize {
+  public static final String USEMSLAB_KEY =
+    "bigdb.hregion.memstore.mslab.enabled";
+  public static final boolean USEMSLAB_DEFAULT = true;
+  public static final String CHUNK_SIZE_KEY =
+    "bigdb.hregion.memstore.mslab.chunksize";
+  public static final int CHUNK_SIZE_DEFAULT = 2048 * 1024;
+  public static final String MAX_ALLOC_KEY =
+    "bigdb.hregion.memstore.mslab.max.allocation";
+  public static final int MAX_ALLOC_DEFAULT = 256 * 1024;
+
+  /** A chunk KeyValues are copied into. */
+  static class Chunk {
+    final byte [] data;
+    private final AtomicInteger nextFreeOffset = new AtomicInteger(0);
+
+    Chunk(final int size) {
+      this.data = new byte[size];
+    }
+
+    /**
+     * @return offset of the allocated bytes, or -1 if the chunk is full
+     */
+    int alloc(final int size) {
+      while (true) {
+        int oldOffset = nextFreeOffset.get();
+        if (oldOffset + size > data.length) {
+          return -1;
+        }
+        if (nextFreeOffset.compareAndSet(oldOffset, oldOffset + size)) {
+          return oldOffset;
+        }
+      }
+    }
+
+    /** Make the whole chunk free again, when it is reused. */
+    void reset() {
+      nextFreeOffset.set(0);
+    }
+  }
+
+  private final AtomicReference<Chunk> curChunk = new AtomicReference<Chunk>();
+  // All the chunks handed out, to give them back to the pool
+  private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+  private final AtomicInteger chunkCount = new AtomicInteger(0);
+  // Chunks taken but not yet counted in the size of the MemStore
+  private final AtomicInteger unchargedChunks = new AtomicInteger(0);
+  private final int chunkSize;
+  private final int maxAlloc;
+  private final MemStoreChunkPool chunkPool;
+
+  // Scanners which may still read the chunks
+  private final AtomicInteger openScannerCount = new AtomicInteger(0);
+  private volatile boolean closed = false;
+  private final AtomicBoolean reclaimed = new AtomicBoolean(false);
+
+  public MemStoreLAB(final Configuration conf) {
+    this(conf, MemStoreChunkPool.getPool());
+  }
+
+  MemStoreLAB(final Configuration conf, final MemStoreChunkPool pool) {
+    this.chunkPool = pool;
+    this.chunkSize = pool != null ? pool.getChunkSize() :
+      conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT);
+    this.maxAlloc = Math.min(conf.getInt(MAX_ALLOC_KEY, MAX_ALLOC_DEFAULT),
+      this.chunkSize);
+  }
+
+  /**
+   * Copy a KeyValue into a chunk.
+   * @return the copy, or the passed KeyValue if it is too large
+   */
+  public KeyValue copyOf(final KeyValue kv) {
+    int len = kv.getLength();
+    if (len > this.maxAlloc) {
+      return kv;
+    }
+    Chunk c;
+    int offset;
+    while (true) {
+      c = getOrMakeChunk();
+      offset = c.alloc(len);
+      if (offset != -1) {
+        break;
+      }
+      // the chunk is full, retire it, someone else may have already
+      this.curChunk.compareAndSet(c, null);
+    }
+    System.arraycopy(kv.getBuffer(), kv.getOffset(), c.data, offset, len);
+    KeyValue copy = new KeyValue(c.data, offset, len);
+    copy.setMemstoreTS(kv.getMemstoreTS());
+    return copy;
+  }
+
+  private Chunk getOrMakeChunk() {
+    while (true) {
+      Chunk c = this.curChunk.get();
+      if (c != null) {
+        return c;
+      }
+      Chunk newChunk = this.chunkPool != null ?
+        this.chunkPool.getChunk() : new Chunk(this.chunkSize);
+      if (this.curChunk.compareAndSet(null, newChunk)) {
+        this.chunks.add(newChunk);
+        this.chunkCount.incrementAndGet();
+        this.unchargedChunks.incrementAndGet();
+        return newChunk;
+      }
+      // lost the race, use the chunk installed by the other thread
+      if (this.chunkPool != null) {
+        this.chunkPool.putbackChunk(newChunk);
+      }
+    }
+  }
+
+  /**
+   * The MemStore is done with the buffer, its chunks are given back to the
+   * pool once no scanner reads them.
+   */
+  void close() {
+    this.closed = true;
+    if (this.openScannerCount.get() == 0) {
+      reclaimChunks();
+    }
+  }
+
+  /** A scanner may read the chunks until {@link #decScannerCount()}. */
+  void incScannerCount() {
+    this.openScannerCount.incrementAndGet();
+  }
+
+  void decScannerCount() {
+    if (this.openScannerCount.decrementAndGet() == 0 && this.closed) {
+      reclaimChunks();
+    }
+  }
+
+  private void reclaimChunks() {
+    if (this.chunkPool != null && this.reclaimed.compareAndSet(false, true)) {
+      this.chunkPool.putbackChunks(this.chunks);
+      this.chunks.clear();
+    }
+  }
+
+  /**
+   * @return whether the KeyValue may live in one of the chunks of a buffer;
+   * a KeyValue with a buffer of the chunk size which was not copied is
+   * taken for one too
+   */
+  boolean isInChunk(final KeyValue kv) {
+    return kv.getBuffer().length == this.chunkSize;
+  }
+
+  /**
+   * Results of a read may outlive the scanner which found them, so a
+   * KeyValue in a chunk the pool may hand out again is copied out of it.
+   * @return the KeyValue, or a copy of it if it is in a pooled chunk
+   */
+  KeyValue copyOutOfChunk(final KeyValue kv) {
+    if (this.chunkPool == null || !isInChunk(kv)) {
+      return kv;
+    }
+    return kv.clone();
+  }
+
+  /**
+   * The MemStore counts the whole chunks, used or not, instead of the bytes
+   * of the KeyValues copied into them.
+   * @return Bytes of the chunks taken since the last call
+   */
+  long takeChunkCharges() {
+    int n = this.unchargedChunks.getAndSet(0);
+    return n == 0 ? 0 : (long)n * getChunkHeapSize();
+  }
+
+  private long getChunkHeapSize() {
+    return ClassSize.align(ClassSize.ARRAY + this.chunkSize);
+  }
+
+  public int getChunkCount() {
+    return this.chunkCount.get();
+  }
+
+  public final static long FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (8 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_INT) +
+      Bytes.SIZEOF_BOOLEAN);
+
+  /**
+   * @return Bytes of the chunks taken by this buffer
+   */
+  @Override
+  public long heapSize() {
+    return FIXED_OVERHEAD + (long)getChunkCount() * getChunkHeapSize();
+  }
+}
@@ -56,6 +56,17 @@ public class MinorCompactingStoreScanner implements KeyValueScanner, InternalSca
     return seek(key);
   }
 
+  @Override
+  public boolean seekToPreviousRow(KeyValue key) {
+    // cant seek.
+    throw new UnsupportedOperationException("Can't seek a MinorCompactingStoreScanner");
+  }
+
+  @Override
+  public boolean seekToLastRow() {
+    return seekToPreviousRow(null);
+  }
+
   /**
    * High performance merge scan.
    * @param writer
@@ -0,0 +1,173 @@
+package org.javenstudio.raptor.bigdb.regionserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.bigdb.util.ClassSize;
+
+/**
+ * The row locks of a {@link DBRegion}.
+ * <p>
+ * Locked rows are kept in a concurrent map, so locking distinct rows never
+ * contends on a region-wide monitor. Each held lock has its own latch and
+ * only the threads waiting on that row are woken when it is released.
+ * A waiter gives up after <tt>bigdb.rowlock.wait.duration</tt> milliseconds.
+ * <p>
+ * Locks are handed out as integer lockids, unique among the held locks of
+ * the region, which clients pass back to use or release the lock.
+ */
+public class RowLockManager {
+  static final Logger LOG = Logger.getLogger(RowLockManager.class);
+
+  public static final String WAIT_DURATION_KEY = "bigdb.rowlock.wait.duration";
+  public static final int DEFAULT_WAIT_DURATION = 30000;
+
+  static final long FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (3 * ClassSize.REFERENCE) + Bytes.SIZEOF_LONG);
+
+  // For measuring time spent waiting on locked rows
+  private static volatile long lockWaitOps;
+  private static volatile long lockWaitTime;
+  private static volatile long lockTimeouts;
+
+  public static final long getLockWaitOps() {
+    long ret = lockWaitOps;
+    lockWaitOps = 0;
+    return ret;
+  }
+
+  public static final long getLockWaitTime() {
+    long ret = lockWaitTime;
+    lockWaitTime = 0;
+    return ret;
+  }
+
+  public static final long getLockTimeouts() {
+    long ret = lockTimeouts;
+    lockTimeouts = 0;
+    return ret;
+  }
+
+  /** A row as a hash key. */
+  private static final class RowKey {
+    private final byte[] row;
+    private final int hash;
+
+    RowKey(byte[] row) {
+      this.row = row;
+      this.hash = Bytes.hashCode(row);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof RowKey)) return false;
+      return Bytes.equals(row, ((RowKey)obj).row);
+    }
+  }
+
+  /** A held lock, released by counting down its latch. */
+  private static final class RowLock {
+    private final RowKey key;
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    RowLock(RowKey key) { this.key = key; }
+  }
+
+  private final ConcurrentHashMap<RowKey, RowLock> lockedRows =
+    new ConcurrentHashMap<RowKey, RowLock>();
+  private final ConcurrentHashMap<Integer, RowLock> lockIds =
+    new ConcurrentHashMap<Integer, RowLock>();
+  private final AtomicInteger lockIdGenerator = new AtomicInteger(1);
+  private final long waitDuration;
+
+  RowLockManager(long waitDuration) {
+    this.waitDuration = waitDuration;
+  }
+
+  /**
+   * Lock a row.
+   * @param waitForLock if true, wait until the row is released, else
+   *        return null if it is locked
+   * @return the lockid of the held lock
+   * @throws IOException if the lock was not obtained in time
+   */
+  Integer lock(final byte[] row, boolean waitForLock) throws IOException {
+    RowKey key = new RowKey(row);
+    RowLock lock = new RowLock(key);
+    long startTime = 0;
+    while (true) {
+      RowLock existing = lockedRows.putIfAbsent(key, lock);
+      if (existing == null)
+        break;
+      if (!waitForLock)
+        return null;
+
+      long now = System.currentTimeMillis();
+      if (startTime == 0) startTime = now;
+      long remaining = waitDuration - (now - startTime);
+      try {
+        if (remaining <= 0 ||
+            !existing.latch.await(remaining, TimeUnit.MILLISECONDS)) {
+          lockTimeouts++;
+          throw new IOException("Timed out on getting lock for row=" +
+              Bytes.toStringBinary(row));
+        }
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException(
+            "Interrupted waiting for lock on row=" + Bytes.toStringBinary(row));
+      }
+    }
+    if (startTime != 0) {
+      lockWaitTime += System.currentTimeMillis() - startTime;
+      lockWaitOps++;
+    }
+
+    // generate a new lockid, retrying on the rare collision with a lockid
+    // still held after the generator wrapped around
+    while (true) {
+      Integer lockId = Integer.valueOf(lockIdGenerator.getAndIncrement());
+      if (lockIds.putIfAbsent(lockId, lock) == null)
+        return lockId;
+    }
+  }
+
+  /** Release a held lock, waking the threads waiting on its row. */
+  void release(final Integer lockid) {
+    if (lockid == null) return;
+    RowLock lock = lockIds.remove(lockid);
+    if (lock == null) {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Release unknown lockid: " + lockid);
+      return;
+    }
+    lockedRows.remove(lock.key, lock);
+    lock.latch.countDown();
+  }
+
+  /** Returns the row of a held lock, or null. */
+  byte[] getRow(final Integer lockid) {
+    if (lockid == null) return null;
+    RowLock lock = lockIds.get(lockid);
+    return lock != null ? lock.key.row : null;
+  }
+
+  /** Returns true if the lockid is held. */
+  boolean isLocked(final Integer lockid) {
+    return lockid != null && lockIds.containsKey(lockid);
+  }
+
+  /** Returns the number of held locks. */
+  int size() {
+    return lockIds.size();
+  }
+}
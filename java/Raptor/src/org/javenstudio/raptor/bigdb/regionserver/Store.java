@@ -90,6 +90,8 @@ public class Store implements HeapSize {
 
   private final Object compactLock = new Object();
   private final int compactionThreshold;
+  private final int blockingStoreFileCount;
+  private final CompactionThrottle throttle;
   private final int blocksize;
   private final boolean blockcache;
   private final Compression.Algorithm compression;
@@ -136,13 +138,18 @@ public class Store implements HeapSize {
       // second -> ms adjust for user data
       this.ttl *= 1000;
     }
-    this.memstore = new MemStore(this.comparator);
+    this.memstore = new MemStore(conf, this.comparator);
     this.storeNameStr = Bytes.toString(this.family.getName());
 
     // By default, we compact if an HStore has more than
     // MIN_COMMITS_FOR_COMPACTION map files
     this.compactionThreshold =
       conf.getInt("bigdb.hstore.compactionThreshold", 3);
+    // Flushes are held back past this count, see MemStoreFlusher
+    int blocking = conf.getInt("bigdb.hstore.blockingStoreFiles", -1);
+    this.blockingStoreFileCount = blocking == -1 ?
+      1 + this.compactionThreshold : blocking;
+    this.throttle = CompactionThrottle.get(conf);
 
     // Check if this is in-memory store
     this.inMemory = family.isInMemory();
@@ -474,7 +481,8 @@ public class Store implements HeapSize {
   private StoreFile.Writer createWriterInTmp(int maxKeyCount)
   throws IOException {
     return StoreFile.createWriter(this.fs, region.getTmpDir(), this.blocksize,
-        this.compression, this.comparator, this.conf,
+        this.compression, this.family.getDataBlockEncoding(),
+        this.comparator, this.conf,
         this.family.getBloomFilterType(), maxKeyCount);
   }
 
@@ -785,13 +793,16 @@ public class Store implements HeapSize {
         ArrayList<KeyValue> kvs = new ArrayList<KeyValue>();
         while (scanner.next(kvs)) {
           // output to writer:
+          long bytes = 0;
           for (KeyValue kv : kvs) {
             if (writer == null) {
               writer = createWriterInTmp(maxKeyCount);
             }
             writer.append(kv);
+            bytes += kv.getLength();
           }
           kvs.clear();
+          this.throttle.throttle(bytes);
         }
       } finally {
         if (scanner != null) {
@@ -803,9 +814,18 @@ public class Store implements HeapSize {
       try {
         scanner = new MinorCompactingStoreScanner(this, scanners);
         writer = createWriterInTmp(maxKeyCount);
-        while (scanner.next(writer)) {
-          // Nothing to do
-        }
+        ArrayList<KeyValue> kvs = new ArrayList<KeyValue>();
+        boolean more;
+        do {
+          more = scanner.next(kvs);
+          long bytes = 0;
+          for (KeyValue kv : kvs) {
+            writer.append(kv);
+            bytes += kv.getLength();
+          }
+          kvs.clear();
+          this.throttle.throttle(bytes);
+        } while (more);
       } finally {
         if (scanner != null)
           scanner.close();
@@ -969,7 +989,10 @@ public class Store implements HeapSize {
         // Update the candidate keys from the current map file
         rowAtOrBeforeFromStoreFile(sf, state);
       }
-      return state.getCandidate();
+      // A candidate from the memstore may be in a chunk which is reused
+      // once the snapshot is flushed, after the lock is released
+      KeyValue candidate = state.getCandidate();
+      return candidate != null ? candidate.clone() : null;
     } finally {
       this.lock.readLock().unlock();
     }
@@ -1341,9 +1364,18 @@ public class Store implements HeapSize {
     return this.storefiles.size() > this.compactionThreshold;
   }
 
+  /**
+   * @return The priority of a compaction of this store, lower is more
+   * urgent. At zero or below flushes of the store are held back until
+   * it is compacted.
+   */
+  int getCompactPriority() {
+    return this.blockingStoreFileCount - this.storefiles.size();
+  }
+
   public static final long FIXED_OVERHEAD = ClassSize.align(
-      ClassSize.OBJECT + (14 * ClassSize.REFERENCE) +
-      (4 * Bytes.SIZEOF_LONG) + (3 * Bytes.SIZEOF_INT) + (Bytes.SIZEOF_BOOLEAN * 2));
+      ClassSize.OBJECT + (15 * ClassSize.REFERENCE) +
+      (4 * Bytes.SIZEOF_LONG) + (4 * Bytes.SIZEOF_INT) + (Bytes.SIZEOF_BOOLEAN * 2));
 
   public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.OBJECT + ClassSize.REENTRANT_LOCK +
@@ -26,17 +26,21 @@ import org.javenstudio.raptor.io.WritableUtils;
 import org.javenstudio.raptor.util.StringUtils;
 import org.javenstudio.raptor.bigdb.KeyValue;
 import org.javenstudio.raptor.bigdb.KeyValue.KVComparator;
+import org.javenstudio.raptor.bigdb.KeyValue.KeyComparator;
 import org.javenstudio.raptor.bigdb.client.Scan;
 import org.javenstudio.raptor.bigdb.io.HalfStoreFileReader;
 import org.javenstudio.raptor.bigdb.io.Reference;
 import org.javenstudio.raptor.bigdb.io.dbfile.BlockCache;
+import org.javenstudio.raptor.bigdb.io.dbfile.BucketCache;
 import org.javenstudio.raptor.bigdb.io.dbfile.Compression;
 import org.javenstudio.raptor.bigdb.io.dbfile.DBFile;
 import org.javenstudio.raptor.bigdb.io.dbfile.DBFileScanner;
 import org.javenstudio.raptor.bigdb.io.dbfile.LruBlockCache;
+import org.javenstudio.raptor.bigdb.io.encoding.DataBlockEncoding;
 import org.javenstudio.raptor.bigdb.util.BloomFilter;
 import org.javenstudio.raptor.bigdb.util.ByteBloomFilter;
 import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.bigdb.util.CompoundBloomFilter;
 import org.javenstudio.raptor.bigdb.util.Hash;
 import org.javenstudio.raptor.bigdb.util.Writables;
 
@@ -65,7 +69,11 @@ public class StoreFile {
   static final String IO_STOREFILE_BLOOM_ERROR_RATE = "io.storefile.bloom.error.rate";
   static final String IO_STOREFILE_BLOOM_MAX_FOLD = "io.storefile.bloom.max.fold";
   static final String IO_STOREFILE_BLOOM_ENABLED = "io.storefile.bloom.enabled";
+  static final String IO_STOREFILE_BLOOM_BLOCK_SIZE = "io.storefile.bloom.block.size";
   static final String DBFILE_BLOCK_CACHE_SIZE_KEY = "dbfile.block.cache.size";
+  static final String DBFILE_INDEX_BLOCK_MAX_SIZE_KEY = "dbfile.index.block.max.size";
+  static final String DBFILE_BUCKET_CACHE_SIZE_KEY = "dbfile.bucket.cache.size";
+  static final String DBFILE_BUCKET_CACHE_IOENGINE_KEY = "dbfile.bucket.cache.ioengine";
 
   public static enum BloomType {
     /**
@@ -96,6 +104,25 @@ public class StoreFile {
   /** Meta data block name for bloom filter data (ie: bloom bits) */
   static final String BLOOM_FILTER_DATA_KEY = "BLOOM_FILTER_DATA";
 
+  /** Default size of the bits of a bloom filter chunk */
+  static final int DEFAULT_BLOOM_BLOCK_SIZE = 128 * 1024;
+
+  // For measuring gets kept off store files by their bloom filters
+  private static volatile long bloomChecks;
+  private static volatile long bloomSkips;
+
+  public static final long getBloomChecks() {
+    long ret = bloomChecks;
+    bloomChecks = 0;
+    return ret;
+  }
+
+  public static final long getBloomSkips() {
+    long ret = bloomSkips;
+    bloomSkips = 0;
+    return ret;
+  }
+
   // Make default block size for StoreFiles 8k while testing.  TODO: FIX!
   // Need to make it 8k for testing.
   public static final int DEFAULT_BLOCKSIZE_SMALL = 8 * 1024;
@@ -333,7 +360,21 @@ public class StoreFile {
     long cacheSize = (long)(mu.getMax() * cachePercentage);
     LOG.info("Allocating LruBlockCache with maximum size " +
       StringUtils.humanReadableInt(cacheSize));
-    dbfileBlockCache = new LruBlockCache(cacheSize, DEFAULT_BLOCKSIZE_SMALL);
+    LruBlockCache lruCache = new LruBlockCache(cacheSize, DEFAULT_BLOCKSIZE_SMALL);
+
+    // An off-heap victim cache, size in MB
+    long bucketCacheSize = conf.getLong(DBFILE_BUCKET_CACHE_SIZE_KEY, 0) * 1024 * 1024;
+    if (bucketCacheSize > 0) {
+      String ioEngine = conf.get(DBFILE_BUCKET_CACHE_IOENGINE_KEY, "offheap");
+      LOG.info("Allocating BucketCache with maximum size " +
+        StringUtils.humanReadableInt(bucketCacheSize) + " on " + ioEngine);
+      try {
+        lruCache.setVictimCache(new BucketCache(ioEngine, bucketCacheSize));
+      } catch (IOException e) {
+        LOG.error("Failed to allocate BucketCache, continuing without it", e);
+      }
+    }
+    dbfileBlockCache = lruCache;
     return dbfileBlockCache;
   }
 
@@ -537,6 +578,26 @@ public class StoreFile {
                                               BloomType bloomType,
                                               int maxKeySize)
       throws IOException {
+    return createWriter(fs, dir, blocksize, algorithm, null, c, conf,
+        bloomType, maxKeySize);
+  }
+
+  /**
+   * Create a store file writer whose data blocks are encoded.
+   * @param encoding data block encoding, pass null to get none
+   * @see #createWriter(FileSystem, Path, int, Compression.Algorithm,
+   * KeyValue.KVComparator, Configuration, BloomType, int)
+   */
+  public static StoreFile.Writer createWriter(final FileSystem fs,
+                                              final Path dir,
+                                              final int blocksize,
+                                              final Compression.Algorithm algorithm,
+                                              final DataBlockEncoding encoding,
+                                              final KeyValue.KVComparator c,
+                                              final Configuration conf,
+                                              BloomType bloomType,
+                                              int maxKeySize)
+      throws IOException {
 
     if (!fs.exists(dir)) {
       fs.mkdirs(dir);
@@ -546,9 +607,11 @@ public class StoreFile {
       bloomType = BloomType.NONE;
     }
 
-    return new Writer(fs, path, blocksize,
+    Writer writer = new Writer(fs, path, blocksize,
         algorithm == null? DBFile.DEFAULT_COMPRESSION_ALGORITHM: algorithm,
         conf, c == null? KeyValue.COMPARATOR: c, bloomType, maxKeySize);
+    writer.writer.setDataBlockEncoding(encoding);
+    return writer;
   }
 
   /**
@@ -638,7 +701,7 @@ public class StoreFile {
    * local because it is an implementation detail of the HBase regionserver.
    */
   public static class Writer {
-    private final BloomFilter bloomFilter;
+    private final CompoundBloomFilter.Writer bloomFilter;
     private final BloomType bloomType;
     private KVComparator kvComparator;
     private KeyValue lastKv = null;
@@ -670,6 +733,10 @@ public class StoreFile {
         final KVComparator comparator, BloomType bloomType, int maxKeys)
         throws IOException {
       writer = new DBFile.Writer(fs, path, blocksize, compress, comparator.getRawComparator());
+      if (conf != null) {
+        writer.setIndexBlockSize(conf.getInt(DBFILE_INDEX_BLOCK_MAX_SIZE_KEY,
+            DBFile.DEFAULT_INDEX_BLOCKSIZE));
+      }
 
       this.kvComparator = comparator;
 
@@ -683,10 +750,11 @@ public class StoreFile {
           err /= 2;
         }
         int maxFold = conf.getInt(IO_STOREFILE_BLOOM_MAX_FOLD, 7);
+        int chunkSize = conf.getInt(IO_STOREFILE_BLOOM_BLOCK_SIZE,
+            DEFAULT_BLOOM_BLOCK_SIZE);
 
-        this.bloomFilter = new ByteBloomFilter(maxKeys, err,
-            Hash.getHashType(conf), maxFold);
-        this.bloomFilter.allocBloom();
+        this.bloomFilter = new CompoundBloomFilter.Writer(chunkSize, maxKeys,
+            err, Hash.getHashType(conf), maxFold);
         this.bloomType = bloomType;
       } else {
         this.bloomFilter = null;
@@ -777,18 +845,13 @@ public class StoreFile {
           switch (bloomType) {
           case ROW:
             this.bloomFilter.add(kv.getBuffer(), kv.getRowOffset(),
-                kv.getRowLength());
+                kv.getRowLength(), 0, 0);
             break;
           case ROWCOL:
             // merge(row, qualifier)
-            int ro = kv.getRowOffset();
-            int rl = kv.getRowLength();
-            int qo = kv.getQualifierOffset();
-            int ql = kv.getQualifierLength();
-            byte [] result = new byte[rl + ql];
-            System.arraycopy(kv.getBuffer(), ro, result, 0,  rl);
-            System.arraycopy(kv.getBuffer(), qo, result, rl, ql);
-            this.bloomFilter.add(result);
+            this.bloomFilter.add(kv.getBuffer(), kv.getRowOffset(),
+                kv.getRowLength(), kv.getQualifierOffset(),
+                kv.getQualifierLength());
             break;
           default:
           }
@@ -807,7 +870,7 @@ public class StoreFile {
       if (this.bloomFilter != null) {
         // only add to the bloom filter on a new row
         if (this.lastByteArray == null || !Arrays.equals(key, lastByteArray)) {
-          this.bloomFilter.add(key);
+          this.bloomFilter.add(key, 0, key.length, 0, 0);
           this.lastByteArray = key;
         }
       }
@@ -818,17 +881,22 @@ public class StoreFile {
     public void close() throws IOException {
       // make sure we wrote something to the bloom before adding it
       if (this.bloomFilter != null && this.bloomFilter.getKeyCount() > 0) {
-        bloomFilter.compactBloom();
+        bloomFilter.finish();
         if (this.bloomFilter.getMaxKeys() > 0) {
-          int b = this.bloomFilter.getByteSize();
+          long b = this.bloomFilter.getByteSize();
+          int c = this.bloomFilter.getChunkCount();
           int k = this.bloomFilter.getKeyCount();
           int m = this.bloomFilter.getMaxKeys();
-          StoreFile.LOG.info("Bloom added to DBFile.  " + b + "B, " +
-              k + "/" + m + " (" + NumberFormat.getPercentInstance().format(
+          StoreFile.LOG.info("Bloom added to DBFile.  " + b + "B in " + c +
+              " chunks, " + k + "/" + m + " (" +
+              NumberFormat.getPercentInstance().format(
                 ((double)k) / ((double)m)) + ")");
         }
         writer.appendMetaBlock(BLOOM_FILTER_META_KEY, bloomFilter.getMetaWriter());
-        writer.appendMetaBlock(BLOOM_FILTER_DATA_KEY, bloomFilter.getDataWriter());
+        for (int i = 0; i < bloomFilter.getChunkCount(); i++) {
+          writer.appendMetaBlock(BLOOM_FILTER_DATA_KEY + i,
+              bloomFilter.getChunkWriter(i));
+        }
         writer.appendFileInfo(BLOOM_FILTER_TYPE_KEY, Bytes.toBytes(bloomType.toString()));
       }
       writer.close();
@@ -846,6 +914,7 @@ public class StoreFile {
     static final Logger LOG = Logger.getLogger(Reader.class);
 
     protected BloomFilter bloomFilter = null;
+    protected CompoundBloomFilter compoundBloomFilter = null;
     protected BloomType bloomFilterType;
     private final DBFile.Reader reader;
     protected TimeRangeTracker timeRangeTracker = null;
@@ -907,41 +976,48 @@ public class StoreFile {
     }
 
     private boolean passesBloomFilter(Scan scan, final SortedSet<byte[]> columns) {
-      if (this.bloomFilter == null || !scan.isGetScan()) {
+      if ((this.bloomFilter == null && this.compoundBloomFilter == null) ||
+          !scan.isGetScan()) {
         return true;
       }
       byte[] row = scan.getStartRow();
-      byte[] key;
-      switch (this.bloomFilterType) {
-        case ROW:
-          key = row;
-          break;
-        case ROWCOL:
-          if (columns != null && columns.size() == 1) {
-            byte[] col = columns.first();
-            key = Bytes.add(row, col);
-            break;
-          }
-          //$FALL-THROUGH$
-        default:
-          return true;
+      if (this.bloomFilterType == BloomType.ROWCOL &&
+          (columns == null || columns.isEmpty())) {
+        // a get of the whole family can not use a row+col bloom
+        return true;
       }
 
       try {
-        ByteBuffer bloom = reader.getMetaBlock(BLOOM_FILTER_DATA_KEY, true);
-        if (bloom != null) {
-          if (this.bloomFilterType == BloomType.ROWCOL) {
-            // Since a Row Delete is essentially a DeleteFamily applied to all
+        boolean passes;
+        switch (this.bloomFilterType) {
+          case ROW:
+            passes = bloomContains(row, null);
+            break;
+          case ROWCOL:
+            // The file is needed if any of the columns may be in it. Since a
+            // Row Delete is essentially a DeleteFamily applied to all
             // columns, a file might be skipped if using row+col Bloom filter.
             // In order to ensure this file is included an additional check is
             // required looking only for a row bloom.
-            return this.bloomFilter.contains(key, bloom) ||
-                this.bloomFilter.contains(row, bloom);
-          }
-          else {
-            return this.bloomFilter.contains(key, bloom);
-          }
+            passes = false;
+            for (byte[] col : columns) {
+              if (bloomContains(row, col)) {
+                passes = true;
+                break;
+              }
+            }
+            if (!passes) {
+              passes = bloomContains(row, null);
+            }
+            break;
+          default:
+            return true;
+        }
+        bloomChecks++;
+        if (!passes) {
+          bloomSkips++;
         }
+        return passes;
       } catch (IOException e) {
         LOG.error("Error reading bloom filter data -- proceeding without",
             e);
@@ -954,6 +1030,37 @@ public class StoreFile {
       return true;
     }
 
+    /**
+     * @param qualifier the column, or null to check the row only
+     * @return False if the key is definitely not in this StoreFile
+     */
+    private boolean bloomContains(byte[] row, byte[] qualifier)
+        throws IOException {
+      if (this.compoundBloomFilter != null) {
+        return this.compoundBloomFilter.contains(row, qualifier, chunkReader);
+      }
+      ByteBuffer bloom = reader.getMetaBlock(BLOOM_FILTER_DATA_KEY, true);
+      if (bloom == null) {
+        return true;
+      }
+      byte[] key = qualifier == null ? row : Bytes.add(row, qualifier);
+      return this.bloomFilter.contains(key, bloom);
+    }
+
+    // Reads bloom filter chunks through the block cache
+    private final CompoundBloomFilter.ChunkReader chunkReader =
+      new CompoundBloomFilter.ChunkReader() {
+        @Override
+        public ByteBuffer readChunk(int chunk) throws IOException {
+          ByteBuffer bloom = reader.getMetaBlock(BLOOM_FILTER_DATA_KEY + chunk,
+              true);
+          if (bloom == null) {
+            throw new IOException("Missing bloom filter chunk " + chunk);
+          }
+          return bloom;
+        }
+      };
+
     public Map<byte[], byte[]> loadFileInfo() throws IOException {
       Map<byte [], byte []> fi = reader.loadFileInfo();
 
@@ -966,7 +1073,7 @@ public class StoreFile {
     }
 
     public void loadBloomfilter() {
-      if (this.bloomFilter != null) {
+      if (this.bloomFilter != null || this.compoundBloomFilter != null) {
         return; // already loaded
       }
 
@@ -977,21 +1084,30 @@ public class StoreFile {
             throw new IOException("valid bloom filter type not found in FileInfo");
           }
 
-
-          this.bloomFilter = new ByteBloomFilter(b);
+          if (b.getInt(b.position()) == CompoundBloomFilter.VERSION) {
+            RawComparator<byte []> c = reader.getComparator();
+            this.compoundBloomFilter = new CompoundBloomFilter(b,
+                c instanceof KeyComparator ? (KeyComparator)c :
+                  KeyValue.KEY_COMPARATOR);
+          } else {
+            this.bloomFilter = new ByteBloomFilter(b);
+          }
           LOG.info("Loaded " + (bloomFilterType== BloomType.ROW? "row":"col")
                  + " bloom filter metadata for " + reader.getName());
         }
       } catch (IOException e) {
         LOG.error("Error reading bloom filter meta -- proceeding without", e);
-        this.bloomFilter = null;
+        setBloomFilterFaulty();
       } catch (IllegalArgumentException e) {
         LOG.error("Bad bloom filter meta -- proceeding without", e);
-        this.bloomFilter = null;
+        setBloomFilterFaulty();
       }
     }
 
     public int getFilterEntries() {
+      if (this.compoundBloomFilter != null) {
+        return this.compoundBloomFilter.getKeyCount();
+      }
       return (this.bloomFilter != null) ? this.bloomFilter.getKeyCount()
           : reader.getFilterEntries();
     }
@@ -1002,6 +1118,7 @@ public class StoreFile {
 
     public void setBloomFilterFaulty() {
       bloomFilter = null;
+      compoundBloomFilter = null;
     }
 
     public byte[] getLastKey() {
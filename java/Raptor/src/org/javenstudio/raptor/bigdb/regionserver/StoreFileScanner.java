@@ -98,6 +98,37 @@ class StoreFileScanner implements KeyValueScanner {
     }
   }
 
+  public boolean seekToPreviousRow(KeyValue key) throws IOException {
+    try {
+      if (!hfs.seekBefore(key.getBuffer(), key.getKeyOffset(),
+          key.getKeyLength())) {
+        close();
+        return false;
+      }
+      // the last KeyValue before the key, now go to the start of its row
+      KeyValue firstOnRow = KeyValue.createFirstOnRow(hfs.getKeyValue().getRow());
+      if (!seekAtOrAfter(hfs, firstOnRow)) {
+        close();
+        return false;
+      }
+      cur = hfs.getKeyValue();
+      hfs.next();
+      return true;
+    } catch (IOException ioe) {
+      throw new IOException("Could not seekToPreviousRow " + this, ioe);
+    }
+  }
+
+  public boolean seekToLastRow() throws IOException {
+    byte [] lastKey = reader.getLastKey();
+    if (lastKey == null) {
+      close();
+      return false;
+    }
+    KeyValue lastKV = KeyValue.createKeyValueFromKey(lastKey);
+    return seek(KeyValue.createFirstOnRow(lastKV.getRow()));
+  }
+
   public void close() {
     // Nothing to close on DBFileScanner?
     cur = null;
@@ -2,16 +2,24 @@ package org.javenstudio.raptor.bigdb.regionserver;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.NavigableSet;
 
 import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.bigdb.DBConstants;
 import org.javenstudio.raptor.bigdb.KeyValue;
 import org.javenstudio.raptor.bigdb.client.Scan;
+import org.javenstudio.raptor.bigdb.util.Bytes;
 
 /**
  * Scanner scans both the memstore and the HStore. Coalesce KeyValue stream
  * into List<KeyValue> for a single row.
+ * <p>
+ * A reversed scanner goes through the rows from the start row down.  It
+ * keeps no heap: the scanners are each seeked to the row before the current
+ * one, the largest of these rows is the next row, and its KeyValues are
+ * read and sorted before going through the matcher.
  */
 class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersObserver {
   static final Logger LOG = Logger.getLogger(StoreScanner.class);
@@ -28,6 +36,15 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
   // if heap == null and lastTop != null, you need to reseek given the key below
   private KeyValue lastTop = null;
 
+  // Reversed scans: all the scanners, and the sorted KeyValues of the
+  // current row from rowIndex on
+  private final boolean reversed;
+  private List<KeyValueScanner> reversedScanners = null;
+  private boolean reversedScannersChanged = false;
+  private byte [] stopRow = null;
+  private final List<KeyValue> rowValues = new ArrayList<KeyValue>();
+  private int rowIndex = 0;
+
   /**
    * Opens a scanner across memstore, snapshot, and all StoreFiles.
    *
@@ -44,9 +61,22 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
         store.versionsToReturn(scan.getMaxVersions()));
 
     this.isGet = scan.isGetScan();
+    this.reversed = scan.isReversed();
     // pass columns = try to filter out unnecessary ScanFiles
     List<KeyValueScanner> scanners = getScanners(scan, columns);
 
+    if (this.reversed) {
+      if (!Bytes.equals(scan.getStopRow(), DBConstants.EMPTY_END_ROW)) {
+        this.stopRow = scan.getStopRow();
+      }
+      this.reversedScanners = scanners;
+      byte [] startRow = scan.getStartRow();
+      loadPreviousRow(startRow == null || startRow.length == 0 ? null :
+          KeyValue.createLastOnRow(startRow));
+      this.store.addChangedReaderObserver(this);
+      return;
+    }
+
     // Seek all scanners to the initial key
     for(KeyValueScanner scanner : scanners) {
       scanner.seek(matcher.getStartKey());
@@ -71,6 +101,7 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     this.store = store;
     this.cacheBlocks = false;
     this.isGet = false;
+    this.reversed = false;
     matcher = new ScanQueryMatcher(scan, store.getFamily().getName(),
         null, store.ttl, store.comparator.getRawComparator(),
         store.versionsToReturn(scan.getMaxVersions()));
@@ -92,6 +123,7 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
         throws IOException {
     this.store = null;
     this.isGet = false;
+    this.reversed = false;
     this.cacheBlocks = scan.getCacheBlocks();
     this.matcher = new ScanQueryMatcher(scan, colFamily, columns, ttl,
         comparator.getRawComparator(), scan.getMaxVersions());
@@ -148,6 +180,10 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
   }
 
   public synchronized KeyValue peek() {
+    if (this.reversed) {
+      return this.rowIndex < this.rowValues.size() ?
+          this.rowValues.get(this.rowIndex) : null;
+    }
     if (this.heap == null) {
       return this.lastTop;
     }
@@ -167,11 +203,22 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
       this.store.deleteChangedReaderObserver(this);
     if (this.heap != null)
       this.heap.close();
+    if (this.reversedScanners != null) {
+      for (KeyValueScanner scanner : this.reversedScanners) {
+        scanner.close();
+      }
+      this.reversedScanners = null;
+    }
+    this.rowValues.clear();
+    this.rowIndex = 0;
     this.heap = null; // CLOSED!
     this.lastTop = null; // If both are null, we are closed.
   }
 
   public synchronized boolean seek(KeyValue key) throws IOException {
+    if (this.reversed) {
+      throw new UnsupportedOperationException("Can't seek a reversed StoreScanner");
+    }
     if (this.heap == null) {
 
       List<KeyValueScanner> scanners = getScanners();
@@ -191,6 +238,10 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
   public synchronized boolean next(List<KeyValue> outResult, int limit) throws IOException {
     //DebugPrint.println("SS.next");
 
+    if (this.reversed) {
+      return nextReversed(outResult, limit);
+    }
+
     checkReseek();
 
     // if the heap was left null, then the scanners had previously run out anyways, close and
@@ -287,10 +338,130 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     return next(outResult, -1);
   }
 
+  /*
+   * Get the next values of the current row of a reversed scan, then move
+   * to the row before it once the row is done.
+   */
+  private boolean nextReversed(List<KeyValue> outResult, int limit)
+      throws IOException {
+    if (this.rowIndex >= this.rowValues.size()) {
+      close();
+      return false;
+    }
+
+    List<KeyValue> results = new ArrayList<KeyValue>();
+    LOOP: while (this.rowIndex < this.rowValues.size()) {
+      KeyValue kv = this.rowValues.get(this.rowIndex);
+      ScanQueryMatcher.MatchCode qcode = matcher.match(kv);
+      switch(qcode) {
+        case INCLUDE:
+          results.add(kv);
+          this.rowIndex++;
+          if (limit > 0 && (results.size() == limit)) {
+            break LOOP;
+          }
+          continue;
+
+        case DONE_SCAN:
+          close();
+          outResult.addAll(results);
+          return false;
+
+        case DONE:
+        case SEEK_NEXT_ROW:
+          this.rowIndex = this.rowValues.size();
+          break LOOP;
+
+        default:
+          // hints point forward, so just step through the row
+          this.rowIndex++;
+          break;
+      }
+    }
+
+    if (this.rowIndex >= this.rowValues.size()) {
+      loadPreviousRow(KeyValue.createFirstOnRow(this.matcher.row));
+    }
+    outResult.addAll(results);
+    if (results.isEmpty() && peek() == null) {
+      close();
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * Read the KeyValues of the row before the given key into rowValues, or
+   * of the last row if the key is null.  Leaves rowValues empty if there
+   * is no such row before the stop row.
+   */
+  private void loadPreviousRow(KeyValue key) throws IOException {
+    this.rowValues.clear();
+    this.rowIndex = 0;
+    if (this.reversedScannersChanged) {
+      for (KeyValueScanner scanner : this.reversedScanners) {
+        scanner.close();
+      }
+      this.reversedScanners = getScanners();
+      this.reversedScannersChanged = false;
+    }
+
+    KeyValue top = null;
+    List<KeyValueScanner> done = null;
+    for (KeyValueScanner scanner : this.reversedScanners) {
+      boolean found = key == null ? scanner.seekToLastRow() :
+          scanner.seekToPreviousRow(key);
+      KeyValue kv = scanner.peek();
+      if (!found || kv == null) {
+        // nothing before this row, so nothing before the next ones either
+        if (done == null) {
+          done = new ArrayList<KeyValueScanner>();
+        }
+        done.add(scanner);
+        continue;
+      }
+      if (top == null || store.comparator.compareRows(kv, top) > 0) {
+        top = kv;
+      }
+    }
+    if (done != null) {
+      for (KeyValueScanner scanner : done) {
+        scanner.close();
+      }
+      this.reversedScanners.removeAll(done);
+    }
+    if (top == null) {
+      return;
+    }
+    byte [] row = top.getRow();
+    if (this.stopRow != null && store.comparator.compareRows(row, 0,
+        row.length, this.stopRow, 0, this.stopRow.length) < (isGet ? 0 : 1)) {
+      return;
+    }
+
+    // Scanners not on the row are on rows before it, with nothing in it
+    for (KeyValueScanner scanner : this.reversedScanners) {
+      KeyValue kv;
+      while ((kv = scanner.peek()) != null &&
+          store.comparator.compareRows(kv, top) == 0) {
+        this.rowValues.add(scanner.next());
+      }
+    }
+    Collections.sort(this.rowValues, store.comparator);
+    this.matcher.setRow(row);
+  }
+
   // Implementation of ChangedReadersObserver
   public synchronized void updateReaders() throws IOException {
     if (this.closing) return;
 
+    if (this.reversed) {
+      // Reopen the scanners before reading the next row; the current row
+      // has been read already.
+      this.reversedScannersChanged = true;
+      return;
+    }
+
     // All public synchronized API calls will call 'checkReseek' which will cause
     // the scanner stack to reseek if this.heap==null && this.lastTop != null.
     // But if two calls to updateReaders() happen without a 'next' or 'peek' then we
@@ -341,6 +512,15 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     matcher.setRow((kv == null ? lastTopKey : kv).getRow());
   }
 
+  public boolean seekToPreviousRow(KeyValue key) {
+    throw new UnsupportedOperationException(
+        "StoreScanner moves to the previous row itself when reversed");
+  }
+
+  public boolean seekToLastRow() {
+    return seekToPreviousRow(null);
+  }
+
   @Override
   public synchronized boolean reseek(KeyValue kv) throws IOException {
     //Heap cannot be null, because this is only called from next() which
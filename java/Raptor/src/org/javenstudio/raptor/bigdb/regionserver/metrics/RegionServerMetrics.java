@@ -6,6 +6,10 @@ import java.lang.management.MemoryUsage;
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.bigdb.io.dbfile.DBFile;
 import org.javenstudio.raptor.bigdb.metrics.MetricsRate;
+import org.javenstudio.raptor.bigdb.regionserver.CompactionThrottle;
+import org.javenstudio.raptor.bigdb.regionserver.MemStoreChunkPool;
+import org.javenstudio.raptor.bigdb.regionserver.RowLockManager;
+import org.javenstudio.raptor.bigdb.regionserver.StoreFile;
 import org.javenstudio.raptor.bigdb.regionserver.wal.DBLog;
 import org.javenstudio.raptor.bigdb.util.Strings;
 import org.javenstudio.raptor.metrics.MetricsContext;
@@ -16,6 +20,8 @@ import org.javenstudio.raptor.metrics.jvm.JvmMetrics;
 import org.javenstudio.raptor.metrics.util.MetricsIntValue;
 import org.javenstudio.raptor.metrics.util.MetricsLongValue;
 import org.javenstudio.raptor.metrics.util.MetricsRegistry;
+import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingInt;
+import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingLong;
 import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -62,6 +68,41 @@ public class RegionServerMetrics implements Updater {
    */
   public final MetricsIntValue blockCacheHitRatio = new MetricsIntValue("blockCacheHitRatio", registry);
 
+  /**
+   * Bucket cache size, bytes of the cached blocks.
+   */
+  public final MetricsLongValue bucketCacheSize = new MetricsLongValue("bucketCacheSize", registry);
+
+  /**
+   * Bucket cache free size.
+   */
+  public final MetricsLongValue bucketCacheFree = new MetricsLongValue("bucketCacheFree", registry);
+
+  /**
+   * Bucket cache item count.
+   */
+  public final MetricsLongValue bucketCacheCount = new MetricsLongValue("bucketCacheCount", registry);
+
+  /**
+   * Bucket cache hit count.
+   */
+  public final MetricsLongValue bucketCacheHitCount = new MetricsLongValue("bucketCacheHitCount", registry);
+
+  /**
+   * Bucket cache miss count.
+   */
+  public final MetricsLongValue bucketCacheMissCount = new MetricsLongValue("bucketCacheMissCount", registry);
+
+  /**
+   * Bucket cache evicted block count.
+   */
+  public final MetricsLongValue bucketCacheEvictedCount = new MetricsLongValue("bucketCacheEvictedCount", registry);
+
+  /**
+   * Bucket cache hit ratio.
+   */
+  public final MetricsIntValue bucketCacheHitRatio = new MetricsIntValue("bucketCacheHitRatio", registry);
+
   /*
    * Count of requests to the regionservers since last call to metrics update
    */
@@ -95,6 +136,30 @@ public class RegionServerMetrics implements Updater {
   public final MetricsIntValue compactionQueueSize =
     new MetricsIntValue("compactionQueueSize", registry);
 
+  /**
+   * Size of the queue of compactions of large regions.
+   */
+  public final MetricsIntValue largeCompactionQueueSize =
+    new MetricsIntValue("largeCompactionQueueSize", registry);
+
+  /**
+   * Size of the queue of compactions of small regions.
+   */
+  public final MetricsIntValue smallCompactionQueueSize =
+    new MetricsIntValue("smallCompactionQueueSize", registry);
+
+  /**
+   * KB written by compactions per second
+   */
+  private final MetricsRate compactionThroughputKB =
+    new MetricsRate("compactionThroughputKB", registry);
+
+  /**
+   * time compactions were held back by the throughput limit
+   */
+  public final MetricsTimeVaryingLong compactionThrottledTime =
+    new MetricsTimeVaryingLong("compactionThrottledTime", registry);
+
   /**
    * filesystem read latency
    */
@@ -113,6 +178,54 @@ public class RegionServerMetrics implements Updater {
   public final MetricsTimeVaryingRate fsSyncLatency =
     new MetricsTimeVaryingRate("fsSyncLatency", registry);
 
+  /**
+   * edits made durable per hlog sync
+   */
+  public final MetricsTimeVaryingRate fsSyncBatchSize =
+    new MetricsTimeVaryingRate("fsSyncBatchSize", registry);
+
+  /**
+   * time from append until the edit is synced, as seen by the handlers
+   */
+  public final MetricsTimeVaryingRate fsSyncWaitLatency =
+    new MetricsTimeVaryingRate("fsSyncWaitLatency", registry);
+
+  /**
+   * time spent waiting on locked rows
+   */
+  public final MetricsTimeVaryingRate rowLockWaitTime =
+    new MetricsTimeVaryingRate("rowLockWaitTime", registry);
+
+  /**
+   * count of row lock waits timed out
+   */
+  public final MetricsTimeVaryingInt rowLockTimeouts =
+    new MetricsTimeVaryingInt("rowLockTimeouts", registry);
+
+  /**
+   * count of store files checked against their bloom filter for a get
+   */
+  public final MetricsTimeVaryingInt bloomFilterChecks =
+    new MetricsTimeVaryingInt("bloomFilterChecks", registry);
+
+  /**
+   * count of store file seeks skipped on a negative bloom filter result
+   */
+  public final MetricsTimeVaryingInt bloomFilterSkippedSeeks =
+    new MetricsTimeVaryingInt("bloomFilterSkippedSeeks", registry);
+
+  /**
+   * count of memstore chunks allocated new
+   */
+  public final MetricsTimeVaryingInt memstoreChunksCreated =
+    new MetricsTimeVaryingInt("memstoreChunksCreated", registry);
+
+  /**
+   * count of memstore chunks taken from the chunk pool
+   */
+  public final MetricsTimeVaryingInt memstoreChunksReused =
+    new MetricsTimeVaryingInt("memstoreChunksReused", registry);
+
   public RegionServerMetrics() {
     MetricsContext context = MetricsUtil.getContext("bigdb");
     metricsRecord = MetricsUtil.createRecord(context, "regionserver");
@@ -147,10 +260,19 @@ public class RegionServerMetrics implements Updater {
       this.regions.pushMetric(this.metricsRecord);
       this.requests.pushMetric(this.metricsRecord);
       this.compactionQueueSize.pushMetric(this.metricsRecord);
+      this.largeCompactionQueueSize.pushMetric(this.metricsRecord);
+      this.smallCompactionQueueSize.pushMetric(this.metricsRecord);
       this.blockCacheSize.pushMetric(this.metricsRecord);
       this.blockCacheFree.pushMetric(this.metricsRecord);
       this.blockCacheCount.pushMetric(this.metricsRecord);
       this.blockCacheHitRatio.pushMetric(this.metricsRecord);
+      this.bucketCacheSize.pushMetric(this.metricsRecord);
+      this.bucketCacheFree.pushMetric(this.metricsRecord);
+      this.bucketCacheCount.pushMetric(this.metricsRecord);
+      this.bucketCacheHitCount.pushMetric(this.metricsRecord);
+      this.bucketCacheMissCount.pushMetric(this.metricsRecord);
+      this.bucketCacheEvictedCount.pushMetric(this.metricsRecord);
+      this.bucketCacheHitRatio.pushMetric(this.metricsRecord);
 
       // Mix in DBFile and DBLog metrics
       // Be careful. Here is code for MTVR from up in hadoop:
@@ -169,12 +291,41 @@ public class RegionServerMetrics implements Updater {
       ops = (int)DBLog.getWriteOps();
       if (ops != 0) this.fsWriteLatency.inc(ops, DBLog.getWriteTime());
       ops = (int)DBLog.getSyncOps();
-      if (ops != 0) this.fsSyncLatency.inc(ops, DBLog.getSyncTime());
+      if (ops != 0) {
+        this.fsSyncLatency.inc(ops, DBLog.getSyncTime());
+        this.fsSyncBatchSize.inc(ops, DBLog.getSyncedEdits());
+      }
+      ops = (int)DBLog.getSyncWaitOps();
+      if (ops != 0) this.fsSyncWaitLatency.inc(ops, DBLog.getSyncWaitTime());
+      // mix in row lock metrics
+      ops = (int)RowLockManager.getLockWaitOps();
+      if (ops != 0) this.rowLockWaitTime.inc(ops, RowLockManager.getLockWaitTime());
+      this.rowLockTimeouts.inc((int)RowLockManager.getLockTimeouts());
+      // mix in compaction throughput
+      this.compactionThroughputKB.inc(
+          (int)(CompactionThrottle.getCompactedBytes() / 1024));
+      this.compactionThrottledTime.inc(CompactionThrottle.getThrottledTime());
+      // mix in bloom filter metrics
+      this.bloomFilterChecks.inc((int)StoreFile.getBloomChecks());
+      this.bloomFilterSkippedSeeks.inc((int)StoreFile.getBloomSkips());
+      // mix in memstore chunk pool metrics
+      this.memstoreChunksCreated.inc((int)MemStoreChunkPool.getCreatedChunks());
+      this.memstoreChunksReused.inc((int)MemStoreChunkPool.getReusedChunks());
 
       // push the result
       this.fsReadLatency.pushMetric(this.metricsRecord);
       this.fsWriteLatency.pushMetric(this.metricsRecord);
       this.fsSyncLatency.pushMetric(this.metricsRecord);
+      this.fsSyncBatchSize.pushMetric(this.metricsRecord);
+      this.fsSyncWaitLatency.pushMetric(this.metricsRecord);
+      this.rowLockWaitTime.pushMetric(this.metricsRecord);
+      this.rowLockTimeouts.pushMetric(this.metricsRecord);
+      this.compactionThroughputKB.pushMetric(this.metricsRecord);
+      this.compactionThrottledTime.pushMetric(this.metricsRecord);
+      this.bloomFilterChecks.pushMetric(this.metricsRecord);
+      this.bloomFilterSkippedSeeks.pushMetric(this.metricsRecord);
+      this.memstoreChunksCreated.pushMetric(this.metricsRecord);
+      this.memstoreChunksReused.pushMetric(this.metricsRecord);
     }
     this.metricsRecord.update();
     this.lastUpdate = System.currentTimeMillis();
@@ -184,6 +335,7 @@ public class RegionServerMetrics implements Updater {
     this.atomicIncrementTime.resetMinMax();
     this.fsReadLatency.resetMinMax();
     this.fsWriteLatency.resetMinMax();
+    this.rowLockWaitTime.resetMinMax();
   }
 
   /**
@@ -221,6 +373,8 @@ public class RegionServerMetrics implements Updater {
       Integer.valueOf(this.memstoreSizeMB.get()));
     sb = Strings.appendKeyValue(sb, "compactionQueueSize",
       Integer.valueOf(this.compactionQueueSize.get()));
+    sb = Strings.appendKeyValue(sb, "compactionThroughputKB",
+      Float.valueOf(this.compactionThroughputKB.getPreviousIntervalValue()));
     // Duplicate from jvmmetrics because metrics are private there so
     // inaccessible.
     MemoryUsage memory =
@@ -237,6 +391,12 @@ public class RegionServerMetrics implements Updater {
         Long.valueOf(this.blockCacheCount.get()));
     sb = Strings.appendKeyValue(sb, this.blockCacheHitRatio.getName(),
         Long.valueOf(this.blockCacheHitRatio.get()));
+    sb = Strings.appendKeyValue(sb, this.bucketCacheSize.getName(),
+        Long.valueOf(this.bucketCacheSize.get()));
+    sb = Strings.appendKeyValue(sb, this.bucketCacheCount.getName(),
+        Long.valueOf(this.bucketCacheCount.get()));
+    sb = Strings.appendKeyValue(sb, this.bucketCacheHitRatio.getName(),
+        Long.valueOf(this.bucketCacheHitRatio.get()));
     return sb.toString();
   }
 }
@@ -1,12 +1,10 @@
 package org.javenstudio.raptor.bigdb.regionserver.wal;
 
-import static org.javenstudio.raptor.bigdb.util.FSUtils.recoverFileLease;
-
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
@@ -14,27 +12,22 @@ import java.lang.reflect.Method;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,8 +52,6 @@ import org.javenstudio.raptor.bigdb.util.ClassSize;
 import org.javenstudio.raptor.bigdb.util.FSUtils;
 import org.javenstudio.raptor.bigdb.util.Threads;
 
-import com.google.common.util.concurrent.NamingThreadFactory;
-
 /**
  * DBLog stores all the edits to the HStore.  Its the bigdb write-ahead-log
  * implementation.
@@ -136,8 +127,8 @@ public class DBLog implements Syncable {
   private Method getNumCurrentReplicas; // refers to DFSOutputStream.getNumCurrentReplicas
   final static Object [] NO_ARGS = new Object []{};
 
-  // used to indirectly tell syncFs to force the sync
-  private boolean forceSync = false;
+  // appends since the last one which asked for a sync, see flushlogentries
+  private int appendsSinceSync = 0;
 
   public interface Reader {
     void init(FileSystem fs, Path path, Configuration c) throws IOException;
@@ -195,6 +186,10 @@ public class DBLog implements Syncable {
   // during an update
   private final Object updateLock = new Object();
 
+  // Held to use the current writer, exclusively to swap or close it
+  private final ReentrantReadWriteLock writerLock =
+    new ReentrantReadWriteLock();
+
   private final boolean enabled;
 
   /*
@@ -204,6 +199,20 @@ public class DBLog implements Syncable {
    */
   private final int maxLogs;
 
+  /*
+   * Edits appended by the handlers, in sequence id order, waiting for the
+   * log writer thread.
+   */
+  private final BlockingQueue<PendingEdit> ringBuffer;
+
+  // Set once the log writer thread takes no more edits
+  private boolean writerShuttingDown = false;
+
+  /**
+   * Thread that writes the appended edits to the log
+   */
+  private final LogWriter logWriterThread;
+
   /**
    * Thread that handles group commit
    */
@@ -233,6 +242,11 @@ public class DBLog implements Syncable {
   // For measuring latency of syncs
   private static volatile long syncOps;
   private static volatile long syncTime;
+  // For measuring the edits made durable by a sync
+  private static volatile long syncedEdits;
+  // For measuring how long handlers wait for their edits to be synced
+  private static volatile long syncWaitOps;
+  private static volatile long syncWaitTime;
 
   public static long getWriteOps() {
     long ret = writeOps;
@@ -258,6 +272,24 @@ public class DBLog implements Syncable {
     return ret;
   }
 
+  public static long getSyncedEdits() {
+    long ret = syncedEdits;
+    syncedEdits = 0;
+    return ret;
+  }
+
+  public static long getSyncWaitOps() {
+    long ret = syncWaitOps;
+    syncWaitOps = 0;
+    return ret;
+  }
+
+  public static long getSyncWaitTime() {
+    long ret = syncWaitTime;
+    syncWaitTime = 0;
+    return ret;
+  }
+
   /**
    * DBLog creating with a null actions listener.
    *
@@ -320,6 +352,8 @@ public class DBLog implements Syncable {
     }
     this.maxLogs = conf.getInt("bigdb.regionserver.maxlogs", 32);
     this.enabled = conf.getBoolean("bigdb.regionserver.hlog.enabled", true);
+    this.ringBuffer = new ArrayBlockingQueue<PendingEdit>(
+      conf.getInt("bigdb.regionserver.hlog.ringbuffer.size", 1024));
     LOG.info("DBLog configuration: blocksize=" + this.blocksize +
       ", rollsize=" + this.logrollsize +
       ", enabled=" + this.enabled +
@@ -357,6 +391,9 @@ public class DBLog implements Syncable {
     logSyncerThread = new LogSyncer(this.optionalFlushInterval);
     Threads.setDaemonThreadRunning(logSyncerThread,
         Thread.currentThread().getName() + ".logSyncer");
+    logWriterThread = new LogWriter(this.optionalFlushInterval);
+    Threads.setDaemonThreadRunning(logWriterThread,
+        Thread.currentThread().getName() + ".logWriter");
   }
 
   /**
@@ -441,11 +478,19 @@ public class DBLog implements Syncable {
           ((SequenceFileLogWriter)nextWriter).getDFSCOutputStream();
       }
       synchronized (updateLock) {
-        // Clean up current writer.
-        Path oldFile = cleanupCurrentWriter(currentFilenum);
-        this.writer = nextWriter;
-        this.initialReplication = nextInitialReplication;
-        this.dfs_out = nextHdfsOut;
+        // Wait for the log writer and syncer threads to be done with the
+        // current writer; the edits still in the ring go to the new one.
+        Path oldFile;
+        this.writerLock.writeLock().lock();
+        try {
+          // Clean up current writer.
+          oldFile = cleanupCurrentWriter(currentFilenum);
+          this.writer = nextWriter;
+          this.initialReplication = nextInitialReplication;
+          this.dfs_out = nextHdfsOut;
+        } finally {
+          this.writerLock.writeLock().unlock();
+        }
 
         LOG.info((oldFile != null?
             "Roll " + FSUtils.getPath(oldFile) + ", entries=" +
@@ -706,9 +751,15 @@ public class DBLog implements Syncable {
    * @throws IOException
    */
   public void close() throws IOException {
+    // No more edits into the ring
+    synchronized (updateLock) {
+      this.writerShuttingDown = true;
+    }
     try {
-      logSyncerThread.interrupt();
-      // Make sure we synced everything
+      // Make sure we wrote and synced everything
+      logWriterThread.shutdown();
+      logWriterThread.join(this.optionalFlushInterval*2);
+      logSyncerThread.shutdown();
       logSyncerThread.join(this.optionalFlushInterval*2);
     } catch (InterruptedException e) {
       LOG.error("Exception while waiting for syncer thread to die", e);
@@ -721,7 +772,12 @@ public class DBLog implements Syncable {
         if (LOG.isDebugEnabled()) {
           LOG.debug("closing hlog writer in " + this.dir.toString());
         }
-        this.writer.close();
+        this.writerLock.writeLock().lock();
+        try {
+          this.writer.close();
+        } finally {
+          this.writerLock.writeLock().unlock();
+        }
       }
     } finally {
       cacheFlushLock.unlock();
@@ -769,6 +825,7 @@ public class DBLog implements Syncable {
       throw new IOException("Cannot append; log is closed");
     }
     byte [] regionName = regionInfo.getRegionName();
+    SyncFuture future;
     synchronized (updateLock) {
       long seqNum = obtainSeqNum();
       logKey.setLogSeqNum(seqNum);
@@ -778,13 +835,14 @@ public class DBLog implements Syncable {
       // region being flushed is removed if the sequence number of the flush
       // is greater than or equal to the value in lastSeqWritten.
       this.lastSeqWritten.putIfAbsent(regionName, Long.valueOf(seqNum));
-      doWrite(regionInfo, logKey, logEdit);
-      this.unflushedEntries.incrementAndGet();
+      future = doWrite(regionInfo, logKey, logEdit, regionInfo.isMetaRegion());
       this.numEntries.incrementAndGet();
     }
 
-    // sync txn to file system
-    this.sync(regionInfo.isMetaRegion());
+    // wait for the group commit of the txn to file system
+    if (future != null) {
+      future.get();
+    }
   }
 
   /**
@@ -819,6 +877,7 @@ public class DBLog implements Syncable {
     if (this.closed) {
       throw new IOException("Cannot append; log is closed");
     }
+    SyncFuture future;
     synchronized (this.updateLock) {
       long seqNum = obtainSeqNum();
       // The 'lastSeqWritten' map holds the sequence number of the oldest
@@ -828,33 +887,131 @@ public class DBLog implements Syncable {
       // is greater than or equal to the value in lastSeqWritten.
       this.lastSeqWritten.putIfAbsent(regionName, seqNum);
       DBLogKey logKey = makeKey(regionName, tableName, seqNum, now);
-      doWrite(info, logKey, edits);
+      future = doWrite(info, logKey, edits, info.isMetaRegion());
       this.numEntries.incrementAndGet();
+    }
+    // wait for the group commit of the txn to file system
+    if (future != null) {
+      future.get();
+    }
+  }
 
-      // Only count 1 row as an unflushed entry.
-      this.unflushedEntries.incrementAndGet();
+  /*
+   * An edit in the ring buffer, or only a sync request if entry is null.
+   */
+  static class PendingEdit {
+    final Entry entry;
+    final SyncFuture future;
+
+    PendingEdit(final Entry entry, final SyncFuture future) {
+      this.entry = entry;
+      this.future = future;
     }
-    // sync txn to file system
-    this.sync(info.isMetaRegion());
   }
 
   /**
-   * This thread is responsible to call syncFs and buffer up the writers while
-   * it happens.
+   * Completion of the group commit of an edit, waited on by the handler
+   * which appended it.
    */
-   class LogSyncer extends Thread {
+  public static class SyncFuture {
+    private final long startTime = System.currentTimeMillis();
+    private boolean done = false;
+    private IOException error = null;
+
+    synchronized void done(final IOException error) {
+      this.done = true;
+      this.error = error;
+      notifyAll();
+    }
 
-    // Using fairness to make sure locks are given in order
-    private final ReentrantLock lock = new ReentrantLock(true);
+    public synchronized boolean isDone() {
+      return this.done;
+    }
 
-    // Condition used to wait until we have something to sync
-    private final Condition queueEmpty = lock.newCondition();
+    /**
+     * Waits until the edit is synced to the file system.
+     * @throws IOException if the edit could not be written or synced
+     */
+    public synchronized void get() throws IOException {
+      while (!this.done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting for hlog sync");
+        }
+      }
+      syncWaitTime += System.currentTimeMillis() - this.startTime;
+      syncWaitOps++;
+      if (this.error != null) {
+        throw this.error;
+      }
+    }
+  }
 
-    // Condition used to signal that the sync is done
-    private final Condition syncDone = lock.newCondition();
+  /**
+   * This thread takes the edits out of the ring buffer, as many as there
+   * are, and writes them to the current log file. It then hands the futures
+   * of those edits to the LogSyncer, so the sync of one batch overlaps with
+   * the writing of the next.
+   */
+  class LogWriter extends Thread {
 
     private final long optionalFlushInterval;
 
+    private volatile boolean shutdown = false;
+
+    LogWriter(long optionalFlushInterval) {
+      this.optionalFlushInterval = optionalFlushInterval;
+    }
+
+    @Override
+    public void run() {
+      List<PendingEdit> batch = new ArrayList<PendingEdit>();
+      try {
+        // keep going until the ring is empty once shut down
+        while (!this.shutdown || !ringBuffer.isEmpty()) {
+          PendingEdit pending = ringBuffer.poll(this.optionalFlushInterval,
+              TimeUnit.MILLISECONDS);
+          if (pending == null) {
+            continue;
+          }
+          batch.add(pending);
+          ringBuffer.drainTo(batch);
+          writeEdits(batch);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + " interrupted while waiting for edits");
+      } finally {
+        LOG.info(getName() + " exiting");
+      }
+    }
+
+    /**
+     * Write the edits left in the ring, then exit. No edits must be added
+     * to the ring anymore.
+     */
+    void shutdown() {
+      this.shutdown = true;
+      // wake the thread up
+      ringBuffer.offer(new PendingEdit(null, null));
+    }
+  }
+
+  /**
+   * This thread is responsible to call syncFs once for all the edits
+   * written by the LogWriter while the previous sync happened, and to
+   * release the handlers waiting on them.
+   */
+  class LogSyncer extends Thread {
+
+    private final long optionalFlushInterval;
+
+    // Futures of the written edits waiting for the next sync
+    private List<SyncFuture> syncQueue = new ArrayList<SyncFuture>();
+
+    private boolean shutdown = false;
+
     private boolean syncerShuttingDown = false;
 
     LogSyncer(long optionalFlushInterval) {
@@ -863,132 +1020,148 @@ public class DBLog implements Syncable {
 
     @Override
     public void run() {
+      boolean exiting = false;
       try {
-        lock.lock();
-        // awaiting with a timeout doesn't always
-        // throw exceptions on interrupt
-        while(!this.isInterrupted()) {
-
-          // Wait until something has to be hflushed or do it if we waited
-          // enough time (useful if something appends but does not hflush).
-          // 0 or less means that it timed out and maybe waited a bit more.
-          if (!(queueEmpty.awaitNanos(
-              this.optionalFlushInterval*1000000) <= 0)) {
-            forceSync = true;
+        while (!exiting) {
+          List<SyncFuture> batch;
+          synchronized (this) {
+            // Wait until something has to be synced or do it if we waited
+            // enough time (useful if something appends but does not sync).
+            if (this.syncQueue.isEmpty() && !this.shutdown) {
+              wait(this.optionalFlushInterval);
+            }
+            batch = this.syncQueue;
+            this.syncQueue = new ArrayList<SyncFuture>();
+            exiting = this.shutdown;
+            this.syncerShuttingDown = exiting;
           }
 
-          // We got the signal, let's hflush. We currently own the lock so new
-          // writes are waiting to acquire it in addToSyncQueue while the ones
-          // we hflush are waiting on await()
-          hflush();
+          // One sync for all the edits written so far
+          IOException error = null;
+          if (!batch.isEmpty() || unflushedEntries.get() > 0) {
+            try {
+              syncWriter();
+            } catch (IOException e) {
+              error = e;
+            }
+          }
 
-          // Release all the clients waiting on the hflush. Notice that we still
-          // own the lock until we get back to await at which point all the
-          // other threads waiting will first acquire and release locks
-          syncDone.signalAll();
+          // Release all the clients waiting on the sync
+          for (SyncFuture future : batch) {
+            future.done(error);
+          }
         }
-      } catch (IOException e) {
-        LOG.error("Error while syncing, requesting close of hlog ", e);
-        requestLogRoll();
       } catch (InterruptedException e) {
-        LOG.debug(getName() + "interrupted while waiting for sync requests");
+        LOG.debug(getName() + " interrupted while waiting for sync requests");
       } finally {
-        syncerShuttingDown = true;
-        syncDone.signalAll();
-        lock.unlock();
+        synchronized (this) {
+          this.syncerShuttingDown = true;
+          failSyncs(this.syncQueue);
+          this.syncQueue.clear();
+        }
         LOG.info(getName() + " exiting");
       }
     }
 
     /**
-     * This method first signals the thread that there's a sync needed
-     * and then waits for it to happen before returning.
+     * Queue the futures of written edits for the next sync.
      */
-    public void addToSyncQueue(boolean force) {
-
-      // Don't bother if somehow our append was already hflushed
-      if (unflushedEntries.get() == 0) {
+    synchronized void addToSyncQueue(List<SyncFuture> futures) {
+      if (this.syncerShuttingDown) {
+        LOG.warn(getName() + " was shut down while waiting for sync");
+        failSyncs(futures);
         return;
       }
-      lock.lock();
-      try {
-        if (syncerShuttingDown) {
-          LOG.warn(getName() + " was shut down while waiting for sync");
-          return;
-        }
-        if(force) {
-          forceSync = true;
-        }
-        // Wake the thread
-        queueEmpty.signal();
+      this.syncQueue.addAll(futures);
+      notify();
+    }
 
-        // Wait for it to hflush
-        syncDone.await();
-      } catch (InterruptedException e) {
-        LOG.debug(getName() + " was interrupted while waiting for sync", e);
-      }
-      finally {
-        lock.unlock();
+    private void failSyncs(List<SyncFuture> futures) {
+      IOException e = new IOException(getName() + " was shut down");
+      for (SyncFuture future : futures) {
+        future.done(e);
       }
     }
+
+    /**
+     * Sync what was queued, then exit.
+     */
+    synchronized void shutdown() {
+      this.shutdown = true;
+      notify();
+    }
   }
 
-  public void sync(){
+  public void sync() throws IOException {
     sync(false);
   }
 
   /**
-   * This method calls the LogSyncer in order to group commit the sync
-   * with other threads.
-   * @param force For catalog regions, force the sync to happen
+   * This method queues a sync behind the edits appended so far and waits
+   * for it, so it is group committed with the syncs of other threads.
+   * @param force Unused, a sync asked for explicitly always happens
    */
-  public void sync(boolean force) {
-    logSyncerThread.addToSyncQueue(force);
+  public void sync(boolean force) throws IOException {
+    SyncFuture future;
+    synchronized (this.updateLock) {
+      if (this.closed) {
+        return;
+      }
+      future = enqueue(null, true);
+    }
+    future.get();
   }
 
   public void hflush() throws IOException {
-    synchronized (this.updateLock) {
+    sync(true);
+  }
+
+  /*
+   * Syncs the edits written to the current writer, called by the LogSyncer.
+   */
+  private void syncWriter() throws IOException {
+    int edits = this.unflushedEntries.getAndSet(0);
+    boolean logRollRequested = false;
+    this.writerLock.readLock().lock();
+    try {
       if (this.closed) {
         return;
       }
-      boolean logRollRequested = false;
-      if (this.forceSync ||
-          this.unflushedEntries.get() >= this.flushlogentries) {
+      try {
+        long now = System.currentTimeMillis();
+        this.writer.sync();
+        syncTime += System.currentTimeMillis() - now;
+        syncOps++;
+        syncedEdits += edits;
+
+        // if the number of replicas in HDFS has fallen below the initial
+        // value, then roll logs.
         try {
-          long now = System.currentTimeMillis();
-          this.writer.sync();
-          syncTime += System.currentTimeMillis() - now;
-          syncOps++;
-          this.forceSync = false;
-          this.unflushedEntries.set(0);
-
-          // if the number of replicas in HDFS has fallen below the initial
-          // value, then roll logs.
-          try {
-            int numCurrentReplicas = getLogReplication();
-            if (numCurrentReplicas != 0 &&
-                numCurrentReplicas < this.initialReplication) {
-              LOG.warn("HDFS pipeline error detected. " +
-                  "Found " + numCurrentReplicas + " replicas but expecting " +
-                  this.initialReplication + " replicas. " +
-                  " Requesting close of hlog.");
-              requestLogRoll();
-              logRollRequested = true;
-            }
-          } catch (Exception e) {
-              LOG.warn("Unable to invoke DFSOutputStream.getNumCurrentReplicas" + e +
-                       " still proceeding ahead...");
+          int numCurrentReplicas = getLogReplication();
+          if (numCurrentReplicas != 0 &&
+              numCurrentReplicas < this.initialReplication) {
+            LOG.warn("HDFS pipeline error detected. " +
+                "Found " + numCurrentReplicas + " replicas but expecting " +
+                this.initialReplication + " replicas. " +
+                " Requesting close of hlog.");
+            requestLogRoll();
+            logRollRequested = true;
           }
-        } catch (IOException e) {
-          LOG.fatal("Could not append. Requesting close of hlog", e);
-          requestLogRoll();
-          throw e;
+        } catch (Exception e) {
+            LOG.warn("Unable to invoke DFSOutputStream.getNumCurrentReplicas" + e +
+                     " still proceeding ahead...");
         }
+      } catch (IOException e) {
+        LOG.fatal("Could not sync. Requesting close of hlog", e);
+        requestLogRoll();
+        throw e;
       }
 
       if (!logRollRequested && (this.writer.getLength() > this.logrollsize)) {
         requestLogRoll();
       }
+    } finally {
+      this.writerLock.readLock().unlock();
     }
   }
 
@@ -1029,30 +1202,91 @@ public class DBLog implements Syncable {
     }
   }
 
-  protected void doWrite(DBRegionInfo info, DBLogKey logKey, WALEdit logEdit)
-  throws IOException {
+  /**
+   * Hands an edit to the log writer thread.
+   * @param force true to sync the edit whatever flushlogentries says
+   * @return Future of the sync of the edit, null if it is not to be waited on
+   * @throws IOException
+   */
+  protected SyncFuture doWrite(DBRegionInfo info, DBLogKey logKey,
+      WALEdit logEdit, boolean force) throws IOException {
     if (!this.enabled) {
-      return;
+      return null;
     }
     if (!this.logEntryVisitors.isEmpty()) {
       for (LogEntryVisitor visitor : this.logEntryVisitors) {
         visitor.visitLogEntryBeforeWrite(info, logKey, logEdit);
       }
     }
+    return enqueue(new DBLog.Entry(logKey, logEdit), force);
+  }
+
+  /*
+   * Puts an edit, or only a sync request if entry is null, in the ring.
+   * Presumes we're operating inside an updateLock scope, so the edits are
+   * in sequence id order. Blocks while the ring is full.
+   * @return Future of the sync, null if the edit is not to be waited on
+   */
+  private SyncFuture enqueue(final Entry entry, final boolean force)
+  throws IOException {
+    if (this.writerShuttingDown) {
+      throw new IOException("Cannot append; log is closed");
+    }
+    SyncFuture future = null;
+    if (entry == null || force ||
+        ++this.appendsSinceSync >= this.flushlogentries) {
+      this.appendsSinceSync = 0;
+      future = new SyncFuture();
+    }
     try {
-      long now = System.currentTimeMillis();
-      this.writer.append(new DBLog.Entry(logKey, logEdit));
-      long took = System.currentTimeMillis() - now;
-      writeTime += took;
-      writeOps++;
-      if (took > 1000) {
-        LOG.warn(Thread.currentThread().getName() + " took " + took +
-          "ms appending an edit to hlog; editcount=" + this.numEntries.get());
+      this.ringBuffer.put(new PendingEdit(entry, future));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted appending to hlog");
+    }
+    return future;
+  }
+
+  /*
+   * Writes the edits taken out of the ring to the current writer, then
+   * queues the futures of those to be synced. Called by the LogWriter.
+   */
+  private void writeEdits(final List<PendingEdit> batch) {
+    List<SyncFuture> futures = new ArrayList<SyncFuture>(batch.size());
+    int written = 0;
+    this.writerLock.readLock().lock();
+    try {
+      for (PendingEdit pending : batch) {
+        if (pending.entry != null) {
+          try {
+            long now = System.currentTimeMillis();
+            this.writer.append(pending.entry);
+            long took = System.currentTimeMillis() - now;
+            writeTime += took;
+            writeOps++;
+            written++;
+            if (took > 1000) {
+              LOG.warn(Thread.currentThread().getName() + " took " + took +
+                "ms appending an edit to hlog; editcount=" + this.numEntries.get());
+            }
+          } catch (IOException e) {
+            LOG.fatal("Could not append. Requesting close of hlog", e);
+            requestLogRoll();
+            if (pending.future != null) {
+              pending.future.done(e);
+            }
+            continue;
+          }
+        }
+        if (pending.future != null) {
+          futures.add(pending.future);
+        }
       }
-    } catch (IOException e) {
-      LOG.fatal("Could not append. Requesting close of hlog", e);
-      requestLogRoll();
-      throw e;
+    } finally {
+      this.writerLock.readLock().unlock();
+    }
+    this.unflushedEntries.addAndGet(written);
+    if (!futures.isEmpty()) {
+      this.logSyncerThread.addToSyncQueue(futures);
     }
   }
 
@@ -1109,22 +1343,22 @@ public class DBLog implements Syncable {
       if (this.closed) {
         return;
       }
+      SyncFuture future;
       synchronized (updateLock) {
-        long now = System.currentTimeMillis();
         WALEdit edit = completeCacheFlushLogEdit();
         DBLogKey key = makeKey(regionName, tableName, logSeqId,
             System.currentTimeMillis());
-        this.writer.append(new Entry(key, edit));
-        writeTime += System.currentTimeMillis() - now;
-        writeOps++;
+        future = enqueue(new Entry(key, edit), isMetaRegion);
         this.numEntries.incrementAndGet();
         Long seq = this.lastSeqWritten.get(regionName);
         if (seq != null && logSeqId >= seq.longValue()) {
           this.lastSeqWritten.remove(regionName);
         }
       }
-      // sync txn to file system
-      this.sync(isMetaRegion);
+      // wait for the group commit of the txn to file system
+      if (future != null) {
+        future.get();
+      }
 
     } finally {
       this.cacheFlushLock.unlock();
@@ -1212,16 +1446,6 @@ public class DBLog implements Syncable {
     return splits;
   }
 
-  // Private immutable datastructure to hold Writer and its Path.
-  private final static class WriterAndPath {
-    final Path p;
-    final Writer w;
-    WriterAndPath(final Path p, final Writer w) {
-      this.p = p;
-      this.w = w;
-    }
-  }
-
   @SuppressWarnings("unchecked")
   public static Class<? extends DBLogKey> getKeyClass(Configuration conf) {
      return (Class<? extends DBLogKey>)
@@ -1240,22 +1464,9 @@ public class DBLog implements Syncable {
   }
 
   /**
-   * Sorts the DBLog edits in the given list of logfiles (that are a mix of edits on multiple regions)
-   * by region and then splits them per region directories, in batches of (bigdb.hlog.split.batch.size)
-   *
-   * A batch consists of a set of log files that will be sorted in a single map of edits indexed by region
-   * the resulting map will be concurrently written by multiple threads to their corresponding regions
-   *
-   * Each batch consists of more more log files that are
-   *  - recovered (files is opened for append then closed to ensure no process is writing into it)
-   *  - parsed (each edit in the log is appended to a list of edits indexed by region
-   *    see {@link #parseDBLog} for more details)
-   *  - marked as either processed or corrupt depending on parsing outcome
-   *  - the resulting edits indexed by region are concurrently written to their corresponding region
-   *    region directories
-   *  - original files are then archived to a different directory
-   *
-   *
+   * Splits the edits in the given list of logfiles (that are a mix of edits
+   * on multiple regions) into per region recovered edits files, many logs
+   * at a time. See {@link DBLogSplitter} for the details.
    *
    * @param rootDir  bigdb directory
    * @param srcDir   logs directory
@@ -1263,76 +1474,15 @@ public class DBLog implements Syncable {
    * @param logfiles the list of log files to split
    * @param fs
    * @param conf
-   * @return
+   * @return the recovered edits files written
    * @throws IOException
    */
   private static List<Path> splitLog(final Path rootDir, final Path srcDir,
     Path oldLogDir, final FileStatus[] logfiles, final FileSystem fs,
     final Configuration conf)
   throws IOException {
-    List<Path> processedLogs = new ArrayList<Path>();
-    List<Path> corruptedLogs = new ArrayList<Path>();
-    final Map<byte [], WriterAndPath> logWriters =
-      Collections.synchronizedMap(
-        new TreeMap<byte [], WriterAndPath>(Bytes.BYTES_COMPARATOR));
-    List<Path> splits = null;
-
-    // Number of logs in a read batch
-    // More means faster but bigger mem consumption
-    //TODO make a note on the conf rename and update bigdb-site.xml if needed
-    int logFilesPerStep = conf.getInt("bigdb.hlog.split.batch.size", 3);
-     boolean skipErrors = conf.getBoolean("bigdb.hlog.split.skip.errors", false);
-
-
-    try {
-      int i = -1;
-      while (i < logfiles.length) {
-        final Map<byte[], LinkedList<Entry>> editsByRegion =
-          new TreeMap<byte[], LinkedList<Entry>>(Bytes.BYTES_COMPARATOR);
-        for (int j = 0; j < logFilesPerStep; j++) {
-          i++;
-          if (i == logfiles.length) {
-            break;
-          }
-          FileStatus log = logfiles[i];
-          Path logPath = log.getPath();
-          long logLength = log.getLen();
-          LOG.debug("Splitting hlog " + (i + 1) + " of " + logfiles.length +
-            ": " + logPath + ", length=" + logLength );
-          try {
-            recoverFileLease(fs, logPath, conf);
-            parseDBLog(log, editsByRegion, fs, conf);
-            processedLogs.add(logPath);
-          } catch (EOFException eof) {
-            // truncated files are expected if a RS crashes (see BIGDB-2643)
-            LOG.info("EOF from hlog " + logPath + ".  continuing");
-            processedLogs.add(logPath);
-          } catch (IOException e) {
-             if (skipErrors) {
-               LOG.warn("Got while parsing hlog " + logPath +
-                 ". Marking as corrupted", e);
-               corruptedLogs.add(logPath);
-             } else {
-               throw e;
-             }
-          }
-        }
-        writeEditsBatchToRegions(editsByRegion, logWriters, rootDir, fs, conf);
-      }
-      if (fs.listStatus(srcDir).length > processedLogs.size() + corruptedLogs.size()) {
-        throw new IOException("Discovered orphan hlog after split. Maybe " +
-          "DBRegionServer was not dead when we started");
-      }
-      archiveLogs(corruptedLogs, processedLogs, oldLogDir, fs, conf);
-    } finally {
-      splits = new ArrayList<Path>(logWriters.size());
-      for (WriterAndPath wap : logWriters.values()) {
-        wap.w.close();
-        splits.add(wap.p);
-        LOG.debug("Closed " + wap.p);
-      }
-    }
-    return splits;
+    return new DBLogSplitter(rootDir, srcDir, oldLogDir, fs, conf)
+      .splitLog(logfiles);
   }
 
 
@@ -1439,182 +1589,6 @@ public class DBLog implements Syncable {
     return new Path(oldLogDir, p.getName());
   }
 
-  /**
-   * Takes splitLogsMap and concurrently writes them to region directories using a thread pool
-   *
-   * @param splitLogsMap map that contains the log splitting result indexed by region
-   * @param logWriters map that contains a writer per region
-   * @param rootDir bigdb root dir
-   * @param fs
-   * @param conf
-   * @throws IOException
-   */
-  @SuppressWarnings({ "rawtypes", "unchecked" })
-  private static void writeEditsBatchToRegions(
-    final Map<byte[], LinkedList<Entry>> splitLogsMap,
-    final Map<byte[], WriterAndPath> logWriters,
-    final Path rootDir, final FileSystem fs, final Configuration conf)
-  throws IOException {
-    // Number of threads to use when log splitting to rewrite the logs.
-    // More means faster but bigger mem consumption.
-    int logWriterThreads =
-      conf.getInt("bigdb.regionserver.hlog.splitlog.writer.threads", 3);
-    boolean skipErrors = conf.getBoolean("bigdb.skip.errors", false);
-    HashMap<byte[], Future> writeFutureResult = new HashMap<byte[], Future>();
-    NamingThreadFactory f  = new NamingThreadFactory(
-            "SplitWriter-%1$d", Executors.defaultThreadFactory());
-    ThreadPoolExecutor threadPool = (ThreadPoolExecutor)Executors.newFixedThreadPool(logWriterThreads, f);
-    for (final byte [] region : splitLogsMap.keySet()) {
-      Callable splitter = createNewSplitter(rootDir, logWriters, splitLogsMap, region, fs, conf);
-      writeFutureResult.put(region, threadPool.submit(splitter));
-    }
-
-    threadPool.shutdown();
-    // Wait for all threads to terminate
-    try {
-      for (int j = 0; !threadPool.awaitTermination(5, TimeUnit.SECONDS); j++) {
-        String message = "Waiting for hlog writers to terminate, elapsed " + j * 5 + " seconds";
-        if (j < 30) {
-          LOG.debug(message);
-        } else {
-          LOG.info(message);
-        }
-
-      }
-    } catch(InterruptedException ex) {
-      LOG.warn("Hlog writers were interrupted, possible data loss!");
-      if (!skipErrors) {
-        throw new IOException("Could not finish writing log entries",  ex);
-        //TODO  maybe we should fail here regardless if skipErrors is active or not
-      }
-    }
-
-    for (Map.Entry<byte[], Future> entry : writeFutureResult.entrySet()) {
-      try {
-        entry.getValue().get();
-      } catch (ExecutionException e) {
-        throw (new IOException(e.getCause()));
-      } catch (InterruptedException e1) {
-        LOG.warn("Writer for region " +  Bytes.toString(entry.getKey()) +
-                " was interrupted, however the write process should have " +
-                "finished. Throwing up ", e1);
-        throw (new IOException(e1.getCause()));
-      }
-    }
-  }
-
-  /**
-   * Parse a single hlog and put the edits in @splitLogsMap
-   *
-   * @param logfile to split
-   * @param splitLogsMap output parameter: a map with region names as keys and a
-   * list of edits as values
-   * @param fs the filesystem
-   * @param conf the configuration
-   * @throws IOException if hlog is corrupted, or can't be open
-   */
-  private static void parseDBLog(final FileStatus logfile,
-    final Map<byte[], LinkedList<Entry>> splitLogsMap, final FileSystem fs,
-    final Configuration conf)
-  throws IOException {
-    // Check for possibly empty file. With appends, currently Hadoop reports a
-    // zero length even if the file has been sync'd. Revisit if HDFS-376 or
-    // HDFS-878 is committed.
-    long length = logfile.getLen();
-    if (length <= 0) {
-      LOG.warn("File " + logfile.getPath() + " might be still open, length is 0");
-    }
-    Path path = logfile.getPath();
-    Reader in;
-    int editsCount = 0;
-    try {
-      in = DBLog.getReader(fs, path, conf);
-    } catch (EOFException e) {
-      if (length <= 0) {
-        //TODO should we ignore an empty, not-last log file if skip.errors is false?
-        //Either way, the caller should decide what to do. E.g. ignore if this is the last
-        //log in sequence.
-        //TODO is this scenario still possible if the log has been recovered (i.e. closed)
-        LOG.warn("Could not open " + path + " for reading. File is empty" + e);
-        return;
-      } else {
-        throw e;
-      }
-    }
-    try {
-      Entry entry;
-      while ((entry = in.next()) != null) {
-        byte[] region = entry.getKey().getRegionName();
-        LinkedList<Entry> queue = splitLogsMap.get(region);
-        if (queue == null) {
-          queue = new LinkedList<Entry>();
-          splitLogsMap.put(region, queue);
-        }
-        queue.addLast(entry);
-        editsCount++;
-      }
-    } finally {
-      LOG.debug("Pushed=" + editsCount + " entries from " + path);
-      try {
-        if (in != null) {
-          in.close();
-        }
-      } catch (IOException e) {
-        LOG.warn("Close log reader in finally threw exception -- continuing", e);
-      }
-    }
-  }
-
-  private static Callable<Void> createNewSplitter(final Path rootDir,
-    final Map<byte[], WriterAndPath> logWriters,
-    final Map<byte[], LinkedList<Entry>> logEntries,
-    final byte[] region, final FileSystem fs, final Configuration conf) {
-    return new Callable<Void>() {
-      public String getName() {
-        return "Split writer thread for region " + Bytes.toStringBinary(region);
-      }
-
-      @Override
-      public Void call() throws IOException {
-        LinkedList<Entry> entries = logEntries.get(region);
-        LOG.debug(this.getName()+" got " + entries.size() + " to process");
-        long threadTime = System.currentTimeMillis();
-        try {
-          int editsCount = 0;
-          WriterAndPath wap = logWriters.get(region);
-          for (Entry logEntry: entries) {
-            if (wap == null) {
-              Path regionedits = getRegionSplitEditsPath(fs, logEntry, rootDir);
-              if (fs.exists(regionedits)) {
-                LOG.warn("Found existing old edits file. It could be the " +
-                  "result of a previous failed split attempt. Deleting " +
-                  regionedits + ", length=" + fs.getFileStatus(regionedits).getLen());
-                if (!fs.delete(regionedits, false)) {
-                  LOG.warn("Failed delete of old " + regionedits);
-                }
-              }
-              Writer w = createWriter(fs, regionedits, conf);
-              wap = new WriterAndPath(regionedits, w);
-              logWriters.put(region, wap);
-              LOG.debug("Creating writer path=" + regionedits +
-                " region=" + Bytes.toStringBinary(region));
-            }
-            wap.w.append(logEntry);
-            editsCount++;
-          }
-          LOG.debug(this.getName() + " Applied " + editsCount +
-            " total edits to " + Bytes.toStringBinary(region) +
-            " in " + (System.currentTimeMillis() - threadTime) + "ms");
-        } catch (IOException e) {
-          e = RemoteExceptionHandler.checkIOException(e);
-          LOG.fatal(this.getName() + " Got while writing log entry to log", e);
-          throw e;
-        }
-        return null;
-      }
-    };
-  }
-
   /**
    * Moves processed logs to a oldLogDir after successful processing
    * Moves corrupted logs (any log that couldn't be successfully parsed
@@ -1627,7 +1601,7 @@ public class DBLog implements Syncable {
    * @param conf
    * @throws IOException
    */
-  private static void archiveLogs(final List<Path> corruptedLogs,
+  static void archiveLogs(final List<Path> corruptedLogs,
     final List<Path> processedLogs, final Path oldLogDir,
     final FileSystem fs, final Configuration conf)
   throws IOException{
@@ -1662,7 +1636,7 @@ public class DBLog implements Syncable {
    * @return Path to file into which to dump split log edits.
    * @throws IOException
    */
-  private static Path getRegionSplitEditsPath(final FileSystem fs,
+  static Path getRegionSplitEditsPath(final FileSystem fs,
       final Entry logEntry, final Path rootDir)
   throws IOException {
     Path tableDir = DBTableDescriptor.getTableDir(rootDir,
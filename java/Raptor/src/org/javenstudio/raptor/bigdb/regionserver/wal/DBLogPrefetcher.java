@@ -0,0 +1,196 @@
+package org.javenstudio.raptor.bigdb.regionserver.wal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.fs.FileSystem;
+import org.javenstudio.raptor.fs.Path;
+
+import com.google.common.util.concurrent.DaemonThreadFactory;
+import com.google.common.util.concurrent.NamingThreadFactory;
+
+/**
+ * Reads a list of hlog files ahead of their consumer, several at a time.
+ * <p>
+ * Each file is read by a pool thread into a bounded buffer of entries, which
+ * the consumer reads through the {@link DBLog.Reader} of the file. The files
+ * are read in the order given, so while the consumer goes through one file
+ * the next ones are already being read. Used to replay the recovered edits
+ * of a region while it opens, overlapping the reads with applying the edits
+ * to the memstore.
+ */
+public class DBLogPrefetcher {
+  static final Logger LOG = Logger.getLogger(DBLogPrefetcher.class);
+
+  // Marks the end of a file in a buffer
+  private static final Object EOF = new Object();
+
+  private final FileSystem fs;
+  private final Configuration conf;
+  private final PrefetchReader [] readers;
+  private final ExecutorService pool;
+  private volatile long waitTime = 0;
+
+  /**
+   * Starts reading the files.
+   * @param files the files, in the order they will be read
+   * @param threads how many files are read at once
+   * @param bufferEntries entries buffered per file
+   */
+  public DBLogPrefetcher(final FileSystem fs, final Configuration conf,
+      final List<Path> files, final int threads, final int bufferEntries) {
+    this.fs = fs;
+    this.conf = conf;
+    this.readers = new PrefetchReader[files.size()];
+    this.pool = Executors.newFixedThreadPool(Math.max(1, threads),
+      new DaemonThreadFactory(new NamingThreadFactory("LogPrefetcher-%1$d",
+        Executors.defaultThreadFactory())));
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new PrefetchReader(files.get(i), Math.max(1, bufferEntries));
+      pool.execute(readers[i]);
+    }
+  }
+
+  /**
+   * @return the reader of the <code>i</code>th file
+   */
+  public DBLog.Reader getReader(final int i) {
+    return this.readers[i];
+  }
+
+  /**
+   * @return Milliseconds the consumer waited for entries to be read
+   */
+  public long getWaitTime() {
+    return this.waitTime;
+  }
+
+  /**
+   * Stop reading, the readers not consumed yet return no more entries.
+   */
+  public void close() {
+    for (PrefetchReader reader : this.readers) {
+      reader.close();
+    }
+    this.pool.shutdownNow();
+  }
+
+  /*
+   * Reads a file into its buffer in a pool thread, and hands the entries
+   * to the consumer.
+   */
+  private class PrefetchReader implements DBLog.Reader, Runnable {
+    private final Path path;
+    private final BlockingQueue<Object> buffer;
+    private volatile boolean closed = false;
+    private boolean done = false;
+
+    PrefetchReader(final Path path, final int bufferEntries) {
+      this.path = path;
+      this.buffer = new ArrayBlockingQueue<Object>(bufferEntries);
+    }
+
+    @Override
+    public void run() {
+      DBLog.Reader in = null;
+      try {
+        in = DBLog.getReader(fs, this.path, conf);
+        DBLog.Entry entry;
+        while (!this.closed && (entry = in.next()) != null) {
+          put(entry);
+        }
+        put(EOF);
+      } catch (IOException e) {
+        try {
+          put(e);
+        } catch (InterruptedException ie) {
+          // closed
+        }
+      } catch (InterruptedException e) {
+        // closed
+      } catch (Throwable t) {
+        // such as a corrupt entry; the consumer must not wait forever
+        LOG.warn("Prefetching " + this.path + " failed", t);
+        try {
+          put(new IOException("Prefetching " + this.path + " failed", t));
+        } catch (InterruptedException ie) {
+          // closed
+        }
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+            LOG.warn("Close log reader of " + this.path + " threw exception", e);
+          }
+        }
+      }
+    }
+
+    private void put(final Object o) throws InterruptedException {
+      while (!this.closed && !this.buffer.offer(o, 100, TimeUnit.MILLISECONDS)) {
+        // wait for the consumer
+      }
+    }
+
+    @Override
+    public DBLog.Entry next() throws IOException {
+      if (this.done || this.closed) {
+        return null;
+      }
+      Object o = this.buffer.poll();
+      if (o == null) {
+        long start = System.currentTimeMillis();
+        try {
+          o = this.buffer.take();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted reading " + this.path);
+        }
+        waitTime += System.currentTimeMillis() - start;
+      }
+      if (o == EOF) {
+        this.done = true;
+        return null;
+      }
+      if (o instanceof IOException) {
+        this.done = true;
+        throw (IOException)o;
+      }
+      return (DBLog.Entry)o;
+    }
+
+    @Override
+    public DBLog.Entry next(final DBLog.Entry reuse) throws IOException {
+      return next();
+    }
+
+    @Override
+    public void close() {
+      this.closed = true;
+      this.buffer.clear();
+    }
+
+    @Override
+    public void init(FileSystem fs, Path path, Configuration c) {
+      throw new UnsupportedOperationException("Opened by the prefetcher");
+    }
+
+    @Override
+    public void seek(long pos) {
+      throw new UnsupportedOperationException("Not seekable");
+    }
+
+    @Override
+    public long getPosition() {
+      throw new UnsupportedOperationException("Not seekable");
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package org.javenstudio.raptor.bigdb.regionserver.wal;
+
+import static org.javenstudio.raptor.bigdb.util.FSUtils.recoverFileLease;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.fs.FileStatus;
+import org.javenstudio.raptor.fs.FileSystem;
+import org.javenstudio.raptor.fs.Path;
+import org.javenstudio.raptor.bigdb.KeyValue;
+import org.javenstudio.raptor.bigdb.RemoteExceptionHandler;
+import org.javenstudio.raptor.bigdb.util.Bytes;
+import org.javenstudio.raptor.bigdb.util.ClassSize;
+import org.javenstudio.raptor.util.StringUtils;
+
+import com.google.common.util.concurrent.NamingThreadFactory;
+
+/**
+ * Splits the hlogs of a region server into recovered edits files of the
+ * regions, many logs at a time.
+ * <p>
+ * Each log is split by a task of its own, <tt>bigdb.hlog.split.threads</tt>
+ * of them run at once. A task reads its log through and buffers the edits
+ * per region; once the buffers hold their share of
+ * <tt>bigdb.hlog.split.buffer.size</tt> they are written out to the region
+ * writers of the task, so memory stays bounded whatever the size of the logs.
+ * <p>
+ * A region gets one recovered edits file per log it has edits in, named for
+ * the sequence id of its first edit in that log. The logs of a server hold
+ * distinct ranges of sequence ids, so replaying the files of a region in
+ * name order applies its edits in order, as {@link DBLog#getSplitEditFilesSorted}
+ * lists them.
+ */
+class DBLogSplitter {
+  static final Logger LOG = Logger.getLogger(DBLogSplitter.class);
+
+  private final Path rootDir;
+  private final Path srcDir;
+  private final Path oldLogDir;
+  private final FileSystem fs;
+  private final Configuration conf;
+  private final boolean skipErrors;
+  private final int splitThreads;
+  private final long bufferSize;
+
+  // Timings summed over the tasks, for the report of the split
+  private final AtomicLong recoverTime = new AtomicLong(0);
+  private final AtomicLong readTime = new AtomicLong(0);
+  private final AtomicLong writeTime = new AtomicLong(0);
+  private final AtomicLong editsCount = new AtomicLong(0);
+  private final AtomicLong bytesCount = new AtomicLong(0);
+  private final AtomicInteger logsDone = new AtomicInteger(0);
+
+  DBLogSplitter(final Path rootDir, final Path srcDir, final Path oldLogDir,
+      final FileSystem fs, final Configuration conf) {
+    this.rootDir = rootDir;
+    this.srcDir = srcDir;
+    this.oldLogDir = oldLogDir;
+    this.fs = fs;
+    this.conf = conf;
+    this.skipErrors = conf.getBoolean("bigdb.hlog.split.skip.errors", false);
+    this.splitThreads = Math.max(1, conf.getInt("bigdb.hlog.split.threads",
+      conf.getInt("bigdb.regionserver.hlog.splitlog.writer.threads", 3)));
+    this.bufferSize = conf.getLong("bigdb.hlog.split.buffer.size",
+      128 * 1024 * 1024);
+  }
+
+  /** Outcome of the split of one log. */
+  private static class SplitResult {
+    final Path log;
+    final boolean corrupted;
+    final List<Path> splits;
+
+    SplitResult(final Path log, final boolean corrupted,
+        final List<Path> splits) {
+      this.log = log;
+      this.corrupted = corrupted;
+      this.splits = splits;
+    }
+  }
+
+  /**
+   * Split the logs, then archive them.
+   * @param logfiles the logs of <code>srcDir</code> to split
+   * @return the recovered edits files written
+   * @throws IOException if a log could not be split and corrupted logs
+   * aren't tolerated
+   */
+  List<Path> splitLog(final FileStatus[] logfiles) throws IOException {
+    long startTime = System.currentTimeMillis();
+    List<Path> processedLogs = new ArrayList<Path>();
+    List<Path> corruptedLogs = new ArrayList<Path>();
+    List<Path> splits = new ArrayList<Path>();
+
+    long totalBytes = 0;
+    for (FileStatus log : logfiles) {
+      totalBytes += log.getLen();
+    }
+    LOG.info("Splitting " + logfiles.length + " hlog(s) of " +
+      StringUtils.humanReadableInt(totalBytes) + " with " +
+      Math.min(this.splitThreads, logfiles.length) + " thread(s)");
+
+    ExecutorService pool = Executors.newFixedThreadPool(
+      Math.min(this.splitThreads, logfiles.length),
+      new NamingThreadFactory("SplitWriter-%1$d",
+        Executors.defaultThreadFactory()));
+    try {
+      List<Future<SplitResult>> results =
+        new ArrayList<Future<SplitResult>>(logfiles.length);
+      for (FileStatus log : logfiles) {
+        results.add(pool.submit(createSplitter(log, logfiles.length)));
+      }
+      for (Future<SplitResult> future : results) {
+        SplitResult result = getResult(future);
+        if (result.corrupted) {
+          corruptedLogs.add(result.log);
+        } else {
+          processedLogs.add(result.log);
+        }
+        splits.addAll(result.splits);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    long splitTime = System.currentTimeMillis() - startTime;
+
+    if (fs.listStatus(srcDir).length > processedLogs.size() + corruptedLogs.size()) {
+      throw new IOException("Discovered orphan hlog after split. Maybe " +
+        "DBRegionServer was not dead when we started");
+    }
+    long archiveStart = System.currentTimeMillis();
+    DBLog.archiveLogs(corruptedLogs, processedLogs, oldLogDir, fs, conf);
+    long archiveTime = System.currentTimeMillis() - archiveStart;
+
+    LOG.info("Split " + logfiles.length + " hlog(s) of " +
+      StringUtils.humanReadableInt(this.bytesCount.get()) + " into " +
+      splits.size() + " recovered edits file(s) in " + splitTime + "ms (" +
+      (this.bytesCount.get() * 1000 / Math.max(1, splitTime) / (1024 * 1024)) +
+      " MB/s): edits=" + this.editsCount.get() +
+      ", corrupted=" + corruptedLogs.size() +
+      "; thread time recoverLease=" + this.recoverTime.get() +
+      "ms, read=" + this.readTime.get() +
+      "ms, write=" + this.writeTime.get() +
+      "ms; archive=" + archiveTime + "ms");
+    return splits;
+  }
+
+  private static SplitResult getResult(final Future<SplitResult> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException(cause);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while splitting hlogs", e);
+    }
+  }
+
+  private Callable<SplitResult> createSplitter(final FileStatus log,
+      final int logCount) {
+    return new Callable<SplitResult>() {
+      @Override
+      public SplitResult call() throws IOException {
+        return splitLogFile(log, logCount);
+      }
+    };
+  }
+
+  /*
+   * Edits of a region read from the current log and not written yet, and
+   * the writer of its recovered edits file for this log.
+   */
+  private static class RegionEntries {
+    final LinkedList<DBLog.Entry> entries = new LinkedList<DBLog.Entry>();
+    Path path = null;
+    DBLog.Writer writer = null;
+  }
+
+  /*
+   * Split one log into the recovered edits files of its regions.
+   */
+  private SplitResult splitLogFile(final FileStatus logfile,
+      final int logCount) throws IOException {
+    final Path path = logfile.getPath();
+    final long length = logfile.getLen();
+    final long maxBuffered = Math.max(1, this.bufferSize / this.splitThreads);
+    final Map<byte [], RegionEntries> regions =
+      new TreeMap<byte [], RegionEntries>(Bytes.BYTES_COMPARATOR);
+    long startTime = System.currentTimeMillis();
+    long taskWriteTime = 0;
+    long buffered = 0;
+    int edits = 0;
+    boolean corrupted = false;
+
+    try {
+      recoverFileLease(fs, path, conf);
+      long readStart = System.currentTimeMillis();
+      this.recoverTime.addAndGet(readStart - startTime);
+
+      // Check for possibly empty file. With appends, currently Hadoop reports a
+      // zero length even if the file has been sync'd. Revisit if HDFS-376 or
+      // HDFS-878 is committed.
+      if (length <= 0) {
+        LOG.warn("File " + path + " might be still open, length is 0");
+      }
+      DBLog.Reader in = null;
+      try {
+        in = DBLog.getReader(fs, path, conf);
+      } catch (EOFException e) {
+        if (length > 0) {
+          throw e;
+        }
+        LOG.warn("Could not open " + path + " for reading. File is empty" + e);
+      }
+      if (in != null) {
+        try {
+          DBLog.Entry entry;
+          while ((entry = in.next()) != null) {
+            RegionEntries region = regions.get(entry.getKey().getRegionName());
+            if (region == null) {
+              region = new RegionEntries();
+              regions.put(entry.getKey().getRegionName(), region);
+            }
+            region.entries.addLast(entry);
+            buffered += heapSize(entry);
+            edits++;
+            if (buffered >= maxBuffered) {
+              taskWriteTime += writeEntries(regions);
+              buffered = 0;
+            }
+          }
+        } catch (EOFException eof) {
+          // truncated files are expected if a RS crashes (see BIGDB-2643)
+          LOG.info("EOF from hlog " + path + ".  continuing");
+        } catch (IOException e) {
+          e = RemoteExceptionHandler.checkIOException(e);
+          if (!this.skipErrors) {
+            throw e;
+          }
+          LOG.warn("Got while parsing hlog " + path +
+            ". Marking as corrupted", e);
+          corrupted = true;
+        } finally {
+          try {
+            in.close();
+          } catch (IOException e) {
+            LOG.warn("Close log reader in finally threw exception -- continuing", e);
+          }
+        }
+      }
+      // Write out what was read, of a corrupted log too
+      taskWriteTime += writeEntries(regions);
+    } finally {
+      long closeStart = System.currentTimeMillis();
+      closeWriters(regions);
+      taskWriteTime += System.currentTimeMillis() - closeStart;
+    }
+
+    long taskTime = System.currentTimeMillis() - startTime;
+    this.writeTime.addAndGet(taskWriteTime);
+    this.readTime.addAndGet(Math.max(0, taskTime - taskWriteTime));
+    this.editsCount.addAndGet(edits);
+    this.bytesCount.addAndGet(length);
+
+    List<Path> splits = new ArrayList<Path>(regions.size());
+    for (RegionEntries region : regions.values()) {
+      if (region.path != null) {
+        splits.add(region.path);
+      }
+    }
+    LOG.info("Split hlog " + this.logsDone.incrementAndGet() + " of " +
+      logCount + ": " + path + ", length=" + length + ", edits=" + edits +
+      ", regions=" + regions.size() + (corrupted ? ", corrupted" : "") +
+      " in " + taskTime + "ms");
+    return new SplitResult(path, corrupted, splits);
+  }
+
+  /*
+   * Write the buffered edits of all the regions to their recovered edits
+   * files, creating those on the first write.
+   * @return Time taken
+   */
+  private long writeEntries(final Map<byte [], RegionEntries> regions)
+      throws IOException {
+    long startTime = System.currentTimeMillis();
+    for (Map.Entry<byte [], RegionEntries> e : regions.entrySet()) {
+      RegionEntries region = e.getValue();
+      if (region.entries.isEmpty()) {
+        continue;
+      }
+      try {
+        if (region.writer == null) {
+          Path regionedits = DBLog.getRegionSplitEditsPath(fs,
+            region.entries.getFirst(), rootDir);
+          if (fs.exists(regionedits)) {
+            LOG.warn("Found existing old edits file. It could be the " +
+              "result of a previous failed split attempt. Deleting " +
+              regionedits + ", length=" + fs.getFileStatus(regionedits).getLen());
+            if (!fs.delete(regionedits, false)) {
+              LOG.warn("Failed delete of old " + regionedits);
+            }
+          }
+          region.writer = DBLog.createWriter(fs, regionedits, conf);
+          region.path = regionedits;
+          LOG.debug("Creating writer path=" + regionedits +
+            " region=" + Bytes.toStringBinary(e.getKey()));
+        }
+        for (DBLog.Entry entry : region.entries) {
+          region.writer.append(entry);
+        }
+        region.entries.clear();
+      } catch (IOException ex) {
+        ex = RemoteExceptionHandler.checkIOException(ex);
+        LOG.fatal("Got while writing log entry of region " +
+          Bytes.toStringBinary(e.getKey()) + " to log", ex);
+        throw ex;
+      }
+    }
+    return System.currentTimeMillis() - startTime;
+  }
+
+  private void closeWriters(final Map<byte [], RegionEntries> regions)
+      throws IOException {
+    IOException error = null;
+    for (RegionEntries region : regions.values()) {
+      if (region.writer == null) {
+        continue;
+      }
+      try {
+        region.writer.close();
+        LOG.debug("Closed " + region.path);
+      } catch (IOException e) {
+        LOG.warn("Failed close of " + region.path, e);
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static long heapSize(final DBLog.Entry entry) {
+    long size = ClassSize.align(ClassSize.OBJECT + 2 * ClassSize.REFERENCE) +
+      entry.getKey().getRegionName().length +
+      entry.getKey().getTablename().length;
+    for (KeyValue kv : entry.getEdit().getKeyValues()) {
+      size += kv.heapSize();
+    }
+    return size;
+  }
+}
@@ -0,0 +1,290 @@
+package org.javenstudio.raptor.bigdb.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javenstudio.raptor.bigdb.KeyValue.KeyComparator;
+import org.javenstudio.raptor.io.Writable;
+
+/**
+ * A Bloom filter cut into chunks of a bounded size, each a
+ * {@link ByteBloomFilter} over a range of the sorted keys of a store file.
+ * <p>
+ * Keys are a row and an optional qualifier, added in the order of the file.
+ * A chunk is closed when it holds as many keys as its size allows, so a
+ * lookup only needs the chunk whose first key is the last one not greater
+ * than the key looked up. The index of the chunks, their first keys and
+ * bloom meta data, is small and kept in memory; the chunks themselves are
+ * read on demand through a {@link ChunkReader}, which is expected to cache
+ * them.
+ * <p>
+ * With a row only key the qualifier is empty, which is also how the row
+ * check of a row+column filter, for family deletes, finds the first chunk
+ * of the row.
+ */
+public class CompoundBloomFilter {
+  /** Version of the meta data, after the {@link ByteBloomFilter} one */
+  public static final int VERSION = 2;
+
+  /** Reads the bloom bits of a chunk. */
+  public static interface ChunkReader {
+    public ByteBuffer readChunk(int chunk) throws IOException;
+  }
+
+  private final int hashType;
+  private final int keyCount;
+  private final byte [][] firstRows;
+  private final byte [][] firstQualifiers;
+  private final ByteBloomFilter [] chunks;
+  private final KeyComparator comparator;
+
+  /**
+   * Loads the chunk index from the meta data written by {@link Writer}.
+   * @param meta stored bloom meta data
+   * @param comparator comparator of the rows of the file
+   * @throws IllegalArgumentException meta data is invalid
+   */
+  public CompoundBloomFilter(ByteBuffer meta, KeyComparator comparator)
+      throws IllegalArgumentException {
+    int version = meta.getInt();
+    if (version != VERSION) throw new IllegalArgumentException("Bad version");
+
+    this.hashType = meta.getInt();
+    this.keyCount = meta.getInt();
+    int count = meta.getInt();
+    if (count < 0) throw new IllegalArgumentException("Bad chunk count");
+
+    this.firstRows = new byte[count][];
+    this.firstQualifiers = new byte[count][];
+    this.chunks = new ByteBloomFilter[count];
+    for (int i = 0; i < count; i++) {
+      firstRows[i] = readBytes(meta);
+      firstQualifiers[i] = readBytes(meta);
+      chunks[i] = new ByteBloomFilter(meta);
+    }
+    this.comparator = comparator;
+  }
+
+  private static byte [] readBytes(ByteBuffer buf) {
+    byte [] b = new byte[buf.getInt()];
+    buf.get(b);
+    return b;
+  }
+
+  /**
+   * Check if a row, or a row and qualifier, may be in the file.
+   *
+   * @param qualifier the qualifier, or null for a row only key
+   * @param reader reads the chunk bits
+   * @return true if matched by bloom, false if not
+   */
+  public boolean contains(byte [] row, byte [] qualifier, ChunkReader reader)
+      throws IOException {
+    int qlength = qualifier == null ? 0 : qualifier.length;
+    int chunk = chunkContaining(row, qualifier, qlength);
+    if (chunk < 0) {
+      // before the first key of the file
+      return false;
+    }
+    byte [] key = row;
+    if (qlength > 0) {
+      key = new byte[row.length + qlength];
+      System.arraycopy(row, 0, key, 0, row.length);
+      System.arraycopy(qualifier, 0, key, row.length, qlength);
+    }
+    return chunks[chunk].contains(key, reader.readChunk(chunk));
+  }
+
+  private int chunkContaining(byte [] row, byte [] qualifier, int qlength) {
+    int low = 0;
+    int high = chunks.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = comparator.compareRows(firstRows[mid], 0, firstRows[mid].length,
+          row, 0, row.length);
+      if (cmp == 0) {
+        cmp = Bytes.compareTo(firstQualifiers[mid], 0,
+            firstQualifiers[mid].length, qualifier, 0, qlength);
+      }
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return low - 1;
+  }
+
+  public int getChunkCount() {
+    return this.chunks.length;
+  }
+
+  public int getKeyCount() {
+    return this.keyCount;
+  }
+
+  public int getHashType() {
+    return this.hashType;
+  }
+
+  /**
+   * @return Bytes of the bloom bits of all the chunks
+   */
+  public long getByteSize() {
+    long size = 0;
+    for (ByteBloomFilter chunk : chunks) {
+      size += chunk.getByteSize();
+    }
+    return size;
+  }
+
+  /**
+   * Builds the chunks of a compound bloom filter.
+   */
+  public static class Writer {
+    private final int chunkKeys;
+    private final float errorRate;
+    private final int hashType;
+    private final int foldFactor;
+
+    private final List<ByteBloomFilter> chunks = new ArrayList<ByteBloomFilter>();
+    private final List<byte []> firstRows = new ArrayList<byte []>();
+    private final List<byte []> firstQualifiers = new ArrayList<byte []>();
+    private ByteBloomFilter current = null;
+    private int keyCount = 0;
+
+    /**
+     * @param chunkByteSize Bytes of the bloom bits of a chunk
+     * @param maxKeys Expected number of keys, smaller files get smaller chunks
+     * @param errorRate Desired false positive error rate
+     * @param hashType Type of hash function to use
+     * @param foldFactor How much the last chunk may be folded
+     */
+    public Writer(int chunkByteSize, int maxKeys, float errorRate,
+        int hashType, int foldFactor) {
+      // invert the sizing of ByteBloomFilter, m = n * ln(err) / ln(0.6185)
+      int keys = (int)(chunkByteSize * 8L * Math.log(0.6185) /
+          Math.log(errorRate));
+      this.chunkKeys = Math.max(1, Math.min(keys, maxKeys));
+      this.errorRate = errorRate;
+      this.hashType = hashType;
+      this.foldFactor = foldFactor;
+    }
+
+    /**
+     * Add a key, keys must be added in the order of the file.
+     *
+     * @param buf buffer of the row and qualifier
+     * @param qoffset offset of the qualifier
+     * @param qlength length of the qualifier, 0 for a row only key
+     */
+    public void add(byte [] buf, int roffset, int rlength,
+        int qoffset, int qlength) {
+      if (current == null) {
+        current = new ByteBloomFilter(chunkKeys, errorRate, hashType,
+            foldFactor);
+        current.allocBloom();
+        firstRows.add(copy(buf, roffset, rlength));
+        firstQualifiers.add(copy(buf, qoffset, qlength));
+      }
+      if (qlength == 0) {
+        current.add(buf, roffset, rlength);
+      } else {
+        byte [] key = new byte[rlength + qlength];
+        System.arraycopy(buf, roffset, key, 0, rlength);
+        System.arraycopy(buf, qoffset, key, rlength, qlength);
+        current.add(key);
+      }
+      keyCount++;
+      if (current.getKeyCount() >= chunkKeys) {
+        finishChunk();
+      }
+    }
+
+    private static byte [] copy(byte [] buf, int offset, int length) {
+      byte [] b = new byte[length];
+      System.arraycopy(buf, offset, b, 0, length);
+      return b;
+    }
+
+    private void finishChunk() {
+      if (current != null) {
+        current.compactBloom();
+        chunks.add(current);
+        current = null;
+      }
+    }
+
+    /**
+     * Close the last chunk, call before writing the chunks out.
+     */
+    public void finish() {
+      finishChunk();
+    }
+
+    public int getChunkCount() {
+      return chunks.size();
+    }
+
+    public int getKeyCount() {
+      return keyCount;
+    }
+
+    public int getMaxKeys() {
+      return chunkKeys * Math.max(1, chunks.size());
+    }
+
+    public long getByteSize() {
+      long size = 0;
+      for (ByteBloomFilter chunk : chunks) {
+        size += chunk.getByteSize();
+      }
+      return size;
+    }
+
+    /**
+     * @return Writer of the bloom bits of a chunk
+     */
+    public Writable getChunkWriter(int chunk) {
+      return chunks.get(chunk).getDataWriter();
+    }
+
+    /**
+     * @return Writer of the chunk index
+     */
+    public Writable getMetaWriter() {
+      return new MetaWriter();
+    }
+
+    private class MetaWriter implements Writable {
+      protected MetaWriter() {}
+      @Override
+      public void readFields(DataInput arg0) throws IOException {
+        throw new IOException("Cant read with this class.");
+      }
+
+      @Override
+      public void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(hashType);
+        out.writeInt(keyCount);
+        out.writeInt(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+          byte [] row = firstRows.get(i);
+          out.writeInt(row.length);
+          out.write(row);
+          byte [] qualifier = firstQualifiers.get(i);
+          out.writeInt(qualifier.length);
+          out.write(qualifier);
+          chunks.get(i).getMetaWriter().write(out);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package org.javenstudio.raptor.dfs;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.dfs.protocol.Block;
+import org.javenstudio.raptor.dfs.protocol.BlockLocalPathInfo;
+import org.javenstudio.raptor.dfs.server.datanode.FSDataset;
+import org.javenstudio.raptor.io.IOUtils;
+import org.javenstudio.raptor.util.DataChecksum;
+
+
+/**
+ * Reads a replica of a block straight from the block and metadata files
+ * of a datanode on the same host, as found by
+ * {@link org.javenstudio.raptor.dfs.protocol.ClientDatanodeProtocol#getBlockLocalPathInfo(Block)}.
+ * <p>
+ * The files are read by position through their channels, so one reader
+ * serves concurrent preads.  The readers of the recently read blocks are
+ * kept open in a {@link Cache}; a reader is closed once it is evicted and
+ * no read uses it any more.
+ */
+class BlockReaderLocal {
+  private static final Logger LOG = Logger.getLogger(BlockReaderLocal.class);
+
+  /** Version and checksum header at the start of the metadata file */
+  static final int HEADER_SIZE = 2 + DataChecksum.getChecksumHeaderSize();
+
+  private final BlockLocalPathInfo info;
+  private final FileInputStream dataIn;
+  private final FileInputStream checksumIn;
+  private final int checksumType;
+  private final int bytesPerChecksum;
+  private final int checksumSize;
+  // references of its opener, of the cache and of the ongoing reads
+  private int refCount = 1;
+
+  private BlockReaderLocal(BlockLocalPathInfo info, FileInputStream dataIn,
+      FileInputStream checksumIn, DataChecksum checksum) {
+    this.info = info;
+    this.dataIn = dataIn;
+    this.checksumIn = checksumIn;
+    this.checksumType = checksum.getChecksumType();
+    this.bytesPerChecksum = checksum.getBytesPerChecksum();
+    this.checksumSize = checksum.getChecksumSize();
+  }
+
+  /**
+   * Open the files of a replica and read the checksum header.
+   * @return a reader with the reference of its opener taken
+   */
+  static BlockReaderLocal open(BlockLocalPathInfo info) throws IOException {
+    FileInputStream dataIn = null;
+    FileInputStream checksumIn = null;
+    try {
+      dataIn = new FileInputStream(info.getBlockPath());
+      checksumIn = new FileInputStream(info.getMetaPath());
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(checksumIn.getChannel(), header, 0);
+      short version = header.getShort(0);
+      if (version != FSDataset.METADATA_VERSION) {
+        throw new IOException("Unexpected metadata version " + version +
+                              " of " + info.getMetaPath());
+      }
+      DataChecksum checksum = DataChecksum.newDataChecksum(header.array(), 2);
+      if (checksum == null) {
+        throw new IOException("Unknown checksum in " + info.getMetaPath());
+      }
+      BlockReaderLocal reader =
+        new BlockReaderLocal(info, dataIn, checksumIn, checksum);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Opened local reader of " + info);
+      }
+      return reader;
+    } catch (IOException e) {
+      IOUtils.closeStream(dataIn);
+      IOUtils.closeStream(checksumIn);
+      throw e;
+    }
+  }
+
+  Block getBlock() {
+    return info.getBlock();
+  }
+
+  /** Length of the replica when it was opened */
+  long getLength() {
+    return info.getNumBytes();
+  }
+
+  /**
+   * Read <i>len</i> bytes of the block from <i>pos</i> into
+   * <i>buf</i>, verifying the checksums of the chunks they are in.
+   * @throws org.javenstudio.raptor.fs.ChecksumException if a chunk
+   *         does not match its checksum
+   * @throws IOException if the range is not within the replica
+   */
+  void read(long pos, byte[] buf, int off, int len, boolean verifyChecksum)
+      throws IOException {
+    long length = getLength();
+    if (pos < 0 || len < 0 || pos + len > length) {
+      throw new IOException("Cannot read " + len + " bytes at " + pos +
+                            " of " + length + " bytes of " + getBlock());
+    }
+    if (!verifyChecksum || checksumSize <= 0) {
+      readFully(dataIn.getChannel(), ByteBuffer.wrap(buf, off, len), pos);
+      return;
+    }
+
+    // read whole chunks, straight into buf when the range is made of them
+    long chunkStart = pos - pos % bytesPerChecksum;
+    long end = pos + len;
+    long chunkEnd = Math.min(length,
+        (end + bytesPerChecksum - 1) / bytesPerChecksum * bytesPerChecksum);
+    int dataLen = (int) (chunkEnd - chunkStart);
+    byte[] data = buf;
+    int dataOff = off;
+    if (chunkStart != pos || chunkEnd != end) {
+      data = new byte[dataLen];
+      dataOff = 0;
+    }
+    readFully(dataIn.getChannel(), ByteBuffer.wrap(data, dataOff, dataLen),
+              chunkStart);
+
+    int numChunks = (dataLen + bytesPerChecksum - 1) / bytesPerChecksum;
+    byte[] sums = new byte[numChunks * checksumSize];
+    readFully(checksumIn.getChannel(), ByteBuffer.wrap(sums), HEADER_SIZE +
+              chunkStart / bytesPerChecksum * checksumSize);
+    // a DataChecksum is not thread safe, and this reader is shared
+    DataChecksum checksum =
+      DataChecksum.newDataChecksum(checksumType, bytesPerChecksum);
+    checksum.verifyChunkedSums(data, dataOff, dataLen, sums, 0,
+                               info.getBlockPath(), chunkStart);
+    if (data != buf) {
+      System.arraycopy(data, (int) (pos - chunkStart), buf, off, len);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf,
+      long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, pos);
+      if (n < 0) {
+        throw new EOFException("Premature EOF at " + pos);
+      }
+      pos += n;
+    }
+  }
+
+  /**
+   * Take a reference for a read.
+   * @return false if the reader is already closed
+   */
+  synchronized boolean acquire() {
+    if (refCount <= 0) {
+      return false;
+    }
+    refCount++;
+    return true;
+  }
+
+  /** Drop a reference, closing the files with the last one. */
+  synchronized void release() {
+    if (refCount > 0 && --refCount == 0) {
+      IOUtils.closeStream(dataIn);
+      IOUtils.closeStream(checksumIn);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Closed local reader of " + info);
+      }
+    }
+  }
+
+  /**
+   * The open readers of the most recently read blocks, in the order of
+   * their last reads.
+   */
+  static class Cache {
+    private final int capacity;
+    private final LinkedHashMap<Block, BlockReaderLocal> readers;
+
+    Cache(final int capacity) {
+      this.capacity = capacity;
+      this.readers = new LinkedHashMap<Block, BlockReaderLocal>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(
+            Map.Entry<Block, BlockReaderLocal> eldest) {
+          if (size() > Cache.this.capacity) {
+            eldest.getValue().release();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    /**
+     * Get the reader of the block, taking a reference for a read.
+     * @return null unless a reader of the same generation is cached
+     */
+    synchronized BlockReaderLocal get(Block block) {
+      BlockReaderLocal reader = readers.get(block);
+      if (reader == null) {
+        return null;
+      }
+      if (reader.getBlock().getGenerationStamp() != block.getGenerationStamp()
+          || !reader.acquire()) {
+        readers.remove(block);
+        reader.release();
+        return null;
+      }
+      return reader;
+    }
+
+    /** Keep the reader, replacing any reader of the same block. */
+    synchronized void put(BlockReaderLocal reader) {
+      if (!reader.acquire()) {
+        return;
+      }
+      BlockReaderLocal old = readers.put(reader.getBlock(), reader);
+      if (old != null && old != reader) {
+        old.release();
+      }
+    }
+
+    /** Forget the reader if cached, such as after it failed a read. */
+    synchronized void remove(BlockReaderLocal reader) {
+      if (readers.get(reader.getBlock()) == reader) {
+        readers.remove(reader.getBlock());
+        reader.release();
+      }
+    }
+
+    /** Close all the readers once their reads are done. */
+    void clear() {
+      List<BlockReaderLocal> closing;
+      synchronized (this) {
+        closing = new ArrayList<BlockReaderLocal>(readers.values());
+        readers.clear();
+      }
+      for (BlockReaderLocal reader : closing) {
+        reader.release();
+      }
+    }
+
+    synchronized int size() {
+      return readers.size();
+    }
+  }
+}
@@ -3,9 +3,19 @@ package org.javenstudio.raptor.dfs;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.zip.CRC32;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
@@ -34,6 +44,9 @@ import org.javenstudio.raptor.security.AccessControlException;
 import org.javenstudio.raptor.security.UnixUserGroupInformation;
 import org.javenstudio.raptor.util.*;
 
+import com.google.common.util.concurrent.DaemonThreadFactory;
+import com.google.common.util.concurrent.NamingThreadFactory;
+
 
 /********************************************************
  * DFSClient can connect to a Hadoop Filesystem and 
@@ -65,9 +78,24 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private SocketFactory socketFactory;
   private int socketTimeout;
   private int datanodeWriteTimeout;
+  private final int checksumType;
   final int writePacketSize;
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
+  // read replicas on datanodes of this host straight from their files
+  private final boolean shortCircuitLocalReads;
+  final BlockReaderLocal.Cache localReaders;
+  // whether the hosts of the datanodes are this host
+  private final Map<String, Boolean> localHosts = 
+    new ConcurrentHashMap<String, Boolean>();
+  // datanodes which refused local reads
+  private final Map<String, Boolean> localReadsRefused = 
+    new ConcurrentHashMap<String, Boolean>();
+  // preads of a second replica when the first is slow, none if null
+  private final ThreadPoolExecutor hedgedReadPool;
+  private final long hedgedReadThresholdMillis;
+  private final AtomicLong hedgedReadOps = new AtomicLong();
+  private final AtomicLong hedgedReadWins = new AtomicLong();
     
  
   public static ClientProtocol createNamenode(Configuration conf) throws IOException {
@@ -170,9 +198,24 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    // blocks always carry 4-byte sums, either CRC32 or CRC32C
+    int type = DataChecksum.getChecksumTypeByName(conf.get(
+        DataChecksum.CHECKSUM_TYPE_KEY, DataChecksum.DEFAULT_CHECKSUM_TYPE));
+    this.checksumType = (type == DataChecksum.CHECKSUM_CRC32C) ? 
+        DataChecksum.CHECKSUM_CRC32C : DataChecksum.CHECKSUM_CRC32;
     this.maxBlockAcquireFailures = 
                           conf.getInt("dfs.client.max.block.acquire.failures",
                                       MAX_BLOCK_ACQUIRE_FAILURES);
+    this.shortCircuitLocalReads = 
+                          conf.getBoolean("dfs.client.read.shortcircuit", false);
+    this.localReaders = new BlockReaderLocal.Cache(
+        conf.getInt("dfs.client.read.shortcircuit.cache.size", 256));
+    this.hedgedReadThresholdMillis = 
+                   conf.getLong("dfs.client.hedged.read.threshold.millis", 500);
+    int hedgedReadThreads = 
+                   conf.getInt("dfs.client.hedged.read.threadpool.size", 0);
+    this.hedgedReadPool = hedgedReadThreads > 0 ? 
+        createHedgedReadPool(hedgedReadThreads) : null;
     
     try {
       this.ugi = UnixUserGroupInformation.login(conf, true);
@@ -224,7 +267,99 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   
       // close connections to the namenode
       RPC.stopProxy(rpcNamenode);
+      localReaders.clear();
+      if (hedgedReadPool != null) {
+        hedgedReadPool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * The reads of hedged preads, at most one per thread.  A read the pool
+   * has no thread for runs in the thread of the pread; once the pool is
+   * shut down a read is rejected, rather than dropped and never done.
+   */
+  private static ThreadPoolExecutor createHedgedReadPool(int threads) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, threads, 
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new NamingThreadFactory("hedgedRead-%1$d",
+          new DaemonThreadFactory(Executors.defaultThreadFactory())),
+        new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (e.isShutdown()) {
+              throw new RejectedExecutionException("Hedged read pool is shut down");
+            }
+            r.run();
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** Are preads hedged over a second replica? */
+  public boolean isHedgedReadsEnabled() {
+    return hedgedReadPool != null;
+  }
+
+  /** Number of preads of a second replica started as the first was slow */
+  public long getHedgedReadOps() {
+    return hedgedReadOps.get();
+  }
+
+  /** Number of hedged preads answered first by a later replica */
+  public long getHedgedReadWins() {
+    return hedgedReadWins.get();
+  }
+
+  /**
+   * Can the replicas on the datanode be read from their files?
+   * @return true if the datanode is on this host, and has not refused
+   */
+  boolean isLocalReadable(DatanodeInfo node) {
+    if (!shortCircuitLocalReads || 
+        localReadsRefused.containsKey(node.getName())) {
+      return false;
+    }
+    Boolean local = localHosts.get(node.getHost());
+    if (local == null) {
+      InetSocketAddress addr = NetUtils.createSocketAddr(node.getName());
+      local = addr.getAddress() != null && 
+              NetUtils.isLocalAddress(addr.getAddress());
+      localHosts.put(node.getHost(), local);
+    }
+    return local;
+  }
+
+  /**
+   * Get the reader of the replica of the block on a datanode of this
+   * host, asking the datanode for the paths of its files unless cached.
+   * @return the reader, with a reference taken for the read
+   */
+  BlockReaderLocal getLocalBlockReader(Block block, DatanodeInfo node
+      ) throws IOException {
+    BlockReaderLocal reader = localReaders.get(block);
+    if (reader != null) {
+      return reader;
+    }
+    BlockLocalPathInfo info;
+    ClientDatanodeProtocol datanode = 
+      createClientDatanodeProtocolProxy(node, conf);
+    try {
+      info = datanode.getBlockLocalPathInfo(block);
+    } catch (RemoteException re) {
+      IOException e = re.unwrapRemoteException(AccessControlException.class);
+      if (e instanceof AccessControlException) {
+        LOG.info("Not reading locally from " + node.getName() + ": " + 
+                 e.getMessage());
+        localReadsRefused.put(node.getName(), Boolean.TRUE);
+      }
+      throw e;
+    } finally {
+      RPC.stopProxy(datanode);
     }
+    reader = BlockReaderLocal.open(info);
+    localReaders.put(reader);
+    return reader;
   }
 
   /**
@@ -1799,58 +1934,245 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         
     private void fetchBlockByteRange(LocatedBlock block, long start,
                                      long end, byte[] buf, int offset) throws IOException {
-      //
-      // Connect to best DataNode for desired Block, with potential offset
-      //
-      Socket dn = null;
+      if (fetchBlockByteRangeLocal(block, start, end, buf, offset)) {
+        return;
+      }
+      if (isHedgedReadsEnabled()) {
+        hedgedFetchBlockByteRange(block, start, end, buf, offset);
+        return;
+      }
       int numAttempts = block.getLocations().length;
       IOException ioe = null;
       
-      while (dn == null && numAttempts-- > 0 ) {
+      while (numAttempts-- > 0) {
         DNAddrPair retval = chooseDataNode(block);
-        DatanodeInfo chosenNode = retval.info;
-        InetSocketAddress targetAddr = retval.addr;
-        BlockReader reader = null;
-            
         try {
-          dn = socketFactory.createSocket();
-          NetUtils.connect(dn, targetAddr, socketTimeout);
-          dn.setSoTimeout(socketTimeout);
-              
-          int len = (int) (end - start + 1);
-              
-          reader = BlockReader.newBlockReader(dn, src, 
-                                              block.getBlock().getBlockId(),
-                                              block.getBlock().getGenerationStamp(),
-                                              start, len, buffersize, 
-                                              verifyChecksum, clientName);
-          int nread = reader.readAll(buf, offset, len);
-          if (nread != len) {
-            throw new IOException("truncated return from reader.read(): " +
-                                  "excpected " + len + ", got " + nread);
-          }
+          fetchBlockByteRange(retval, block, start, end, buf, offset);
           return;
-        } catch (ChecksumException e) {
-          ioe = e;
-          LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
-                   src + " at " + block.getBlock() + ":" + 
-                   e.getPos() + " from " + chosenNode.getName());
-          reportChecksumFailure(src, block.getBlock(), chosenNode);
         } catch (IOException e) {
           ioe = e;
+        }
+        // Put chosen node into dead list, continue
+        addToDeadNodes(retval.info);
+      }
+      throw (ioe == null) ? new IOException("Could not read data") : ioe;
+    }
+
+    /**
+     * Read the range from one datanode.
+     * @throws IOException if the datanode failed to send it, after
+     * reporting a checksum failure to the namenode
+     */
+    private void fetchBlockByteRange(DNAddrPair retval, LocatedBlock block, 
+        long start, long end, byte[] buf, int offset) throws IOException {
+      //
+      // Connect to best DataNode for desired Block, with potential offset
+      //
+      DatanodeInfo chosenNode = retval.info;
+      InetSocketAddress targetAddr = retval.addr;
+      Socket dn = null;
+      BlockReader reader = null;
+          
+      try {
+        dn = socketFactory.createSocket();
+        NetUtils.connect(dn, targetAddr, socketTimeout);
+        dn.setSoTimeout(socketTimeout);
+            
+        int len = (int) (end - start + 1);
+            
+        reader = BlockReader.newBlockReader(dn, src, 
+                                            block.getBlock().getBlockId(),
+                                            block.getBlock().getGenerationStamp(),
+                                            start, len, buffersize, 
+                                            verifyChecksum, clientName);
+        int nread = reader.readAll(buf, offset, len);
+        if (nread != len) {
+          throw new IOException("truncated return from reader.read(): " +
+                                "excpected " + len + ", got " + nread);
+        }
+      } catch (ChecksumException e) {
+        LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
+                 src + " at " + block.getBlock() + ":" + 
+                 e.getPos() + " from " + chosenNode.getName());
+        reportChecksumFailure(src, block.getBlock(), chosenNode);
+        throw e;
+      } catch (IOException e) {
+        // not worth a warning when a hedged read was cancelled as another
+        // replica answered first
+        if (!Thread.currentThread().isInterrupted()) {
           LOG.warn("Failed to connect to " + targetAddr + 
                    " for file " + src + 
                    " for block " + block.getBlock().getBlockId() + ":"  +
                    StringUtils.stringifyException(e));
-        } finally {
-          IOUtils.closeStream(reader);
-          IOUtils.closeSocket(dn);
-          dn = null;
         }
-        // Put chosen node into dead list, continue
+        throw e;
+      } finally {
+        IOUtils.closeStream(reader);
+        IOUtils.closeSocket(dn);
+      }
+    }
+
+    /**
+     * Read the range from a datanode and, if it has not answered within
+     * the hedged read threshold, from another replica too, taking the
+     * first range read.  The slower read is cancelled.  While no read
+     * has answered, another replica is read each time the threshold passes
+     * again, as long as there is one.
+     */
+    private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+        long end, byte[] buf, int offset) throws IOException {
+      final int len = (int) (end - start + 1);
+      CompletionService<byte[]> hedgedService = 
+        new ExecutorCompletionService<byte[]>(hedgedReadPool);
+      // the ongoing reads, and the nodes they read from
+      Map<Future<byte[]>, DatanodeInfo> futures = 
+        new HashMap<Future<byte[]>, DatanodeInfo>();
+      Future<byte[]> firstRequest = null;
+      int numAttempts = block.getLocations().length;
+      IOException ioe = null;
+      
+      try {
+        while (true) {
+          Future<byte[]> future;
+          if (futures.isEmpty()) {
+            if (numAttempts-- <= 0) {
+              throw (ioe == null) ? new IOException("Could not read data") : ioe;
+            }
+            DNAddrPair retval = chooseDataNode(block);
+            firstRequest = submitFetch(hedgedService, retval, block, start, end);
+            futures.put(firstRequest, retval.info);
+            future = hedgedService.poll(hedgedReadThresholdMillis, 
+                                        TimeUnit.MILLISECONDS);
+            if (future == null) {
+              // too slow: read another replica, if there is one
+              continue;
+            }
+          } else {
+            DatanodeInfo hedgedNode = numAttempts > 0 ? 
+                chooseHedgedNode(block, futures.values()) : null;
+            if (hedgedNode != null) {
+              numAttempts--;
+              DNAddrPair retval = new DNAddrPair(hedgedNode, 
+                  NetUtils.createSocketAddr(hedgedNode.getName()));
+              futures.put(submitFetch(hedgedService, retval, block, start, end),
+                          hedgedNode);
+              hedgedReadOps.incrementAndGet();
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Hedged read of block " + block.getBlock() + 
+                          " of file " + src + " from " + hedgedNode.getName());
+              }
+            }
+            future = hedgedService.poll(hedgedReadThresholdMillis, 
+                                        TimeUnit.MILLISECONDS);
+            if (future == null) {
+              // still waiting, unless the client was closed meanwhile
+              checkOpen();
+              continue;
+            }
+          }
+          
+          DatanodeInfo node = futures.remove(future);
+          try {
+            byte[] data = future.get();
+            System.arraycopy(data, 0, buf, offset, len);
+            if (future != firstRequest) {
+              hedgedReadWins.incrementAndGet();
+            }
+            return;
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            ioe = cause instanceof IOException ? (IOException) cause : 
+              (IOException) new IOException("Read failed").initCause(cause);
+            // Put node into dead list, continue
+            addToDeadNodes(node);
+          }
+        }
+      } catch (InterruptedException e) {
+        throw (IOException) new InterruptedIOException(
+            "Interrupted reading block " + block.getBlock() + 
+            " of file " + src).initCause(e);
+      } finally {
+        for (Future<byte[]> future : futures.keySet()) {
+          future.cancel(true);
+        }
+      }
+    }
+
+    /**
+     * Choose a replica to read beside those being read.
+     * @return null if there is no other live replica
+     */
+    private DatanodeInfo chooseHedgedNode(LocatedBlock block, 
+        Collection<DatanodeInfo> reading) {
+      for (DatanodeInfo node : block.getLocations()) {
+        if (!deadNodes.containsKey(node) && !reading.contains(node)) {
+          return node;
+        }
+      }
+      return null;
+    }
+
+    private Future<byte[]> submitFetch(CompletionService<byte[]> hedgedService,
+        final DNAddrPair retval, final LocatedBlock block, final long start, 
+        final long end) throws IOException {
+      try {
+        return hedgedService.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+              byte[] data = new byte[(int) (end - start + 1)];
+              fetchBlockByteRange(retval, block, start, end, data, 0);
+              return data;
+            }
+          });
+      } catch (RejectedExecutionException e) {
+        // the pool is shut down as the client is closed
+        checkOpen();
+        throw (IOException) new IOException("Could not read block " + 
+            block.getBlock() + " of file " + src).initCause(e);
+      }
+    }
+
+    /**
+     * Read the range from a replica on a datanode of this host, straight
+     * from the files of the replica.
+     * @return false to read the range through a socket instead, when no
+     * replica is on this host or it could not be read
+     */
+    private boolean fetchBlockByteRangeLocal(LocatedBlock block, long start,
+                                     long end, byte[] buf, int offset) {
+      DatanodeInfo chosenNode = null;
+      for (DatanodeInfo node : block.getLocations()) {
+        if (!deadNodes.containsKey(node) && isLocalReadable(node)) {
+          chosenNode = node;
+          break;
+        }
+      }
+      if (chosenNode == null) {
+        return false;
+      }
+      BlockReaderLocal reader = null;
+      try {
+        reader = getLocalBlockReader(block.getBlock(), chosenNode);
+        reader.read(start, buf, offset, (int) (end - start + 1), verifyChecksum);
+        return true;
+      } catch (ChecksumException e) {
+        LOG.warn("fetchBlockByteRangeLocal(). Got a checksum exception for " +
+                 src + " at " + block.getBlock() + ":" + 
+                 e.getPos() + " from " + chosenNode.getName());
+        reportChecksumFailure(src, block.getBlock(), chosenNode);
         addToDeadNodes(chosenNode);
+      } catch (IOException e) {
+        LOG.warn("Failed to read block " + block.getBlock().getBlockId() + 
+                 " of file " + src + " locally from " + chosenNode.getName() + 
+                 ": " + e);
+      } finally {
+        if (reader != null) {
+          reader.release();
+        }
       }
-      throw (ioe == null) ? new IOException("Could not read data") : ioe;
+      if (reader != null) {
+        localReaders.remove(reader);
+      }
+      return false;
     }
 
     /**
@@ -2634,7 +2956,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
     private DFSOutputStream(String src, long blockSize, Progressable progress,
         int bytesPerChecksum) throws IOException {
-      super(new CRC32(), bytesPerChecksum, 4);
+      super(DataChecksum.newDataChecksum(checksumType, bytesPerChecksum), 
+            bytesPerChecksum, 4);
       this.src = src;
       this.blockSize = blockSize;
       this.progress = progress;
@@ -2649,8 +2972,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               "multiple of io.bytes.per.checksum");
                               
       }
-      checksum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 
-                                              bytesPerChecksum);
+      checksum = DataChecksum.newDataChecksum(checksumType, bytesPerChecksum);
     }
 
     /**
@@ -0,0 +1,90 @@
+package org.javenstudio.raptor.dfs.protocol;
+
+import org.javenstudio.raptor.io.*;
+
+import java.io.*;
+
+
+/****************************************************
+ * A BlockLocalPathInfo tells where a replica of a Block
+ * and its metadata are stored on the local disks of a
+ * datanode, for clients reading the block on the same host.
+ *
+ ****************************************************/
+public class BlockLocalPathInfo implements Writable {
+
+  static {                                      // register a ctor
+    WritableFactories.setFactory
+      (BlockLocalPathInfo.class,
+       new WritableFactory() {
+         public Writable newInstance() { return new BlockLocalPathInfo(); }
+       });
+  }
+
+  private Block block;
+  private String localBlockPath = "";  // local path of the block data file
+  private String localMetaPath = "";   // local path of the checksum file
+
+  /**
+   */
+  public BlockLocalPathInfo() {
+    this(new Block(), "", "");
+  }
+
+  /**
+   * @param b the block, with the length of the replica
+   * @param file the block data file
+   * @param metafile the block checksum file
+   */
+  public BlockLocalPathInfo(Block b, String file, String metafile) {
+    this.block = b;
+    this.localBlockPath = file;
+    this.localMetaPath = metafile;
+  }
+
+  /**
+   */
+  public Block getBlock() {
+    return block;
+  }
+
+  /**
+   */
+  public String getBlockPath() {
+    return localBlockPath;
+  }
+
+  /**
+   */
+  public String getMetaPath() {
+    return localMetaPath;
+  }
+
+  /**
+   * Get number of bytes in the replica.
+   */
+  public long getNumBytes() {
+    return block.getNumBytes();
+  }
+
+  /** {@inheritDoc} */
+  public String toString() {
+    return block + ", file=" + localBlockPath + ", metafile=" + localMetaPath;
+  }
+
+  ///////////////////////////////////////////
+  // Writable
+  ///////////////////////////////////////////
+  public void write(DataOutput out) throws IOException {
+    block.write(out);
+    Text.writeString(out, localBlockPath);
+    Text.writeString(out, localMetaPath);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    block = new Block();
+    block.readFields(in);
+    localBlockPath = Text.readString(in);
+    localMetaPath = Text.readString(in);
+  }
+}
@@ -7,14 +7,16 @@ import org.javenstudio.raptor.ipc.VersionedProtocol;
 
 
 /** An client-datanode protocol for block recovery
+ * and for local reads of block replicas
  */
 public interface ClientDatanodeProtocol extends VersionedProtocol {
   public static final Logger LOG = Logger.getLogger(ClientDatanodeProtocol.class);
 
   /**
    * 3: add keepLength parameter.
+   * 4: add getBlockLocalPathInfo.
    */
-  public static final long versionID = 3L;
+  public static final long versionID = 4L;
 
   /** Start generation-stamp recovery for specified block
    * @param block the specified block
@@ -27,5 +29,15 @@ public interface ClientDatanodeProtocol extends VersionedProtocol {
    */
   LocatedBlock recoverBlock(Block block, boolean keepLength,
       DatanodeInfo[] targets) throws IOException;
-}
 
+  /** Get the local paths of a finalized replica of the specified block,
+   * so that a client on the same host can read it from the disk rather
+   * than through a socket.
+   * @param block the specified block
+   * @return the block with the replica length, and the local paths of
+   * the block file and its metadata file
+   * @throws IOException if the block is not found or still being written,
+   * or the caller is not allowed local reads
+   */
+  BlockLocalPathInfo getBlockLocalPathInfo(Block block) throws IOException;
+}
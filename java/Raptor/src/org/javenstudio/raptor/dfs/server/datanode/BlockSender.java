@@ -48,6 +48,13 @@ class BlockSender implements java.io.Closeable, FSConstants {
   private BlockTransferThrottler throttler;
   private final String clientTraceFmt; // format of client trace log message
 
+  // state of sending by packets, see startPackets()
+  private int maxChunksPerPacket;
+  private long packetStartOffset;
+  private long packetBytesRead;
+  private long packetDataPosition = -1; // of the data of the last packet
+  private boolean endOfBlockPut;
+
   /**
    * Minimum buffer used while sending data to clients. Used only if
    * transferTo() is enabled. 64KB is not that large. It could be larger, but
@@ -189,7 +196,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
    * was a socket error rather than often more serious exceptions like 
    * disk errors.
    */
-  private static IOException ioeToSocketException(IOException ioe) {
+  static IOException ioeToSocketException(IOException ioe) {
     if (ioe.getClass().equals(IOException.class)) {
       // "se" could be a new class in stead of SocketException.
       IOException se = new SocketException("Original Exception : " + ioe);
@@ -204,17 +211,16 @@ class BlockSender implements java.io.Closeable, FSConstants {
   }
 
   /**
-   * Sends upto maxChunks chunks of data.
+   * Reads upto maxChunks chunks of data into a packet.
    * 
-   * When blockInPosition is >= 0, assumes 'out' is a 
-   * {@link SocketOutputStream} and tries 
-   * {@link SocketOutputStream#transferToFully(FileChannel, long, int)} to
-   * send data (and updates blockInPosition).
+   * The packet header and checksums are put into <code>pkt</code>, which
+   * is left positioned after them.  Unless blockInPosition is >= 0, the
+   * data follows them in the buffer; otherwise it is left in the file to
+   * be transferred from blockInPosition.
+   * 
+   * @return the length of the data in the packet
    */
-  private int sendChunks(ByteBuffer pkt, int maxChunks, OutputStream out) 
-                         throws IOException {
-    // Sends multiple chunks in one packet with a single write().
-
+  private int readChunks(ByteBuffer pkt, int maxChunks) throws IOException {
     int len = Math.min((int) (endOffset - offset),
                        bytesPerChecksum*maxChunks);
     if (len == 0) {
@@ -258,31 +264,38 @@ class BlockSender implements java.io.Closeable, FSConstants {
     }
     
     int dataOff = checksumOff + checksumLen;
+    pkt.position(dataOff);
     
     if (blockInPosition < 0) {
       //normal transfer
       IOUtils.readFully(blockIn, buf, dataOff, len);
 
       if (verifyChecksum) {
-        int dOff = dataOff;
-        int cOff = checksumOff;
-        int dLeft = len;
-
-        for (int i=0; i<numChunks; i++) {
-          checksum.reset();
-          int dLen = Math.min(dLeft, bytesPerChecksum);
-          checksum.update(buf, dOff, dLen);
-          if (!checksum.compare(buf, cOff)) {
-            throw new ChecksumException("Checksum failed at " + 
-                                        (offset + len - dLeft), len);
-          }
-          dLeft -= dLen;
-          dOff += dLen;
-          cOff += checksumSize;
-        }
+        checksum.verifyChunkedSums(buf, dataOff, len, buf, checksumOff, 
+                                   block.toString(), offset);
       }
-      //writing is done below (mainly to handle IOException)
     }
+    return len;
+  }
+
+  /**
+   * Sends upto maxChunks chunks of data.
+   * 
+   * When blockInPosition is >= 0, assumes 'out' is a 
+   * {@link SocketOutputStream} and tries 
+   * {@link SocketOutputStream#transferToFully(FileChannel, long, int)} to
+   * send data (and updates blockInPosition).
+   */
+  private int sendChunks(ByteBuffer pkt, int maxChunks, OutputStream out) 
+                         throws IOException {
+    // Sends multiple chunks in one packet with a single write().
+
+    int len = readChunks(pkt, maxChunks);
+    if (len == 0) {
+      return 0;
+    }
+    byte[] buf = pkt.array();
+    int dataOff = pkt.position();
     
     try {
       if (blockInPosition >= 0) {
@@ -310,12 +323,127 @@ class BlockSender implements java.io.Closeable, FSConstants {
     }
 
     if (throttler != null) { // rebalancing so throttle
-      throttler.throttle(packetLen);
+      throttler.throttle(pkt.getInt(0));
     }
 
     return len;
   }
 
+  /**
+   * Choose the packet size, and whether the data of packets is sent by
+   * transferTo() from the block file.
+   * @return the size of the packet buffer
+   */
+  private int initPackets(boolean transferTo) throws IOException {
+    int pktSize = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
+    
+    if (transferTo) {
+      FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
+      
+      // blockInPosition also indicates sendChunks() uses transferTo.
+      blockInPosition = fileChannel.position();
+      
+      // assure a mininum buffer size.
+      maxChunksPerPacket = (Math.max(BUFFER_SIZE, 
+                                     MIN_BUFFER_WITH_TRANSFERTO)
+                            + bytesPerChecksum - 1)/bytesPerChecksum;
+      
+      // allocate smaller buffer while using transferTo(). 
+      pktSize += checksumSize * maxChunksPerPacket;
+    } else {
+      maxChunksPerPacket = Math.max(1,
+               (BUFFER_SIZE + bytesPerChecksum - 1)/bytesPerChecksum);
+      pktSize += (bytesPerChecksum + checksumSize) * maxChunksPerPacket;
+    }
+    return pktSize;
+  }
+
+  /**
+   * Start sending the block a packet at a time by 
+   * {@link #nextPacket(ByteBuffer)}, for a sender without a thread
+   * of its own that writes the packets itself.
+   * 
+   * @param transferTo whether the data of the packets may be left in the
+   *        block file, for the sender to transfer from
+   *        {@link #getBlockChannel()}
+   * @return the buffer for the packets, holding the checksum header and
+   *         the chunk offset
+   */
+  ByteBuffer startPackets(boolean transferTo) throws IOException {
+    transferTo = transferTo && transferToAllowed && !verifyChecksum && 
+                 blockIn instanceof FileInputStream;
+    int pktSize = initPackets(transferTo);
+    ByteBuffer pkt = ByteBuffer.allocate(pktSize);
+    pkt.put(checksum.getHeader());
+    if (chunkOffsetOK) {
+      pkt.putLong(offset);
+    }
+    pkt.flip();
+    packetStartOffset = offset;
+    packetBytesRead = 0;
+    return pkt;
+  }
+
+  /**
+   * Put the next packet into the buffer, or the mark of the end of the
+   * block after the last one.  The buffer is left flipped for writing.
+   * 
+   * @return the length of the data of the packet to transfer from the
+   *         block file at {@link #getPacketDataPosition()} after the
+   *         buffer, 0 if the data is in the buffer, or -1 once the end
+   *         of the block was put
+   */
+  int nextPacket(ByteBuffer pkt) throws IOException {
+    if (endOffset <= offset) {
+      if (endOfBlockPut) {
+        return -1;
+      }
+      pkt.clear();
+      pkt.putInt(0); // mark the end of block
+      pkt.flip();
+      endOfBlockPut = true;
+      blockReadFully = (packetStartOffset == 0 && offset >= blockLength);
+      return 0;
+    }
+    int len = readChunks(pkt, maxChunksPerPacket);
+    int dataOff = pkt.position();
+    offset += len;
+    packetBytesRead += len + ((len + bytesPerChecksum - 1)/bytesPerChecksum*
+                        checksumSize);
+    seqno++;
+    pkt.position(0);
+    if (blockInPosition >= 0) {
+      pkt.limit(dataOff);
+      packetDataPosition = blockInPosition;
+      blockInPosition += len;
+      return len;
+    }
+    pkt.limit(dataOff + len);
+    return 0;
+  }
+
+  /** The block file, to transfer the data of packets from. */
+  FileChannel getBlockChannel() {
+    return ((FileInputStream)blockIn).getChannel();
+  }
+
+  /** The position in the block file of the data of the last packet. */
+  long getPacketDataPosition() {
+    return packetDataPosition;
+  }
+
+  /**
+   * Done with sending packets: log the client trace and close the files.
+   * @return total bytes read, including crc
+   */
+  long endPackets() throws IOException {
+    if (clientTraceFmt != null) {
+      ClientTraceLog.info(String.format(clientTraceFmt, packetBytesRead));
+    }
+    close();
+    return packetBytesRead;
+  }
+
   /**
    * sendBlock() is used to read block and its metadata and stream the data to
    * either a client or to another datanode. 
@@ -351,31 +479,13 @@ class BlockSender implements java.io.Closeable, FSConstants {
         throw ioeToSocketException(e);
       }
       
-      int maxChunksPerPacket;
-      int pktSize = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
-      
-      if (transferToAllowed && !verifyChecksum && 
+      boolean transferTo = transferToAllowed && !verifyChecksum && 
           baseStream instanceof SocketOutputStream && 
-          blockIn instanceof FileInputStream) {
-        
-        FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
-        
-        // blockInPosition also indicates sendChunks() uses transferTo.
-        blockInPosition = fileChannel.position();
+          blockIn instanceof FileInputStream;
+      if (transferTo) {
         streamForSendChunks = baseStream;
-        
-        // assure a mininum buffer size.
-        maxChunksPerPacket = (Math.max(BUFFER_SIZE, 
-                                       MIN_BUFFER_WITH_TRANSFERTO)
-                              + bytesPerChecksum - 1)/bytesPerChecksum;
-        
-        // allocate smaller buffer while using transferTo(). 
-        pktSize += checksumSize * maxChunksPerPacket;
-      } else {
-        maxChunksPerPacket = Math.max(1,
-                 (BUFFER_SIZE + bytesPerChecksum - 1)/bytesPerChecksum);
-        pktSize += (bytesPerChecksum + checksumSize) * maxChunksPerPacket;
       }
+      int pktSize = initPackets(transferTo);
 
       ByteBuffer pktBuf = ByteBuffer.allocate(pktSize);
 
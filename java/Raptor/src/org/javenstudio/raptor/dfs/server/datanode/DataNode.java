@@ -5,6 +5,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -17,6 +18,7 @@ import java.security.SecureRandom;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,6 +34,7 @@ import org.javenstudio.raptor.dfs.DFSPolicyProvider;
 import org.javenstudio.raptor.dfs.DFSUtil;
 import org.javenstudio.raptor.dfs.protocol.Block;
 import org.javenstudio.raptor.dfs.protocol.BlockListAsLongs;
+import org.javenstudio.raptor.dfs.protocol.BlockLocalPathInfo;
 import org.javenstudio.raptor.dfs.protocol.ClientDatanodeProtocol;
 import org.javenstudio.raptor.dfs.protocol.DataTransferProtocol;
 import org.javenstudio.raptor.dfs.protocol.DatanodeID;
@@ -64,7 +67,9 @@ import org.javenstudio.raptor.ipc.RemoteException;
 import org.javenstudio.raptor.ipc.Server;
 import org.javenstudio.raptor.net.DNS;
 import org.javenstudio.raptor.net.NetUtils;
+import org.javenstudio.raptor.security.AccessControlException;
 import org.javenstudio.raptor.security.SecurityUtil;
+import org.javenstudio.raptor.security.UserGroupInformation;
 import org.javenstudio.raptor.security.authorize.ConfiguredPolicy;
 import org.javenstudio.raptor.security.authorize.PolicyProvider;
 import org.javenstudio.raptor.security.authorize.ServiceAuthorizationManager;
@@ -149,11 +154,15 @@ public class DataNode extends Configured
   /** list of blocks being recovered */
   private final Map<Block, Block> ongoingRecovery = new HashMap<Block, Block>();
   private LinkedList<String> delHints = new LinkedList<String>();
+  /** list of blocks deleted since they were last reported */
+  private LinkedList<Block> deletedBlockList = new LinkedList<Block>();
   public final static String EMPTY_DEL_HINT = "";
   AtomicInteger xmitsInProgress = new AtomicInteger();
   Daemon dataXceiverServer = null;
   ThreadGroup threadGroup = null;
   long blockReportInterval;
+  // most blocks in a part of a block report
+  int blockReportPartSize;
   //disallow the sending of BR before instructed to do so
   long lastBlockReport = 0;
   boolean resetBlockReportTime = true;
@@ -174,6 +183,10 @@ public class DataNode extends Configured
   int socketWriteTimeout = 0;  
   boolean transferToAllowed = true;
   int writePacketSize = 0;
+  // whether clients on this host may read block files directly
+  boolean localReadAllowed = true;
+  // users allowed local reads, any user if empty
+  private Collection<String> localReadUsers = null;
   
   public DataBlockScanner blockScanner = null;
   public Daemon blockScannerThread = null;
@@ -246,6 +259,8 @@ public class DataNode extends Configured
     // to false on some of them. 
     this.transferToAllowed = conf.getBoolean("dfs.datanode.transferTo.allowed", true);
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.localReadAllowed = conf.getBoolean("dfs.datanode.local.read.allowed", true);
+    this.localReadUsers = conf.getStringCollection("dfs.block.local-path-access.user");
     String address = 
       NetUtils.getServerAddress(conf,
                                 "dfs.datanode.bindAddress", 
@@ -314,6 +329,7 @@ public class DataNode extends Configured
       conf.getLong("dfs.blockreport.intervalMsec", BLOCKREPORT_INTERVAL);
     this.initialBlockReportDelay = conf.getLong("dfs.blockreport.initialDelay",
                                             BLOCKREPORT_INITIAL_DELAY)* 1000L; 
+    this.blockReportPartSize = conf.getInt("dfs.blockreport.part.size", 100000);
     if (this.initialBlockReportDelay >= blockReportInterval) {
       this.initialBlockReportDelay = 0;
       LOG.info("dfs.blockreport.initialDelay is greater than " +
@@ -675,7 +691,8 @@ public class DataNode extends Configured
     
   /** Number of concurrent xceivers per node. */
   int getXceiverCount() {
-    return threadGroup == null ? 0 : threadGroup.activeCount();
+    return dataXceiverServer == null ? 0 : 
+        ((DataXceiverServer) dataXceiverServer.getRunnable()).getXceiverCount();
   }
     
   /**
@@ -720,7 +737,9 @@ public class DataNode extends Configured
             continue;
         }
             
-        // check if there are newly received blocks
+        // send the blocks received and deleted since they were reported
+        long ibrStartTime = now();
+        boolean ibrSent = false;
         Block [] blockArray=null;
         String [] delHintArray=null;
         synchronized(receivedBlockList) {
@@ -751,6 +770,26 @@ public class DataNode extends Configured
               }
             }
           }
+          ibrSent = true;
+        }
+        Block [] deletedArray = null;
+        synchronized (deletedBlockList) {
+          if (deletedBlockList.size() > 0) {
+            deletedArray = deletedBlockList.toArray(
+                new Block[deletedBlockList.size()]);
+          }
+        }
+        if (deletedArray != null) {
+          namenode.blocksDeleted(dnRegistration, deletedArray);
+          synchronized (deletedBlockList) {
+            for (int i = 0; i < deletedArray.length; i++) {
+              deletedBlockList.remove(deletedArray[i]);
+            }
+          }
+          ibrSent = true;
+        }
+        if (ibrSent) {
+          myMetrics.incrementalBlockReports.inc(now() - ibrStartTime);
         }
 
         // send block report
@@ -760,14 +799,26 @@ public class DataNode extends Configured
           // Get back a list of local block(s) that are obsolete
           // and can be safely GC'ed.
           //
+          // The report is sent in parts, one or more per storage directory,
+          // which the namenode processes one at a time.
+          //
           long brStartTime = now();
-          Block[] bReport = data.getBlockReport();
-          DatanodeCommand cmd = namenode.blockReport(dnRegistration,
-                  BlockListAsLongs.convertToArrayLongs(bReport));
+          List<Block[]> parts = getBlockReportParts(data.getBlockReports());
+          DatanodeCommand cmd = null;
+          int numBlocks = 0;
+          for (int i = 0; i < parts.size(); i++) {
+            Block[] part = parts.get(i);
+            DatanodeCommand partCmd = namenode.blockReport(dnRegistration,
+                BlockListAsLongs.convertToArrayLongs(part), i, parts.size());
+            if (partCmd != null) {
+              cmd = partCmd;
+            }
+            numBlocks += part.length;
+          }
           long brTime = now() - brStartTime;
           myMetrics.blockReports.inc(brTime);
-          LOG.info("BlockReport of " + bReport.length +
-              " blocks got processed in " + brTime + " msecs");
+          LOG.info("BlockReport of " + numBlocks + " blocks in " + 
+              parts.size() + " parts got processed in " + brTime + " msecs");
           //
           // If we have sent the first block report, then wait a random
           // time before we start the periodic block reports.
@@ -826,6 +877,26 @@ public class DataNode extends Configured
     } // while (shouldRun)
   } // offerService
 
+  /**
+   * Split the block reports of the storage directories into parts of at
+   * most blockReportPartSize blocks.  There is at least one part, so that
+   * an empty report is sent too.
+   */
+  List<Block[]> getBlockReportParts(Block[][] reports) {
+    List<Block[]> parts = new ArrayList<Block[]>();
+    for (Block[] report : reports) {
+      for (int from = 0; from < report.length; from += blockReportPartSize) {
+        int to = Math.min(report.length, from + blockReportPartSize);
+        parts.add(from == 0 && to == report.length ? report :
+                  Arrays.copyOfRange(report, from, to));
+      }
+    }
+    if (parts.isEmpty()) {
+      parts.add(new Block[0]);
+    }
+    return parts;
+  }
+
   /**
    * Process an array of datanode commands
    * 
@@ -878,6 +949,8 @@ public class DataNode extends Configured
       } catch(IOException e) {
         checkDiskError();
         throw e;
+      } finally {
+        notifyNamenodeDeletedBlocks(toDelete);
       }
       myMetrics.blocksRemoved.inc(toDelete.length);
       break;
@@ -1003,6 +1076,21 @@ public class DataNode extends Configured
     }
   }
 
+  /*
+   * The blocks gone from the dataset are reported with the next heartbeat.
+   */
+  protected void notifyNamenodeDeletedBlocks(Block[] blocks) {
+    List<Block> deleted = new ArrayList<Block>(blocks.length);
+    for (Block b : blocks) {
+      if (!data.isValidBlock(b)) {
+        deleted.add(b);
+      }
+    }
+    synchronized (deletedBlockList) {
+      deletedBlockList.addAll(deleted);
+    }
+  }
+
   /* ********************************************************************
   Protocol when a client reads data from Datanode (Cur Ver: 9):
   
@@ -1519,6 +1607,42 @@ public class DataNode extends Configured
         + ": " + protocol);
   }
 
+  /** {@inheritDoc} */
+  public BlockLocalPathInfo getBlockLocalPathInfo(Block block
+      ) throws IOException {
+    checkLocalReadAccess();
+    BlockLocalPathInfo info = data.getBlockLocalPathInfo(block);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("getBlockLocalPathInfo: " + info);
+    }
+    myMetrics.localReadRequests.inc();
+    return info;
+  }
+
+  /**
+   * Only callers on this host, and of the configured users if any,
+   * may learn the local paths of block files.
+   */
+  private void checkLocalReadAccess() throws IOException {
+    if (!localReadAllowed) {
+      throw new AccessControlException(
+          "Local reads are not allowed by " + dnRegistration);
+    }
+    InetAddress addr = Server.getRemoteIp();
+    if (addr == null || !NetUtils.isLocalAddress(addr)) {
+      throw new AccessControlException(
+          "Local reads are not allowed from " + addr);
+    }
+    if (!localReadUsers.isEmpty()) {
+      UserGroupInformation ugi = UserGroupInformation.getCurrentUGI();
+      String user = ugi != null ? ugi.getUserName() : null;
+      if (user == null || !localReadUsers.contains(user)) {
+        throw new AccessControlException(
+          "Local reads are not allowed for user " + user);
+      }
+    }
+  }
+
   /** A convenient class used in lease recovery */
   private static class BlockRecord { 
     final DatanodeID id;
@@ -2,10 +2,13 @@ package org.javenstudio.raptor.dfs.server.datanode;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
@@ -38,11 +41,23 @@ class DataXceiver implements Runnable, FSConstants {
   final String localAddress;  // local address of this daemon
   DataNode datanode;
   DataXceiverServer dataXceiverServer;
+  // start of the request, already read from the socket
+  private final byte[] requestPrefix;
   
   public DataXceiver(Socket s, DataNode datanode, 
       DataXceiverServer dataXceiverServer) {
+    this(s, datanode, dataXceiverServer, null);
+  }
+
+  /**
+   * @param requestPrefix the bytes of the request already read from the
+   *        socket, by a {@link DataXceiverSelector}, or null
+   */
+  DataXceiver(Socket s, DataNode datanode, 
+      DataXceiverServer dataXceiverServer, byte[] requestPrefix) {
     
     this.s = s;
+    this.requestPrefix = requestPrefix;
     this.datanode = datanode;
     this.dataXceiverServer = dataXceiverServer;
     dataXceiverServer.childSockets.put(s, s);
@@ -57,22 +72,20 @@ class DataXceiver implements Runnable, FSConstants {
   public void run() {
     DataInputStream in=null; 
     try {
+      InputStream sockIn = NetUtils.getInputStream(s);
+      if (requestPrefix != null) {
+        sockIn = new SequenceInputStream(
+            new ByteArrayInputStream(requestPrefix), sockIn);
+      }
       in = new DataInputStream(
-          new BufferedInputStream(NetUtils.getInputStream(s), 
-                                  SMALL_BUFFER_SIZE));
+          new BufferedInputStream(sockIn, SMALL_BUFFER_SIZE));
       short version = in.readShort();
       if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
         throw new IOException( "Version Mismatch" );
       }
       boolean local = s.getInetAddress().equals(s.getLocalAddress());
       byte op = in.readByte();
-      // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
-      if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
-        throw new IOException("xceiverCount " + curXceiverCount
-                              + " exceeds the limit of concurrent xcievers "
-                              + dataXceiverServer.maxXceiverCount);
-      }
+      // the xceiver count is limited by the threads of the server
       long startTime = DataNode.now();
       switch ( op ) {
       case DataTransferProtocol.OP_READ_BLOCK:
@@ -144,13 +157,8 @@ class DataXceiver implements Runnable, FSConstants {
                  new BufferedOutputStream(baseStream, SMALL_BUFFER_SIZE));
     
     BlockSender blockSender = null;
-    final String clientTraceFmt =
-      clientName.length() > 0 && ClientTraceLog.isInfoEnabled()
-        ? String.format(DN_CLIENTTRACE_FORMAT, localAddress, remoteAddress,
-            "%d", "HDFS_READ", clientName,
-            datanode.dnRegistration.getStorageID(), block)
-        : datanode.dnRegistration + " Served block " + block + " to " +
-            s.getInetAddress();
+    final String clientTraceFmt = getReadTraceFormat(datanode, s, 
+        localAddress, remoteAddress, clientName, block);
     try {
       try {
         blockSender = new BlockSender(block, startOffset, length,
@@ -194,6 +202,18 @@ class DataXceiver implements Runnable, FSConstants {
     }
   }
 
+  /** Format of the client trace log message of a block read. */
+  static String getReadTraceFormat(DataNode datanode, Socket s, 
+      String localAddress, String remoteAddress, String clientName, 
+      Block block) {
+    return clientName.length() > 0 && ClientTraceLog.isInfoEnabled()
+        ? String.format(DN_CLIENTTRACE_FORMAT, localAddress, remoteAddress,
+            "%d", "HDFS_READ", clientName,
+            datanode.dnRegistration.getStorageID(), block)
+        : datanode.dnRegistration + " Served block " + block + " to " +
+            s.getInetAddress();
+  }
+
   /**
    * Write a block to disk.
    * 
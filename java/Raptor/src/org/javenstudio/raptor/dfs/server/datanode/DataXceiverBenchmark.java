@@ -0,0 +1,239 @@
+package org.javenstudio.raptor.dfs.server.datanode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.dfs.DistributedFileSystem;
+import org.javenstudio.raptor.dfs.protocol.FSConstants;
+import org.javenstudio.raptor.dfs.server.namenode.NameNode;
+import org.javenstudio.raptor.fs.FSDataInputStream;
+import org.javenstudio.raptor.fs.FSDataOutputStream;
+import org.javenstudio.raptor.fs.FileUtil;
+import org.javenstudio.raptor.fs.Path;
+import org.javenstudio.raptor.security.UnixUserGroupInformation;
+import org.javenstudio.raptor.security.UserGroupInformation;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Measures the threads and the memory a datanode takes to serve many
+ * concurrent readers, with the connections served by a few
+ * {@link DataXceiverSelector}s or by a thread each.
+ * <p>
+ * A namenode and a datanode are started in this process, and a file is
+ * written.  Then each reader streams the file from a random offset, a
+ * few bytes at a time with a pause in between, as scanners of a region
+ * server do; most of the connections are idle most of the time.  The
+ * threads of the datanode are sampled while they read, and the peak is
+ * reported with the used heap and the throughput.
+ * <pre>
+ * Usage: DataXceiverBenchmark [-readers n] [-selectors 0,4]
+ *          [-filesize bytes] [-readsize bytes] [-interval ms]
+ *          [-seconds n] [-dir path]
+ * </pre>
+ * With 0 selectors each connection takes a thread of its own, as the
+ * datanode served them before the selectors.
+ */
+public class DataXceiverBenchmark {
+
+  private final File dir;
+  private final long fileSize;
+  private final int readSize;
+  private final long interval;
+
+  public DataXceiverBenchmark(File dir, long fileSize, int readSize,
+      long interval) {
+    this.dir = dir;
+    this.fileSize = fileSize;
+    this.readSize = readSize;
+    this.interval = interval;
+  }
+
+  /** A port free now, as the namenode connects to itself while it starts. */
+  private static int getFreePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+
+  private Configuration createConf(File base, int readers, int selectors)
+      throws IOException {
+    Configuration conf = ConfigurationFactory.create(true);
+    conf.set("fs.default.name", "dfs://127.0.0.1:" + getFreePort());
+    if (conf.get("fs.dfs.impl") == null) {
+      conf.set("fs.dfs.impl", DistributedFileSystem.class.getName());
+    }
+    conf.set("dfs.name.dir", new File(base, "name").getPath());
+    conf.set("dfs.name.edits.dir", new File(base, "name").getPath());
+    conf.set("dfs.data.dir", new File(base, "data").getPath());
+    conf.set("dfs.http.address", "127.0.0.1:0");
+    conf.set("dfs.datanode.address", "127.0.0.1:0");
+    conf.set("dfs.datanode.http.address", "127.0.0.1:0");
+    conf.set("dfs.datanode.ipc.address", "127.0.0.1:0");
+    conf.setBoolean("dfs.permissions", false);
+    conf.setInt("dfs.replication", 1);
+    conf.setInt("dfs.safemode.extension", 0);
+    // let a thread per connection serve all the readers
+    conf.setInt("dfs.datanode.max.xcievers", readers + 64);
+    conf.setInt("dfs.datanode.max.connections", readers + 64);
+    conf.setInt("dfs.datanode.transfer.selectors", selectors);
+    return conf;
+  }
+
+  public void run(final int readers, int selectors, int seconds)
+      throws Exception {
+    File base = new File(dir, "selectors-" + selectors);
+    FileUtil.fullyDelete(base);
+    Configuration conf = createConf(base, readers, selectors);
+    UserGroupInformation.setCurrentUser(UnixUserGroupInformation.login(conf));
+
+    NameNode.format(conf);
+    NameNode namenode = new NameNode(conf);
+    DataNode datanode = null;
+    final DistributedFileSystem fs = new DistributedFileSystem();
+    try {
+      datanode = DataNode.createDataNode(new String[0], conf);
+      while (namenode.getNamesystem().numLiveDataNodes() == 0) {
+        Thread.sleep(100);
+      }
+      namenode.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_LEAVE);
+      fs.initialize(DistributedFileSystem.getDefaultUri(conf), conf);
+
+      final Path path = new Path("/bench");
+      byte[] buf = new byte[64 * 1024];
+      new Random(0).nextBytes(buf);
+      FSDataOutputStream out = fs.create(path, true);
+      try {
+        for (long written = 0; written < fileSize; written += buf.length) {
+          out.write(buf, 0, (int) Math.min(buf.length, fileSize - written));
+        }
+      } finally {
+        out.close();
+      }
+
+      final AtomicLong bytesRead = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final long endTime = System.currentTimeMillis() + seconds * 1000L;
+      Thread[] threads = new Thread[readers];
+      for (int i = 0; i < readers; i++) {
+        final Random rand = new Random(i);
+        threads[i] = new Thread("reader-" + i) {
+          public void run() {
+            byte[] b = new byte[readSize];
+            while (System.currentTimeMillis() < endTime) {
+              try {
+                FSDataInputStream in = fs.open(path);
+                try {
+                  in.seek((long) (rand.nextDouble() * fileSize));
+                  while (System.currentTimeMillis() < endTime) {
+                    int n = in.read(b, 0, b.length);
+                    if (n < 0) {
+                      in.seek(0);
+                      continue;
+                    }
+                    bytesRead.addAndGet(n);
+                    Thread.sleep(interval);
+                  }
+                } finally {
+                  in.close();
+                }
+              } catch (InterruptedException e) {
+                return;
+              } catch (IOException e) {
+                errors.incrementAndGet();
+              }
+            }
+          }
+        };
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+
+      long startTime = System.currentTimeMillis();
+      int peakThreads = 0;
+      int peakConnections = 0;
+      long heapUsed = 0;
+      while (System.currentTimeMillis() < endTime) {
+        Thread.sleep(200);
+        peakThreads = Math.max(peakThreads,
+            datanode.threadGroup.activeCount());
+        peakConnections = Math.max(peakConnections,
+            datanode.getXceiverCount());
+        if (heapUsed == 0 &&
+            System.currentTimeMillis() - startTime > seconds * 500L) {
+          System.gc();
+          Runtime runtime = Runtime.getRuntime();
+          heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        }
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+      System.out.println(String.format(
+          "selectors %2d  connections %6d  datanode threads %6d  " +
+          "heap %10s  read %10s/s  errors %d",
+          selectors, peakConnections, peakThreads,
+          StringUtils.byteDesc(heapUsed),
+          StringUtils.byteDesc(bytesRead.get() * 1000 / elapsed),
+          errors.get()));
+    } finally {
+      fs.close();
+      if (datanode != null) {
+        datanode.shutdown();
+      }
+      namenode.stop();
+      FileUtil.fullyDelete(base);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int readers = 1000;
+    String selectors = "0,4";
+    long fileSize = 64L * 1024 * 1024;
+    int readSize = 4 * 1024;
+    long interval = 100;
+    int seconds = 30;
+    String dir = System.getProperty("java.io.tmpdir");
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-readers".equals(args[i])) {
+        readers = Integer.parseInt(args[++i]);
+      } else if ("-selectors".equals(args[i])) {
+        selectors = args[++i];
+      } else if ("-filesize".equals(args[i])) {
+        fileSize = Long.parseLong(args[++i]);
+      } else if ("-readsize".equals(args[i])) {
+        readSize = Integer.parseInt(args[++i]);
+      } else if ("-interval".equals(args[i])) {
+        interval = Long.parseLong(args[++i]);
+      } else if ("-seconds".equals(args[i])) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if ("-dir".equals(args[i])) {
+        dir = args[++i];
+      } else {
+        System.err.println("Usage: DataXceiverBenchmark [-readers n] " +
+            "[-selectors 0,4] [-filesize bytes] [-readsize bytes] " +
+            "[-interval ms] [-seconds n] [-dir path]");
+        System.exit(-1);
+      }
+    }
+
+    DataXceiverBenchmark benchmark = new DataXceiverBenchmark(
+        new File(dir, "DataXceiverBenchmark"), fileSize, readSize, interval);
+    System.out.println(readers + " readers of " +
+        StringUtils.byteDesc(readSize) + " every " + interval + " ms, " +
+        seconds + " seconds");
+    for (String n : selectors.split(",")) {
+      benchmark.run(readers, Integer.parseInt(n.trim()), seconds);
+    }
+  }
+}
@@ -0,0 +1,435 @@
+package org.javenstudio.raptor.dfs.server.datanode;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.javenstudio.common.util.Logger;
+import org.javenstudio.raptor.dfs.protocol.Block;
+import org.javenstudio.raptor.dfs.protocol.DataTransferProtocol;
+import org.javenstudio.raptor.dfs.protocol.FSConstants;
+import org.javenstudio.raptor.io.IOUtils;
+import org.javenstudio.raptor.io.Text;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Serves the block reads of many connections from one thread.
+ * <p>
+ * A new connection is read without blocking until its request is in.
+ * An {@link DataTransferProtocol#OP_READ_BLOCK} request is then served
+ * here, a packet at a time as the socket takes it, the data of the
+ * packets transferred straight from the block file.  Any other request
+ * is handed to a {@link DataXceiver} thread of the server, with the
+ * bytes of the request read so far.
+ * <p>
+ * The bytes on the wire are those a {@link DataXceiver} sends.
+ */
+class DataXceiverSelector implements Runnable, FSConstants {
+  public static final Logger LOG = DataNode.LOG;
+
+  /** Most packets written to a connection before serving the others */
+  static final int MAX_PACKETS_PER_TURN = 4;
+  /** Longest request header read */
+  static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+  private static final int READ_REQUEST = 0;
+  private static final int SEND_BLOCK = 1;
+  private static final int READ_STATUS = 2;
+  private static final int SEND_ERROR = 3;
+
+  private final DataNode datanode;
+  private final DataXceiverServer dataXceiverServer;
+  private final Selector selector;
+  private final Queue<SocketChannel> pending =
+    new ConcurrentLinkedQueue<SocketChannel>();
+
+  DataXceiverSelector(DataNode datanode, DataXceiverServer dataXceiverServer)
+      throws IOException {
+    this.datanode = datanode;
+    this.dataXceiverServer = dataXceiverServer;
+    this.selector = Selector.open();
+  }
+
+  /** Take a new connection, in non-blocking mode. */
+  void add(SocketChannel channel) {
+    pending.add(channel);
+    selector.wakeup();
+  }
+
+  /** Wake up to see if should continue to run. */
+  void wakeup() {
+    selector.wakeup();
+  }
+
+  public void run() {
+    long lastCheck = DataNode.now();
+    try {
+      while (datanode.shouldRun) {
+        selector.select(1000);
+        registerPending();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          Transfer transfer = (Transfer) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              transfer.doRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+              transfer.doWrite();
+            }
+          } catch (Throwable t) {
+            transfer.fail(t);
+          }
+        }
+
+        long now = DataNode.now();
+        if (now - lastCheck >= 1000) {
+          closeIdle(now);
+          lastCheck = now;
+        }
+      }
+    } catch (Throwable t) {
+      LOG.error(datanode.dnRegistration + ":DataXceiverSelector: "
+                + StringUtils.stringifyException(t));
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void registerPending() {
+    SocketChannel channel;
+    while ((channel = pending.poll()) != null) {
+      Transfer transfer = null;
+      try {
+        transfer = new Transfer(channel);
+        transfer.key = channel.register(selector, SelectionKey.OP_READ,
+                                        transfer);
+      } catch (IOException e) {
+        LOG.warn(datanode.dnRegistration + ":DataXceiverSelector: "
+                 + StringUtils.stringifyException(e));
+        if (transfer != null) {
+          transfer.close();
+        } else {
+          IOUtils.closeSocket(channel.socket());
+          dataXceiverServer.childSockets.remove(channel.socket());
+        }
+      }
+    }
+  }
+
+  /** Close the connections which made no progress for too long. */
+  private void closeIdle(long now) {
+    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+      Transfer transfer = (Transfer) key.attachment();
+      if (transfer != null && transfer.isIdle(now)) {
+        LOG.debug(datanode.dnRegistration + ":DataXceiverSelector: timeout "
+                  + "on " + transfer.remoteAddress);
+        transfer.close();
+      }
+    }
+  }
+
+  private void closeAll() {
+    List<Transfer> transfers = new ArrayList<Transfer>();
+    try {
+      for (SelectionKey key : selector.keys()) {
+        transfers.add((Transfer) key.attachment());
+      }
+    } catch (ClosedSelectorException ignored) {
+    }
+    for (Transfer transfer : transfers) {
+      transfer.close();
+    }
+    SocketChannel channel;
+    while ((channel = pending.poll()) != null) {
+      IOUtils.closeSocket(channel.socket());
+      dataXceiverServer.childSockets.remove(channel.socket());
+    }
+    try {
+      selector.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * A connection of the selector, from its request until it is closed
+   * or handed to a thread.
+   */
+  private class Transfer {
+    final SocketChannel channel;
+    final Socket s;
+    final String remoteAddress;
+    final String localAddress;
+    SelectionKey key;
+    int state = READ_REQUEST;
+    long lastActive = DataNode.now();
+    boolean closed = false;
+
+    ByteBuffer in = ByteBuffer.allocate(SMALL_BUFFER_SIZE);
+    ByteBuffer status;        // op status, before the packets
+    ByteBuffer out;           // packet header and checksums, or data
+    long transferPosition;    // of the data left in the block file
+    long transferRemaining;
+    BlockSender blockSender;
+    Block block;
+    long startTime;
+
+    Transfer(SocketChannel channel) {
+      this.channel = channel;
+      this.s = channel.socket();
+      this.remoteAddress = s.getRemoteSocketAddress().toString();
+      this.localAddress = s.getLocalSocketAddress().toString();
+    }
+
+    boolean isIdle(long now) {
+      long timeout = state == SEND_BLOCK || state == SEND_ERROR ?
+          datanode.socketWriteTimeout : datanode.socketTimeout;
+      return timeout > 0 && now - lastActive > timeout;
+    }
+
+    void doRead() throws IOException {
+      int n = channel.read(in);
+      if (n < 0) {
+        close();
+        return;
+      }
+      if (n > 0) {
+        lastActive = DataNode.now();
+      }
+      if (state == READ_REQUEST) {
+        readRequest();
+      } else if (state == READ_STATUS) {
+        readStatus();
+      } else if (n > 0) {
+        throw new IOException("Unexpected bytes from " + remoteAddress);
+      }
+    }
+
+    private void readRequest() throws IOException {
+      if (in.position() < 3) {
+        return;
+      }
+      short version = in.getShort(0);
+      if (version != DataTransferProtocol.DATA_TRANSFER_VERSION) {
+        throw new IOException("Version Mismatch");
+      }
+      byte op = in.get(2);
+      if (op != DataTransferProtocol.OP_READ_BLOCK) {
+        handOff();
+        return;
+      }
+
+      DataInputStream request = new DataInputStream(
+          new ByteArrayInputStream(in.array(), 3, in.position() - 3));
+      long blockId;
+      long generationStamp;
+      long startOffset;
+      long length;
+      String clientName;
+      try {
+        blockId = request.readLong();
+        generationStamp = request.readLong();
+        startOffset = request.readLong();
+        length = request.readLong();
+        clientName = Text.readString(request);
+      } catch (EOFException e) {
+        // not all in yet
+        if (!in.hasRemaining()) {
+          if (in.capacity() >= MAX_REQUEST_SIZE) {
+            throw new IOException("Request of more than " +
+                                  MAX_REQUEST_SIZE + " bytes");
+          }
+          ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+          in.flip();
+          larger.put(in);
+          in = larger;
+        }
+        return;
+      }
+      startRead(blockId, generationStamp, startOffset, length, clientName);
+    }
+
+    /** Let a thread serve the request, reading it from the start. */
+    private void handOff() throws IOException {
+      key.cancel();
+      closed = true;
+      byte[] prefix = Arrays.copyOf(in.array(), in.position());
+      dataXceiverServer.execute(
+          new DataXceiver(s, datanode, dataXceiverServer, prefix));
+    }
+
+    private void startRead(long blockId, long generationStamp,
+        long startOffset, long length, String clientName) throws IOException {
+      block = new Block(blockId, 0, generationStamp);
+      startTime = DataNode.now();
+      status = ByteBuffer.allocate(2);
+      try {
+        blockSender = new BlockSender(block, startOffset, length,
+            true, true, false, datanode, DataXceiver.getReadTraceFormat(
+                datanode, s, localAddress, remoteAddress, clientName, block));
+        out = blockSender.startPackets(true);
+      } catch (IOException e) {
+        LOG.warn(datanode.dnRegistration +  ":Got exception while serving " +
+                 block + " to " + s.getInetAddress() + ":\n" +
+                 StringUtils.stringifyException(e));
+        IOUtils.closeStream(blockSender);
+        blockSender = null;
+        status.putShort((short) DataTransferProtocol.OP_STATUS_ERROR);
+        status.flip();
+        state = SEND_ERROR;
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      status.putShort((short) DataTransferProtocol.OP_STATUS_SUCCESS);
+      status.flip();
+      state = SEND_BLOCK;
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    void doWrite() throws IOException {
+      for (int packets = 0; ; packets++) {
+        if (!flush()) {
+          return;
+        }
+        if (state == SEND_ERROR) {
+          close();
+          return;
+        }
+        if (packets >= MAX_PACKETS_PER_TURN) {
+          return;
+        }
+        int len = blockSender.nextPacket(out);
+        if (len < 0) {
+          endRead();
+          return;
+        }
+        if (len > 0) {
+          transferPosition = blockSender.getPacketDataPosition();
+          transferRemaining = len;
+        }
+      }
+    }
+
+    /**
+     * Write what the socket takes of the status, the packet and its data.
+     * @return true if all were written
+     */
+    private boolean flush() throws IOException {
+      try {
+        long written = 0;
+        if (status.hasRemaining() || (out != null && out.hasRemaining())) {
+          written += out != null ?
+              channel.write(new ByteBuffer[] { status, out }) :
+              channel.write(status);
+        }
+        boolean done = !status.hasRemaining() &&
+                       (out == null || !out.hasRemaining());
+        if (done && transferRemaining > 0) {
+          long n = blockSender.getBlockChannel().transferTo(
+              transferPosition, transferRemaining, channel);
+          transferPosition += n;
+          transferRemaining -= n;
+          written += n;
+          done = transferRemaining == 0;
+        }
+        if (written > 0) {
+          lastActive = DataNode.now();
+        }
+        return done;
+      } catch (IOException e) {
+        // the remote side may close the connection anytime
+        throw BlockSender.ioeToSocketException(e);
+      }
+    }
+
+    private void endRead() throws IOException {
+      long read = blockSender.endPackets();
+      boolean readFully = blockSender.isBlockReadFully();
+      blockSender = null;
+
+      datanode.myMetrics.readBlockOp.inc(DataNode.now() - startTime);
+      if (s.getInetAddress().equals(s.getLocalAddress())) {
+        datanode.myMetrics.readsFromLocalClient.inc();
+      } else {
+        datanode.myMetrics.readsFromRemoteClient.inc();
+      }
+      datanode.myMetrics.bytesRead.inc((int) read);
+      datanode.myMetrics.blocksRead.inc();
+
+      if (readFully) {
+        // See if client verification succeeded.
+        // This is an optional response from client.
+        in.clear();
+        state = READ_STATUS;
+        key.interestOps(SelectionKey.OP_READ);
+      } else {
+        close();
+      }
+    }
+
+    private void readStatus() {
+      if (in.position() < 2) {
+        return;
+      }
+      if (in.getShort(0) == DataTransferProtocol.OP_STATUS_CHECKSUM_OK &&
+          datanode.blockScanner != null) {
+        datanode.blockScanner.verifiedByClient(block);
+      }
+      close();
+    }
+
+    void fail(Throwable t) {
+      if (state == READ_STATUS) {
+        // the status is optional
+      } else if (t instanceof SocketException) {
+        // Its ok for remote side to close the connection anytime.
+        if (state == SEND_BLOCK) {
+          datanode.myMetrics.blocksRead.inc();
+        }
+      } else if (state == SEND_BLOCK) {
+        LOG.warn(datanode.dnRegistration +  ":Got exception while serving " +
+                 block + " to " + s.getInetAddress() + ":\n" +
+                 StringUtils.stringifyException(t));
+      } else {
+        LOG.error(datanode.dnRegistration + ":DataXceiver", t);
+      }
+      close();
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (key != null) {
+        key.cancel();
+      }
+      if (blockSender != null) {
+        try {
+          blockSender.endPackets();
+        } catch (IOException ignored) {
+        }
+        blockSender = null;
+      }
+      IOUtils.closeSocket(s);
+      dataXceiverServer.childSockets.remove(s);
+    }
+  }
+}
@@ -8,11 +8,17 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.javenstudio.common.util.Logger;
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.dfs.protocol.FSConstants;
 import org.javenstudio.raptor.dfs.server.balancer.Balancer;
+import org.javenstudio.raptor.io.IOUtils;
 import org.javenstudio.raptor.util.Daemon;
 import org.javenstudio.raptor.util.StringUtils;
 
@@ -21,6 +27,11 @@ import org.javenstudio.raptor.util.StringUtils;
  * This is created to listen for requests from clients or 
  * other DataNodes.  This small server does not use the 
  * Hadoop IPC mechanism.
+ * <p>
+ * The connections are shared by a few {@link DataXceiverSelector}s,
+ * which serve the block reads themselves and hand the other requests
+ * to a pool of {@link DataXceiver} threads.  Without socket channels,
+ * each connection takes a thread of the pool.
  */
 class DataXceiverServer implements Runnable, FSConstants {
   public static final Logger LOG = DataNode.LOG;
@@ -39,6 +50,18 @@ class DataXceiverServer implements Runnable, FSConstants {
   static final int MAX_XCEIVER_COUNT = 256;
   int maxXceiverCount = MAX_XCEIVER_COUNT;
 
+  /** Maximal number of connections per node, most of them reads. */
+  static final int MAX_CONNECTION_COUNT = 4096;
+  int maxConnectionCount = MAX_CONNECTION_COUNT;
+
+  /** Default number of selectors serving the connections. */
+  static final int SELECTOR_COUNT = 4;
+  
+  // threads of the requests not served by the selectors
+  private final ThreadPoolExecutor xceiverPool;
+  private final DataXceiverSelector[] selectors;
+  private int nextSelector = 0;
+
   /** A manager to make sure that cluster balancing does not
    * take too much resources.
    * 
@@ -90,14 +113,33 @@ class DataXceiverServer implements Runnable, FSConstants {
   
   int getMaxXceiverCount() { return maxXceiverCount; } 
   
+  /** Number of the open connections, served or being handed over. */
+  int getXceiverCount() { return childSockets.size(); }
+  
   DataXceiverServer(ServerSocket ss, Configuration conf, 
-      DataNode datanode) {
+      final DataNode datanode) throws IOException {
     
     this.ss = ss;
     this.datanode = datanode;
     
     this.maxXceiverCount = conf.getInt("dfs.datanode.max.xcievers",
         MAX_XCEIVER_COUNT);
+    this.maxConnectionCount = Math.max(maxXceiverCount, 
+        conf.getInt("dfs.datanode.max.connections", MAX_CONNECTION_COUNT));
+    
+    this.xceiverPool = new ThreadPoolExecutor(0, maxXceiverCount, 
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            return new Daemon(datanode.threadGroup, r);
+          }
+        });
+    int selectorCount = ss.getChannel() == null ? 0 : 
+        conf.getInt("dfs.datanode.transfer.selectors", SELECTOR_COUNT);
+    this.selectors = new DataXceiverSelector[Math.max(0, selectorCount)];
+    for (int i = 0; i < selectors.length; i++) {
+      selectors[i] = new DataXceiverSelector(datanode, this);
+    }
     
     this.estimateBlockSize = conf.getLong("dfs.block.size", DEFAULT_BLOCK_SIZE);
     
@@ -109,12 +151,27 @@ class DataXceiverServer implements Runnable, FSConstants {
   /**
    */
   public void run() {
+    for (int i = 0; i < selectors.length; i++) {
+      new Daemon(datanode.threadGroup, selectors[i]).start();
+    }
     while (datanode.shouldRun) {
       try {
         Socket s = ss.accept();
         s.setTcpNoDelay(true);
-        new Daemon(datanode.threadGroup, 
-            new DataXceiver(s, datanode, this)).start();
+        if (childSockets.size() >= maxConnectionCount) {
+          LOG.warn(datanode.dnRegistration + ":DataXceiveServer: " 
+              + "connectionCount " + childSockets.size()
+              + " exceeds the limit of connections " + maxConnectionCount);
+          IOUtils.closeSocket(s);
+          continue;
+        }
+        if (selectors.length > 0) {
+          s.getChannel().configureBlocking(false);
+          childSockets.put(s, s);
+          selectors[nextSelector++ % selectors.length].add(s.getChannel());
+        } else {
+          execute(new DataXceiver(s, datanode, this));
+        }
       } catch (SocketTimeoutException ignored) {
         // wake up to see if should continue to run
       } catch (IOException ie) {
@@ -134,6 +191,19 @@ class DataXceiverServer implements Runnable, FSConstants {
     }
   }
   
+  /** Serve a request by a thread of the pool. */
+  void execute(DataXceiver xceiver) {
+    try {
+      xceiverPool.execute(xceiver);
+    } catch (RejectedExecutionException e) {
+      LOG.warn(datanode.dnRegistration + ":DataXceiveServer: " 
+          + "xceiverCount " + xceiverPool.getActiveCount()
+          + " exceeds the limit of concurrent xcievers " + maxXceiverCount);
+      IOUtils.closeSocket(xceiver.s);
+      childSockets.remove(xceiver.s);
+    }
+  }
+  
   void kill() {
     assert datanode.shouldRun == false :
       "shoudRun should be set to false before killing";
@@ -144,6 +214,11 @@ class DataXceiverServer implements Runnable, FSConstants {
                               + StringUtils.stringifyException(ie));
     }
 
+    xceiverPool.shutdownNow();
+    for (int i = 0; i < selectors.length; i++) {
+      selectors[i].wakeup();
+    }
+
     // close all the sockets that were accepted earlier
     synchronized (childSockets) {
       for (Iterator<Socket> it = childSockets.values().iterator();
@@ -9,6 +9,7 @@ import javax.management.StandardMBean;
 
 import org.javenstudio.raptor.fs.*;
 import org.javenstudio.raptor.dfs.protocol.Block;
+import org.javenstudio.raptor.dfs.protocol.BlockLocalPathInfo;
 import org.javenstudio.raptor.dfs.protocol.FSConstants;
 import org.javenstudio.raptor.metrics.util.MBeanUtil;
 import org.javenstudio.raptor.util.DataChecksum;
@@ -507,6 +508,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         volumes[idx].getBlockInfo(blockSet);
       }
     }
+
+    synchronized Block[][] getBlockInfoPerVolume() {
+      Block[][] blockTables = new Block[volumes.length][];
+      for (int idx = 0; idx < volumes.length; idx++) {
+        TreeSet<Block> blockSet = new TreeSet<Block>();
+        volumes[idx].getBlockInfo(blockSet);
+        blockTables[idx] = blockSet.toArray(new Block[blockSet.size()]);
+      }
+      return blockTables;
+    }
       
     synchronized void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
       for (int idx = 0; idx < volumes.length; idx++) {
@@ -702,6 +713,24 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return getBlockFile(b).length();
   }
 
+  /** {@inheritDoc} */
+  public synchronized BlockLocalPathInfo getBlockLocalPathInfo(Block b)
+      throws IOException {
+    if (ongoingCreates.containsKey(b)) {
+      throw new IOException("Block " + b + " is being written.");
+    }
+    File f = getBlockFile(b);
+    File metafile = getMetaFile(f, b);
+    if (!metafile.exists()) {
+      throw new IOException("Meta file " + metafile + " of block " + b
+          + " does not exist.");
+    }
+    Block stored = new Block(b.getBlockId(), f.length(),
+        b.getGenerationStamp());
+    return new BlockLocalPathInfo(stored, f.getAbsolutePath(),
+        metafile.getAbsolutePath());
+  }
+
   /**
    * Get File name for a given block.
    */
@@ -1204,6 +1233,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return blockTable;
   }
 
+  /**
+   * Return a table of block data for each volume
+   */
+  public Block[][] getBlockReports() {
+    return volumes.getBlockInfoPerVolume();
+  }
+
   /**
    * Check whether the given block is a valid one.
    */
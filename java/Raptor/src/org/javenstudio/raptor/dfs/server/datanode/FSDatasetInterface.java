@@ -8,6 +8,7 @@ import java.io.OutputStream;
 
 import org.javenstudio.raptor.dfs.server.datanode.metrics.FSDatasetMBean;
 import org.javenstudio.raptor.dfs.protocol.Block;
+import org.javenstudio.raptor.dfs.protocol.BlockLocalPathInfo;
 import org.javenstudio.raptor.io.IOUtils;
 import org.javenstudio.raptor.util.DiskChecker.DiskErrorException;
 
@@ -71,6 +72,15 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public long getLength(Block b) throws IOException;
 
+  /**
+   * Returns the local paths of the specified block's data and metadata
+   * files, for clients reading the block on the same host
+   * @param b
+   * @return the block with its on-disk length, and the paths of its files
+   * @throws IOException if the block is not valid or is being written
+   */
+  public BlockLocalPathInfo getBlockLocalPathInfo(Block b) throws IOException;
+
   /**
    * @return the generation stamp stored with the block.
    */
@@ -182,6 +192,12 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public Block[] getBlockReport();
 
+  /**
+   * Returns the block report split by storage directory
+   * @return - the blocks stored, one list per storage directory
+   */
+  public Block[][] getBlockReports();
+
   /**
    * Is the block valid?
    * @param b
@@ -56,6 +56,8 @@ public class DataNodeMetrics implements Updater {
               new MetricsTimeVaryingInt("writes_from_local_client", registry);
   public MetricsTimeVaryingInt writesFromRemoteClient = 
               new MetricsTimeVaryingInt("writes_from_remote_client", registry);
+  public MetricsTimeVaryingInt localReadRequests = 
+              new MetricsTimeVaryingInt("local_read_requests", registry);
   
   public MetricsTimeVaryingRate readBlockOp = 
                 new MetricsTimeVaryingRate("readBlockOp", registry);
@@ -73,6 +75,8 @@ public class DataNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate incrementalBlockReports = 
+                    new MetricsTimeVaryingRate("incrementalBlockReports", registry);
 
     
   public DataNodeMetrics(Configuration conf, String storageId) {
@@ -117,6 +121,7 @@ public class DataNodeMetrics implements Updater {
     replaceBlockOp.resetMinMax();
     heartbeats.resetMinMax();
     blockReports.resetMinMax();
+    incrementalBlockReports.resetMinMax();
   }
 }
 
@@ -66,6 +66,11 @@ public class DatanodeDescriptor extends DatanodeInfo {
   }
 
   private volatile BlockInfo blockList = null;
+  // Separates the blocks of the parts of a full block report received so 
+  // far, moved to the head of blockList, from the blocks not reported yet.
+  // Null between reports.
+  private BlockInfo reportDelimiter = null;
+  private int nextReportPart = 0;
   // isAlive == heartbeats.contains(this)
   // This is an optimization, because contains takes O(n) time on Arraylist
   protected boolean isAlive = false;
@@ -191,11 +196,14 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.dfsUsed = 0;
     this.xceiverCount = 0;
     this.blockList = null;
+    this.reportDelimiter = null;
+    this.nextReportPart = 0;
     this.invalidateBlocks.clear();
   }
 
   public int numBlocks() {
-    return blockList == null ? 0 : blockList.listCount(this);
+    int count = blockList == null ? 0 : blockList.listCount(this);
+    return reportDelimiter == null ? count : count - 1;
   }
 
   /**
@@ -216,10 +224,17 @@ public class DatanodeDescriptor extends DatanodeInfo {
   static private class BlockIterator implements Iterator<Block> {
     private BlockInfo current;
     private DatanodeDescriptor node;
+    private BlockInfo skip;
       
     BlockIterator(BlockInfo head, DatanodeDescriptor dn) {
+      this(head, dn, null);
+    }
+
+    BlockIterator(BlockInfo head, DatanodeDescriptor dn, BlockInfo skip) {
       this.current = head;
       this.node = dn;
+      this.skip = skip;
+      skipDelimiter();
     }
 
     public boolean hasNext() {
@@ -229,16 +244,23 @@ public class DatanodeDescriptor extends DatanodeInfo {
     public BlockInfo next() {
       BlockInfo res = current;
       current = current.getNext(current.findDatanode(node));
+      skipDelimiter();
       return res;
     }
 
+    private void skipDelimiter() {
+      if (current != null && current == skip) {
+        current = current.getNext(current.findDatanode(node));
+      }
+    }
+
     public void remove()  {
       throw new UnsupportedOperationException("Sorry. can't remove.");
     }
   }
 
   Iterator<Block> getBlockIterator() {
-    return new BlockIterator(this.blockList, this);
+    return new BlockIterator(this.blockList, this, this.reportDelimiter);
   }
   
   /**
@@ -350,11 +372,36 @@ public class DatanodeDescriptor extends DatanodeInfo {
                   Collection<Block> toAdd,
                   Collection<Block> toRemove,
                   Collection<Block> toInvalidate) {
-    // place a deilimiter in the list which separates blocks 
-    // that have been reported from those that have not
-    BlockInfo delimiter = new BlockInfo(new Block(), 1);
-    boolean added = this.addBlock(delimiter);
-    assert added : "Delimiting block cannot be present in the node";
+    reportDiff(blocksMap, newReport, 0, 1, toAdd, toRemove, toInvalidate);
+  }
+
+  /**
+   * Compare a part of a full block report with the blocks of the node.
+   * The parts of a report are compared in order; the blocks reported by
+   * none of them are collected in toRemove when the last part is compared.
+   * A part out of order only collects the new and invalid blocks.
+   */
+  void reportDiff(BlocksMap blocksMap,
+                  BlockListAsLongs newReport,
+                  int part,
+                  int numParts,
+                  Collection<Block> toAdd,
+                  Collection<Block> toRemove,
+                  Collection<Block> toInvalidate) {
+    if (part == 0 || part != nextReportPart) {
+      if (reportDelimiter != null) {
+        // the previous report was not completed
+        removeBlock(reportDelimiter);
+        reportDelimiter = null;
+      }
+      if (part == 0) {
+        // place a deilimiter in the list which separates blocks 
+        // that have been reported from those that have not
+        reportDelimiter = new BlockInfo(new Block(), 1);
+        boolean added = this.addBlock(reportDelimiter);
+        assert added : "Delimiting block cannot be present in the node";
+      }
+    }
     if(newReport == null)
       newReport = new BlockListAsLongs( new long[0]);
     // scan the report and collect newly reported blocks
@@ -384,12 +431,20 @@ public class DatanodeDescriptor extends DatanodeInfo {
       // move block to the head of the list
       this.moveBlockToHead(storedBlock);
     }
-    // collect blocks that have not been reported
-    // all of them are next to the delimiter
-    Iterator<Block> it = new BlockIterator(delimiter.getNext(0), this);
-    while(it.hasNext())
-      toRemove.add(it.next());
-    this.removeBlock(delimiter);
+    if (part < numParts - 1) {
+      nextReportPart = part + 1;
+      return;
+    }
+    nextReportPart = 0;
+    if (reportDelimiter != null) {
+      // collect blocks that have not been reported
+      // all of them are next to the delimiter
+      Iterator<Block> it = new BlockIterator(reportDelimiter.getNext(0), this);
+      while(it.hasNext())
+        toRemove.add(it.next());
+      this.removeBlock(reportDelimiter);
+      reportDelimiter = null;
+    }
   }
 
   /** Serialization for FSEditLog */
@@ -2,6 +2,7 @@ package org.javenstudio.raptor.dfs.server.namenode;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.javenstudio.raptor.conf.Configuration;
 import org.javenstudio.raptor.fs.FileStatus;
@@ -34,6 +35,8 @@ class FSDirectory implements FSConstants, Closeable {
   private boolean ready = false;
   // Metrics record
   private MetricsRecord directoryMetrics = null;
+  // Guards the tree under rootDir; lookups and listings share it
+  private final ReentrantReadWriteLock dirLock;
 
   /** Access an existing dfs name directory. */
   FSDirectory(FSNamesystem ns, Configuration conf) {
@@ -43,6 +46,8 @@ class FSDirectory implements FSConstants, Closeable {
   }
 
   FSDirectory(FSImage fsImage, FSNamesystem ns, Configuration conf) {
+    this.dirLock = new ReentrantReadWriteLock(
+        conf.getBoolean("dfs.namenode.fslock.fair", true));
     rootDir = new INodeDirectoryWithQuota(INodeDirectory.ROOT_NAME,
         ns.createFsOwnerPermissions(new FsPermission((short)0755)),
         Integer.MAX_VALUE, -1);
@@ -51,6 +56,22 @@ class FSDirectory implements FSConstants, Closeable {
     initialize(conf);
   }
     
+  void readLock() {
+    this.dirLock.readLock().lock();
+  }
+
+  void readUnlock() {
+    this.dirLock.readLock().unlock();
+  }
+
+  void writeLock() {
+    this.dirLock.writeLock().lock();
+  }
+
+  void writeUnlock() {
+    this.dirLock.writeLock().unlock();
+  }
+
   private void initialize(Configuration conf) {
     MetricsContext metricsContext = MetricsUtil.getContext("dfs");
     directoryMetrics = MetricsUtil.createRecord(metricsContext, "FSDirectory");
@@ -137,8 +158,11 @@ class FSDirectory implements FSConstants, Closeable {
                                  permissions,replication,
                                  preferredBlockSize, modTime, clientName, 
                                  clientMachine, clientNode);
-    synchronized (rootDir) {
+    writeLock();
+    try {
       newNode = addNode(path, newNode, -1, false);
+    } finally {
+      writeUnlock();
     }
     if (newNode == null) {
       NameNode.stateChangeLog.info("DIR* FSDirectory.addFile: "
@@ -172,7 +196,8 @@ class FSDirectory implements FSConstants, Closeable {
                               modificationTime, atime, preferredBlockSize);
       diskspace = ((INodeFile)newNode).diskspaceConsumed(blocks);
     }
-    synchronized (rootDir) {
+    writeLock();
+    try {
       try {
         newNode = addNode(path, newNode, diskspace, false);
         if(newNode != null && blocks != null) {
@@ -187,6 +212,8 @@ class FSDirectory implements FSConstants, Closeable {
         return null;
       }
       return newNode;
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -215,7 +242,8 @@ class FSDirectory implements FSConstants, Closeable {
                               modificationTime, atime, preferredBlockSize);
     // add new node to the parent
     INodeDirectory newParent = null;
-    synchronized (rootDir) {
+    writeLock();
+    try {
       try {
         newParent = rootDir.addToParent(src, newNode, parentINode, false);
       } catch (FileNotFoundException e) {
@@ -231,6 +259,8 @@ class FSDirectory implements FSConstants, Closeable {
           newF.setBlock(i, namesystem.blocksMap.addINode(blocks[i], newF));
         }
       }
+    } finally {
+      writeUnlock();
     }
     return newParent;
   }
@@ -241,7 +271,8 @@ class FSDirectory implements FSConstants, Closeable {
   Block addBlock(String path, INode[] inodes, Block block) throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INodeFile fileNode = (INodeFile) inodes[inodes.length-1];
 
       // check quota limits and updated space consumed
@@ -257,6 +288,8 @@ class FSDirectory implements FSConstants, Closeable {
                                     + path + " with " + block
                                     + " block is added to the in-memory "
                                     + "file system");
+    } finally {
+      writeUnlock();
     }
     return block;
   }
@@ -268,11 +301,14 @@ class FSDirectory implements FSConstants, Closeable {
                      throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       fsImage.getEditLog().logOpenFile(path, file);
       NameNode.stateChangeLog.debug("DIR* FSDirectory.persistBlocks: "
                                     +path+" with "+ file.getBlocks().length 
                                     +" blocks is persisted to the file system");
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -281,7 +317,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   void closeFile(String path, INodeFile file) throws IOException {
     waitForReady();
-    synchronized (rootDir) {
+    writeLock();
+    try {
       // file is closed
       fsImage.getEditLog().logCloseFile(path, file);
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -289,6 +326,8 @@ class FSDirectory implements FSConstants, Closeable {
                                     +path+" with "+ file.getBlocks().length 
                                     +" blocks is persisted to the file system");
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -299,7 +338,8 @@ class FSDirectory implements FSConstants, Closeable {
                       Block block) throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       // modify file-> block and blocksMap
       fileNode.removeBlock(block);
       namesystem.blocksMap.removeINode(block);
@@ -311,6 +351,8 @@ class FSDirectory implements FSConstants, Closeable {
       NameNode.stateChangeLog.debug("DIR* FSDirectory.addFile: "
                                     +path+" with "+block
                                     +" block is added to the file system");
+    } finally {
+      writeUnlock();
     }
     return true;
   }
@@ -340,7 +382,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   boolean unprotectedRenameTo(String src, String dst, long timestamp) 
   throws QuotaExceededException {
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] srcInodes = rootDir.getExistingPathINodes(src);
 
       // check the validation of the source
@@ -422,6 +465,8 @@ class FSDirectory implements FSConstants, Closeable {
           return false;
         }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -453,7 +498,8 @@ class FSDirectory implements FSConstants, Closeable {
       oldReplication = new int[1];
     oldReplication[0] = -1;
     Block[] fileBlocks = null;
-    synchronized(rootDir) {
+    writeLock();
+    try {
       INode[] inodes = rootDir.getExistingPathINodes(src);
       INode inode = inodes[inodes.length - 1];
       if (inode == null)
@@ -470,6 +516,8 @@ class FSDirectory implements FSConstants, Closeable {
 
       fileNode.setReplication(replication);
       fileBlocks = fileNode.getBlocks();
+    } finally {
+      writeUnlock();
     }
     return fileBlocks;
   }
@@ -481,7 +529,8 @@ class FSDirectory implements FSConstants, Closeable {
    * @throws IOException if it is a directory or does not exist.
    */
   long getPreferredBlockSize(String filename) throws IOException {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode fileNode = rootDir.getNode(filename);
       if (fileNode == null) {
         throw new IOException("Unknown file: " + filename);
@@ -491,17 +540,22 @@ class FSDirectory implements FSConstants, Closeable {
                               filename);
       }
       return ((INodeFile)fileNode).getPreferredBlockSize();
+    } finally {
+      readUnlock();
     }
   }
 
   boolean exists(String src) {
     src = normalizePath(src);
-    synchronized(rootDir) {
+    readLock();
+    try {
       INode inode = rootDir.getNode(src);
       if (inode == null) {
          return false;
       }
       return inode.isDirectory()? true: ((INodeFile)inode).getBlocks() != null;
+    } finally {
+      readUnlock();
     }
   }
 
@@ -512,11 +566,14 @@ class FSDirectory implements FSConstants, Closeable {
   }
 
   void unprotectedSetPermission(String src, FsPermission permissions) throws FileNotFoundException {
-    synchronized(rootDir) {
+    writeLock();
+    try {
         INode inode = rootDir.getNode(src);
         if(inode == null)
             throw new FileNotFoundException("File does not exist: " + src);
         inode.setPermission(permissions);
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -527,7 +584,8 @@ class FSDirectory implements FSConstants, Closeable {
   }
 
   void unprotectedSetOwner(String src, String username, String groupname) throws FileNotFoundException {
-    synchronized(rootDir) {
+    writeLock();
+    try {
       INode inode = rootDir.getNode(src);
       if(inode == null)
           throw new FileNotFoundException("File does not exist: " + src);
@@ -537,6 +595,8 @@ class FSDirectory implements FSConstants, Closeable {
       if (groupname != null) {
         inode.setGroup(groupname);
       }
+    } finally {
+      writeUnlock();
     }
   }
     
@@ -562,12 +622,15 @@ class FSDirectory implements FSConstants, Closeable {
     if (!isDir(src)) {
       return true;
     }
-    synchronized(rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(src);
       assert targetNode != null : "should be taken care in isDir() above";
       if (((INodeDirectory)targetNode).getChildren().size() != 0) {
         dirNotEmpty = false;
       }
+    } finally {
+      readUnlock();
     }
     return dirNotEmpty;
   }
@@ -583,7 +646,8 @@ class FSDirectory implements FSConstants, Closeable {
   INode unprotectedDelete(String src, long modificationTime) {
     src = normalizePath(src);
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] inodes =  rootDir.getExistingPathINodes(src);
       INode targetNode = inodes[inodes.length-1];
 
@@ -618,6 +682,8 @@ class FSDirectory implements FSConstants, Closeable {
           return null;
         }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -634,7 +700,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   private void replaceNode(String path, INodeFile oldnode, INodeFile newnode,
                            boolean updateDiskspace) throws IOException {    
-    synchronized (rootDir) {
+    writeLock();
+    try {
       long dsOld = oldnode.diskspaceConsumed();
       
       //
@@ -671,6 +738,8 @@ class FSDirectory implements FSConstants, Closeable {
         newnode.setBlock(index, info); // inode refers to the block in BlocksMap
         index++;
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -683,7 +752,8 @@ class FSDirectory implements FSConstants, Closeable {
   FileStatus[] getListing(String src) {
     String srcs = normalizePath(src);
 
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null)
         return null;
@@ -700,6 +770,8 @@ class FSDirectory implements FSConstants, Closeable {
         i++;
       }
       return listing;
+    } finally {
+      readUnlock();
     }
   }
 
@@ -710,7 +782,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   FileStatus getFileInfo(String src) {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null) {
         return null;
@@ -718,6 +791,8 @@ class FSDirectory implements FSConstants, Closeable {
       else {
         return createFileStatus(srcs, targetNode);
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -726,13 +801,16 @@ class FSDirectory implements FSConstants, Closeable {
    */
   Block[] getFileBlocks(String src) {
     waitForReady();
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(src);
       if (targetNode == null)
         return null;
       if(targetNode.isDirectory())
         return null;
       return ((INodeFile)targetNode).getBlocks();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -740,11 +818,14 @@ class FSDirectory implements FSConstants, Closeable {
    * Get {@link INode} associated with the file.
    */
   INodeFile getFileINode(String src) {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode inode = rootDir.getNode(src);
       if (inode == null || inode.isDirectory())
         return null;
       return (INodeFile)inode;
+    } finally {
+      readUnlock();
     }
   }
 
@@ -761,8 +842,11 @@ class FSDirectory implements FSConstants, Closeable {
    * @see INodeDirectory#getExistingPathINodes(byte[][], INode[])
    */
   INode[] getExistingPathINodes(String path) {
-    synchronized (rootDir){
+    readLock();
+    try {
       return rootDir.getExistingPathINodes(path);
+    } finally {
+      readUnlock();
     }
   }
   
@@ -771,7 +855,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   boolean isValidToCreate(String src) {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       if (srcs.startsWith("/") && 
           !srcs.endsWith("/") && 
           rootDir.getNode(srcs) == null) {
@@ -779,6 +864,8 @@ class FSDirectory implements FSConstants, Closeable {
       } else {
         return false;
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -786,9 +873,12 @@ class FSDirectory implements FSConstants, Closeable {
    * Check whether the path specifies a directory
    */
   boolean isDir(String src) {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode node = rootDir.getNode(normalizePath(src));
       return node != null && node.isDirectory();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -804,7 +894,8 @@ class FSDirectory implements FSConstants, Closeable {
   void updateSpaceConsumed(String path, long nsDelta, long dsDelta)
                                          throws QuotaExceededException,
                                                 FileNotFoundException {
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] inodes = rootDir.getExistingPathINodes(path);
       int len = inodes.length;
       if (inodes[len - 1] == null) {
@@ -812,6 +903,8 @@ class FSDirectory implements FSConstants, Closeable {
                                         " does not exist under rootDir.");
       }
       updateCount(inodes, len-1, nsDelta, dsDelta);
+    } finally {
+      writeUnlock();
     }
   }
   
@@ -890,7 +983,8 @@ class FSDirectory implements FSConstants, Closeable {
     byte[][] components = INode.getPathComponents(names);
     INode[] inodes = new INode[components.length];
 
-    synchronized(rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
 
       // find the index of the first null in inodes[]
@@ -921,6 +1015,8 @@ class FSDirectory implements FSConstants, Closeable {
         NameNode.stateChangeLog.debug(
             "DIR* FSDirectory.mkdirs: created directory " + cur);
       }
+    } finally {
+      writeUnlock();
     }
     return true;
   }
@@ -931,11 +1027,14 @@ class FSDirectory implements FSConstants, Closeable {
                           long timestamp) throws QuotaExceededException {
     byte[][] components = INode.getPathComponents(src);
     INode[] inodes = new INode[components.length];
-    synchronized (rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
       unprotectedMkdir(inodes, inodes.length-1, components[inodes.length-1],
           permissions, false, timestamp);
       return inodes[inodes.length-1];
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -960,10 +1059,13 @@ class FSDirectory implements FSConstants, Closeable {
     byte[][] components = INode.getPathComponents(src);
     child.setLocalName(components[components.length-1]);
     INode[] inodes = new INode[components.length];
-    synchronized (rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
       return addChild(inodes, inodes.length-1, child, childDiskspace,
                       inheritPermission);
+    } finally {
+      writeUnlock();
     }
   }
   
@@ -1024,7 +1126,8 @@ class FSDirectory implements FSConstants, Closeable {
 
   ContentSummary getContentSummary(String src) throws IOException {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null) {
         throw new FileNotFoundException("File does not exist: " + srcs);
@@ -1032,6 +1135,8 @@ class FSDirectory implements FSConstants, Closeable {
       else {
         return targetNode.computeContentSummary();
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -1173,18 +1278,24 @@ class FSDirectory implements FSConstants, Closeable {
    */
   void setQuota(String src, long nsQuota, long dsQuota) 
                 throws FileNotFoundException, QuotaExceededException {
-    synchronized (rootDir) {    
+    writeLock();
+    try {    
       INodeDirectory dir = unprotectedSetQuota(src, nsQuota, dsQuota);
       if (dir != null) {
         fsImage.getEditLog().logSetQuota(src, dir.getNsQuota(), 
                                          dir.getDsQuota());
       }
+    } finally {
+      writeUnlock();
     }
   }
   
   long totalInodes() {
-    synchronized (rootDir) {
+    readLock();
+    try {
       return rootDir.numItemsInTree();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -724,12 +724,23 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
 
   public DatanodeCommand blockReport(DatanodeRegistration nodeReg,
                                      long[] blocks) throws IOException {
+    return blockReport(nodeReg, blocks, 0, 1);
+  }
+
+  public DatanodeCommand blockReport(DatanodeRegistration nodeReg,
+                                     long[] blocks, int part, int numParts
+                                     ) throws IOException {
     verifyRequest(nodeReg);
+    if (part < 0 || part >= numParts) {
+      throw new IOException("Invalid block report part " + part + 
+                            " of " + numParts + " from " + nodeReg.getName());
+    }
     BlockListAsLongs blist = new BlockListAsLongs(blocks);
     stateChangeLog.debug("*BLOCK* NameNode.blockReport: "
-           +"from "+nodeReg.getName()+" "+blist.getNumberOfBlocks() +" blocks");
+           +"from "+nodeReg.getName()+" "+blist.getNumberOfBlocks() +" blocks"
+           +", part "+(part+1)+" of "+numParts);
 
-    namesystem.processReport(nodeReg, blist);
+    namesystem.processReport(nodeReg, blist, part, numParts);
     if (getFSImage().isUpgradeFinalized())
       return DatanodeCommand.FINALIZE;
     return null;
@@ -741,9 +752,21 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     verifyRequest(nodeReg);
     stateChangeLog.debug("*BLOCK* NameNode.blockReceived: "
                          +"from "+nodeReg.getName()+" "+blocks.length+" blocks.");
+    long startTime = FSNamesystem.now();
     for (int i = 0; i < blocks.length; i++) {
       namesystem.blockReceived(nodeReg, blocks[i], delHints[i]);
     }
+    myMetrics.incrementalBlockReport.inc(FSNamesystem.now() - startTime);
+  }
+
+  public void blocksDeleted(DatanodeRegistration nodeReg, 
+                            Block blocks[]) throws IOException {
+    verifyRequest(nodeReg);
+    stateChangeLog.debug("*BLOCK* NameNode.blocksDeleted: "
+                         +"from "+nodeReg.getName()+" "+blocks.length+" blocks.");
+    long startTime = FSNamesystem.now();
+    namesystem.blocksDeleted(nodeReg, blocks);
+    myMetrics.incrementalBlockReport.inc(FSNamesystem.now() - startTime);
   }
 
   /**
@@ -63,7 +63,7 @@ class PermissionChecker {
    * @return a PermissionChecker object which caches data for later use.
    * @throws AccessControlException
    */
-  void checkPermission(String path, INodeDirectory root, boolean doCheckOwner,
+  void checkPermission(String path, FSDirectory dir, boolean doCheckOwner,
       FsAction ancestorAccess, FsAction parentAccess, FsAction access,
       FsAction subAccess) throws AccessControlException {
     if (LOG.isDebugEnabled()) {
@@ -75,8 +75,10 @@ class PermissionChecker {
           + ", subAccess=" + subAccess);
     }
 
-    synchronized(root) {
-      INode[] inodes = root.getExistingPathINodes(path);
+    // the tree changes under the write lock of dir, not of rootDir
+    dir.readLock();
+    try {
+      INode[] inodes = dir.rootDir.getExistingPathINodes(path);
       int ancestorIndex = inodes.length - 2;
       for(; ancestorIndex >= 0 && inodes[ancestorIndex] == null;
           ancestorIndex--);
@@ -97,6 +99,8 @@ class PermissionChecker {
       if (doCheckOwner) {
         checkOwner(inodes[inodes.length - 1]);
       }
+    } finally {
+      dir.readUnlock();
     }
   }
 
@@ -8,6 +8,7 @@ import org.javenstudio.raptor.metrics.util.MetricsBase;
 import org.javenstudio.raptor.metrics.util.MetricsIntValue;
 import org.javenstudio.raptor.metrics.util.MetricsLongValue;
 import org.javenstudio.raptor.metrics.util.MetricsRegistry;
+import org.javenstudio.raptor.metrics.util.MetricsTimeVaryingRate;
 
 /**
  * 
@@ -40,6 +41,13 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue scheduledReplicationBlocks = new MetricsIntValue("ScheduledReplicationBlocks", registry);
   final MetricsIntValue missingBlocks = new MetricsIntValue("MissingBlocks", registry);    
   final MetricsIntValue blockCapacity = new MetricsIntValue("BlockCapacity", registry);
+  // Lock hold times, in microseconds
+  final MetricsTimeVaryingRate readLockHeld = new MetricsTimeVaryingRate("ReadLockHeld", registry);
+  final MetricsLongValue readLockHeldMax = new MetricsLongValue("ReadLockHeldMax", registry);
+  final MetricsTimeVaryingRate writeLockHeld = new MetricsTimeVaryingRate("WriteLockHeld", registry);
+  final MetricsLongValue writeLockHeldMax = new MetricsLongValue("WriteLockHeldMax", registry);
+  final MetricsTimeVaryingRate blockReportLockHeld = new MetricsTimeVaryingRate("BlockReportLockHeld", registry);
+  final MetricsLongValue blockReportLockHeldMax = new MetricsLongValue("BlockReportLockHeldMax", registry);
    
   public FSNamesystemMetrics(Configuration conf) {
     String sessionId = conf.get("session.id");
@@ -95,6 +103,12 @@ public class FSNamesystemMetrics implements Updater {
                                       getScheduledReplicationBlocks());
       missingBlocks.set((int)fsNameSystem.getMissingBlocksCount());
       blockCapacity.set(fsNameSystem.getBlockCapacity());
+      fsNameSystem.getReadLockHoldTimes().updateMetrics(readLockHeld, 
+                                                        readLockHeldMax);
+      fsNameSystem.getWriteLockHoldTimes().updateMetrics(writeLockHeld, 
+                                                         writeLockHeldMax);
+      fsNameSystem.getBlockReportLockHoldTimes().updateMetrics(
+          blockReportLockHeld, blockReportLockHeldMax);
 
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
@@ -57,6 +57,8 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingInt("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate incrementalBlockReport =
+                    new MetricsTimeVaryingRate("incrementalBlockReport", registry, "Incremental Block Report");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -107,6 +109,7 @@ public class NameNodeMetrics implements Updater {
       transactions.resetMinMax();
       syncs.resetMinMax();
       blockReport.resetMinMax();
+      incrementalBlockReport.resetMinMax();
     }
 }
 
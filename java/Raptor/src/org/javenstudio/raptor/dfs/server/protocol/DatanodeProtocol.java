@@ -19,8 +19,9 @@ public interface DatanodeProtocol extends VersionedProtocol {
   /**
    * 19: SendHeartbeat returns an array of DatanodeCommand objects
    *     in stead of a DatanodeCommand object.
+   * 20: Block reports sent in parts, blocksDeleted() added.
    */
-  public static final long versionID = 19L;
+  public static final long versionID = 20L;
   
   // error code
   final static int NOTIFY = 0;
@@ -81,6 +82,24 @@ public interface DatanodeProtocol extends VersionedProtocol {
    */
   public DatanodeCommand blockReport(DatanodeRegistration registration,
                                      long[] blocks) throws IOException;
+
+  /**
+   * blockReport() of a part of the locally-stored blocks.  A full report
+   * is sent as numParts calls, with parts 0 to numParts - 1 in order, 
+   * and the blocks reported by none of them are taken as no longer stored
+   * once the last part is processed.  The NameNode holds its locks for 
+   * one part at a time.
+   * @param registration
+   * @param blocks - the blocks of the part as an array of longs.
+   * @param part - index of the part
+   * @param numParts - number of parts of the report
+   *     
+   * @return - the next command for DN to process.
+   * @throws IOException
+   */
+  public DatanodeCommand blockReport(DatanodeRegistration registration,
+                                     long[] blocks, int part, int numParts
+                                     ) throws IOException;
     
   /**
    * blockReceived() allows the DataNode to tell the NameNode about
@@ -94,6 +113,15 @@ public interface DatanodeProtocol extends VersionedProtocol {
                             Block blocks[],
                             String[] delHints) throws IOException;
 
+  /**
+   * blocksDeleted() tells the NameNode about the blocks the DataNode 
+   * deleted since it last reported, so that they need not wait for the
+   * next full block report.  Together with blockReceived() it makes the 
+   * incremental block report of the DataNode.
+   */
+  public void blocksDeleted(DatanodeRegistration registration,
+                            Block blocks[]) throws IOException;
+
   /**
    * errorReport() tells the NameNode about something that has gone
    * awry.  Useful for debugging.
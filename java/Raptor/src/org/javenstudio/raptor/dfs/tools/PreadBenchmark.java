@@ -0,0 +1,207 @@
+package org.javenstudio.raptor.dfs.tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.javenstudio.raptor.conf.Configuration;
+import org.javenstudio.raptor.conf.ConfigurationFactory;
+import org.javenstudio.raptor.dfs.DistributedFileSystem;
+import org.javenstudio.raptor.fs.FSDataInputStream;
+import org.javenstudio.raptor.fs.FSDataOutputStream;
+import org.javenstudio.raptor.fs.FileSystem;
+import org.javenstudio.raptor.fs.Path;
+import org.javenstudio.raptor.util.StringUtils;
+
+/**
+ * Compares the latency of random preads of a DFS file, read through
+ * datanode sockets or straight from the files of the replicas on this
+ * host, as <tt>dfs.client.read.shortcircuit</tt> turns on.
+ * <p>
+ * Run it on a datanode host.  The file is written first unless it exists,
+ * with a replica on this host.  Each mode warms up with a few preads, then
+ * the threads read at the same random offsets in both modes, and the
+ * mean, median, 99th percentile and longest pread are reported.
+ * <pre>
+ * Usage: PreadBenchmark [-file path] [-filesize bytes] [-readsize bytes]
+ *          [-reads n] [-threads n] [-noverify] [-modes socket,local]
+ * </pre>
+ */
+public class PreadBenchmark {
+
+  private final Configuration conf;
+  private final Path path;
+  private final long fileSize;
+  private final int readSize;
+  private final boolean verifyChecksum;
+
+  public PreadBenchmark(Configuration conf, Path path, long fileSize,
+      int readSize, boolean verifyChecksum) {
+    this.conf = conf;
+    this.path = path;
+    this.fileSize = fileSize;
+    this.readSize = readSize;
+    this.verifyChecksum = verifyChecksum;
+  }
+
+  /** A file system of its own, not the cached one, for each mode. */
+  private FileSystem newFileSystem(boolean local) throws IOException {
+    Configuration c = ConfigurationFactory.create(conf);
+    c.setBoolean("dfs.client.read.shortcircuit", local);
+    DistributedFileSystem fs = new DistributedFileSystem();
+    fs.initialize(FileSystem.getDefaultUri(c), c);
+    fs.setVerifyChecksum(verifyChecksum);
+    return fs;
+  }
+
+  /** Write the file, unless it is there already. */
+  void prepare() throws IOException {
+    FileSystem fs = newFileSystem(false);
+    try {
+      if (fs.exists(path) && fs.getFileStatus(path).getLen() >= fileSize) {
+        return;
+      }
+      Random rand = new Random(fileSize);
+      byte[] buf = new byte[64 * 1024];
+      FSDataOutputStream out = fs.create(path, true);
+      try {
+        for (long written = 0; written < fileSize; written += buf.length) {
+          rand.nextBytes(buf);
+          out.write(buf, 0, (int) Math.min(buf.length, fileSize - written));
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      fs.close();
+    }
+  }
+
+  /**
+   * Pread at random offsets.
+   * @return the pread latencies in nanoseconds, sorted
+   */
+  long[] run(boolean local, final int reads, int threads) throws Exception {
+    final FileSystem fs = newFileSystem(local);
+    try {
+      final FSDataInputStream in = fs.open(path);
+      try {
+        read(in, new Random(), Math.min(reads, 100), new long[reads], 0);
+
+        final long[] latencies = new long[reads];
+        final int perThread = reads / threads;
+        final Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+          final int from = i * perThread;
+          final int count = i == threads - 1 ? reads - from : perThread;
+          final Random rand = new Random(i);
+          workers[i] = new Thread() {
+            public void run() {
+              try {
+                read(in, rand, count, latencies, from);
+              } catch (Exception e) {
+                failure[0] = e;
+              }
+            }
+          };
+          workers[i].start();
+        }
+        for (Thread worker : workers) {
+          worker.join();
+        }
+        if (failure[0] != null) {
+          throw failure[0];
+        }
+        Arrays.sort(latencies);
+        return latencies;
+      } finally {
+        in.close();
+      }
+    } finally {
+      fs.close();
+    }
+  }
+
+  private void read(FSDataInputStream in, Random rand, int count,
+      long[] latencies, int from) throws IOException {
+    byte[] buf = new byte[readSize];
+    long range = Math.max(1, fileSize - readSize);
+    for (int i = 0; i < count; i++) {
+      long pos = (long) (rand.nextDouble() * range);
+      long startTime = System.nanoTime();
+      in.readFully(pos, buf, 0, buf.length);
+      latencies[from + i] = System.nanoTime() - startTime;
+    }
+  }
+
+  static void report(String mode, long[] latencies) {
+    long total = 0;
+    for (long latency : latencies) {
+      total += latency;
+    }
+    System.out.println(String.format(
+        "%-6s  mean %8.1f us  median %8.1f us  p99 %8.1f us  max %8.1f us",
+        mode, total / 1e3 / Math.max(1, latencies.length),
+        percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3,
+        percentile(latencies, 1.0) / 1e3));
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+  }
+
+  public static void main(String[] args) throws Exception {
+    String file = "/benchmarks/PreadBenchmark/data";
+    long fileSize = 256L * 1024 * 1024;
+    int readSize = 64 * 1024;
+    int reads = 10000;
+    int threads = 1;
+    boolean verifyChecksum = true;
+    String modes = "socket,local";
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-file".equals(args[i])) {
+        file = args[++i];
+      } else if ("-filesize".equals(args[i])) {
+        fileSize = Long.parseLong(args[++i]);
+      } else if ("-readsize".equals(args[i])) {
+        readSize = Integer.parseInt(args[++i]);
+      } else if ("-reads".equals(args[i])) {
+        reads = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-noverify".equals(args[i])) {
+        verifyChecksum = false;
+      } else if ("-modes".equals(args[i])) {
+        modes = args[++i];
+      } else {
+        System.err.println("Usage: PreadBenchmark [-file path] " +
+            "[-filesize bytes] [-readsize bytes] [-reads n] [-threads n] " +
+            "[-noverify] [-modes socket,local]");
+        System.exit(-1);
+      }
+    }
+
+    Configuration conf = ConfigurationFactory.create(true);
+    PreadBenchmark benchmark = new PreadBenchmark(conf, new Path(file),
+        fileSize, readSize, verifyChecksum);
+    benchmark.prepare();
+    System.out.println(reads + " preads of " + StringUtils.byteDesc(readSize) +
+        " in " + StringUtils.byteDesc(fileSize) + " by " + threads +
+        " threads" + (verifyChecksum ? "" : ", no checksums"));
+
+    for (String mode : modes.split(",")) {
+      mode = mode.trim();
+      boolean local = "local".equals(mode);
+      if (!local && !"socket".equals(mode)) {
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+      }
+      report(mode, benchmark.run(local, reads, threads));
+    }
+  }
+}